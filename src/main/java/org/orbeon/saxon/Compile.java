@@ -165,10 +165,8 @@ public class Compile {
                 if (debug) {
                     fos = new TracingObjectOutputStream(fos);
                 }
-                ObjectOutputStream oos = new ObjectOutputStream(fos);
-                //noinspection RedundantCast
-                oos.writeObject((PreparedStylesheet)sheet);
-                oos.close();
+                CompiledStylesheetFormat.write((PreparedStylesheet)sheet, fos);
+                fos.close();
                 System.err.println("Finished serializing stylesheet");
             } catch (Exception err) {
                 err.printStackTrace();
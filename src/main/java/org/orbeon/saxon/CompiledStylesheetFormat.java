@@ -0,0 +1,128 @@
+package org.orbeon.saxon;
+
+import org.orbeon.saxon.om.NamePool;
+
+import java.io.*;
+
+/**
+ * This class reads and writes compiled stylesheets in the form used by the {@link Compile} command and
+ * recognized by {@link PreparedStylesheet#loadCompiledStylesheet(Configuration, String)}.
+ *
+ * <p>The file starts with a header identifying the format, its version, and the version of Saxon that
+ * wrote it, so that a file written by a different version of Saxon is rejected with a clear message rather
+ * than failing part way through loading. The remainder of the file is the Java serialization of the
+ * PreparedStylesheet. The file is read and written through large buffers.</p>
+ */
+
+public final class CompiledStylesheetFormat {
+
+    /**
+     * The first four bytes of a compiled stylesheet file ("SXCS")
+     */
+
+    public static final int MAGIC = 0x53584353;
+
+    /**
+     * The version of the file format. This changes whenever the layout of the file changes.
+     */
+
+    public static final int FORMAT_VERSION = 3;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private CompiledStylesheetFormat() {}
+
+    /**
+     * Write a compiled stylesheet
+     * @param sheet the compiled stylesheet. Its target NamePool is set to the NamePool of its
+     * Configuration if it has not already been set.
+     * @param out the destination. This is flushed but not closed.
+     * @throws IOException if writing fails, or if the stylesheet contains objects that cannot be serialized
+     */
+
+    public static void write(PreparedStylesheet sheet, OutputStream out) throws IOException {
+        NamePool pool = sheet.getTargetNamePool();
+        sheet.setTargetNamePool(pool);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeUTF(Version.getProductVersion());
+        ObjectOutputStream oos = new ObjectOutputStream(data);
+        oos.writeObject(sheet);
+        oos.flush();
+    }
+
+    /**
+     * Read a compiled stylesheet.
+     * @param config The Configuration. <b>This method changes the NamePool used by this configuration
+     * to be the NamePool that was stored with the compiled stylesheet. The method must therefore not
+     * be used in a multi-threaded environment where the Configuration (and NamePool) are shared between
+     * multiple concurrent transformations.</b>
+     * @param in the source of the compiled stylesheet, positioned at the start of the header. The stream
+     * is closed.
+     * @return the PreparedStylesheet, which can be used in JAXP interfaces as the Templates object
+     * @throws IOException if reading fails, or if the file was not written by this version of Saxon
+     * @throws ClassNotFoundException if the file refers to a class that cannot be loaded
+     */
+
+    public static PreparedStylesheet read(Configuration config, InputStream in)
+            throws IOException, ClassNotFoundException {
+        InputStream buffer = (in instanceof BufferedInputStream ? in : new BufferedInputStream(in, BUFFER_SIZE));
+        DataInputStream data = new DataInputStream(buffer);
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a compiled stylesheet");
+            }
+            int format = data.readInt();
+            String version = data.readUTF();
+            if (format != FORMAT_VERSION || !version.equals(Version.getProductVersion())) {
+                throw new IOException("The compiled stylesheet was written by Saxon " + version +
+                        " (format " + format + "), and cannot be loaded by Saxon " + Version.getProductVersion() +
+                        " (format " + FORMAT_VERSION + "). Recompile the stylesheet.");
+            }
+            return PreparedStylesheet.loadCompiledStylesheet(config, new ObjectInputStream(data));
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Determine whether a stream holds a compiled stylesheet in this format, without consuming any input
+     * @param in the stream, which must support mark and reset
+     * @return true if the stream starts with the header of a compiled stylesheet
+     * @throws IOException if reading fails
+     */
+
+    public static boolean isCompiledStylesheet(InputStream in) throws IOException {
+        in.mark(4);
+        int magic = 0;
+        for (int i=0; i<4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                in.reset();
+                return false;
+            }
+            magic = (magic << 8) | b;
+        }
+        in.reset();
+        return magic == MAGIC;
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
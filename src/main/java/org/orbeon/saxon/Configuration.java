@@ -22,10 +22,13 @@ import org.orbeon.saxon.pull.PullSource;
 import org.orbeon.saxon.query.ModuleURIResolver;
 import org.orbeon.saxon.query.QueryParser;
 import org.orbeon.saxon.query.StandardModuleURIResolver;
+import org.orbeon.saxon.regex.RegularExpressionCache;
 import org.orbeon.saxon.sort.CollationURIResolver;
 import org.orbeon.saxon.sort.StandardCollationURIResolver;
 import org.orbeon.saxon.sort.StringCollator;
+import org.orbeon.saxon.style.StylesheetModuleCache;
 import org.orbeon.saxon.sxpath.IndependentContext;
+import org.orbeon.saxon.sxpath.XPathExpressionCache;
 import org.orbeon.saxon.tinytree.TinyBuilder;
 import org.orbeon.saxon.trace.TraceListener;
 import org.orbeon.saxon.trans.DynamicLoader;
@@ -138,6 +141,7 @@ public class Configuration implements Serializable, SourceResolver {
     private boolean lazyConstructionMode = false;
     private boolean allowMultiThreading = false;
     private boolean preEvaluateDocFunction = false;
+    private boolean functionInlining = true;
     private boolean useXsiSchemaLocation = true;
     private int stripsWhiteSpace = Whitespace.IGNORABLE;
     private boolean xIncludeAware = false;
@@ -145,8 +149,12 @@ public class Configuration implements Serializable, SourceResolver {
     private NamePool namePool = null;
     private DocumentNumberAllocator documentNumberAllocator = new DocumentNumberAllocator();
     private DocumentPool globalDocumentPool = new DocumentPool();
+    private transient DocumentCache documentCache = null;
+    private transient XPathExpressionCache xpathExpressionCache = null;
+    private transient StylesheetModuleCache stylesheetModuleCache = null;
     private transient XPathContext conversionContext = null;
     private transient TypeHierarchy typeHierarchy;
+    private transient RegularExpressionCache regularExpressionCache;
 
     private int hostLanguage = XSLT;
     private int schemaValidationMode = Validation.PRESERVE;
@@ -432,10 +440,14 @@ public class Configuration implements Serializable, SourceResolver {
         c.lazyConstructionMode = lazyConstructionMode;
         c.allowMultiThreading = allowMultiThreading;
         c.preEvaluateDocFunction = preEvaluateDocFunction;
+        c.functionInlining = functionInlining;
         c.stripsWhiteSpace = stripsWhiteSpace;
         c.xIncludeAware = xIncludeAware;
         c.namePool = namePool;
         c.documentNumberAllocator = documentNumberAllocator;
+        c.documentCache = documentCache;
+        c.xpathExpressionCache = xpathExpressionCache;
+        c.stylesheetModuleCache = stylesheetModuleCache;
         c.conversionContext = conversionContext;
         c.typeHierarchy = typeHierarchy;
         c.hostLanguage = hostLanguage;
@@ -742,6 +754,26 @@ public class Configuration implements Serializable, SourceResolver {
         return allowMultiThreading;
     }
 
+    /**
+     * Set whether the optimizer is allowed to inline calls on user-defined functions
+     *
+     * @param inline true if calls on small non-recursive functions may be replaced by the function body
+     */
+
+    public void setFunctionInlining(boolean inline) {
+        functionInlining = inline;
+    }
+
+    /**
+     * Determine whether the optimizer is allowed to inline calls on user-defined functions
+     *
+     * @return true if function inlining is allowed (the default)
+     */
+
+    public boolean isFunctionInlining() {
+        return functionInlining;
+    }
+
     /**
      * Set the XML version to be used by default for validating characters and names.
      * Note that source documents specifying xml version="1.0" or "1.1" are accepted
@@ -1645,17 +1677,17 @@ public class Configuration implements Serializable, SourceResolver {
     }
 
     /**
-     * Create a document projector for a given path map. Document projection is available only
-     * in Saxon-SA, so the Saxon-B version of this method throws an exception
+     * Create a document projector for a given path map. The document projector is a push filter
+     * that discards those parts of a source document that cannot be reached by the paths in the
+     * path map.
      *
-     * @param map the path map used to control document projection
+     * @param map the path map used to control document projection. This must have been reduced
+     *            to downwards axes, and must not have unknown dependencies
      * @return a push filter that implements document projection
-     * @throws UnsupportedOperationException if this is not a schema-aware configuration, or
-     *                                       if no Saxon-SA license is available
      */
 
     public ProxyReceiver makeDocumentProjector(PathMap.PathMapRoot map) {
-        throw new UnsupportedOperationException("Document projection requires a schema-aware Configuration");
+        return new DocumentProjector(map);
     }
 
     /**
@@ -1805,6 +1837,20 @@ public class Configuration implements Serializable, SourceResolver {
         return typeHierarchy;
     }
 
+    /**
+     * Get the cache of compiled regular expressions. This is used to avoid recompiling a regular
+     * expression that is supplied dynamically (rather than as a string literal) each time it is used
+     * by functions such as matches(), replace(), and tokenize().
+     * @return the regular expression cache for this configuration
+     */
+
+    public synchronized RegularExpressionCache getRegularExpressionCache() {
+        if (regularExpressionCache == null) {
+            regularExpressionCache = new RegularExpressionCache();
+        }
+        return regularExpressionCache;
+    }
+
     /**
      * Get the document number allocator.
      * <p/>
@@ -1871,6 +1917,75 @@ public class Configuration implements Serializable, SourceResolver {
         return globalDocumentPool;
     }
 
+    /**
+     * Set the document cache. This is used to share documents loaded using the doc() and document()
+     * functions between all the transformations and queries run under this Configuration, so that a
+     * document used repeatedly is parsed only once. By default there is no document cache, and each
+     * transformation or query loads its own copy of each document.
+     *
+     * @param cache the document cache, or null if documents are not to be shared
+     */
+
+    public void setDocumentCache(DocumentCache cache) {
+        documentCache = cache;
+    }
+
+    /**
+     * Get the document cache, used to share documents loaded using the doc() and document()
+     * functions between transformations and queries
+     *
+     * @return the document cache, or null if documents are not shared
+     */
+
+    public DocumentCache getDocumentCache() {
+        return documentCache;
+    }
+
+    /**
+     * Set the cache of compiled XPath expressions. If a cache is set, expressions compiled using the
+     * {@link org.orbeon.saxon.sxpath.XPathEvaluator} and {@link org.orbeon.saxon.s9api.XPathCompiler}
+     * interfaces are held in the cache, and an expression compiled again in an equivalent static context
+     * is taken from the cache rather than being recompiled. By default there is no cache.
+     *
+     * @param cache the cache of compiled expressions, or null if expressions are not to be cached
+     */
+
+    public void setXPathExpressionCache(XPathExpressionCache cache) {
+        xpathExpressionCache = cache;
+    }
+
+    /**
+     * Get the cache of compiled XPath expressions
+     *
+     * @return the cache of compiled expressions, or null if expressions are not cached
+     */
+
+    public XPathExpressionCache getXPathExpressionCache() {
+        return xpathExpressionCache;
+    }
+
+    /**
+     * Set the cache of parsed stylesheet modules. If a cache is set, stylesheet modules read from files
+     * are parsed only once, and the result is reused when the same module is included or imported by
+     * another stylesheet compiled under this Configuration. By default there is no cache.
+     *
+     * @param cache the cache of stylesheet modules, or null if modules are not to be cached
+     */
+
+    public void setStylesheetModuleCache(StylesheetModuleCache cache) {
+        stylesheetModuleCache = cache;
+    }
+
+    /**
+     * Get the cache of parsed stylesheet modules
+     *
+     * @return the cache of stylesheet modules, or null if modules are not cached
+     */
+
+    public StylesheetModuleCache getStylesheetModuleCache() {
+        return stylesheetModuleCache;
+    }
+
     /**
      * Determine whether whitespace-only text nodes are to be stripped unconditionally
      * from source documents.
@@ -3050,6 +3165,9 @@ public class Configuration implements Serializable, SourceResolver {
             boolean b = requireBoolean("ALLOW_EXTERNAL_FUNCTIONS", value);
             setAllowExternalFunctions(b);
 
+        } else if (name.equals(FeatureKeys.ALLOW_MULTITHREADING)) {
+            setMultiThreading(requireBoolean("ALLOW_MULTITHREADING", value));
+
         } else if (name.equals(FeatureKeys.COLLATION_URI_RESOLVER)) {
             if (!(value instanceof CollationURIResolver)) {
                 throw new IllegalArgumentException(
@@ -3108,6 +3226,10 @@ public class Configuration implements Serializable, SourceResolver {
             boolean b = requireBoolean("EXPAND_ATTRIBUTE_DEFAULTS", value);
             setExpandAttributeDefaults(b);
 
+        } else if (name.equals(FeatureKeys.INLINE_FUNCTIONS)) {
+            boolean b = requireBoolean("INLINE_FUNCTIONS", value);
+            setFunctionInlining(b);
+
         } else if (name.equals(FeatureKeys.LINE_NUMBERING)) {
             boolean b = requireBoolean("LINE_NUMBERING", value);
             setLineNumbering(b);
@@ -3379,6 +3501,9 @@ public class Configuration implements Serializable, SourceResolver {
         if (name.equals(FeatureKeys.ALLOW_EXTERNAL_FUNCTIONS)) {
             return Boolean.valueOf(isAllowExternalFunctions());
 
+        } else if (name.equals(FeatureKeys.ALLOW_MULTITHREADING)) {
+            return Boolean.valueOf(isMultiThreading());
+
         } else if (name.equals(FeatureKeys.COLLATION_URI_RESOLVER)) {
             return getCollationURIResolver();
 
@@ -3400,6 +3525,9 @@ public class Configuration implements Serializable, SourceResolver {
         } else if (name.equals(FeatureKeys.EXPAND_ATTRIBUTE_DEFAULTS)) {
             return Boolean.valueOf(isExpandAttributeDefaults());
 
+        } else if (name.equals(FeatureKeys.INLINE_FUNCTIONS)) {
+            return Boolean.valueOf(isFunctionInlining());
+
         } else if (name.equals(FeatureKeys.LINE_NUMBERING)) {
             return Boolean.valueOf(isLineNumbering());
 
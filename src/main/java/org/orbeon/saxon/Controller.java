@@ -21,6 +21,7 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Controller is Saxon's implementation of the JAXP Transformer class, and represents
@@ -86,7 +87,8 @@ public class Controller extends Transformer {
     private HashSet allOutputDestinations;
     private DocumentPool sourceDocumentPool;
     private SequenceOutputter reusableSequenceOutputter = null;
-    private HashMap userDataTable;
+    private ConcurrentHashMap userDataTable;   // used by several threads when keys are evaluated in parallel
+    private MemoFunctionCache memoFunctionCache = null;
     private DateTimeValue currentDateTime;
     private boolean dateTimePreset = false;
     private StructuredQName initialMode = null;
@@ -171,7 +173,8 @@ public class Controller extends Transformer {
             ((StandardErrorListener)errorListener).setRecoveryPolicy(recoveryPolicy);
         }
 
-        userDataTable = new HashMap(20);
+        userDataTable = new ConcurrentHashMap(20);
+        memoFunctionCache = null;
 
         traceListener = null;
         tracingPaused = false;
@@ -1491,7 +1494,7 @@ public class Controller extends Transformer {
      * associated with the same node by different client applications.
      * <p>
      * This method is intended primarily for internal use, though it may also be
-     * used by advanced applications.
+     * used by advanced applications. It may be called from several threads at once.
      *
      * @param key an object acting as a key for this user data value. This must be equal
      * (in the sense of the equals() method) to the key supplied when the data value was
@@ -1513,7 +1516,7 @@ public class Controller extends Transformer {
      * associated with the same node by different client applications.
      * <p>
      * This method is intended primarily for internal use, though it may also be
-     * used by advanced applications.
+     * used by advanced applications. It may be called from several threads at once.
      *
      * @param key an object acting as a key for this user data value. This must be equal
      * (in the sense of the equals() method) to the key supplied when the data value was
@@ -1533,6 +1536,22 @@ public class Controller extends Transformer {
         }
     }
 
+    /**
+     * Get the cache used to hold the results of calls on memo functions during this transformation
+     * or query. The cache is created when first needed, and is discarded when the Controller is reset.
+     * Applications may use it to limit the number of cached results, or to read statistics on how
+     * effective the caching has been.
+     * @return the memo function cache for this Controller
+     * @since 9.1
+     */
+
+    public synchronized MemoFunctionCache getMemoFunctionCache() {
+        if (memoFunctionCache == null) {
+            memoFunctionCache = new MemoFunctionCache();
+        }
+        return memoFunctionCache;
+    }
+
 
     /////////////////////////////////////////////////////////////////////////
     // implement the javax.xml.transform.Transformer methods
@@ -1875,7 +1894,9 @@ public class Controller extends Transformer {
             Iterator iter = vars.values().iterator();
             while (iter.hasNext()) {
                 GlobalVariable var = (GlobalVariable)iter.next();
-                var.evaluateVariable(context);
+                if (!var.isExtracted()) {
+                    var.evaluateVariable(context);
+                }
             }
         }
     }
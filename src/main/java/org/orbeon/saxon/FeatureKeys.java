@@ -31,6 +31,14 @@ public abstract class FeatureKeys {
 	public static final String ALLOW_EXTERNAL_FUNCTIONS =
 	        "http://saxon.sf.net/feature/allow-external-functions";
 
+    /**
+     * ALLOW_MULTITHREADING must be a Boolean; it determines whether Saxon is allowed to use several threads
+     * to speed up the evaluation of a single transformation or query, for example when sorting large sequences
+     */
+
+    public static final String ALLOW_MULTITHREADING =
+            "http://saxon.sf.net/feature/allow-multithreading";
+
     /**
     * COLLATION_URI_RESOLVER must be a {@link org.orbeon.saxon.sort.CollationURIResolver}.
      * This resolver will be used to resolve collation URIs used in stylesheets compiled or executed under the
@@ -109,6 +117,16 @@ public abstract class FeatureKeys {
     public static final String EXPAND_ATTRIBUTE_DEFAULTS =
             "http://saxon.sf.net/feature/expandAttributeDefaults";
 
+    /**
+     * INLINE_FUNCTIONS must be a Boolean; it determines whether the optimizer is allowed to replace
+     * calls on small, non-recursive user-defined functions by the body of the function. The default
+     * is true. Setting this feature to false may be useful when debugging, as it ensures that every
+     * function call actually takes place.
+    */
+
+    public static final String INLINE_FUNCTIONS =
+            "http://saxon.sf.net/feature/inlineFunctions";
+
     /**
      * LINE_NUMBERING must be a Boolean; it determines whether line and column numbers are maintained for
      * source documents. Note that some tree implementations do not support line numbering, and some may support
@@ -20,10 +20,7 @@ import org.orbeon.saxon.tree.TreeBuilder;
 import org.xml.sax.XMLReader;
 
 import javax.xml.transform.*;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.Serializable;
+import java.io.*;
 import java.math.BigDecimal;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -50,6 +47,7 @@ public class PreparedStylesheet implements Templates, Serializable {
     private transient ErrorListener errorListener;
     private transient URIResolver uriResolver;
     private boolean compileWithTracing;
+    private transient ThreadLocal deferredReports;   // errors and warnings held back during parallel compilation
 
     /**
      * Constructor - deliberately protected
@@ -203,10 +201,27 @@ public class PreparedStylesheet implements Templates, Serializable {
         styleBuilder.setNodeFactory(nodeFactory);
         styleBuilder.setLineNumbering(true);
 
+        // if the module has been loaded before, build the tree from the recorded events
+
+        StylesheetModuleCache cache = config.getStylesheetModuleCache();
+        String cacheKey = (cache == null ? null : StylesheetModuleCache.getCacheKey(styleSource));
+        if (cacheKey != null && cache.replay(cacheKey, styleBuilder)) {
+            DocumentImpl doc = (DocumentImpl)styleBuilder.getCurrentRoot();
+            styleBuilder.reset();
+            return doc;
+        }
+
         StartTagBuffer startTagBuffer = new StartTagBuffer();
 
         UseWhenFilter useWhenFilter = new UseWhenFilter(startTagBuffer);
-        useWhenFilter.setUnderlyingReceiver(styleBuilder);
+        StylesheetModuleCache.Recorder recorder = null;
+        if (cacheKey != null) {
+            recorder = cache.makeRecorder(cacheKey, pipe.getConfiguration().getNamePool());
+            recorder.setUnderlyingReceiver(styleBuilder);
+            useWhenFilter.setUnderlyingReceiver(recorder);
+        } else {
+            useWhenFilter.setUnderlyingReceiver(styleBuilder);
+        }
 
         startTagBuffer.setUnderlyingReceiver(useWhenFilter);
 
@@ -240,6 +255,10 @@ public class PreparedStylesheet implements Templates, Serializable {
             aug.close();
         }
 
+        if (recorder != null) {
+            cache.add(recorder);
+        }
+
         return doc;
 
     }
@@ -250,14 +269,19 @@ public class PreparedStylesheet implements Templates, Serializable {
      * to be the NamePool that was stored with the compiled stylesheet. The method must therefore not
      * be used in a multi-threaded environment where the Configuration (and NamePool) are shared between
      * multiple concurrent transformations.</b>
-     * @param fileName The name of the file containing the compiled stylesheet (which is just the Java serialization
-     * of a PreparedStylesheet object).
+     * @param fileName The name of the file containing the compiled stylesheet. This may be either a file
+     * written by the {@link Compile} command (see {@link CompiledStylesheetFormat}), or the Java serialization
+     * of a PreparedStylesheet object.
      * @return the PreparedStylesheet, which can be used in JAXP interfaces as the Templates object
      */
 
     public static PreparedStylesheet loadCompiledStylesheet(Configuration config, String fileName)
             throws IOException, ClassNotFoundException {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fileName));
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName), 65536);
+        if (CompiledStylesheetFormat.isCompiledStylesheet(in)) {
+            return CompiledStylesheetFormat.read(config, in);
+        }
+        ObjectInputStream ois = new ObjectInputStream(in);
         return loadCompiledStylesheet(config, ois);
     }
 
@@ -274,8 +298,15 @@ public class PreparedStylesheet implements Templates, Serializable {
 
     public static PreparedStylesheet loadCompiledStylesheet(Configuration config, ObjectInputStream ois)
             throws IOException, ClassNotFoundException {
-        PreparedStylesheet sheet = (PreparedStylesheet)ois.readObject();
-        ois.close();
+        PreparedStylesheet sheet;
+        try {
+            sheet = (PreparedStylesheet)ois.readObject();
+        } catch (InvalidClassException err) {
+            throw new IOException("The compiled stylesheet was written by a different version of Saxon, " +
+                    "and cannot be loaded by Saxon " + Version.getProductVersion() + ". Recompile the stylesheet.", err);
+        } finally {
+            ois.close();
+        }
         NamePool compiledNamePool = sheet.getTargetNamePool();
         sheet.setConfiguration(config);
         sheet.getExecutable().setConfiguration(config);
@@ -403,6 +434,9 @@ public class PreparedStylesheet implements Templates, Serializable {
      */
 
     public void reportError(TransformerException err) throws TransformerException {
+        if (deferReport(err, false)) {
+            return;
+        }
         errorCount++;
         if (err instanceof XPathException) {
             if (!((XPathException)err).hasBeenReported()) {
@@ -437,12 +471,80 @@ public class PreparedStylesheet implements Templates, Serializable {
      */
 
     public void reportWarning(TransformerException err) {
+        if (deferReport(err, true)) {
+            return;
+        }
         //noinspection EmptyCatchBlock
         try {
             errorListener.warning(err);
         } catch (TransformerException err2) {}
     }
 
+    /**
+     * Hold back the errors and warnings reported by the current thread, rather than passing them to the
+     * ErrorListener. This is used when parts of the stylesheet are compiled in parallel, so that the errors
+     * can be reported afterwards in a predictable order, using {@link #reportDeferredErrors}.
+     * @param reports a list to which the errors and warnings reported by the current thread will be added,
+     * or null if they are to be reported immediately
+     * @return the list previously in use for the current thread, or null if there was none
+     */
+
+    public synchronized List deferReports(List reports) {
+        if (deferredReports == null) {
+            deferredReports = new ThreadLocal();
+        }
+        List previous = (List)deferredReports.get();
+        deferredReports.set(reports);
+        return previous;
+    }
+
+    /**
+     * Report the errors and warnings that were held back by {@link #deferReports}
+     * @param reports the list of errors and warnings
+     * @throws TransformerException if the ErrorListener decides that an error should be reported.
+     * In this case the remaining errors and warnings in the list are not reported.
+     */
+
+    public void reportDeferredErrors(List reports) throws TransformerException {
+        for (int i=0; i<reports.size(); i++) {
+            DeferredReport report = (DeferredReport)reports.get(i);
+            if (report.isWarning) {
+                reportWarning(report.error);
+            } else {
+                reportError(report.error);
+            }
+        }
+    }
+
+    /**
+     * Add an error or warning to the list of deferred reports for the current thread, if there is one
+     * @param err the error or warning
+     * @param isWarning true if this is a warning
+     * @return true if the report has been deferred, false if it must be reported now
+     */
+
+    private boolean deferReport(TransformerException err, boolean isWarning) {
+        ThreadLocal t;
+        synchronized (this) {
+            t = deferredReports;
+        }
+        List reports = (t == null ? null : (List)t.get());
+        if (reports == null) {
+            return false;
+        }
+        for (int i=0; i<reports.size(); i++) {
+            if (((DeferredReport)reports.get(i)).error == err) {
+                // the same error reported twice is reported once
+                return true;
+            }
+        }
+        DeferredReport report = new DeferredReport();
+        report.error = err;
+        report.isWarning = isWarning;
+        reports.add(report);
+        return true;
+    }
+
     /**
      * Get a "next in chain" stylesheet. This method is intended for internal use.
      * @param href the relative URI of the next-in-chain stylesheet
@@ -537,6 +639,15 @@ public class PreparedStylesheet implements Templates, Serializable {
         presenter.endElement();
     }
 
+    /**
+     * An error or warning whose reporting has been deferred
+     */
+
+    private static class DeferredReport {
+        TransformerException error;
+        boolean isWarning;
+    }
+
 }
 
 //
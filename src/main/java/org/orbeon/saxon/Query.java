@@ -290,7 +290,6 @@ public class Query {
                     args[i].equals("-p") ||
                     args[i].equals("-xsd:") ||
                     args[i].startsWith("-xsdversion:") ||
-                    args[i].startsWith("-projection:") ||
                     args[i].startsWith("-update:")) {
                 return true;
             }
@@ -0,0 +1,115 @@
+package org.orbeon.saxon.benchmark;
+
+import org.orbeon.saxon.CompiledStylesheetFormat;
+import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.PreparedStylesheet;
+import org.orbeon.saxon.TransformerFactoryImpl;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Benchmark for {@link CompiledStylesheetFormat}: compiles a stylesheet, writes it both as a Java
+ * serialization and in the compiled stylesheet format, and compares the sizes of the files and the
+ * time taken to load them.
+ */
+
+public class CompiledStylesheetLoad {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private CompiledStylesheetLoad() {}
+
+    /**
+     * Run the benchmark
+     * @param args the stylesheet file name, and optionally the number of times each file is loaded
+     * (default 10)
+     * @throws Exception if anything goes wrong
+     */
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java org.orbeon.saxon.benchmark.CompiledStylesheetLoad stylesheet-file [iterations]");
+            return;
+        }
+        int iterations = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+        TransformerFactoryImpl factory = new TransformerFactoryImpl();
+        PreparedStylesheet sheet =
+                (PreparedStylesheet)factory.newTemplates(new StreamSource(new File(args[0])));
+        sheet.setTargetNamePool(sheet.getConfiguration().getNamePool());
+
+        File javaFile = File.createTempFile("saxon", ".ser");
+        File saxonFile = File.createTempFile("saxon", ".sxc");
+        javaFile.deleteOnExit();
+        saxonFile.deleteOnExit();
+        ObjectOutputStream oos = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(javaFile), BUFFER_SIZE));
+        oos.writeObject(sheet);
+        oos.close();
+        OutputStream os = new FileOutputStream(saxonFile);
+        CompiledStylesheetFormat.write(sheet, os);
+        os.close();
+        System.err.println("Java serialization: " + javaFile.length() + " bytes");
+        System.err.println("Compiled stylesheet format: " + saxonFile.length() + " bytes");
+
+        long[] plainTimes = new long[iterations];
+        long[] javaTimes = new long[iterations];
+        long[] saxonTimes = new long[iterations];
+        for (int i=0; i<iterations; i++) {
+            // rotate the order, so that no format gains from following another
+            for (int j=0; j<3; j++) {
+                long start = System.nanoTime();
+                switch ((i + j) % 3) {
+                    case 0: {
+                        // as loaded by earlier releases of loadCompiledStylesheet()
+                        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(javaFile));
+                        PreparedStylesheet.loadCompiledStylesheet(new Configuration(), ois);
+                        plainTimes[i] = System.nanoTime() - start;
+                        break;
+                    }
+                    case 1: {
+                        ObjectInputStream ois = new ObjectInputStream(
+                                new BufferedInputStream(new FileInputStream(javaFile), BUFFER_SIZE));
+                        PreparedStylesheet.loadCompiledStylesheet(new Configuration(), ois);
+                        javaTimes[i] = System.nanoTime() - start;
+                        break;
+                    }
+                    default: {
+                        InputStream is = new FileInputStream(saxonFile);
+                        CompiledStylesheetFormat.read(new Configuration(), is);
+                        is.close();
+                        saxonTimes[i] = System.nanoTime() - start;
+                    }
+                }
+            }
+        }
+        report("Java serialization, unbuffered", plainTimes);
+        report("Java serialization, buffered", javaTimes);
+        report("Compiled stylesheet format", saxonTimes);
+    }
+
+    private static void report(String label, long[] times) {
+        Arrays.sort(times);
+        System.err.println(label + ": fastest load " + (times[0] / 1000000) + "ms, median " +
+                (times[times.length / 2] / 1000000) + "ms");
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
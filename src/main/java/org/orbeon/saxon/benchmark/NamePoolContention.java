@@ -0,0 +1,77 @@
+package org.orbeon.saxon.benchmark;
+
+import org.orbeon.saxon.om.NamePool;
+
+/**
+ * Contention benchmark for the {@link NamePool}. Runs a number of threads that concurrently allocate and
+ * look up names in a shared NamePool, in the way that concurrent document builds do, and reports the
+ * elapsed time.
+ */
+
+public class NamePoolContention {
+
+    private NamePoolContention() {}
+
+    /**
+     * Run the benchmark
+     * @param args optionally, the number of threads (default 8) and the number of iterations per
+     * thread (default 1000000)
+     * @throws Exception if the benchmark fails
+     */
+
+    public static void main(String[] args) throws Exception {
+        final int threads = (args.length > 0 ? Integer.parseInt(args[0]) : 8);
+        final int iterations = (args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+        final NamePool pool = new NamePool();
+        final String[] locals = new String[2000];
+        for (int i=0; i<locals.length; i++) {
+            locals[i] = "name" + i;
+        }
+        final String[] uris = {"", "http://example.com/a", "http://example.com/b"};
+        Thread[] workers = new Thread[threads];
+        for (int t=0; t<threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    for (int i=0; i<iterations; i++) {
+                        int n = (i * 31 + seed) % locals.length;
+                        String uri = uris[n % uris.length];
+                        int nc = pool.allocate((uri.length() == 0 ? "" : "p" + (n % 3)), uri, locals[n]);
+                        if (!pool.getLocalName(nc).equals(locals[n]) ||
+                                pool.getFingerprint(uri, locals[n]) != (nc & NamePool.FP_MASK)) {
+                            throw new IllegalStateException("NamePool inconsistency for " + locals[n]);
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (int t=0; t<threads; t++) {
+            workers[t].start();
+        }
+        for (int t=0; t<threads; t++) {
+            workers[t].join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.err.println(threads + " threads x " + iterations + " allocations: " + elapsed + "ms");
+        pool.statistics();
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
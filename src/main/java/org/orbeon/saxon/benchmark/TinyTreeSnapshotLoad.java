@@ -0,0 +1,67 @@
+package org.orbeon.saxon.benchmark;
+
+import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.om.DocumentInfo;
+import org.orbeon.saxon.tinytree.TinyDocumentImpl;
+import org.orbeon.saxon.tinytree.TinyTreeSnapshot;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+
+/**
+ * Benchmark for {@link TinyTreeSnapshot}: builds a document from a source file, saves it as a snapshot,
+ * and reports the time taken to load the snapshot compared with the time taken to parse the source.
+ */
+
+public class TinyTreeSnapshotLoad {
+
+    private TinyTreeSnapshotLoad() {}
+
+    /**
+     * Run the benchmark
+     * @param args the source file name and the snapshot file name
+     * @throws Exception if anything goes wrong
+     */
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: java org.orbeon.saxon.benchmark.TinyTreeSnapshotLoad source.xml snapshot-file");
+            return;
+        }
+        Configuration config = new Configuration();
+        File source = new File(args[0]);
+        File snapshot = new File(args[1]);
+        long start = System.nanoTime();
+        DocumentInfo doc = config.buildDocument(new StreamSource(source));
+        long parsed = System.nanoTime();
+        TinyTreeSnapshot.write((TinyDocumentImpl)doc, snapshot);
+        long written = System.nanoTime();
+        System.err.println("Parse time: " + (parsed - start)/1000000 + " milliseconds");
+        System.err.println("Snapshot write time: " + (written - parsed)/1000000 + " milliseconds");
+        System.err.println("Snapshot size: " + snapshot.length() + " bytes");
+        for (int i=0; i<3; i++) {
+            long t = System.nanoTime();
+            TinyDocumentImpl loaded = TinyTreeSnapshot.read(snapshot, config);
+            System.err.println("Snapshot load time: " + (System.nanoTime() - t)/1000000 + " milliseconds (" +
+                    loaded.getTree().getNumberOfNodes() + " nodes)");
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
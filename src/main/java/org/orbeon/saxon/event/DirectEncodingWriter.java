@@ -0,0 +1,213 @@
+package org.orbeon.saxon.event;
+
+import org.orbeon.saxon.charcode.UTF16;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * A Writer that encodes characters directly into a byte buffer, which is written to an OutputStream
+ * in large blocks. It is used by the serializer in place of a BufferedWriter wrapping an
+ * OutputStreamWriter, for UTF-8 and for the single-byte encodings US-ASCII and ISO-8859-1. Runs of
+ * ASCII characters, which make up most serialized markup, are copied to the buffer one byte per
+ * character with no further tests.
+ *
+ * <p>Characters that cannot be encoded, including unpaired surrogates, are written as "?", as an
+ * OutputStreamWriter would write them. The emitters never rely on this, since they write such
+ * characters as character references.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+
+public final class DirectEncodingWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 32768;
+
+    private OutputStream out;
+    private boolean utf8;
+    private int maxChar;        // for a single-byte encoding, the highest character it can represent
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int used = 0;
+    private char highSurrogate = 0;     // the first half of a surrogate pair, awaiting the second half
+
+    private DirectEncodingWriter(OutputStream out, boolean utf8, int maxChar) {
+        this.out = out;
+        this.utf8 = utf8;
+        this.maxChar = maxChar;
+    }
+
+    /**
+     * Make a DirectEncodingWriter for a given encoding, if it is one that this class handles
+     * @param out the OutputStream to which the encoded bytes are written
+     * @param encoding the Java name of the encoding, or one of its aliases
+     * @return a DirectEncodingWriter, or null if the encoding is not UTF-8, US-ASCII or ISO-8859-1
+     */
+
+    public static DirectEncodingWriter make(OutputStream out, String encoding) {
+        String name;
+        try {
+            name = Charset.forName(encoding).name();
+        } catch (IllegalArgumentException err) {
+            // the encoding is unknown, and the caller will report it
+            return null;
+        }
+        if (name.equals("UTF-8")) {
+            return new DirectEncodingWriter(out, true, 0x10ffff);
+        } else if (name.equals("US-ASCII")) {
+            return new DirectEncodingWriter(out, false, 0x7f);
+        } else if (name.equals("ISO-8859-1")) {
+            return new DirectEncodingWriter(out, false, 0xff);
+        } else {
+            return null;
+        }
+    }
+
+    public void write(int c) throws IOException {
+        if (used + 4 > BUFFER_SIZE) {
+            flushBuffer();
+        }
+        encode((char)c);
+    }
+
+    public void write(char[] chars, int off, int len) throws IOException {
+        int i = off;
+        final int end = off + len;
+        while (i < end) {
+            if (highSurrogate == 0) {
+                // copy a run of ASCII characters, as far as the buffer allows
+                final int runEnd = Math.min(end, i + (BUFFER_SIZE - used));
+                while (i < runEnd) {
+                    final char c = chars[i];
+                    if (c >= 0x80) {
+                        break;
+                    }
+                    buffer[used++] = (byte)c;
+                    i++;
+                }
+                if (i == end) {
+                    return;
+                }
+            }
+            if (used + 4 > BUFFER_SIZE) {
+                flushBuffer();
+            }
+            encode(chars[i++]);
+        }
+    }
+
+    public void write(String s, int off, int len) throws IOException {
+        int i = off;
+        final int end = off + len;
+        while (i < end) {
+            if (highSurrogate == 0) {
+                // copy a run of ASCII characters, as far as the buffer allows
+                final int runEnd = Math.min(end, i + (BUFFER_SIZE - used));
+                while (i < runEnd) {
+                    final char c = s.charAt(i);
+                    if (c >= 0x80) {
+                        break;
+                    }
+                    buffer[used++] = (byte)c;
+                    i++;
+                }
+                if (i == end) {
+                    return;
+                }
+            }
+            if (used + 4 > BUFFER_SIZE) {
+                flushBuffer();
+            }
+            encode(s.charAt(i++));
+        }
+    }
+
+    public void write(String s) throws IOException {
+        write(s, 0, s.length());
+    }
+
+    /**
+     * Encode one character into the buffer, which must have room for at least four bytes
+     * @param c the character
+     */
+
+    private void encode(char c) {
+        if (highSurrogate != 0) {
+            char h = highSurrogate;
+            highSurrogate = 0;
+            if (UTF16.isLowSurrogate(c)) {
+                if (utf8) {
+                    int cp = UTF16.combinePair(h, c);
+                    buffer[used++] = (byte)(0xf0 | (cp >> 18));
+                    buffer[used++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                    buffer[used++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                    buffer[used++] = (byte)(0x80 | (cp & 0x3f));
+                } else {
+                    buffer[used++] = (byte)'?';
+                }
+                return;
+            }
+            // an unpaired high surrogate. This and the character that follows it need at most four bytes
+            buffer[used++] = (byte)'?';
+        }
+        if (c < 0x80) {
+            buffer[used++] = (byte)c;
+        } else if (UTF16.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (UTF16.isLowSurrogate(c)) {
+            buffer[used++] = (byte)'?';
+        } else if (!utf8) {
+            buffer[used++] = (byte)(c <= maxChar ? c : '?');
+        } else if (c < 0x800) {
+            buffer[used++] = (byte)(0xc0 | (c >> 6));
+            buffer[used++] = (byte)(0x80 | (c & 0x3f));
+        } else {
+            buffer[used++] = (byte)(0xe0 | (c >> 12));
+            buffer[used++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            buffer[used++] = (byte)(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (used > 0) {
+            out.write(buffer, 0, used);
+            used = 0;
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            if (used + 4 > BUFFER_SIZE) {
+                flushBuffer();
+            }
+            buffer[used++] = (byte)'?';
+        }
+        flush();
+        out.close();
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
@@ -0,0 +1,583 @@
+package org.orbeon.saxon.event;
+
+import org.orbeon.saxon.expr.PathMap;
+import org.orbeon.saxon.om.Axis;
+import org.orbeon.saxon.om.NamePool;
+import org.orbeon.saxon.om.NamespaceConstant;
+import org.orbeon.saxon.om.StandardNames;
+import org.orbeon.saxon.pattern.AnyNodeTest;
+import org.orbeon.saxon.pattern.NodeTest;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.Type;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A DocumentProjector is a filter applied to the events that build a source document, which
+ * discards those parts of the document that a query cannot reach. It is driven by a
+ * {@link PathMap}: the tree of paths rooted at the document node describes every step the
+ * query might take through the document, and a node is retained only if it is reached by one
+ * of these paths, or is an ancestor of a node that is retained.
+ *
+ * <p>The following rules apply to the nodes reached by a path:</p>
+ *
+ * <ul>
+ * <li>If the node is returnable (for example, it is copied to the query result), or if the path
+ * has unknown dependencies, the whole subtree rooted at the node is retained.</li>
+ * <li>If the node is atomized, its string value is retained: that is, all its descendant text
+ * nodes are retained. Elements within the subtree that are not themselves reached by a path are
+ * discarded, and their text is attached to the nearest retained ancestor, which preserves the string
+ * value of every retained node. However, if a path reaches the text nodes of that ancestor, merging
+ * would change their number and values, so the elements are then retained, without their attributes,
+ * to keep the text nodes apart.</li>
+ * <li>Attributes, text nodes, comments, and processing instructions are retained only if a path
+ * reaches them, or if they are within a retained subtree (text nodes only, in the case of an
+ * atomized subtree).</li>
+ * <li>If the nodes discarded between two retained text nodes were all that kept them apart, an empty
+ * node of the same kind and name as one of the discarded nodes is retained in their place, so that the
+ * text nodes are not merged. No path reaches this node.</li>
+ * </ul>
+ *
+ * <p>An element that is not reached by any path is held back until it is known whether any of its
+ * descendants is to be retained; if none is, the element is discarded. If no path can reach any
+ * descendant of an element, the events for the whole subtree are skipped without further analysis.</p>
+ *
+ * <p>The path map root supplied must have been reduced to downwards axes (see
+ * {@link PathMap#reduceToDownwardsAxes(PathMap.PathMapRoot)}), and must not have unknown dependencies.</p>
+ */
+
+public class DocumentProjector extends ProxyReceiver {
+
+    private ProjectionNode root;
+    private List levels = new ArrayList(50);    // one Level for each open element, plus the document node
+    private int level = -1;                     // index of the innermost open element in levels
+    private int keepAllDepth = 0;               // depth within a subtree that is retained in its entirety
+    private int skipDepth = 0;                  // depth within a subtree that is being discarded
+    private Level startTag = null;              // the element whose start tag is being processed, if it
+                                                // is being retained
+    private long retainedElements = 0;
+    private long discardedElements = 0;
+    private boolean afterText = false;          // true if the last event passed on was a text node
+    private int droppedKind = Type.EMPTY;       // the kind of a node discarded since that event, if any
+    private int droppedNameCode;                // the name of that node, if it is an element
+    private String droppedTarget;               // the target of that node, if it is a processing instruction
+
+    /**
+     * Create a DocumentProjector
+     * @param root the root of the path map for the document being built. This must have been reduced
+     * to downwards axes only.
+     */
+
+    public DocumentProjector(PathMap.PathMapRoot root) {
+        this.root = compile(root, new HashMap());
+    }
+
+    /**
+     * Make the internal representation of a node in the path map, together with all the nodes
+     * reachable from it
+     * @param node the path map node
+     * @param done the path map nodes already processed, mapped to their internal representation
+     * @return the internal representation of the node
+     */
+
+    private static ProjectionNode compile(PathMap.PathMapNode node, HashMap done) {
+        ProjectionNode p = (ProjectionNode)done.get(node);
+        if (p != null) {
+            return p;
+        }
+        p = new ProjectionNode();
+        done.put(node, p);
+        p.keepAll = node.isReturnable() || node.hasUnknownDependencies();
+        p.atomized = node.isAtomized();
+        PathMap.PathMapArc[] arcs = node.getArcs();
+        p.axes = new byte[arcs.length];
+        p.tests = new NodeTest[arcs.length];
+        p.targets = new ProjectionNode[arcs.length];
+        for (int a=0; a<arcs.length; a++) {
+            p.axes[a] = arcs[a].getStep().getAxis();
+            NodeTest test = arcs[a].getStep().getNodeTest();
+            p.tests[a] = (test == null ? AnyNodeTest.getInstance() : test);
+            if (p.axes[a] == Axis.DESCENDANT || p.axes[a] == Axis.DESCENDANT_OR_SELF) {
+                p.hasDescendantArcs = true;
+                if (p.tests[a] instanceof AnyNodeTest) {
+                    // this is how the path map records that the subtree is copied, which
+                    // requires the attributes as well as the descendants
+                    p.keepAll = true;
+                }
+            }
+        }
+        for (int a=0; a<arcs.length; a++) {
+            p.targets[a] = compile(arcs[a].getTarget(), done);
+        }
+        return p;
+    }
+
+    /**
+     * Get the number of element nodes that have been retained in the projected document
+     * @return the number of elements retained
+     */
+
+    public long getNumberOfRetainedElements() {
+        return retainedElements;
+    }
+
+    /**
+     * Get the number of element nodes that have been discarded from the projected document
+     * @return the number of elements discarded
+     */
+
+    public long getNumberOfDiscardedElements() {
+        return discardedElements;
+    }
+
+    public void startDocument(int properties) throws XPathException {
+        Level doc = pushLevel();
+        doc.nodes.add(root);
+        doc.emitted = true;
+        analyze(doc, null);
+        afterText = false;
+        droppedKind = Type.EMPTY;
+        if (doc.keepAll) {
+            keepAllDepth = 1;
+        }
+        nextReceiver.startDocument(properties);
+    }
+
+    public void endDocument() throws XPathException {
+        keepAllDepth = 0;
+        level--;
+        nextReceiver.endDocument();
+    }
+
+    public void startElement(int nameCode, int typeCode, int locationId, int properties) throws XPathException {
+        startTag = null;
+        if (keepAllDepth > 0) {
+            keepAllDepth++;
+            retainedElements++;
+            afterText = false;
+            nextReceiver.startElement(nameCode, typeCode, locationId, properties);
+            return;
+        }
+        if (skipDepth > 0) {
+            skipDepth++;
+            discardedElements++;
+            return;
+        }
+        Level parent = (Level)levels.get(level);
+        int fingerprint = nameCode & NamePool.FP_MASK;
+
+        // find the paths that reach this element
+
+        Level current = pushLevel();
+        addTargets(parent.nodes, false, Type.ELEMENT, fingerprint, typeCode, current.nodes);
+        addTargets(parent.carriers, true, Type.ELEMENT, fingerprint, typeCode, current.nodes);
+        // a descendant-or-self step from a node reached by this element can select the element itself
+        for (int i=0; i<current.nodes.size(); i++) {
+            ProjectionNode node = (ProjectionNode)current.nodes.get(i);
+            for (int a=0; a<node.axes.length; a++) {
+                if (node.axes[a] == Axis.DESCENDANT_OR_SELF &&
+                        node.tests[a].matches(Type.ELEMENT, fingerprint, typeCode) &&
+                        !current.nodes.contains(node.targets[a])) {
+                    current.nodes.add(node.targets[a]);
+                }
+            }
+        }
+        analyze(current, parent);
+
+        if (current.nodes.isEmpty() && current.carriers.isEmpty()) {
+            // no path can reach this element or any of its descendants
+            if (!current.keepText) {
+                discardedElements++;
+                level--;
+                skipDepth = 1;
+                setDropped(Type.ELEMENT, nameCode, null);
+                return;
+            }
+            // otherwise the element's text is needed for the string value of an ancestor: the
+            // Level remains on the stack, and the start tag is held in case the element is needed
+            // to keep the ancestor's text nodes apart
+        }
+
+        if (current.keepAll) {
+            level--;
+            flushPendingElements(level);
+            keepAllDepth = 1;
+            retainedElements++;
+            afterText = false;
+            nextReceiver.startElement(nameCode, typeCode, locationId, properties);
+            return;
+        }
+
+        if (current.nodes.isEmpty()) {
+            // the element is retained only if one of its descendants is retained, or if its text
+            // must be kept apart from the text of an ancestor
+            current.nameCode = nameCode;
+            current.typeCode = typeCode;
+            current.locationId = locationId;
+            current.properties = properties;
+            discardedElements++;
+        } else {
+            flushPendingElements(level - 1);
+            current.emitted = true;
+            retainedElements++;
+            afterText = false;
+            nextReceiver.startElement(nameCode, typeCode, locationId, properties);
+            startTag = current;
+        }
+    }
+
+    public void namespace(int namespaceCode, int properties) throws XPathException {
+        if (keepAllDepth > 0 || startTag != null) {
+            nextReceiver.namespace(namespaceCode, properties);
+        } else if (skipDepth == 0) {
+            Level current = (Level)levels.get(level);
+            if (current.nameCode != -1) {
+                // remember the namespace in case the start tag is emitted later
+                if (current.namespaces == null) {
+                    current.namespaces = new int[4];
+                } else if (current.namespaceCount == current.namespaces.length) {
+                    int[] n2 = new int[current.namespaceCount * 2];
+                    System.arraycopy(current.namespaces, 0, n2, 0, current.namespaceCount);
+                    current.namespaces = n2;
+                }
+                current.namespaces[current.namespaceCount++] = namespaceCode;
+            }
+        }
+    }
+
+    public void attribute(int nameCode, int typeCode, CharSequence value, int locationId, int properties)
+            throws XPathException {
+        if (keepAllDepth > 0) {
+            nextReceiver.attribute(nameCode, typeCode, value, locationId, properties);
+        } else if (startTag != null) {
+            int fingerprint = nameCode & NamePool.FP_MASK;
+            for (int i=0; i<startTag.nodes.size(); i++) {
+                ProjectionNode node = (ProjectionNode)startTag.nodes.get(i);
+                for (int a=0; a<node.axes.length; a++) {
+                    if (node.axes[a] == Axis.ATTRIBUTE &&
+                            node.tests[a].matches(Type.ATTRIBUTE, fingerprint, typeCode)) {
+                        nextReceiver.attribute(nameCode, typeCode, value, locationId, properties);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public void startContent() throws XPathException {
+        if (keepAllDepth > 0 || startTag != null) {
+            startTag = null;
+            nextReceiver.startContent();
+        }
+    }
+
+    public void endElement() throws XPathException {
+        if (keepAllDepth > 0) {
+            keepAllDepth--;
+            afterText = false;
+            nextReceiver.endElement();
+            return;
+        }
+        if (skipDepth > 0) {
+            skipDepth--;
+            return;
+        }
+        Level current = (Level)levels.get(level--);
+        if (current.emitted) {
+            afterText = false;
+            nextReceiver.endElement();
+        } else {
+            setDropped(Type.ELEMENT, current.nameCode, null);
+        }
+    }
+
+    public void characters(CharSequence chars, int locationId, int properties) throws XPathException {
+        if (keepAllDepth > 0) {
+            afterText = true;
+            nextReceiver.characters(chars, locationId, properties);
+        } else if (skipDepth == 0) {
+            Level current = (Level)levels.get(level);
+            if (isReached(current, Type.TEXT, -1)) {
+                flushPendingElements(level);
+                if (afterText && droppedKind != Type.EMPTY) {
+                    // the builder would merge this text node with the previous one
+                    emitBoundary(locationId);
+                }
+                afterText = true;
+                droppedKind = Type.EMPTY;
+                nextReceiver.characters(chars, locationId, properties);
+            } else if (current.keepText) {
+                // the text is needed only for the string value of an ancestor, so it can be attached
+                // to the nearest ancestor that is retained, unless that ancestor's own text nodes are
+                // reached, in which case the elements that contain the text are retained as well
+                int retained = level;
+                while (!((Level)levels.get(retained)).emitted) {
+                    retained--;
+                }
+                if (retained < level && isReached((Level)levels.get(retained), Type.TEXT, -1)) {
+                    flushPendingElements(level);
+                }
+                afterText = true;
+                droppedKind = Type.EMPTY;
+                nextReceiver.characters(chars, locationId, properties);
+            }
+        }
+    }
+
+    public void comment(CharSequence chars, int locationId, int properties) throws XPathException {
+        if (keepAllDepth > 0) {
+            afterText = false;
+            nextReceiver.comment(chars, locationId, properties);
+        } else if (skipDepth == 0 && isReached((Level)levels.get(level), Type.COMMENT, -1)) {
+            flushPendingElements(level);
+            afterText = false;
+            nextReceiver.comment(chars, locationId, properties);
+        } else if (skipDepth == 0) {
+            setDropped(Type.COMMENT, -1, null);
+        }
+    }
+
+    public void processingInstruction(String target, CharSequence data, int locationId, int properties)
+            throws XPathException {
+        if (keepAllDepth > 0) {
+            afterText = false;
+            nextReceiver.processingInstruction(target, data, locationId, properties);
+        } else if (skipDepth == 0) {
+            int fingerprint = getNamePool().allocate("", "", target) & NamePool.FP_MASK;
+            if (isReached((Level)levels.get(level), Type.PROCESSING_INSTRUCTION, fingerprint)) {
+                flushPendingElements(level);
+                afterText = false;
+                nextReceiver.processingInstruction(target, data, locationId, properties);
+            } else {
+                setDropped(Type.PROCESSING_INSTRUCTION, -1, target);
+            }
+        }
+    }
+
+    /**
+     * Record that a child of the current node has been discarded. If text nodes on either side of it are
+     * retained, they must be kept apart
+     * @param kind the kind of the discarded node
+     * @param nameCode the name of the discarded node, if it is an element
+     * @param target the target of the discarded node, if it is a processing instruction
+     */
+
+    private void setDropped(int kind, int nameCode, String target) {
+        droppedKind = kind;
+        droppedNameCode = nameCode;
+        droppedTarget = target;
+    }
+
+    /**
+     * Emit an empty node in place of the nodes discarded between two text nodes that are retained, so
+     * that the builder does not merge the text nodes. The node is of the same kind, and has the same
+     * name, as one of the discarded nodes: since no path reached that node, no path reaches its stand-in.
+     * @param locationId the location of the text node that follows
+     * @throws XPathException if a downstream failure occurs
+     */
+
+    private void emitBoundary(int locationId) throws XPathException {
+        switch (droppedKind) {
+            case Type.ELEMENT:
+                nextReceiver.startElement(droppedNameCode, StandardNames.XS_UNTYPED, locationId, 0);
+                if (getNamePool().getURICode(droppedNameCode) != NamespaceConstant.NULL_CODE) {
+                    nextReceiver.namespace(getNamePool().allocateNamespaceCode(droppedNameCode), 0);
+                }
+                nextReceiver.startContent();
+                nextReceiver.endElement();
+                break;
+            case Type.COMMENT:
+                nextReceiver.comment("", locationId, 0);
+                break;
+            default:
+                nextReceiver.processingInstruction(droppedTarget, "", locationId, 0);
+        }
+    }
+
+    /**
+     * Add a new Level to the stack of open nodes, reusing an existing object if possible
+     * @return the new Level, in its initial state
+     */
+
+    private Level pushLevel() {
+        level++;
+        Level current;
+        if (level < levels.size()) {
+            current = (Level)levels.get(level);
+            current.reset();
+        } else {
+            current = new Level();
+            levels.add(current);
+        }
+        return current;
+    }
+
+    /**
+     * Find the arcs from a set of path map nodes that select a given node, and add their targets
+     * to a set of path map nodes
+     * @param sources the path map nodes whose arcs are to be examined
+     * @param descendants true if only the descendant and descendant-or-self axes are to be considered
+     * (because the node is not a child of the node reached by the source path map nodes); false if the
+     * child, descendant, and descendant-or-self axes are to be considered
+     * @param kind the kind of node
+     * @param fingerprint the name of the node, or -1 if it is unnamed
+     * @param typeCode the type annotation of the node
+     * @param targets the set of path map nodes to which the targets are to be added. If null, the
+     * method returns as soon as a matching arc is found.
+     * @return true if any matching arc was found
+     */
+
+    private static boolean addTargets(List sources, boolean descendants,
+                                      int kind, int fingerprint, int typeCode, List targets) {
+        boolean found = false;
+        for (int i=0; i<sources.size(); i++) {
+            ProjectionNode node = (ProjectionNode)sources.get(i);
+            for (int a=0; a<node.axes.length; a++) {
+                byte axis = node.axes[a];
+                if ((axis == Axis.DESCENDANT || axis == Axis.DESCENDANT_OR_SELF ||
+                        (axis == Axis.CHILD && !descendants)) &&
+                        node.tests[a].matches(kind, fingerprint, typeCode)) {
+                    if (targets == null) {
+                        return true;
+                    }
+                    found = true;
+                    if (!targets.contains(node.targets[a])) {
+                        targets.add(node.targets[a]);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Complete the analysis of a node, once the path map nodes that reach it are known: determine
+     * whether the whole subtree is needed, whether its string value is needed, and which path map nodes
+     * have descendant arcs that apply to its descendants
+     * @param current the Level representing the node
+     * @param parent the Level representing its parent, or null if this is the document node
+     */
+
+    private static void analyze(Level current, Level parent) {
+        if (parent != null) {
+            current.carriers.addAll(parent.carriers);
+            current.keepText = parent.keepText;
+        }
+        for (int i=0; i<current.nodes.size(); i++) {
+            ProjectionNode node = (ProjectionNode)current.nodes.get(i);
+            if (node.keepAll) {
+                current.keepAll = true;
+            }
+            if (node.atomized) {
+                current.keepText = true;
+            }
+            if (node.hasDescendantArcs && !current.carriers.contains(node)) {
+                current.carriers.add(node);
+            }
+        }
+    }
+
+    /**
+     * Determine whether a child of the current node, of a given kind and name, is reached by any path
+     * @param current the Level representing the current node
+     * @param kind the kind of the child node
+     * @param fingerprint the name of the child node, or -1 if it is unnamed
+     * @return true if some path reaches the child node
+     */
+
+    private static boolean isReached(Level current, int kind, int fingerprint) {
+        return addTargets(current.nodes, false, kind, fingerprint, StandardNames.XS_UNTYPED_ATOMIC, null) ||
+                addTargets(current.carriers, true, kind, fingerprint, StandardNames.XS_UNTYPED_ATOMIC, null);
+    }
+
+    /**
+     * Emit the start tags of any open elements that have been held back, because a node within them
+     * is to be retained
+     * @param top the index in the stack of the innermost open element whose start tag is to be emitted
+     * @throws XPathException if a downstream failure occurs
+     */
+
+    private void flushPendingElements(int top) throws XPathException {
+        int first = top;
+        while (first >= 0 && !((Level)levels.get(first)).emitted) {
+            first--;
+        }
+        for (int i=first+1; i<=top; i++) {
+            Level pending = (Level)levels.get(i);
+            afterText = false;
+            nextReceiver.startElement(pending.nameCode, pending.typeCode, pending.locationId, pending.properties);
+            for (int n=0; n<pending.namespaceCount; n++) {
+                nextReceiver.namespace(pending.namespaces[n], 0);
+            }
+            nextReceiver.startContent();
+            pending.emitted = true;
+            retainedElements++;
+            discardedElements--;
+        }
+    }
+
+    /**
+     * The internal representation of a node in the path map
+     */
+
+    private static class ProjectionNode {
+        byte[] axes;                    // the axis of each arc leaving this node
+        NodeTest[] tests;               // the node test of each arc
+        ProjectionNode[] targets;       // the target of each arc
+        boolean hasDescendantArcs;      // true if any arc uses the descendant or descendant-or-self axis
+        boolean keepAll;                // true if the node is returnable, or has unknown dependencies
+        boolean atomized;               // true if the string value of the node is used
+    }
+
+    /**
+     * Information about an open node (an element or the document node)
+     */
+
+    private static class Level {
+        List nodes = new ArrayList(4);      // the path map nodes reached at this node
+        List carriers = new ArrayList(4);   // path map nodes whose descendant arcs apply to the children
+        boolean keepAll;                    // true if the whole subtree is to be retained
+        boolean keepText;                   // true if the text nodes in the subtree are to be retained
+        boolean emitted;                    // true if the start tag has been passed on
+        int nameCode;                       // details of the start tag, held while it is held back;
+        int typeCode;                       // nameCode is -1 for the document node
+        int locationId;
+        int properties;
+        int[] namespaces;
+        int namespaceCount;
+
+        Level() {
+            reset();
+        }
+
+        void reset() {
+            nodes.clear();
+            carriers.clear();
+            keepAll = false;
+            keepText = false;
+            emitted = false;
+            nameCode = -1;
+            namespaceCount = 0;
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
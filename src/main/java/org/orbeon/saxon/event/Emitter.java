@@ -259,9 +259,13 @@ public abstract class Emitter implements Result, Receiver
                     if (encoding.equalsIgnoreCase("iso-646") || encoding.equalsIgnoreCase("iso646")) {
                         javaEncoding = "US-ASCII";
                     }
-                    writer = new BufferedWriter(
-                                    new OutputStreamWriter(
-                                        outputStream, javaEncoding));
+                    // for UTF-8 and the common single-byte encodings, encode directly into a byte buffer
+                    writer = DirectEncodingWriter.make(outputStream, javaEncoding);
+                    if (writer == null) {
+                        writer = new BufferedWriter(
+                                        new OutputStreamWriter(
+                                            outputStream, javaEncoding));
+                    }
                     break;
                 } catch (Exception err) {
                     if (encoding.equalsIgnoreCase("UTF8")) {
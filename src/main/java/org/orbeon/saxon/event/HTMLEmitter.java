@@ -295,7 +295,8 @@ public class HTMLEmitter extends XMLEmitter {
             if (nonASCIIRepresentation == REP_NATIVE) {
                 char c;
                 while (i < chars.length() &&
-                        ((c = chars.charAt(i)) < 127 ? !specialChars[c] : (characterSet.inCharset(c) && c > 160)
+                        ((c = chars.charAt(i)) < 127 ? !specialChars[c] :
+                                (c > 160 && (allCharactersEncodable || characterSet.inCharset(c)))
      				 )
      			  ) {
                     i++;
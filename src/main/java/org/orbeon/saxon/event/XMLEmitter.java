@@ -23,6 +23,8 @@ public class XMLEmitter extends Emitter {
     // NOTE: we experimented with XMLUTF8Emitter which combines XML escaping and UTF8 encoding
     // into a single loop. Scrapped it because we couldn't measure any benefits - but there
     // ought to be, in theory. Perhaps we weren't buffering the writes carefully enough.
+    // When writing to an OutputStream in UTF-8, the writer is now a DirectEncodingWriter, which
+    // encodes straight into a large byte buffer.
     
     protected boolean empty = true;
     protected boolean openStartTag = false;
@@ -701,7 +703,7 @@ public class XMLEmitter extends Emitter {
                     break;
                 } else if (UTF16.isHighSurrogate(c)) {
                     break;
-                } else if (!characterSet.inCharset(c)) {
+                } else if (!allCharactersEncodable && !characterSet.inCharset(c)) {
                     break;
                 } else {
                     i++;
@@ -83,6 +83,15 @@ public class CollationMap implements Serializable {
         map.put(absoluteURI, collator);
     }
 
+    /**
+     * Ask whether any collations have been registered in this CollationMap
+     * @return true if at least one collation has been registered using {@link #setNamedCollation}
+     */
+
+    public boolean hasNamedCollations() {
+        return map != null && !map.isEmpty();
+    }
+
     /**
      * Get the collation with a given collation name. If the collation name has
      * not been registered in this CollationMap, the CollationURIResolver registered
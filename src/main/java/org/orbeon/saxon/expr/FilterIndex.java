@@ -0,0 +1,336 @@
+package org.orbeon.saxon.expr;
+
+import org.orbeon.saxon.om.ArrayIterator;
+import org.orbeon.saxon.om.EmptyIterator;
+import org.orbeon.saxon.om.Item;
+import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.BuiltInAtomicType;
+import org.orbeon.saxon.type.ConversionResult;
+import org.orbeon.saxon.type.ValidationFailure;
+import org.orbeon.saxon.value.AtomicValue;
+import org.orbeon.saxon.value.DoubleValue;
+import org.orbeon.saxon.value.NumericValue;
+import org.orbeon.saxon.value.UntypedAtomicValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A FilterIndex is a hash index over a sequence of items, supporting evaluation of a filter
+ * expression of the form <code>SEQ[USE = VALUE]</code>, where USE depends on the context item and
+ * VALUE does not. The index maps each atomic value of USE (evaluated with each item of SEQ as the
+ * context item) to the ordered list of positions in SEQ of the items having that value.
+ *
+ * <p>The index reproduces the semantics of the general comparison "=" under the codepoint collation
+ * for the cases that arise most commonly: untypedAtomic, string and anyURI values compared with each
+ * other, and numeric values compared with numeric or untypedAtomic values. Where the mix of types
+ * means that the comparison might need some other conversion, or might raise a type error,
+ * {@link #select} returns null, and the caller must fall back to evaluating the filter expression
+ * by a linear scan.</p>
+ */
+
+public final class FilterIndex {
+
+    private Item[] items;
+    private HashMap stringIndex = new HashMap(100);    // String -> Postings
+    private HashMap numericIndex = new HashMap(20);    // NumericValue -> Postings
+    private HashMap untypedAsDouble = null;            // DoubleValue -> Postings, built lazily
+    private boolean sawString = false;
+    private boolean sawUntyped = false;
+    private boolean sawNumeric = false;
+    private boolean untypedNotNumeric = false;
+
+    private FilterIndex() {
+    }
+
+    /**
+     * Build an index over a sequence
+     * @param base iterator over the sequence to be indexed
+     * @param use the expression whose value, evaluated with each item of the sequence as the context item,
+     * provides the indexed values
+     * @param context the dynamic evaluation context
+     * @return the index, or null if the sequence cannot be indexed (for example because the use expression
+     * returns values of a type that the index does not handle, or because evaluating it fails)
+     */
+
+    public static FilterIndex build(SequenceIterator base, Expression use, XPathContext context) {
+        FilterIndex index = new FilterIndex();
+        List items = new ArrayList(100);
+        XPathContext c2 = context.newMinorContext();
+        c2.setCurrentIterator(base);
+        try {
+            while (true) {
+                Item item = base.next();
+                if (item == null) {
+                    break;
+                }
+                int position = items.size();
+                items.add(item);
+                SequenceIterator values = use.iterate(c2);
+                while (true) {
+                    Item v = values.next();
+                    if (v == null) {
+                        break;
+                    }
+                    if (!(v instanceof AtomicValue) || !index.add((AtomicValue)v, position)) {
+                        return null;
+                    }
+                }
+            }
+        } catch (XPathException err) {
+            // leave it to the linear scan to report the error, if it arises
+            return null;
+        }
+        index.items = new Item[items.size()];
+        items.toArray(index.items);
+        return index;
+    }
+
+    /**
+     * Add one indexed value to the index
+     * @param value the atomic value
+     * @param position the position of the item in the indexed sequence
+     * @return false if the value is of a type that cannot be indexed
+     */
+
+    private boolean add(AtomicValue value, int position) {
+        int fp = value.getPrimitiveType().getFingerprint();
+        HashMap map;
+        Object key;
+        if (fp == BuiltInAtomicType.STRING.getFingerprint() || fp == BuiltInAtomicType.ANY_URI.getFingerprint()) {
+            sawString = true;
+            map = stringIndex;
+            key = value.getStringValue();
+        } else if (fp == BuiltInAtomicType.UNTYPED_ATOMIC.getFingerprint()) {
+            sawUntyped = true;
+            map = stringIndex;
+            key = value.getStringValue();
+        } else if (value instanceof NumericValue) {
+            sawNumeric = true;
+            if (value.isNaN()) {
+                // NaN is not equal to anything
+                return true;
+            }
+            map = numericIndex;
+            key = value;
+        } else {
+            return false;
+        }
+        Postings p = (Postings)map.get(key);
+        if (p == null) {
+            p = new Postings();
+            map.put(key, p);
+        }
+        p.add(position);
+        return true;
+    }
+
+    /**
+     * Select the items in the indexed sequence for which the USE expression compares equal
+     * to one or more of the supplied values
+     * @param sought iterator over the atomized VALUE operand
+     * @param context the dynamic evaluation context
+     * @return an iterator over the selected items, in their original order; or null if the
+     * index cannot be used for these values, in which case the caller must use a linear search
+     * @throws XPathException if evaluating the sought values fails
+     */
+
+    public SequenceIterator select(SequenceIterator sought, XPathContext context) throws XPathException {
+        Postings single = null;
+        List found = null;
+        while (true) {
+            Item s = sought.next();
+            if (s == null) {
+                break;
+            }
+            if (!(s instanceof AtomicValue)) {
+                return null;
+            }
+            AtomicValue b = (AtomicValue)s;
+            int fp = b.getPrimitiveType().getFingerprint();
+            if (fp == BuiltInAtomicType.STRING.getFingerprint() ||
+                    fp == BuiltInAtomicType.ANY_URI.getFingerprint() ||
+                    fp == BuiltInAtomicType.UNTYPED_ATOMIC.getFingerprint()) {
+                if (sawNumeric) {
+                    return null;
+                }
+                Postings p = (Postings)stringIndex.get(b.getStringValue());
+                if (p != null) {
+                    if (single == null && found == null) {
+                        single = p;
+                    } else {
+                        if (found == null) {
+                            found = new ArrayList(4);
+                            found.add(single);
+                        }
+                        found.add(p);
+                    }
+                }
+            } else if (b instanceof NumericValue) {
+                if (sawString || (sawUntyped && !indexUntypedAsDouble(context))) {
+                    return null;
+                }
+                if (b.isNaN()) {
+                    continue;
+                }
+                Postings p1 = (Postings)numericIndex.get(b);
+                Postings p2 = (untypedAsDouble == null ? null :
+                        (Postings)untypedAsDouble.get(new DoubleValue(((NumericValue)b).getDoubleValue())));
+                for (int i=0; i<2; i++) {
+                    Postings p = (i==0 ? p1 : p2);
+                    if (p != null) {
+                        if (single == null && found == null) {
+                            single = p;
+                        } else {
+                            if (found == null) {
+                                found = new ArrayList(4);
+                                found.add(single);
+                            }
+                            found.add(p);
+                        }
+                    }
+                }
+            } else {
+                return null;
+            }
+        }
+        if (found == null) {
+            if (single == null) {
+                return EmptyIterator.getInstance();
+            }
+            return new ArrayIterator(single.toItems(items));
+        }
+        // merge the postings lists, eliminating duplicates
+        int total = 0;
+        for (int i=0; i<found.size(); i++) {
+            total += ((Postings)found.get(i)).size;
+        }
+        int[] positions = new int[total];
+        int n = 0;
+        for (int i=0; i<found.size(); i++) {
+            Postings p = (Postings)found.get(i);
+            System.arraycopy(p.positions, 0, positions, n, p.size);
+            n += p.size;
+        }
+        Arrays.sort(positions);
+        Item[] result = new Item[total];
+        int r = 0;
+        for (int i=0; i<total; i++) {
+            if (i == 0 || positions[i] != positions[i-1]) {
+                result[r++] = items[positions[i]];
+            }
+        }
+        return new ArrayIterator(result, 0, r);
+    }
+
+    /**
+     * Build (once) the secondary index that maps the untypedAtomic values in the index to their
+     * value as an xs:double, for use when the sought value is numeric
+     * @param context the dynamic context
+     * @return false if one of the untypedAtomic values cannot be converted to a double, in which case
+     * a general comparison with a number would raise a dynamic error
+     */
+
+    private boolean indexUntypedAsDouble(XPathContext context) {
+        if (untypedNotNumeric) {
+            return false;
+        }
+        if (untypedAsDouble != null) {
+            return true;
+        }
+        // If we get here, sawString is false, so all the entries in stringIndex are untypedAtomic
+        HashMap map = new HashMap(stringIndex.size());
+        for (Iterator iter = stringIndex.keySet().iterator(); iter.hasNext();) {
+            String s = (String)iter.next();
+            ConversionResult d = new UntypedAtomicValue(s).convert(
+                    BuiltInAtomicType.DOUBLE, true, context);
+            if (d instanceof ValidationFailure) {
+                untypedNotNumeric = true;
+                return false;
+            }
+            DoubleValue key = (DoubleValue)d;
+            if (key.isNaN()) {
+                continue;
+            }
+            Postings p = (Postings)stringIndex.get(s);
+            Postings existing = (Postings)map.get(key);
+            map.put(key, (existing == null ? p : existing.merge(p)));
+        }
+        untypedAsDouble = map;
+        return true;
+    }
+
+    /**
+     * Get the number of items in the indexed sequence
+     * @return the number of items
+     */
+
+    public int getNumberOfItems() {
+        return items.length;
+    }
+
+    /**
+     * A sorted list of positions within the indexed sequence
+     */
+
+    private static final class Postings {
+        int[] positions = new int[2];
+        int size = 0;
+
+        void add(int position) {
+            if (size > 0 && positions[size-1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                int[] p2 = new int[size * 2];
+                System.arraycopy(positions, 0, p2, 0, size);
+                positions = p2;
+            }
+            positions[size++] = position;
+        }
+
+        Postings merge(Postings other) {
+            Postings p = new Postings();
+            p.positions = new int[size + other.size];
+            int i = 0, j = 0;
+            while (i < size || j < other.size) {
+                if (j == other.size || (i < size && positions[i] < other.positions[j])) {
+                    p.add(positions[i++]);
+                } else {
+                    p.add(other.positions[j++]);
+                }
+            }
+            return p;
+        }
+
+        Item[] toItems(Item[] items) {
+            Item[] result = new Item[size];
+            for (int i=0; i<size; i++) {
+                result[i] = items[positions[i]];
+            }
+            return result;
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
@@ -0,0 +1,237 @@
+package org.orbeon.saxon.expr;
+
+import org.orbeon.saxon.Controller;
+import org.orbeon.saxon.om.Item;
+import org.orbeon.saxon.om.NodeInfo;
+import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.om.ValueRepresentation;
+import org.orbeon.saxon.trace.ExpressionPresenter;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.ItemType;
+import org.orbeon.saxon.type.TypeHierarchy;
+import org.orbeon.saxon.value.Value;
+
+import java.util.Iterator;
+
+/**
+ * An IndexedFilterExpression is a wrapper around a FilterExpression of the form <code>SEQ[USE = VALUE]</code>,
+ * where USE depends on the context item and VALUE does not, and where SEQ is either a variable reference or
+ * an expression whose value depends at most on the context document. When the filter expression is evaluated
+ * repeatedly against the same value of SEQ (typically because it appears within a loop), a hash index
+ * ({@link FilterIndex}) is built on the values of USE, and subsequent evaluations use the index in place of
+ * a linear scan.
+ *
+ * <p>The index is built on the second evaluation against a given value of SEQ, so that a filter evaluated
+ * only once incurs no overhead. The index is held by the Controller, and so lasts no longer than the
+ * transformation or query. Whenever the index cannot deliver the exact semantics of the general comparison
+ * (for example because of the types of the values involved), evaluation falls back to the underlying
+ * filter expression.</p>
+ */
+
+public class IndexedFilterExpression extends Expression {
+
+    private Expression filter;
+    private boolean indexFirstOperand;
+
+    /**
+     * Create an indexed filter expression
+     * @param filter the underlying filter expression, whose predicate must be a general comparison
+     * using the "=" operator
+     * @param indexFirstOperand true if the first operand of the comparison is the one that depends on
+     * the context item (that is, the operand whose values are indexed)
+     */
+
+    public IndexedFilterExpression(FilterExpression filter, boolean indexFirstOperand) {
+        this.filter = filter;
+        this.indexFirstOperand = indexFirstOperand;
+        adoptChildExpression(filter);
+    }
+
+    /**
+     * Get the underlying filter expression
+     * @return the filter expression that this expression evaluates
+     */
+
+    public Expression getFilterExpression() {
+        return filter;
+    }
+
+    public Expression typeCheck(ExpressionVisitor visitor, ItemType contextItemType) throws XPathException {
+        // the filter expression has already been type-checked and optimized; revisiting it would
+        // simply cause it to be wrapped in another IndexedFilterExpression
+        return this;
+    }
+
+    public Expression optimize(ExpressionVisitor visitor, ItemType contextItemType) throws XPathException {
+        return this;
+    }
+
+    public Expression promote(PromotionOffer offer) throws XPathException {
+        Expression exp = offer.accept(this);
+        if (exp != null) {
+            return exp;
+        } else {
+            filter = doPromotion(filter, offer);
+            return this;
+        }
+    }
+
+    public Iterator iterateSubExpressions() {
+        return new MonoIterator(filter);
+    }
+
+    public boolean replaceSubExpression(Expression original, Expression replacement) {
+        if (filter == original) {
+            filter = replacement;
+            return true;
+        }
+        return false;
+    }
+
+    public ItemType getItemType(TypeHierarchy th) {
+        return filter.getItemType(th);
+    }
+
+    public int computeCardinality() {
+        return filter.getCardinality();
+    }
+
+    public int computeSpecialProperties() {
+        return filter.getSpecialProperties();
+    }
+
+    public Expression copy() {
+        Expression f2 = filter.copy();
+        if (f2 instanceof FilterExpression) {
+            return new IndexedFilterExpression((FilterExpression)f2, indexFirstOperand);
+        } else {
+            return f2;
+        }
+    }
+
+    /**
+     * Evaluate the expression, using the index if possible
+     * @param context the dynamic evaluation context
+     * @return an iterator over the selected items, in the order of the underlying sequence
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    public SequenceIterator iterate(XPathContext context) throws XPathException {
+        if (filter instanceof FilterExpression) {
+            FilterExpression fe = (FilterExpression)filter;
+            Expression predicate = fe.getFilter();
+            if (predicate instanceof GeneralComparison &&
+                    ((GeneralComparison)predicate).getOperator() == Token.EQUALS) {
+                Expression[] operands = ((GeneralComparison)predicate).getOperands();
+                Expression use = operands[indexFirstOperand ? 0 : 1];
+                Expression value = operands[indexFirstOperand ? 1 : 0];
+                FilterIndex index = getIndex(fe.getBaseExpression(), use, context);
+                if (index != null) {
+                    SequenceIterator result = index.select(value.iterate(context), context);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return filter.iterate(context);
+    }
+
+    /**
+     * Get the index for the current value of the base expression, building it if this is the second
+     * time this value has been filtered
+     * @param base the base expression of the filter
+     * @param use the operand of the comparison that depends on the context item
+     * @param context the dynamic context
+     * @return the index, or null if no index is available (in which case a linear search must be used)
+     * @throws XPathException if evaluating the base expression fails
+     */
+
+    private FilterIndex getIndex(Expression base, Expression use, XPathContext context) throws XPathException {
+        Controller controller = context.getController();
+        if (controller == null) {
+            return null;
+        }
+        Object key;
+        if (base instanceof VariableReference) {
+            key = ((VariableReference)base).evaluateVariable(context);
+        } else if ((base.getDependencies() & StaticProperty.DEPENDS_ON_CONTEXT_DOCUMENT) != 0) {
+            Item item = context.getContextItem();
+            if (!(item instanceof NodeInfo)) {
+                return null;
+            }
+            key = ((NodeInfo)item).getRoot();
+        } else {
+            key = this;
+        }
+
+        IndexHolder holder = (IndexHolder)controller.getUserData(this, "saxon:indexed-filter");
+        if (holder == null || holder.owner != this) {
+            holder = new IndexHolder();
+            holder.owner = this;
+            controller.setUserData(this, "saxon:indexed-filter", holder);
+        }
+        if (holder.key != key &&
+                !(key instanceof NodeInfo && holder.key instanceof NodeInfo &&
+                    ((NodeInfo)key).isSameNodeInfo((NodeInfo)holder.key))) {
+            holder.key = key;
+            holder.uses = 0;
+            holder.index = null;
+            holder.unusable = false;
+        }
+        if (holder.index != null || holder.unusable) {
+            return holder.index;
+        }
+        if (++holder.uses < 2) {
+            // the first time a value is filtered, do a linear scan
+            return null;
+        }
+        SequenceIterator baseIter;
+        if (base instanceof VariableReference) {
+            baseIter = Value.getIterator((ValueRepresentation)key);
+        } else {
+            baseIter = base.iterate(context);
+        }
+        holder.index = FilterIndex.build(baseIter, use, context);
+        holder.unusable = (holder.index == null);
+        return holder.index;
+    }
+
+    /**
+     * The per-transformation state of an indexed filter expression: the value of the base expression
+     * most recently filtered, and the index built for it
+     */
+
+    private static final class IndexHolder {
+        Object owner;
+        Object key;
+        int uses;
+        FilterIndex index;
+        boolean unusable;
+    }
+
+    public void explain(ExpressionPresenter destination) {
+        destination.startElement("indexedFilter");
+        destination.emitAttribute("indexedOperand", (indexFirstOperand ? "0" : "1"));
+        filter.explain(destination);
+        destination.endElement();
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
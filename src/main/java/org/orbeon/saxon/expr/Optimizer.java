@@ -1,29 +1,60 @@
 package org.orbeon.saxon.expr;
 
 import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.functions.KeyFn;
 import org.orbeon.saxon.instruct.Choose;
+import org.orbeon.saxon.instruct.Executable;
+import org.orbeon.saxon.instruct.GlobalVariable;
+import org.orbeon.saxon.instruct.SlotManager;
+import org.orbeon.saxon.instruct.StreamingPath;
+import org.orbeon.saxon.instruct.Switch;
+import org.orbeon.saxon.instruct.UserFunction;
+import org.orbeon.saxon.instruct.UserFunctionParameter;
+import org.orbeon.saxon.om.Axis;
+import org.orbeon.saxon.om.NamespaceConstant;
 import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.om.StructuredQName;
 import org.orbeon.saxon.om.ValueRepresentation;
+import org.orbeon.saxon.pattern.AnyNodeTest;
+import org.orbeon.saxon.pattern.ExpressionFinder;
+import org.orbeon.saxon.sort.AtomicComparer;
+import org.orbeon.saxon.sort.CodepointCollatingComparer;
+import org.orbeon.saxon.sort.CodepointCollator;
+import org.orbeon.saxon.sort.ComparableAtomicValueComparer;
 import org.orbeon.saxon.sort.DocumentSorter;
+import org.orbeon.saxon.sort.GenericAtomicComparer;
+import org.orbeon.saxon.trans.KeyDefinition;
+import org.orbeon.saxon.trans.KeyDefinitionSet;
 import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.BuiltInAtomicType;
 import org.orbeon.saxon.type.ItemType;
 import org.orbeon.saxon.type.TypeHierarchy;
 import org.orbeon.saxon.value.Closure;
 import org.orbeon.saxon.value.MemoClosure;
 import org.orbeon.saxon.value.SequenceExtent;
+import org.orbeon.saxon.value.SequenceType;
 import org.orbeon.saxon.value.Value;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * This class performs optimizations that vary between different versions of the Saxon product.
- * The optimizer is obtained from the Saxon Configuration. This class is the version used in Saxon-B,
- * which in most cases does no optimization at all: the methods are provided so that they can be
+ * The optimizer is obtained from the Saxon Configuration. This class is the version used in Saxon-B.
+ * Some of the methods do no optimization at all: they are provided so that they can be
  * overridden in Saxon-SA.
  */
 public class Optimizer implements Serializable {
 
+    /**
+     * The maximum size of the body of a function (as measured by {@link ExpressionTool#expressionSize})
+     * for calls to the function to be inlined
+     */
+
+    public static final int MAX_INLINING_SIZE = 30;
+
     protected Configuration config;
 
     /**
@@ -76,6 +107,23 @@ public class Optimizer implements Serializable {
         return null;
     }
 
+    /**
+     * Attempt to evaluate a copy operation marked as read-once (by saxon:read-once="yes" in XSLT, or
+     * the saxon:stream pragma in XQuery) by streaming: that is, by matching the events generated by
+     * parsing the source document against the steps of the path, without building the document as a tree.
+     * @param select the expression that selects the items to be copied
+     * @return a StreamingPath that evaluates the expression by streaming, or null if the expression is not
+     * a path that can be evaluated in this way
+     */
+
+    public StreamingPath makeStreamingPath(Expression select) {
+        StreamingPath path = StreamingPath.makeStreamingPath(select, config.getTypeHierarchy());
+        if (path != null) {
+            trace("Path in copy will be evaluated by streaming");
+        }
+        return path;
+    }
+
     /**
      * Make a Closure, given the expected reference count
      * @param expression the expression to be evaluated
@@ -114,7 +162,141 @@ public class Optimizer implements Serializable {
 
     public Expression convertPathExpressionToKey(PathExpression pathExp, ExpressionVisitor visitor)
     throws XPathException {
-        return null;
+        Expression lastStep = pathExp.getLastStep();
+        if (!(lastStep instanceof FilterExpression)) {
+            return null;
+        }
+        FilterExpression filter = (FilterExpression)lastStep;
+        TypeHierarchy th = config.getTypeHierarchy();
+        if (filter.isPositional(th)) {
+            return null;
+        }
+        int indexable = isIndexableFilter(filter.getFilter());
+        if (indexable == 0) {
+            return null;
+        }
+        Expression base = new PathExpression(pathExp.getLeadingSteps(), filter.getBaseExpression());
+        ExpressionTool.copyLocationInfo(pathExp, base);
+        return makeKeyCall(base, (GeneralComparison)filter.getFilter(), indexable > 0, visitor);
+    }
+
+    /**
+     * Try to replace a filter expression of the form <code>BASE[USE = VALUE]</code> by a call on the
+     * key() function, using a key definition created for the purpose. The cost check applied is that
+     * BASE selects nodes in the context document without using any other information from the dynamic
+     * context, that USE selects the value of a child element or attribute of the context node (or a path
+     * made up of such steps), and that VALUE does not depend on the focus. Key indexes are held by the
+     * KeyManager for each document, so this is only worthwhile (and only safe) because source documents
+     * are not modified during a transformation.
+     * @param base the expression selecting the nodes to be filtered. This becomes the match pattern of the key
+     * @param comparison the filter predicate
+     * @param indexFirstOperand true if the first operand of the comparison depends on the context item
+     * @param visitor the expression visitor
+     * @return the call on key(), or null if the rewrite is not possible
+     * @throws XPathException if registering the key definition fails
+     */
+
+    private Expression makeKeyCall(Expression base, GeneralComparison comparison,
+                                   boolean indexFirstOperand, ExpressionVisitor visitor)
+    throws XPathException {
+        Executable exec = visitor.getExecutable();
+        if (exec == null) {
+            return null;
+        }
+        TypeHierarchy th = config.getTypeHierarchy();
+        Expression[] operands = comparison.getOperands();
+        Expression use = operands[indexFirstOperand ? 0 : 1];
+        Expression value = operands[indexFirstOperand ? 1 : 0];
+        if (base.getDependencies() != StaticProperty.DEPENDS_ON_CONTEXT_DOCUMENT ||
+                (base.getSpecialProperties() & StaticProperty.CONTEXT_DOCUMENT_NODESET) == 0 ||
+                !th.isSubType(base.getItemType(th), AnyNodeTest.getInstance()) ||
+                containsLocalBindings(base)) {
+            return null;
+        }
+        if (!isChildOrAttributeValue(use, true)) {
+            return null;
+        }
+        ItemType useType = use.getItemType(th);
+        if (!(useType.equals(BuiltInAtomicType.UNTYPED_ATOMIC) || useType.equals(BuiltInAtomicType.STRING))) {
+            return null;
+        }
+        ItemType valueType = value.getItemType(th);
+        if (!valueType.isAtomicType()) {
+            return null;
+        }
+        BuiltInAtomicType valuePrimitive = (BuiltInAtomicType)valueType.getPrimitiveItemType();
+        if (!(valuePrimitive.equals(BuiltInAtomicType.ANY_ATOMIC) ||
+                valuePrimitive.equals(BuiltInAtomicType.STRING) ||
+                valuePrimitive.equals(BuiltInAtomicType.UNTYPED_ATOMIC) ||
+                valuePrimitive.equals(BuiltInAtomicType.ANY_URI) ||
+                valuePrimitive.isPrimitiveNumeric())) {
+            return null;
+        }
+        if (useType.equals(BuiltInAtomicType.STRING) &&
+                !(valuePrimitive.equals(BuiltInAtomicType.STRING) ||
+                valuePrimitive.equals(BuiltInAtomicType.UNTYPED_ATOMIC) ||
+                valuePrimitive.equals(BuiltInAtomicType.ANY_URI))) {
+            // comparing a string with a number is a type error (XPTY0004), which a key() lookup
+            // would not report
+            return null;
+        }
+
+        KeyDefinition keydef = new KeyDefinition(new ExpressionFinder(base.copy()), use.copy(), null, null);
+        keydef.setIndexedItemType((BuiltInAtomicType)useType);
+        keydef.setConvertUntypedToOther(true);
+        if (comparison.getContainer() != null) {
+            keydef.setHostLanguage(comparison.getHostLanguage());
+        }
+        keydef.setExecutable(exec);
+        KeyDefinitionSet keySet = exec.getKeyManager().addSyntheticKey(keydef, config);
+        StructuredQName keyName = keySet.getKeyName();
+
+        Expression result = KeyFn.internalKeyCall(keySet, keyName.getDisplayName(), value, new RootExpression());
+        ExpressionTool.copyLocationInfo(comparison, result);
+        trace("Replaced filter expression by call on key() using " + keyName.getDisplayName(), result);
+        return result;
+    }
+
+    /**
+     * Test whether an expression selects the typed value of a child element or attribute of the context node,
+     * or of a node reached from the context node by a sequence of child and attribute steps
+     * @param exp the expression to be tested
+     * @param atomized true if the expression may be an atomizer applied to such a path
+     * @return true if the expression is of the required form
+     */
+
+    private static boolean isChildOrAttributeValue(Expression exp, boolean atomized) {
+        if (atomized && exp instanceof Atomizer) {
+            return isChildOrAttributeValue(((Atomizer)exp).getBaseExpression(), false);
+        } else if (exp instanceof AxisExpression) {
+            byte axis = ((AxisExpression)exp).getAxis();
+            return axis == Axis.CHILD || axis == Axis.ATTRIBUTE;
+        } else if (exp instanceof SlashExpression) {
+            return isChildOrAttributeValue(((SlashExpression)exp).getStartExpression(), false) &&
+                    isChildOrAttributeValue(((SlashExpression)exp).getStepExpression(), false);
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Test whether an expression contains any expression that binds a local variable. Such an expression
+     * cannot be used as the match pattern of a key, because it needs a stack frame
+     * @param exp the expression to be tested
+     * @return true if the expression or any of its subexpressions is a variable binding
+     */
+
+    private static boolean containsLocalBindings(Expression exp) {
+        if (exp instanceof Assignation) {
+            return true;
+        }
+        Iterator iter = exp.iterateSubExpressions();
+        while (iter.hasNext()) {
+            if (containsLocalBindings((Expression)iter.next())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -128,7 +310,39 @@ public class Optimizer implements Serializable {
      */
 
     public Expression tryIndexedFilter(FilterExpression f, ExpressionVisitor visitor, boolean indexFirstOperand) {
-        return f;
+        Expression base = f.getBaseExpression();
+        boolean indexable;
+        if (base instanceof VariableReference) {
+            indexable = true;
+        } else {
+            // the base expression must deliver the same value each time it is evaluated within a
+            // given document, for example /a/b/c or //item. It must not construct new nodes, since
+            // the index would then return the nodes constructed on its first evaluation
+            int deps = base.getDependencies();
+            int props = base.getSpecialProperties();
+            indexable = (deps & ~StaticProperty.DEPENDS_ON_CONTEXT_DOCUMENT) == 0 &&
+                    (props & StaticProperty.NON_CREATIVE) != 0 &&
+                    (deps == 0 || (props & StaticProperty.CONTEXT_DOCUMENT_NODESET) != 0);
+        }
+        if (!indexable) {
+            return f;
+        }
+        if (!(base instanceof VariableReference)) {
+            // for a filter on nodes in the context document, such as //item[@id=$x], prefer a key
+            try {
+                Expression key = makeKeyCall(base, (GeneralComparison)f.getFilter(), indexFirstOperand, visitor);
+                if (key != null) {
+                    return key;
+                }
+            } catch (XPathException err) {
+                // fall back to an indexed filter expression
+                trace("Failed to replace filter expression by call on key(): " + err.getMessage(), f);
+            }
+        }
+        Expression result = new IndexedFilterExpression(f, indexFirstOperand);
+        ExpressionTool.copyLocationInfo(f, result);
+        trace("Created indexed filter expression", result);
+        return result;
     }
 
     /**
@@ -154,18 +368,61 @@ public class Optimizer implements Serializable {
      */
 
     public int isIndexableFilter(Expression filter) {
+        if (!(filter instanceof GeneralComparison) ||
+                ((GeneralComparison)filter).getOperator() != Token.EQUALS ||
+                !isCodepointComparer(((GeneralComparison)filter).getAtomicComparer())) {
+            return 0;
+        }
+        Expression[] operands = ((GeneralComparison)filter).getOperands();
+        if (isIndexableOperand(operands[0]) &&
+                (operands[1].getDependencies() & StaticProperty.DEPENDS_ON_FOCUS) == 0) {
+            return +1;
+        }
+        if (isIndexableOperand(operands[1]) &&
+                (operands[0].getDependencies() & StaticProperty.DEPENDS_ON_FOCUS) == 0) {
+            return -1;
+        }
         return 0;
     }
 
+    /**
+     * Test whether an operand of a comparison within a filter predicate can be used as the basis
+     * of an index. This requires that it depends on the context item, but not on the context position
+     * or size, or on anything else that might vary from one evaluation of the filter expression to the
+     * next
+     * @param exp the operand of the comparison
+     * @return true if the values of the operand can be indexed
+     */
+
+    private static boolean isIndexableOperand(Expression exp) {
+        int deps = exp.getDependencies();
+        return (deps & StaticProperty.DEPENDS_ON_CONTEXT_ITEM) != 0 &&
+                (deps & ~(StaticProperty.DEPENDS_ON_CONTEXT_ITEM | StaticProperty.DEPENDS_ON_CONTEXT_DOCUMENT)) == 0;
+    }
+
+    /**
+     * Test whether an AtomicComparer compares strings using the Unicode codepoint collation, which
+     * is the only collation supported by filter indexes and switch tables
+     * @param comparer the comparer used by a comparison expression
+     * @return true if the comparer is known to use the codepoint collation for strings
+     */
+
+    public static boolean isCodepointComparer(AtomicComparer comparer) {
+        return comparer instanceof CodepointCollatingComparer ||
+                comparer instanceof ComparableAtomicValueComparer ||
+                (comparer instanceof GenericAtomicComparer &&
+                    ((GenericAtomicComparer)comparer).getStringCollator() instanceof CodepointCollator);
+    }
+
     /**
      * Create an indexed value
      * @param iter the iterator that delivers the sequence of values to be indexed
-     * @return the indexed value
-     * @throws UnsupportedOperationException: this method should not be called in Saxon-B
+     * @return the indexed value. This is a fully-materialized sequence: the index itself is built
+     * when first needed, by an {@link IndexedFilterExpression} that filters the value
      */
 
     public ValueRepresentation makeIndexedValue(SequenceIterator iter) throws XPathException {
-        throw new UnsupportedOperationException("Indexing requires Saxon-SA");
+        return SequenceExtent.makeSequenceExtent(iter);
     }
 
     /**
@@ -228,13 +485,66 @@ public class Optimizer implements Serializable {
      * @param visitor the expression visitor
      * @param contextItemType the context item type
      * @return either the original expression unchanged, or an expression that consists of the inlined
-     * function body, with all function parameters bound as required. In Saxon-B, function inlining is
-     * not supported, so the original functionCall is always returned unchanged
+     * function body, with all function parameters bound as required. The function is inlined only if
+     * function inlining is enabled in the configuration, and if the function is small (as measured by
+     * {@link ExpressionTool#expressionSize}), calls no other user-defined functions (and is therefore
+     * not recursive), does not depend on the focus or the XSLT context, and is neither a memo function
+     * nor an updating function
      */
 
     public Expression tryInlineFunctionCall(
             UserFunctionCall functionCall, ExpressionVisitor visitor, ItemType contextItemType) {
-        return functionCall;
+        if (!config.isFunctionInlining() || config.isCompileWithTracing()) {
+            return functionCall;
+        }
+        UserFunction function = functionCall.getFunction();
+        if (function == null || function.isMemoFunction() || function.isUpdating()) {
+            return functionCall;
+        }
+        Expression body = function.getBody();
+        if (body == null || body instanceof TailCallLoop ||
+                ExpressionTool.expressionSize(body) > MAX_INLINING_SIZE ||
+                (body.getDependencies() & (StaticProperty.DEPENDS_ON_FOCUS |
+                        StaticProperty.DEPENDS_ON_XSLT_CONTEXT)) != 0) {
+            return functionCall;
+        }
+        // Don't inline a function that calls other user-defined functions: this rules out
+        // recursive functions, and prevents the code expanding out of control
+        List called = new ArrayList(4);
+        ExpressionTool.gatherCalledFunctions(body, called);
+        if (!called.isEmpty()) {
+            return functionCall;
+        }
+
+        UserFunctionParameter[] params = function.getParameterDefinitions();
+        Expression[] arguments = functionCall.getArguments();
+        Expression result;
+        try {
+            result = body.copy();
+            for (int i=params.length-1; i>=0; i--) {
+                // bind each parameter to a let variable. The arguments have already been converted to the
+                // declared type of the parameter, so there is no need to check the type again
+                LetExpression let = new LetExpression();
+                let.setVariableQName(params[i].getVariableQName());
+                let.setRequiredType(SequenceType.ANY_SEQUENCE);
+                let.setSequence(arguments[i].copy());
+                ExpressionTool.rebindVariableReferences(result, params[i], let);
+                let.setAction(result);
+                result = let;
+            }
+        } catch (UnsupportedOperationException err) {
+            // some instructions can't be copied
+            return functionCall;
+        }
+        ExpressionTool.copyLocationInfo(functionCall, result);
+        try {
+            result = visitor.typeCheck(result, contextItemType);
+        } catch (XPathException err) {
+            // if anything goes wrong, just leave the function call as it was
+            return functionCall;
+        }
+        trace("Inlined call on function " + function.getFunctionName().getDisplayName(), result);
+        return result;
     }
 
     /**
@@ -246,7 +556,14 @@ public class Optimizer implements Serializable {
      */
     
     public Expression promoteExpressionsToGlobal(Expression body, ExpressionVisitor visitor) throws XPathException {
-        return body;
+        if (config.isCompileWithTracing() || visitor.getExecutable() == null) {
+            return body;
+        }
+        PromotionOffer offer = new PromotionOffer(this);
+        offer.action = PromotionOffer.EXTRACT_GLOBAL_VARIABLES;
+        offer.visitor = visitor;
+        offer.containingExpression = body;
+        return body.promote(offer);
     }
 
     /**
@@ -257,19 +574,62 @@ public class Optimizer implements Serializable {
      */
 
     public Expression trySwitch(Choose choose, StaticContext env) {
-        return choose;
+        if (choose instanceof Switch || !Switch.isSwitchable(choose)) {
+            return choose;
+        }
+        Expression result = new Switch(choose.getConditions(), choose.getActions());
+        ExpressionTool.copyLocationInfo(choose, result);
+        trace("Created switch expression", result);
+        return result;
     }
 
     /**
      * Extract subexpressions from the body of a function that can be evaluated
-     * as global variables
+     * as global variables. The subexpression becomes the initializer of a new global variable, which
+     * (like any other global variable) is evaluated at most once per transformation or query, when it
+     * is first referenced. The new variable is registered with the Executable, so it appears (marked
+     * as extracted) when the compiled code is explained.
      * @param body the body of the function
+     * @param visitor the expression visitor
      * @return a reference to the new global variable if a variable has been created, or null if not
      */
 
     public Expression extractGlobalVariables(Expression body, ExpressionVisitor visitor)
     throws XPathException {
-        return null;
+        Executable exec = visitor.getExecutable();
+        if (exec == null || body instanceof Literal || body instanceof VariableReference) {
+            return null;
+        }
+        final TypeHierarchy th = config.getTypeHierarchy();
+        SlotManager globals = exec.getGlobalVariableMap();
+        StructuredQName name = new StructuredQName(
+                "saxon", NamespaceConstant.SAXON, "gg" + globals.getNumberOfVariables());
+        SequenceType type = SequenceType.makeSequenceType(body.getItemType(th), body.getCardinality());
+
+        GlobalVariable var = new GlobalVariable();
+        var.setExecutable(exec);
+        var.setHostLanguage(exec.getHostLanguage());
+        var.setExtracted(true);
+        var.setVariableQName(name);
+        var.setRequiredType(type);
+        var.setSlotNumber(globals.allocateSlotNumber(name));
+        var.setReferenceCount(10);
+        var.setLocationId(body.getLocationId());
+        var.setContainer(var);
+
+        VariableReference ref = new VariableReference(var);
+        ref.setStaticType(type, null, body.getSpecialProperties());
+        ExpressionTool.copyLocationInfo(body, ref);
+
+        var.setSelectExpression(body);
+        body.setContainer(var);
+        SlotManager locals = config.makeSlotManager();
+        if (ExpressionTool.allocateSlots(body, 0, locals) > 0) {
+            var.setContainsLocals(locals);
+        }
+        exec.registerGlobalVariable(var);
+        trace("Extracted global variable " + name.getDisplayName(), body);
+        return ref;
     }
 
     /**
@@ -5,6 +5,8 @@ import org.orbeon.saxon.event.PipelineConfiguration;
 import org.orbeon.saxon.event.Receiver;
 import org.orbeon.saxon.event.Sender;
 import org.orbeon.saxon.expr.*;
+import org.orbeon.saxon.instruct.Executable;
+import org.orbeon.saxon.om.DocumentCache;
 import org.orbeon.saxon.om.DocumentInfo;
 import org.orbeon.saxon.om.Item;
 import org.orbeon.saxon.om.NodeInfo;
@@ -327,73 +329,25 @@ public class Document extends SystemFunction implements XSLTFunction {
         } 
 
         try {
-            // Get a Source from the URIResolver
-
-            Source source;
-            if (resolver instanceof RelativeURIResolver) {
-                try {
-                    source = ((RelativeURIResolver)resolver).dereference(documentKey);
-                } catch (Exception ex) {
-                    XPathException de = new XPathException("Exception thrown by URIResolver", ex);
-                    if (controller.getConfiguration().isTraceExternalFunctions()) {
-                        ex.printStackTrace();
-                    }
-                    de.setLocator(locator);
-                    throw de;
-                }
-            } else {
-                try {
-                    source = resolver.resolve(href, baseURI);
-                } catch (Exception ex) {
-                    XPathException de = new XPathException("Exception thrown by URIResolver", ex);
-                    if (controller.getConfiguration().isTraceExternalFunctions()) {
-                        ex.printStackTrace();
-                    }
-                    de.setLocator(locator);
-                    throw de;
-                }
-            }
-
-            // if a user URI resolver returns null, try the standard one
-            // (Note, the standard URI resolver never returns null)
-            if (source==null && !(resolver instanceof NonDelegatingURIResolver)) {
-                resolver = controller.getStandardURIResolver();
-                if (resolver instanceof RelativeURIResolver) {
-                    source = ((RelativeURIResolver)resolver).dereference(documentKey);
-                } else {
-                    source = resolver.resolve(href, baseURI);
-                }
-            }
-
-            //System.err.println("URI resolver returned " + source.getClass() + " " + source.getSystemId());
-            source = config.getSourceResolver().resolveSource(source, config);
-            //System.err.println("Resolved source " + source.getClass() + " " + source.getSystemId());
-
             DocumentInfo newdoc;
-            if (source instanceof NodeInfo || source instanceof DOMSource) {
-                NodeInfo startNode = controller.prepareInputTree(source);
-                newdoc = startNode.getDocumentRoot();
-            } else {
-                Builder b = controller.makeBuilder();
-                Receiver s = b;
-                source = AugmentedSource.makeAugmentedSource(source);
-                ((AugmentedSource)source).setStripSpace(Whitespace.XSLT);
-                if (controller.getExecutable().stripsInputTypeAnnotations()) {
-                    s = controller.getConfiguration().getAnnotationStripper(s);
-                }
-                PathMap map = controller.getPathMapForDocumentProjection();
-                if (map != null) {
-                    PathMap.PathMapRoot pathRoot = map.getRootForDocument(documentKey);
-                    if (pathRoot != null && !pathRoot.isReturnable() && !pathRoot.hasUnknownDependencies()) {
-                        ((AugmentedSource)source).addFilter(config.makeDocumentProjector(pathRoot));
+            DocumentCache cache = config.getDocumentCache();
+            if (cache != null && isShareable(controller, documentKey)) {
+                final String h = href;
+                final String b = baseURI;
+                final URIResolver r = resolver;
+                final Controller ctl = controller;
+                final SourceLocator loc = locator;
+                newdoc = cache.get(documentKey, new DocumentCache.Loader() {
+                    public DocumentInfo load(String uri) throws XPathException {
+                        try {
+                            return loadDocument(h, b, uri, r, ctl, loc);
+                        } catch (TransformerException err) {
+                            throw XPathException.makeXPathException(err);
+                        }
                     }
-                }
-                new Sender(b.getPipelineConfiguration()).send(source, s);
-                newdoc = (DocumentInfo)b.getCurrentRoot();
-                b.reset();
-                if (source instanceof AugmentedSource && ((AugmentedSource)source).isPleaseCloseAfterUse()) {
-                    ((AugmentedSource)source).close();
-                }
+                });
+            } else {
+                newdoc = loadDocument(href, baseURI, documentKey, resolver, controller, locator);
             }
             controller.registerDocument(newdoc, documentKey);
             controller.addUnavailableOutputDestination(documentKey);
@@ -412,6 +366,113 @@ public class Document extends SystemFunction implements XSLTFunction {
         }
     }
 
+    /**
+     * Determine whether a document loaded by this transformation can be shared with other transformations
+     * through the document cache. This is not possible if the document as built depends on the
+     * stylesheet: for example on its xsl:strip-space declarations, or on document projection.
+     * @param controller the controller
+     * @param documentKey the absolute URI of the document
+     * @return true if the document can be obtained from the document cache
+     */
+
+    private static boolean isShareable(Controller controller, String documentKey) {
+        Executable exec = controller.getExecutable();
+        if (controller.getTreeModel() != Builder.TINY_TREE ||
+                exec == null || exec.stripsWhitespace() || exec.stripsInputTypeAnnotations()) {
+            return false;
+        }
+        PathMap map = controller.getPathMapForDocumentProjection();
+        return map == null || map.getRootForDocument(documentKey) == null;
+    }
+
+    /**
+     * Load a document, using the URIResolver to obtain a Source and building a tree from it
+     * @param href the relative URI
+     * @param baseURI the base URI
+     * @param documentKey the absolute URI
+     * @param resolver the URIResolver
+     * @param controller the controller
+     * @param locator used to identify the location of the instruction in event of error
+     * @return the document node of the new document
+     * @throws TransformerException if the document cannot be loaded
+     */
+
+    private static DocumentInfo loadDocument(String href, String baseURI, String documentKey,
+                                             URIResolver resolver, Controller controller, SourceLocator locator)
+            throws TransformerException {
+        Configuration config = controller.getConfiguration();
+
+        // Get a Source from the URIResolver
+
+        Source source;
+        if (resolver instanceof RelativeURIResolver) {
+            try {
+                source = ((RelativeURIResolver)resolver).dereference(documentKey);
+            } catch (Exception ex) {
+                XPathException de = new XPathException("Exception thrown by URIResolver", ex);
+                if (controller.getConfiguration().isTraceExternalFunctions()) {
+                    ex.printStackTrace();
+                }
+                de.setLocator(locator);
+                throw de;
+            }
+        } else {
+            try {
+                source = resolver.resolve(href, baseURI);
+            } catch (Exception ex) {
+                XPathException de = new XPathException("Exception thrown by URIResolver", ex);
+                if (controller.getConfiguration().isTraceExternalFunctions()) {
+                    ex.printStackTrace();
+                }
+                de.setLocator(locator);
+                throw de;
+            }
+        }
+
+        // if a user URI resolver returns null, try the standard one
+        // (Note, the standard URI resolver never returns null)
+        if (source==null && !(resolver instanceof NonDelegatingURIResolver)) {
+            resolver = controller.getStandardURIResolver();
+            if (resolver instanceof RelativeURIResolver) {
+                source = ((RelativeURIResolver)resolver).dereference(documentKey);
+            } else {
+                source = resolver.resolve(href, baseURI);
+            }
+        }
+
+        //System.err.println("URI resolver returned " + source.getClass() + " " + source.getSystemId());
+        source = config.getSourceResolver().resolveSource(source, config);
+        //System.err.println("Resolved source " + source.getClass() + " " + source.getSystemId());
+
+        DocumentInfo newdoc;
+        if (source instanceof NodeInfo || source instanceof DOMSource) {
+            NodeInfo startNode = controller.prepareInputTree(source);
+            newdoc = startNode.getDocumentRoot();
+        } else {
+            Builder b = controller.makeBuilder();
+            Receiver s = b;
+            source = AugmentedSource.makeAugmentedSource(source);
+            ((AugmentedSource)source).setStripSpace(Whitespace.XSLT);
+            if (controller.getExecutable().stripsInputTypeAnnotations()) {
+                s = controller.getConfiguration().getAnnotationStripper(s);
+            }
+            PathMap map = controller.getPathMapForDocumentProjection();
+            if (map != null) {
+                PathMap.PathMapRoot pathRoot = map.getRootForDocument(documentKey);
+                if (pathRoot != null && !pathRoot.isReturnable() && !pathRoot.hasUnknownDependencies()) {
+                    ((AugmentedSource)source).addFilter(config.makeDocumentProjector(pathRoot));
+                }
+            }
+            new Sender(b.getPipelineConfiguration()).send(source, s);
+            newdoc = (DocumentInfo)b.getCurrentRoot();
+            b.reset();
+            if (source instanceof AugmentedSource && ((AugmentedSource)source).isPleaseCloseAfterUse()) {
+                ((AugmentedSource)source).close();
+            }
+        }
+        return newdoc;
+    }
+
     /**
      * Supporting routine to load one external document given a URI (href) and a baseURI. This is used
      * when the document is pre-loaded at compile time.
@@ -1,7 +1,12 @@
 package org.orbeon.saxon.functions;
 import org.orbeon.saxon.Controller;
 import org.orbeon.saxon.pattern.NodeKindTest;
+import org.orbeon.saxon.pattern.NodeTest;
 import org.orbeon.saxon.pattern.AnyNodeTest;
+import org.orbeon.saxon.pattern.ExpressionFinder;
+import org.orbeon.saxon.pattern.Pattern;
+import org.orbeon.saxon.pattern.PatternFinder;
+import org.orbeon.saxon.pattern.UnionPattern;
 import org.orbeon.saxon.expr.*;
 import org.orbeon.saxon.om.*;
 import org.orbeon.saxon.sort.DocumentOrderIterator;
@@ -13,6 +18,8 @@ import org.orbeon.saxon.type.Type;
 import org.orbeon.saxon.value.AtomicValue;
 import org.orbeon.saxon.value.Cardinality;
 
+import java.util.List;
+
 
 public class KeyFn extends SystemFunction implements XSLTFunction {
 
@@ -154,15 +161,85 @@ public class KeyFn extends SystemFunction implements XSLTFunction {
         argument[0].addToPathMap(pathMap, pathMapNodeSet);
         argument[1].addToPathMap(pathMap, pathMapNodeSet);
         PathMap.PathMapNodeSet target = argument[2].addToPathMap(pathMap, pathMapNodeSet);
-        // indicate that the function navigates to all nodes in the containing document
+        // the function searches the whole of the containing document
         AxisExpression root = new AxisExpression(Axis.ANCESTOR_OR_SELF, NodeKindTest.DOCUMENT);
         root.setContainer(getContainer());
         target = target.createArc(root);
         AxisExpression allElements = new AxisExpression(Axis.DESCENDANT, AnyNodeTest.getInstance());
         allElements.setContainer(getContainer());
-        return target.createArc(allElements);
+        if (staticKeySet != null) {
+            // the nodes selected depend on the nodes used by the key definitions to compute the key values
+            PathMap.PathMapNodeSet result = new PathMap.PathMapNodeSet();
+            List definitions = staticKeySet.getKeyDefinitions();
+            for (int i=0; i<definitions.size(); i++) {
+                KeyDefinition def = (KeyDefinition)definitions.get(i);
+                PatternFinder match = def.getMatch();
+                SequenceIterable use = def.getUse();
+                PathMap.PathMapNodeSet indexed;
+                if (!(use instanceof Expression)) {
+                    result = null;
+                    break;
+                } else if (match instanceof ExpressionFinder) {
+                    indexed = ((ExpressionFinder)match).getSelectExpression().addToPathMap(pathMap, target);
+                } else if (match instanceof Pattern) {
+                    indexed = addMatchedNodes((Pattern)match, target);
+                    if (indexed == null) {
+                        result = null;
+                        break;
+                    }
+                } else {
+                    result = null;
+                    break;
+                }
+                if (indexed != null) {
+                    PathMap.PathMapNodeSet used = ((Expression)use).addToPathMap(pathMap, indexed);
+                    if (used != null) {
+                        used.setAtomized();
+                    }
+                    result.addNodeSet(indexed);
+                }
+            }
+            if (result != null) {
+                return result;
+            }
+        }
+        PathMap.PathMapNodeSet result = target.createArc(allElements);
+        result.setHasUnknownDependencies();
+        return result;
     }
 
+    /**
+     * Add to the path map the nodes that a key's match pattern can select: for each alternative
+     * in the pattern, a descendant step from the root using the node test of the pattern, for
+     * example descendant::item for match="item" or match="list/item". The pattern may select fewer
+     * nodes than the step, but the nodes it needs to test, namely the ancestors of the nodes
+     * selected by the step, are always present.
+     * @param pattern the match pattern of the key definition
+     * @param root the document node at the root of the search
+     * @return the nodes selected by the steps, or null if the pattern cannot be represented in this
+     * way, because it contains predicates, matches attributes or document nodes, or is an id() or
+     * key() pattern
+     */
+
+    private PathMap.PathMapNodeSet addMatchedNodes(Pattern pattern, PathMap.PathMapNodeSet root) {
+        if (pattern instanceof UnionPattern) {
+            PathMap.PathMapNodeSet lhs = addMatchedNodes(((UnionPattern)pattern).getLHS(), root);
+            PathMap.PathMapNodeSet rhs = addMatchedNodes(((UnionPattern)pattern).getRHS(), root);
+            if (lhs == null || rhs == null) {
+                return null;
+            }
+            lhs.addNodeSet(rhs);
+            return lhs;
+        }
+        NodeTest test = pattern.getNodeTest();
+        if ((test.getNodeKindMask() & ((1<<Type.ATTRIBUTE) | (1<<Type.DOCUMENT))) != 0 ||
+                pattern.iterateSubExpressions().hasNext()) {
+            return null;
+        }
+        AxisExpression step = new AxisExpression(Axis.DESCENDANT, test);
+        step.setContainer(getContainer());
+        return root.createArc(step);
+    }
 
     /**
      * Copy an expression. This makes a deep copy.
@@ -118,9 +118,9 @@ public class Matches extends SystemFunction {
             }
 
             try {
-                final Platform platform = Configuration.getPlatform();
-                final int xmlVersion = c.getConfiguration().getXMLVersion();
-                re = platform.compileRegularExpression(
+                final Configuration config = c.getConfiguration();
+                final int xmlVersion = config.getXMLVersion();
+                re = config.getRegularExpressionCache().getRegularExpression(
                         pat.getStringValueCS(), xmlVersion, RegularExpression.XPATH_SYNTAX, flags);
             } catch (XPathException err) {
                 XPathException de = new XPathException(err);
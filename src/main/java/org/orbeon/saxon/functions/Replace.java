@@ -1,6 +1,5 @@
 package org.orbeon.saxon.functions;
 import org.orbeon.saxon.Configuration;
-import org.orbeon.saxon.Platform;
 import org.orbeon.saxon.type.ItemType;
 import org.orbeon.saxon.expr.Expression;
 import org.orbeon.saxon.expr.ExpressionVisitor;
@@ -127,9 +126,9 @@ public class Replace extends SystemFunction {
             }
 
             try {
-                final Platform platform = Configuration.getPlatform();
-                final int xmlVersion = c.getConfiguration().getXMLVersion();
-                re = platform.compileRegularExpression(
+                final Configuration config = c.getConfiguration();
+                final int xmlVersion = config.getXMLVersion();
+                re = config.getRegularExpressionCache().getRegularExpression(
                         arg1.getStringValueCS(), xmlVersion, RegularExpression.XPATH_SYNTAX, flags);
             } catch (XPathException err) {
                 XPathException de = new XPathException(err);
@@ -24,6 +24,17 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements the default collection URI Resolver.
@@ -38,6 +49,10 @@ import java.net.URISyntaxException;
  * <li><p>select=pattern determines which files in the directory are selected.</p></li>
  * <li><p>on-error=fail|warn|ignore determines the action taken if processing of a file fails</p></li>
  * <li><p>parser=qualified.class.name selects the parser (XMLReader) to be used to read the files</p></li>
+ * <li><p>parallel=yes|no|n determines whether the files are parsed ahead of use by several threads, and if
+ * so, how many. The default is to use one thread for each processor if multithreading is enabled in the
+ * Configuration, and otherwise to parse each file when it is needed. The documents are always delivered
+ * in the same order.</p></li>
  * </ul>
  * <p>
  * Otherwise, the resolver attempts to dereference the URI to obtain a catalog file. This is an XML file
@@ -195,6 +210,21 @@ public class StandardCollectionURIResolver implements CollectionURIResolver {
             });
         }
         FileExpander expander = new FileExpander(params, newPipe);
+
+        int threads = (context.getConfiguration().isMultiThreading() ?
+                Runtime.getRuntime().availableProcessors() : 1);
+        if (params != null && params.getParallelism() != null) {
+            threads = params.getParallelism().intValue();
+        }
+        if (threads > 1 && expander.parser == null) {
+            // a user-supplied parser cannot be shared between threads
+            List list = new ArrayList(files.length);
+            expander.listFiles(files, list);
+            File[] all = new File[list.size()];
+            list.toArray(all);
+            return new ParallelDocumentIterator(all, expander, threads);
+        }
+
         SequenceIterator base = new ArrayIterator(fileValues);
         return new MappingIterator(base, expander);
     }
@@ -384,64 +414,223 @@ public class StandardCollectionURIResolver implements CollectionURIResolver {
                 }
             } else {
                 try {
-                    Source source = new StreamSource(file.toURI().toString());
-                    if (validation != Validation.STRIP && validation != Validation.PRESERVE) {
-                        source = AugmentedSource.makeAugmentedSource(source);
-                        ((AugmentedSource)source).setSchemaValidationMode(validation);
+                    return SingletonIterator.makeIterator(buildDocument(file));
+                } catch (XPathException err) {
+                    return recover(err);
+                }
+            }
+        }
+
+        /**
+         * Add the files to be included in the collection to a list, scanning subdirectories if
+         * recursion was requested
+         * @param files the contents of a directory
+         * @param list the list to which the files are to be added
+         */
+
+        void listFiles(File[] files, List list) {
+            for (int f=0; f<files.length; f++) {
+                if (files[f].isDirectory()) {
+                    if (recurse) {
+                        listFiles((filter == null ? files[f].listFiles() : files[f].listFiles(filter)), list);
                     }
-                    if (xinclude != null) {
+                } else {
+                    list.add(files[f]);
+                }
+            }
+        }
+
+        /**
+         * Parse one of the files in the collection. This method may be called in several threads at once.
+         * @param file the file
+         * @return the document node of the parsed document
+         * @throws XPathException if the document cannot be parsed
+         */
+
+        DocumentInfo buildDocument(File file) throws XPathException {
+            Source source = new StreamSource(file.toURI().toString());
+            if (validation != Validation.STRIP && validation != Validation.PRESERVE) {
+                source = AugmentedSource.makeAugmentedSource(source);
+                ((AugmentedSource)source).setSchemaValidationMode(validation);
+            }
+            if (xinclude != null) {
+                source = AugmentedSource.makeAugmentedSource(source);
+                ((AugmentedSource)source).setXIncludeAware(xinclude.booleanValue());
+            }
+            if (parser != null) {
+                source = AugmentedSource.makeAugmentedSource(source);
+                ((AugmentedSource)source).setXMLReader(parser);
+            }
+
+            Stripper stripper;
+            if (params != null) {
+                int stripSpace = params.getStripSpace();
+                switch (strip) {
+                    case Whitespace.ALL: {
+                        // a stripper holds the state of one parse, so each document needs its own
+                        stripper = new AllElementStripper();
+                        stripper.setStripAll();
                         source = AugmentedSource.makeAugmentedSource(source);
-                        ((AugmentedSource)source).setXIncludeAware(xinclude.booleanValue());
+                        ((AugmentedSource)source).addFilter(stripper);
+                        break;
                     }
-                    if (parser != null) {
+                    case Whitespace.IGNORABLE:
+                    case Whitespace.NONE:
                         source = AugmentedSource.makeAugmentedSource(source);
-                        ((AugmentedSource)source).setXMLReader(parser);
-                    }
+                        ((AugmentedSource)source).setStripSpace(stripSpace);
+                }
+            }
+            return pipe.getConfiguration().buildDocument(source);
+        }
 
-                    Stripper stripper;
-                    if (params != null) {
-                        int stripSpace = params.getStripSpace();
-                        switch (strip) {
-                            case Whitespace.ALL: {
-                                stripper = AllElementStripper.getInstance();
-                                stripper.setStripAll();
-                                source = AugmentedSource.makeAugmentedSource(source);
-                                ((AugmentedSource)source).addFilter(stripper);
-                                break;
-                            }
-                            case Whitespace.IGNORABLE:
-                            case Whitespace.NONE:
-                                source = AugmentedSource.makeAugmentedSource(source);
-                                ((AugmentedSource)source).setStripSpace(stripSpace);
-                        }
+        /**
+         * Handle a failure to parse one of the files in the collection, as determined by the
+         * on-error parameter
+         * @param err the error
+         * @return null, if the document is to be excluded from the collection
+         * @throws XPathException if the error is to be reported as a failure of the collection() function
+         */
+
+        SequenceIterator recover(XPathException err) throws XPathException {
+            if (onError == URIQueryParameters.ON_ERROR_IGNORE) {
+                return null;
+            } else if (onError == URIQueryParameters.ON_ERROR_WARNING) {
+                try {
+                    if (!err.hasBeenReported()) {
+                        pipe.getErrorListener().warning(err);
+                        XPathException supp = new XPathException("The document will be excluded from the collection");
+                        supp.setLocator(err.getLocator());
+                        pipe.getErrorListener().warning(supp);
                     }
-                    return SingletonIterator.makeIterator(
-                            pipe.getConfiguration().buildDocument(source));
-                } catch (XPathException err) {
-                    if (onError == URIQueryParameters.ON_ERROR_IGNORE) {
-                        return null;
-                    } else if (onError == URIQueryParameters.ON_ERROR_WARNING) {
+                } catch (TransformerException err2) {
+                    //
+                }
+                return null;
+            } else {
+                throw err;
+            }
+        }
+    }
+
+    /**
+     * Iterator over the documents in a directory collection, which parses the files ahead of use
+     * using a pool of threads. The documents are delivered in the order of the files, and the number of
+     * documents parsed ahead, and therefore held in memory, is limited to twice the number of threads.
+     * Errors are handled in the calling thread, as each document is reached.
+     */
+
+    private static class ParallelDocumentIterator implements SequenceIterator {
+
+        private File[] files;
+        private FileExpander expander;
+        private int threads;
+        private ThreadPoolExecutor executor = null;
+        private LinkedList pending = new LinkedList();
+        private int submitted = 0;
+        private Item current = null;
+        private int position = 0;
+
+        public ParallelDocumentIterator(File[] files, FileExpander expander, int threads) {
+            this.files = files;
+            this.expander = expander;
+            this.threads = threads;
+        }
+
+        public Item next() throws XPathException {
+            if (position < 0) {
+                return null;
+            }
+            while (true) {
+                fill();
+                if (pending.isEmpty()) {
+                    close();
+                    current = null;
+                    position = -1;
+                    return null;
+                }
+                Future task = (Future)pending.removeFirst();
+                try {
+                    current = (Item)task.get();
+                    position++;
+                    return current;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof XPathException) {
                         try {
-                            if (!err.hasBeenReported()) {
-                                pipe.getErrorListener().warning(err);
-                                XPathException supp = new XPathException("The document will be excluded from the collection");
-                                supp.setLocator(err.getLocator());
-                                pipe.getErrorListener().warning(supp);
-                            }
-                        } catch (TransformerException err2) {
-                            //
+                            expander.recover((XPathException)cause);
+                        } catch (XPathException err) {
+                            close();
+                            throw err;
                         }
-                        return null;
+                    } else if (cause instanceof RuntimeException) {
+                        close();
+                        throw (RuntimeException)cause;
                     } else {
-                        throw err;
+                        close();
+                        throw new XPathException(cause);
                     }
+                } catch (InterruptedException e) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    throw new XPathException("Interrupted while reading collection");
                 }
             }
         }
-    }
 
+        /**
+         * Start parsing further files, until the number of documents parsed ahead reaches the limit
+         */
+
+        private void fill() {
+            if (executor == null && submitted < files.length) {
+                // idle threads are allowed to die, in case the iterator is abandoned without being closed
+                executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue(), new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "collection-parser");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+            }
+            while (submitted < files.length && pending.size() < threads * 2) {
+                final File file = files[submitted++];
+                pending.addLast(executor.submit(new Callable() {
+                    public Object call() throws Exception {
+                        return expander.buildDocument(file);
+                    }
+                }));
+            }
+        }
+
+        public Item current() {
+            return current;
+        }
 
+        public int position() {
+            return position;
+        }
+
+        public void close() {
+            if (executor != null) {
+                for (Iterator iter = pending.iterator(); iter.hasNext();) {
+                    ((Future)iter.next()).cancel(false);
+                }
+                pending.clear();
+                submitted = files.length;
+                executor.shutdown();
+            }
+        }
 
+        public SequenceIterator getAnother() throws XPathException {
+            return new ParallelDocumentIterator(files, expander, threads);
+        }
+
+        public int getProperties() {
+            return 0;
+        }
+    }
 
 }
 
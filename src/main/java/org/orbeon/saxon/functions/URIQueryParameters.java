@@ -26,6 +26,7 @@ public class URIQueryParameters {
     Integer onError = null;
     XMLReader parser = null;
     Boolean xinclude = null;
+    Integer parallelism = null;
 
     public static final int ON_ERROR_FAIL = 1;
     public static final int ON_ERROR_WARNING = 2;
@@ -95,6 +96,21 @@ public class URIQueryParameters {
                         } else if (value.equals("fail")) {
                             onError = new Integer(ON_ERROR_FAIL);
                         }
+                    } else if (keyword.equals("parallel")) {
+                        if (value.equals("yes")) {
+                            parallelism = new Integer(Runtime.getRuntime().availableProcessors());
+                        } else if (value.equals("no")) {
+                            parallelism = new Integer(1);
+                        } else {
+                            try {
+                                int n = Integer.parseInt(value);
+                                if (n > 0) {
+                                    parallelism = new Integer(n);
+                                }
+                            } catch (NumberFormatException err) {
+                                // ignore the parameter
+                            }
+                        }
                     } else if (keyword.equals("parser")) {
                         try {
                             if (config == null) {
@@ -165,6 +181,15 @@ public class URIQueryParameters {
         return xinclude;
     }
 
+    /**
+     * Get the number of threads to be used to parse documents, as set by parallel=yes|no|n,
+     * or null if unspecified
+     */
+
+    public Integer getParallelism() {
+        return parallelism;
+    }
+
     /**
      * Get the selected XML parser, or null if unspecified
      */
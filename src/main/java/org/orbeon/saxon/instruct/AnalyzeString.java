@@ -407,9 +407,9 @@ public class AnalyzeString extends Instruction {
         RegularExpression re = pattern;
         if (re == null) {
             CharSequence flagstr = flags.evaluateAsString(context);
-            final Platform platform = Configuration.getPlatform();
-            final int xmlVersion = context.getConfiguration().getXMLVersion();
-            re = platform.compileRegularExpression(
+            final Configuration config = context.getConfiguration();
+            final int xmlVersion = config.getXMLVersion();
+            re = config.getRegularExpressionCache().getRegularExpression(
                     regex.evaluateAsString(context), xmlVersion, RegularExpression.XPATH_SYNTAX, flagstr);
             if (re.matches("")) {
                 dynamicError("The regular expression must not be one that matches a zero-length string",
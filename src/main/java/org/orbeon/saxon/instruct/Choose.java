@@ -673,6 +673,27 @@ public class Choose extends Instruction {
     */
 
     public TailCall processLeavingTail(XPathContext context) throws XPathException {
+        int i = selectBranch(context);
+        if (i >= 0) {
+            if (actions[i] instanceof TailCallReturner) {
+                return ((TailCallReturner)actions[i]).processLeavingTail(context);
+            } else {
+                actions[i].process(context);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine which branch of the conditional is to be evaluated, by evaluating the conditions in turn
+     * until one is found that is true
+     * @param context the dynamic context
+     * @return the index of the first condition that is true, or -1 if none of them is true
+     * @throws XPathException if evaluating a condition fails
+     */
+
+    protected int selectBranch(XPathContext context) throws XPathException {
         for (int i=0; i<conditions.length; i++) {
             final boolean b;
             try {
@@ -682,15 +703,10 @@ public class Choose extends Instruction {
                 throw e;
             }
             if (b) {
-                if (actions[i] instanceof TailCallReturner) {
-                    return ((TailCallReturner)actions[i]).processLeavingTail(context);
-                } else {
-                    actions[i].process(context);
-                    return null;
-                }
+                return i;
             }
         }
-        return null;
+        return -1;
     }
 
     /**
@@ -709,19 +725,8 @@ public class Choose extends Instruction {
      */
 
     public Item evaluateItem(XPathContext context) throws XPathException {
-        for (int i=0; i<conditions.length; i++) {
-            final boolean b;
-            try {
-                b = conditions[i].effectiveBooleanValue(context);
-            } catch (XPathException e) {
-                e.maybeSetLocation(conditions[i]);
-                throw e;
-            }
-            if (b) {
-                return actions[i].evaluateItem(context);
-            }
-        }
-        return null;
+        int i = selectBranch(context);
+        return (i < 0 ? null : actions[i].evaluateItem(context));
     }
 
     /**
@@ -742,19 +747,8 @@ public class Choose extends Instruction {
      */
 
     public SequenceIterator iterate(XPathContext context) throws XPathException {
-        for (int i=0; i<conditions.length; i++) {
-            final boolean b;
-            try {
-                b = conditions[i].effectiveBooleanValue(context);
-            } catch (XPathException e) {
-                e.maybeSetLocation(conditions[i]);
-                throw e;
-            }
-            if (b) {
-                return (actions[i]).iterate(context);
-            }
-        }
-        return EmptyIterator.getInstance();
+        int i = selectBranch(context);
+        return (i < 0 ? EmptyIterator.getInstance() : actions[i].iterate(context));
     }
 
 
@@ -782,19 +776,8 @@ public class Choose extends Instruction {
      */
 
     public EventIterator iterateEvents(XPathContext context) throws XPathException {
-        for (int i=0; i<conditions.length; i++) {
-            final boolean b;
-            try {
-                b = conditions[i].effectiveBooleanValue(context);
-            } catch (XPathException e) {
-                e.maybeSetLocation(conditions[i]);
-                throw e;
-            }
-            if (b) {
-                return (actions[i]).iterateEvents(context);
-            }
-        }
-        return EmptyEventIterator.getInstance();
+        int i = selectBranch(context);
+        return (i < 0 ? EmptyEventIterator.getInstance() : actions[i].iterateEvents(context));
     }
 
 
@@ -808,18 +791,9 @@ public class Choose extends Instruction {
      */
 
     public void evaluatePendingUpdates(XPathContext context, PendingUpdateList pul) throws XPathException {
-        for (int i=0; i<conditions.length; i++) {
-            final boolean b;
-            try {
-                b = conditions[i].effectiveBooleanValue(context);
-            } catch (XPathException e) {
-                e.maybeSetLocation(conditions[i]);
-                throw e;
-            }
-            if (b) {
-                actions[i].evaluatePendingUpdates(context, pul);
-                return;
-            }
+        int i = selectBranch(context);
+        if (i >= 0) {
+            actions[i].evaluatePendingUpdates(context, pul);
         }
     }
 }
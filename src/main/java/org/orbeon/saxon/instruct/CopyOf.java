@@ -32,6 +32,7 @@ public class CopyOf extends Instruction {
     private boolean requireDocumentOrElement = false;
     private boolean rejectDuplicateAttributes;
     private boolean readOnce = false;
+    private StreamingPath streamingPath = null;
     private boolean validating;
     private boolean copyLineNumbers = true;
     private boolean copyForUpdate = false;
@@ -208,6 +209,9 @@ public class CopyOf extends Instruction {
         c.setCopyLineNumbers(copyLineNumbers);
         c.setReadOnce(readOnce);
         c.setStaticBaseUri(staticBaseUri);
+        if (streamingPath != null) {
+            c.streamingPath = StreamingPath.makeStreamingPath(c.select, null);
+        }
         return c;
     }
 
@@ -242,7 +246,10 @@ public class CopyOf extends Instruction {
     }
 
     protected void promoteInst(PromotionOffer offer) throws XPathException {
-        select = doPromotion(select, offer);
+        if (streamingPath == null) {
+            // when streaming, the select expression must be kept intact
+            select = doPromotion(select, offer);
+        }
     }
 
     public Expression typeCheck(ExpressionVisitor visitor, ItemType contextItemType) throws XPathException {
@@ -273,10 +280,15 @@ public class CopyOf extends Instruction {
 
     public Expression optimize(ExpressionVisitor visitor, ItemType contextItemType) throws XPathException {
         if (readOnce) {
-            Expression optcopy = visitor.getConfiguration().getOptimizer().optimizeCopy(select);
+            Optimizer opt = visitor.getConfiguration().getOptimizer();
+            Expression optcopy = opt.optimizeCopy(select);
             if (optcopy != null) {
                 return optcopy;
             }
+            streamingPath = opt.makeStreamingPath(select);
+            if (streamingPath != null) {
+                return this;
+            }
         }
         select = visitor.optimize(select, contextItemType);
         adoptChildExpression(select);
@@ -295,6 +307,9 @@ public class CopyOf extends Instruction {
     public void explain(ExpressionPresenter out) {
         out.startElement("copyOf");
         out.emitAttribute("validation", Validation.toString(validation));
+        if (streamingPath != null) {
+            out.emitAttribute("streaming", "yes");
+        }
         select.explain(out);
         out.endElement();
     }
@@ -327,140 +342,156 @@ public class CopyOf extends Instruction {
      */
 
     public TailCall processLeavingTail(XPathContext context) throws XPathException {
-
-        Controller controller = context.getController();
-        SequenceReceiver out = context.getReceiver();
-        boolean copyBaseURI = (out.getSystemId() == null);
+        boolean copyBaseURI = (context.getReceiver().getSystemId() == null);
             // if the copy is being attached to an existing parent, it inherits the base URI of the parent
 
-        int whichNamespaces = (copyNamespaces ? NodeInfo.ALL_NAMESPACES : NodeInfo.NO_NAMESPACES);
-
+        if (streamingPath != null) {
+            streamingPath.process(this, context);
+            return null;
+        }
         SequenceIterator iter = select.iterate(context);
         while (true) {
             Item item = iter.next();
             if (item == null) {
                 break;
             }
-            if (item instanceof NodeInfo) {
-                NodeInfo source = (NodeInfo) item;
-                int kind = source.getNodeKind();
-                if (requireDocumentOrElement &&
-                        !(kind == Type.ELEMENT || kind == Type.DOCUMENT)) {
-                    XPathException e = new XPathException("Operand of validate expression must be a document or element node");
-                    e.setXPathContext(context);
-                    e.setErrorCode("XQTY0030");
-                    throw e;
-                }
-                switch (kind) {
+            copyItem(item, context, copyBaseURI);
+        }
+        return null;
+    }
 
-                    case Type.ELEMENT: {
-                        Receiver eval = out;
-                        if (validating) {
-                            eval = controller.getConfiguration().getElementValidator(out, source.getNameCode(),
-                                    locationId, schemaType, validation);
-                        }
-                        if (copyBaseURI) {
-                            eval.setSystemId(computeNewBaseUri(source));
-                        }
+    /**
+     * Copy one item selected by this xsl:copy-of instruction to the current output destination
+     * @param item the item to be copied
+     * @param context the dynamic context for the transformation
+     * @param copyBaseURI true if the base URI of the copied node is to be set, because the copy is not
+     * being attached to an existing parent
+     * @throws XPathException if a dynamic error occurs
+     */
 
-                        Receiver savedReceiver = null;
-                        PipelineConfiguration savedPipe = null;
-                        if (copyLineNumbers) {
-                            savedReceiver = eval;
-                            savedPipe = new PipelineConfiguration(eval.getPipelineConfiguration());
-                            LocationCopier copier = new LocationCopier(eval);
-                            eval.getPipelineConfiguration().setLocationProvider(copier);
-                            eval = copier;
-                        }
-                        try {
-                            source.copy(eval, whichNamespaces, true, locationId);
-                        } catch (CopyNamespaceSensitiveException e) {
-                            e.setErrorCode((getHostLanguage() == Configuration.XSLT ? "XTTE0950" : "XQTY0086"));
-                            throw e;
-                        }
-                        if (copyLineNumbers) {
-                            eval = savedReceiver;
-                            eval.setPipelineConfiguration(savedPipe);
-                        }
-                        break;
+    void copyItem(Item item, XPathContext context, boolean copyBaseURI) throws XPathException {
+        Controller controller = context.getController();
+        SequenceReceiver out = context.getReceiver();
+        int whichNamespaces = (copyNamespaces ? NodeInfo.ALL_NAMESPACES : NodeInfo.NO_NAMESPACES);
+
+        if (item instanceof NodeInfo) {
+            NodeInfo source = (NodeInfo) item;
+            int kind = source.getNodeKind();
+            if (requireDocumentOrElement &&
+                    !(kind == Type.ELEMENT || kind == Type.DOCUMENT)) {
+                XPathException e = new XPathException("Operand of validate expression must be a document or element node");
+                e.setXPathContext(context);
+                e.setErrorCode("XQTY0030");
+                throw e;
+            }
+            switch (kind) {
+
+                case Type.ELEMENT: {
+                    Receiver eval = out;
+                    if (validating) {
+                        eval = controller.getConfiguration().getElementValidator(out, source.getNameCode(),
+                                locationId, schemaType, validation);
                     }
-                    case Type.ATTRIBUTE:
-                        try {
-                            copyAttribute(source, schemaType, validation, this, context, rejectDuplicateAttributes);
-                        } catch (NoOpenStartTagException err) {
-                            XPathException e = new XPathException(err.getMessage());
-                            e.setLocator(this);
-                            e.setXPathContext(context);
-                            e.setErrorCode(err.getErrorCodeLocalPart());
-                            throw dynamicError(this, e, context);
-                        }
-                        break;
-                    case Type.TEXT:
-                        out.characters(source.getStringValueCS(), locationId, 0);
-                        break;
-
-                    case Type.PROCESSING_INSTRUCTION:
-                        if (copyBaseURI) {
-                            out.setSystemId(source.getBaseURI());
-                        }
-                        out.processingInstruction(source.getDisplayName(), source.getStringValueCS(), locationId, 0);
-                        break;
-
-                    case Type.COMMENT:
-                        out.comment(source.getStringValueCS(), locationId, 0);
-                        break;
-
-                    case Type.NAMESPACE:
-                        try {
-                            source.copy(out, NodeInfo.NO_NAMESPACES, false, locationId);
-                        } catch (NoOpenStartTagException err) {
-                            XPathException e = new XPathException(err.getMessage());
-                            e.setXPathContext(context);
-                            e.setErrorCode(err.getErrorCodeLocalPart());
-                            //context.getController().recoverableError(e);
-                            throw dynamicError(this, e, context);
-                        }
-                        break;
-
-                    case Type.DOCUMENT: {
-                        Receiver val = controller.getConfiguration().
-                                getDocumentValidator(out,
-                                        source.getBaseURI(),
-                                        validation, Whitespace.NONE, schemaType, -1);
-                        val.setPipelineConfiguration(out.getPipelineConfiguration());
-                        if (copyBaseURI) {
-                            val.setSystemId(source.getBaseURI());
-                        }
-                        Receiver savedReceiver = null;
-                        PipelineConfiguration savedPipe = null;
-                        if (copyLineNumbers) {
-                            savedReceiver = val;
-                            savedPipe = new PipelineConfiguration(val.getPipelineConfiguration());
-                            LocationCopier copier = new LocationCopier(val);
-                            val.getPipelineConfiguration().setLocationProvider(copier);
-                            val = copier;
-                        }
-                        try {
-                            source.copy(val, whichNamespaces, true, locationId);
-                        } catch (CopyNamespaceSensitiveException e) {
-                            e.setErrorCode((getHostLanguage() == Configuration.XSLT ? "XTTE0950" : "XQTY0086"));
-                            throw e;
-                        }
-                        if (copyLineNumbers) {
-                            val = savedReceiver;
-                            val.setPipelineConfiguration(savedPipe);
-                        }
-                        break;
+                    if (copyBaseURI) {
+                        eval.setSystemId(computeNewBaseUri(source));
                     }
-                    default:
-                        throw new IllegalArgumentException("Unknown node kind " + source.getNodeKind());
-                }
 
-            } else {
-                out.append(item, locationId, NodeInfo.ALL_NAMESPACES);
+                    Receiver savedReceiver = null;
+                    PipelineConfiguration savedPipe = null;
+                    if (copyLineNumbers) {
+                        savedReceiver = eval;
+                        savedPipe = new PipelineConfiguration(eval.getPipelineConfiguration());
+                        LocationCopier copier = new LocationCopier(eval);
+                        eval.getPipelineConfiguration().setLocationProvider(copier);
+                        eval = copier;
+                    }
+                    try {
+                        source.copy(eval, whichNamespaces, true, locationId);
+                    } catch (CopyNamespaceSensitiveException e) {
+                        e.setErrorCode((getHostLanguage() == Configuration.XSLT ? "XTTE0950" : "XQTY0086"));
+                        throw e;
+                    }
+                    if (copyLineNumbers) {
+                        eval = savedReceiver;
+                        eval.setPipelineConfiguration(savedPipe);
+                    }
+                    break;
+                }
+                case Type.ATTRIBUTE:
+                    try {
+                        copyAttribute(source, schemaType, validation, this, context, rejectDuplicateAttributes);
+                    } catch (NoOpenStartTagException err) {
+                        XPathException e = new XPathException(err.getMessage());
+                        e.setLocator(this);
+                        e.setXPathContext(context);
+                        e.setErrorCode(err.getErrorCodeLocalPart());
+                        throw dynamicError(this, e, context);
+                    }
+                    break;
+                case Type.TEXT:
+                    out.characters(source.getStringValueCS(), locationId, 0);
+                    break;
+
+                case Type.PROCESSING_INSTRUCTION:
+                    if (copyBaseURI) {
+                        out.setSystemId(source.getBaseURI());
+                    }
+                    out.processingInstruction(source.getDisplayName(), source.getStringValueCS(), locationId, 0);
+                    break;
+
+                case Type.COMMENT:
+                    out.comment(source.getStringValueCS(), locationId, 0);
+                    break;
+
+                case Type.NAMESPACE:
+                    try {
+                        source.copy(out, NodeInfo.NO_NAMESPACES, false, locationId);
+                    } catch (NoOpenStartTagException err) {
+                        XPathException e = new XPathException(err.getMessage());
+                        e.setXPathContext(context);
+                        e.setErrorCode(err.getErrorCodeLocalPart());
+                        //context.getController().recoverableError(e);
+                        throw dynamicError(this, e, context);
+                    }
+                    break;
+
+                case Type.DOCUMENT: {
+                    Receiver val = controller.getConfiguration().
+                            getDocumentValidator(out,
+                                    source.getBaseURI(),
+                                    validation, Whitespace.NONE, schemaType, -1);
+                    val.setPipelineConfiguration(out.getPipelineConfiguration());
+                    if (copyBaseURI) {
+                        val.setSystemId(source.getBaseURI());
+                    }
+                    Receiver savedReceiver = null;
+                    PipelineConfiguration savedPipe = null;
+                    if (copyLineNumbers) {
+                        savedReceiver = val;
+                        savedPipe = new PipelineConfiguration(val.getPipelineConfiguration());
+                        LocationCopier copier = new LocationCopier(val);
+                        val.getPipelineConfiguration().setLocationProvider(copier);
+                        val = copier;
+                    }
+                    try {
+                        source.copy(val, whichNamespaces, true, locationId);
+                    } catch (CopyNamespaceSensitiveException e) {
+                        e.setErrorCode((getHostLanguage() == Configuration.XSLT ? "XTTE0950" : "XQTY0086"));
+                        throw e;
+                    }
+                    if (copyLineNumbers) {
+                        val = savedReceiver;
+                        val.setPipelineConfiguration(savedPipe);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown node kind " + source.getNodeKind());
             }
+
+        } else {
+            out.append(item, locationId, NodeInfo.ALL_NAMESPACES);
         }
-        return null;
     }
 
     private String computeNewBaseUri(NodeInfo source) {
@@ -584,7 +615,7 @@ public class CopyOf extends Instruction {
     }
 
     public SequenceIterator iterate(final XPathContext context) throws XPathException {
-        if (schemaType == null && copyNamespaces && !copyForUpdate) {
+        if (schemaType == null && copyNamespaces && !copyForUpdate && streamingPath == null) {
             if (validation == Validation.PRESERVE) {
                 // create a virtual copy of the underlying nodes
                 ItemMappingFunction copier = new ItemMappingFunction() {
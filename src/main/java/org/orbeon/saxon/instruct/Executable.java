@@ -679,6 +679,9 @@ public class Executable implements Serializable {
                 if (var.isAssignable()) {
                     presenter.emitAttribute("assignable", "true");
                 }
+                if (var.isExtracted()) {
+                    presenter.emitAttribute("extracted", "true");
+                }
                 if (var.getSelectExpression() != null) {
                     var.getSelectExpression().explain(presenter);
                 }
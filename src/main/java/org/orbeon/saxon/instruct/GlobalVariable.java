@@ -22,6 +22,7 @@ public class GlobalVariable extends GeneralVariable implements Container {
     private Executable executable;
     private SlotManager stackFrameMap = null;
     private int hostLanguage;
+    private boolean extracted = false;
 
     /**
      * Create a global variable
@@ -65,6 +66,27 @@ public class GlobalVariable extends GeneralVariable implements Container {
         return hostLanguage;
     }
 
+    /**
+     * Indicate whether this global variable was created by the optimizer, by extracting a subexpression
+     * from the body of a template or function, rather than being declared in the stylesheet or query
+     * @param extracted true if the variable was created by the optimizer
+     */
+
+    public void setExtracted(boolean extracted) {
+        this.extracted = extracted;
+    }
+
+    /**
+     * Ask whether this global variable was created by the optimizer. Such a variable is evaluated only
+     * when it is first referenced, never in advance, since the expression might not have been evaluated
+     * at all had it been left in its original place.
+     * @return true if the variable was created by the optimizer
+     */
+
+    public boolean isExtracted() {
+        return extracted;
+    }
+
     /**
      * The expression that initializes a global variable may itself use local variables.
      * In this case a stack frame needs to be allocated while evaluating the global variable
@@ -7,7 +7,8 @@ import java.io.Serializable;
 /**
  * A LocationMap allocates integer codes to (systemId, lineNumber) pairs. The integer
  * codes are held inside an Expression object to track the location of the expression
- * in the source code
+ * in the source code. Location identifiers may be allocated by several threads at once,
+ * as happens when the templates of a stylesheet are compiled in parallel.
  */
 
 public class LocationMap implements LocationProvider, Serializable {
@@ -28,7 +29,7 @@ public class LocationMap implements LocationProvider, Serializable {
      * @return the corresponding location identifier
      */
 
-    public int allocateLocationId(String module, int lineNumber) {
+    public synchronized int allocateLocationId(String module, int lineNumber) {
         if (module == null) {
             // the module has no base URI
             module = "*module with no systemId*";
@@ -65,7 +66,7 @@ public class LocationMap implements LocationProvider, Serializable {
      * @return the corresponding system identifier
      */
 
-    public String getSystemId(long locationId) {
+    public synchronized String getSystemId(long locationId) {
         int m = ((int)locationId)>>20;
         if (m < 0 || m >= numberOfModules) {
             return null;
@@ -0,0 +1,251 @@
+package org.orbeon.saxon.instruct;
+
+import org.orbeon.saxon.om.Item;
+import org.orbeon.saxon.om.NodeInfo;
+import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.om.ValueRepresentation;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.value.AtomicValue;
+import org.orbeon.saxon.value.Value;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A MemoFunctionCache holds the results of calls on memo functions (functions declared with
+ * <code>saxon:memo-function="yes"</code> in XSLT, or <code>declare option saxon:memo-function</code>
+ * in XQuery). There is one cache per {@link org.orbeon.saxon.Controller}, shared by all the memo
+ * functions in the stylesheet or query, so cached results last no longer than a single transformation
+ * or query.
+ *
+ * <p>Entries are keyed on the function and the values of its arguments: nodes are compared by
+ * identity, atomic values by their type label and string value. The cache is bounded: when it holds
+ * more than the maximum number of entries, the least recently used entry is discarded. The numbers of
+ * hits, misses, and evictions are recorded and can be read by the application, for example to decide
+ * on a suitable maximum size.</p>
+ */
+
+public final class MemoFunctionCache {
+
+    /**
+     * The default maximum number of entries held in the cache
+     */
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private int maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private LinkedHashMap map = new LinkedHashMap(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            if (size() > maximumSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Create an empty cache
+     */
+
+    public MemoFunctionCache() {
+    }
+
+    /**
+     * Set the maximum number of entries to be held in the cache. If the cache currently holds
+     * more entries than this, the least recently used entries are discarded immediately.
+     * @param size the maximum number of entries. Must be at least 1.
+     */
+
+    public synchronized void setMaximumSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Memo function cache size must be at least 1");
+        }
+        maximumSize = size;
+        while (map.size() > maximumSize) {
+            map.remove(map.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    /**
+     * Get the maximum number of entries held in the cache
+     * @return the maximum number of entries
+     */
+
+    public synchronized int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Get a saved result from the cache
+     * @param function the function being called
+     * @param arguments the values of the arguments to the function call
+     * @return the saved result, or null if there is no saved result for this function and these arguments
+     * @throws XPathException if evaluating the arguments fails
+     */
+
+    public synchronized ValueRepresentation get(UserFunction function, ValueRepresentation[] arguments)
+            throws XPathException {
+        ValueRepresentation result = (ValueRepresentation)map.get(new Key(function, arguments));
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    /**
+     * Save the result of a function call in the cache
+     * @param function the function being called
+     * @param arguments the values of the arguments to the function call
+     * @param result the result of the function call. This must be a value that can be read any number of
+     * times, that is, not a {@link org.orbeon.saxon.value.Closure}.
+     * @throws XPathException if evaluating the arguments fails
+     */
+
+    public synchronized void put(UserFunction function, ValueRepresentation[] arguments, ValueRepresentation result)
+            throws XPathException {
+        map.put(new Key(function, arguments), result);
+    }
+
+    /**
+     * Discard all the entries in the cache. The statistics are not reset.
+     */
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * Get the number of entries currently held in the cache
+     * @return the number of entries
+     */
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Get the number of calls on memo functions whose result was found in the cache
+     * @return the number of cache hits
+     */
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of calls on memo functions whose result was not found in the cache
+     * @return the number of cache misses
+     */
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of entries that have been discarded from the cache because it was full
+     * @return the number of evictions
+     */
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public String toString() {
+        return "MemoFunctionCache(size=" + size() + ", hits=" + getHits() +
+                ", misses=" + getMisses() + ", evictions=" + getEvictions() + ')';
+    }
+
+    /**
+     * The key of an entry in the cache, made up of the function and the identities or values of all the
+     * items in its arguments
+     */
+
+    private static final class Key {
+
+        private UserFunction function;
+        private Object[] components;
+        private int hash;
+
+        public Key(UserFunction function, ValueRepresentation[] arguments) throws XPathException {
+            this.function = function;
+            List list = new ArrayList(arguments.length * 3);
+            for (int i=0; i<arguments.length; i++) {
+                SequenceIterator iter = Value.getIterator(arguments[i]);
+                while (true) {
+                    Item item = iter.next();
+                    if (item == null) {
+                        break;
+                    }
+                    if (item instanceof NodeInfo) {
+                        list.add(item);
+                    } else {
+                        list.add(((AtomicValue)item).getTypeLabel());
+                        list.add(item.getStringValue());
+                    }
+                }
+                // marks the end of an argument, so that (1, 2), () differs from (1), (2)
+                list.add(Key.class);
+            }
+            components = list.toArray();
+            int h = function.hashCode();
+            for (int i=0; i<components.length; i++) {
+                h = h * 31 + components[i].hashCode();
+            }
+            hash = h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)other;
+            if (k.function != function || k.hash != hash || k.components.length != components.length) {
+                return false;
+            }
+            for (int i=0; i<components.length; i++) {
+                Object a = components[i];
+                Object b = k.components[i];
+                if (a instanceof NodeInfo) {
+                    if (!(b instanceof NodeInfo) || !((NodeInfo)a).isSameNodeInfo((NodeInfo)b)) {
+                        return false;
+                    }
+                } else if (!a.equals(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
@@ -0,0 +1,701 @@
+package org.orbeon.saxon.instruct;
+
+import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.event.Receiver;
+import org.orbeon.saxon.event.Sink;
+import org.orbeon.saxon.expr.*;
+import org.orbeon.saxon.functions.*;
+import org.orbeon.saxon.om.*;
+import org.orbeon.saxon.pattern.AnyNodeTest;
+import org.orbeon.saxon.pattern.NodeTest;
+import org.orbeon.saxon.sort.DocumentSorter;
+import org.orbeon.saxon.tinytree.TinyBuilder;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.BuiltInAtomicType;
+import org.orbeon.saxon.type.ItemType;
+import org.orbeon.saxon.type.Type;
+import org.orbeon.saxon.type.TypeHierarchy;
+import org.orbeon.saxon.value.AtomicValue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A StreamingPath is used to evaluate an xsl:copy-of instruction marked with saxon:read-once="yes" (or an
+ * XQuery expression marked with the saxon:stream pragma) whose select expression is a path of the form
+ * <code>doc(uri)/a/b[p]//c</code>, without building the source document as a tree. The document is parsed,
+ * and the parser events are matched against the steps of the path as they arrive. Only the subtrees rooted
+ * at the nodes selected by the last step of the path are built: each one is built as a small tree of its own,
+ * copied to the result as soon as it is complete, and then discarded. The memory used therefore depends on
+ * the size of the largest node selected, not on the size of the document.
+ *
+ * <p>A path can be evaluated in this way if it satisfies the following conditions:</p>
+ *
+ * <ul>
+ * <li>It starts with a call on fn:doc(), and every step uses the child, descendant, or descendant-or-self
+ * axis, except that the last step may use the attribute axis. The last step must not use the
+ * descendant-or-self axis, and descendant-or-self steps must have no predicates.</li>
+ * <li>No predicate is positional: each must return a boolean or a sequence of nodes, and must not use
+ * position() or last().</li>
+ * <li>Predicates on steps other than the last depend only on the attributes of the element, since these are
+ * the only parts of the element that are known when its children are encountered.</li>
+ * <li>Predicates on the last step may examine the subtree rooted at the selected node, but not its ancestors,
+ * its siblings, or the rest of the document.</li>
+ * </ul>
+ *
+ * <p>The selected nodes are delivered in document order. Because each selected node is a new tree, the
+ * results differ from those of the non-streamed copy only in the base URI of elements within the copy that
+ * inherit an xml:base attribute from outside the selected subtree.</p>
+ */
+
+public final class StreamingPath implements Serializable {
+
+    private static final int MAX_STEPS = 62;
+
+    private Expression href;                // the argument of the call on doc()
+    private String baseURI;                 // the static base URI of the call on doc()
+    private byte[] axes;                    // the axis of each step
+    private NodeTest[] tests;               // the node test of each step
+    private Expression[][] predicates;      // the predicates of each step, or null if there are none
+    private boolean[] startTagPredicates;   // true if the predicates of a step depend only on the start tag
+
+    private StreamingPath() {
+    }
+
+    /**
+     * Analyze the select expression of a copy-of instruction to determine whether it can be evaluated
+     * by streaming
+     * @param select the expression that selects the nodes to be copied
+     * @param th the type hierarchy, used to check that no predicate is positional. Supply null if the
+     * expression is known to satisfy the conditions because it is a copy of an expression that was
+     * analyzed previously.
+     * @return a StreamingPath that evaluates the expression, or null if the expression is not a path that
+     * can be evaluated by streaming
+     */
+
+    public static StreamingPath makeStreamingPath(Expression select, TypeHierarchy th) {
+        if (select instanceof DocumentSorter) {
+            select = ((DocumentSorter)select).getBaseExpression();
+        }
+        List steps = new ArrayList();
+        Doc doc = getSteps(select, steps);
+        int n = steps.size();
+        if (doc == null || n == 0 || n > MAX_STEPS) {
+            return null;
+        }
+        StreamingPath path = new StreamingPath();
+        path.href = doc.getArguments()[0];
+        path.baseURI = doc.getStaticBaseURI();
+        path.axes = new byte[n];
+        path.tests = new NodeTest[n];
+        path.predicates = new Expression[n][];
+        path.startTagPredicates = new boolean[n];
+        for (int i=0; i<n; i++) {
+            Expression step = (Expression)steps.get(i);
+            List filters = new ArrayList();
+            while (step instanceof FilterExpression) {
+                FilterExpression filter = (FilterExpression)step;
+                if (th != null && !isStreamablePredicate(filter, th)) {
+                    return null;
+                }
+                filters.add(0, filter.getFilter());
+                step = filter.getBaseExpression();
+            }
+            AxisExpression axis = (AxisExpression)step;
+            byte a = axis.getAxis();
+            boolean last = (i == n - 1);
+            if (!(a == Axis.CHILD || a == Axis.DESCENDANT ||
+                    (a == Axis.DESCENDANT_OR_SELF && !last && filters.isEmpty()) ||
+                    (a == Axis.ATTRIBUTE && last))) {
+                return null;
+            }
+            path.axes[i] = a;
+            path.tests[i] = (axis.getNodeTest() == null ? AnyNodeTest.getInstance() : axis.getNodeTest());
+            path.startTagPredicates[i] = true;
+            if (!filters.isEmpty()) {
+                path.predicates[i] = new Expression[filters.size()];
+                filters.toArray(path.predicates[i]);
+                for (int f=0; f<filters.size(); f++) {
+                    Expression pred = (Expression)filters.get(f);
+                    if (!isLocal(pred, true)) {
+                        if (!last || !isLocal(pred, false)) {
+                            return null;
+                        }
+                        path.startTagPredicates[i] = false;
+                    }
+                }
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Decompose a path expression into a call on doc() followed by a sequence of steps
+     * @param exp the path expression
+     * @param steps a list to which the steps are added, each being an axis expression, or a filter
+     * expression whose base is an axis expression
+     * @return the call on doc() at the start of the path, or null if the expression is not of the
+     * required form
+     */
+
+    private static Doc getSteps(Expression exp, List steps) {
+        if (exp instanceof Doc) {
+            return (Doc)exp;
+        } else if (exp instanceof PathExpression) {
+            Doc doc = getSteps(((PathExpression)exp).getStartExpression(), steps);
+            if (doc != null && addSteps(((PathExpression)exp).getStepExpression(), steps)) {
+                return doc;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add the steps of a relative path expression to a list
+     * @param exp the relative path expression
+     * @param steps the list to which the steps are added
+     * @return false if the expression is not a path consisting of axis steps with optional predicates
+     */
+
+    private static boolean addSteps(Expression exp, List steps) {
+        if (exp instanceof PathExpression) {
+            return addSteps(((PathExpression)exp).getStartExpression(), steps) &&
+                    addSteps(((PathExpression)exp).getStepExpression(), steps);
+        }
+        Expression base = exp;
+        while (base instanceof FilterExpression) {
+            base = ((FilterExpression)base).getBaseExpression();
+        }
+        if (base instanceof AxisExpression) {
+            steps.add(exp);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Test whether the predicate of a filter expression can be evaluated for a node without knowing
+     * its position
+     * @param filter the filter expression
+     * @param th the type hierarchy
+     * @return true if the predicate returns a boolean or a sequence of nodes, and does not depend on
+     * the position of the node or the size of the sequence
+     */
+
+    private static boolean isStreamablePredicate(FilterExpression filter, TypeHierarchy th) {
+        Expression pred = filter.getFilter();
+        if (filter.isPositional(th) ||
+                (pred.getDependencies() & (StaticProperty.DEPENDS_ON_POSITION | StaticProperty.DEPENDS_ON_LAST)) != 0) {
+            return false;
+        }
+        ItemType type = pred.getItemType(th);
+        return th.isSubType(type, BuiltInAtomicType.BOOLEAN) || th.isSubType(type, AnyNodeTest.getInstance());
+    }
+
+    /**
+     * Test whether an expression used in a predicate can be evaluated using only information that is
+     * available while streaming
+     * @param exp the expression
+     * @param startTagOnly true if the expression may use only the attributes of the context node; false
+     * if it may use the subtree rooted at the context node
+     * @return true if the expression makes no other use of the source document
+     */
+
+    private static boolean isLocal(Expression exp, boolean startTagOnly) {
+        if (exp instanceof AxisExpression) {
+            byte axis = ((AxisExpression)exp).getAxis();
+            if (startTagOnly) {
+                if (axis != Axis.ATTRIBUTE) {
+                    return false;
+                }
+            } else if (!(axis == Axis.CHILD || axis == Axis.DESCENDANT || axis == Axis.DESCENDANT_OR_SELF ||
+                    axis == Axis.ATTRIBUTE || axis == Axis.SELF || axis == Axis.NAMESPACE)) {
+                return false;
+            }
+        } else if (exp instanceof SingleNodeExpression || exp instanceof UserFunctionCall ||
+                exp instanceof Root || exp instanceof KeyFn || exp instanceof Id || exp instanceof Idref ||
+                exp instanceof Lang || exp instanceof BaseURI) {
+            return false;
+        } else if (startTagOnly && exp instanceof ContextItemExpression) {
+            return false;
+        }
+        for (Iterator iter = exp.iterateSubExpressions(); iter.hasNext();) {
+            if (!isLocal((Expression)iter.next(), startTagOnly)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate the path, copying the selected nodes to the current output destination
+     * @param copy the copy-of instruction, which determines how the selected nodes are copied
+     * @param context the dynamic context
+     * @throws XPathException if the document cannot be read, or if a dynamic error occurs
+     */
+
+    public void process(CopyOf copy, XPathContext context) throws XPathException {
+        AtomicValue hrefVal = (AtomicValue)href.evaluateItem(context);
+        if (hrefVal == null) {
+            return;
+        }
+        boolean copyBaseURI = (context.getReceiver().getSystemId() == null);
+        PathFilter filter = new PathFilter(copy, context, copyBaseURI);
+        filter.setPipelineConfiguration(context.getController().makePipelineConfiguration());
+        String href = hrefVal.getStringValue();
+        try {
+            Document.sendDoc(href, baseURI, context, copy, filter);
+        } catch (XPathException err) {
+            if (!"FODC0005".equals(err.getErrorCodeLocalPart())) {
+                throw err;
+            }
+            // the document could not be read: report this in the same way as the doc() function
+            err.setErrorCode("FODC0002");
+            try {
+                context.getController().recoverableError(err);
+            } catch (XPathException err2) {
+                throw err;
+            }
+            XPathException fail = new XPathException("Failed to load document " + href);
+            fail.setErrorCode("FODC0005");
+            fail.setXPathContext(context);
+            fail.setLocator(copy);
+            throw fail;
+        }
+    }
+
+    /**
+     * A subtree that is being built because its root node is selected by the path, or a node that has
+     * been selected and is waiting to be copied
+     */
+
+    private static final class Capture {
+        TinyBuilder builder;        // the builder of the subtree, or null if the node is complete
+        int depth;                  // the depth of the root element of the subtree
+        Expression[] predicates;    // predicates to be applied when the subtree is complete, if any
+        NodeInfo node;              // the node, once it is complete
+        boolean selected;           // true if the node satisfies the predicates
+    }
+
+    /**
+     * The receiver of the events generated by parsing the document, which matches the events
+     * against the steps of the path and copies the selected nodes
+     */
+
+    private final class PathFilter extends Sink {
+
+        private CopyOf copy;
+        private XPathContext context;
+        private boolean copyBaseURI;
+        private Configuration config;
+        private int last = axes.length - 1;
+        private long finalState = 1L << axes.length;
+
+        // the states of each open node: bit i is set if the node (or, for steps using the descendant axes,
+        // one of its ancestors) has been reached by the first i steps of the path
+
+        private long[] states = new long[50];
+        private int depth = 0;
+
+        // the namespaces declared on each open element
+
+        private int[] namespaces = new int[20];
+        private int[] namespacesStart = new int[50];
+        private int namespacesUsed = 0;
+
+        // the start tag of the current element, which is held until startContent()
+
+        private int nameCode;
+        private int typeCode;
+        private int locationId;
+        private int properties;
+        private int[] pendingNamespaces = new int[10];
+        private int pendingNamespacesUsed = 0;
+        private int[] attNameCodes = new int[10];
+        private int[] attTypeCodes = new int[10];
+        private String[] attValues = new String[10];
+        private int[] attLocationIds = new int[10];
+        private int[] attProperties = new int[10];
+        private int attributesUsed = 0;
+        private NodeInfo startTag;
+
+        // the subtrees being built, and the selected nodes waiting to be copied, in document order
+
+        private List open = new ArrayList();
+        private List queue = new ArrayList();
+
+        public PathFilter(CopyOf copy, XPathContext context, boolean copyBaseURI) {
+            this.copy = copy;
+            this.context = context;
+            this.copyBaseURI = copyBaseURI;
+            config = context.getConfiguration();
+            long s = 1;
+            for (int i=0; i<axes.length; i++) {
+                if ((s & (1L<<i)) != 0 && axes[i] == Axis.DESCENDANT_OR_SELF &&
+                        tests[i].matches(Type.DOCUMENT, -1, -1)) {
+                    s |= (1L<<(i+1));
+                }
+            }
+            states[0] = s;
+        }
+
+        public void startElement(int nameCode, int typeCode, int locationId, int properties) {
+            this.nameCode = nameCode;
+            this.typeCode = typeCode;
+            this.locationId = locationId;
+            this.properties = properties;
+            pendingNamespacesUsed = 0;
+            attributesUsed = 0;
+            startTag = null;
+        }
+
+        public void namespace(int namespaceCode, int properties) {
+            if (pendingNamespacesUsed == pendingNamespaces.length) {
+                int[] n2 = new int[pendingNamespacesUsed * 2];
+                System.arraycopy(pendingNamespaces, 0, n2, 0, pendingNamespacesUsed);
+                pendingNamespaces = n2;
+            }
+            pendingNamespaces[pendingNamespacesUsed++] = namespaceCode;
+        }
+
+        public void attribute(int nameCode, int typeCode, CharSequence value, int locationId, int properties) {
+            if (attributesUsed == attNameCodes.length) {
+                int len = attributesUsed * 2;
+                int[] a2 = new int[len];
+                System.arraycopy(attNameCodes, 0, a2, 0, attributesUsed);
+                attNameCodes = a2;
+                a2 = new int[len];
+                System.arraycopy(attTypeCodes, 0, a2, 0, attributesUsed);
+                attTypeCodes = a2;
+                a2 = new int[len];
+                System.arraycopy(attLocationIds, 0, a2, 0, attributesUsed);
+                attLocationIds = a2;
+                a2 = new int[len];
+                System.arraycopy(attProperties, 0, a2, 0, attributesUsed);
+                attProperties = a2;
+                String[] v2 = new String[len];
+                System.arraycopy(attValues, 0, v2, 0, attributesUsed);
+                attValues = v2;
+            }
+            attNameCodes[attributesUsed] = nameCode;
+            attTypeCodes[attributesUsed] = typeCode;
+            attValues[attributesUsed] = value.toString();
+            attLocationIds[attributesUsed] = locationId;
+            attProperties[attributesUsed] = properties;
+            attributesUsed++;
+        }
+
+        public void startContent() throws XPathException {
+            long parentStates = states[depth];
+            if (++depth == states.length) {
+                long[] s2 = new long[depth * 2];
+                System.arraycopy(states, 0, s2, 0, depth);
+                states = s2;
+                int[] n2 = new int[depth * 2];
+                System.arraycopy(namespacesStart, 0, n2, 0, depth);
+                namespacesStart = n2;
+            }
+            namespacesStart[depth] = namespacesUsed;
+            for (int i=0; i<pendingNamespacesUsed; i++) {
+                if (namespacesUsed == namespaces.length) {
+                    int[] n2 = new int[namespacesUsed * 2];
+                    System.arraycopy(namespaces, 0, n2, 0, namespacesUsed);
+                    namespaces = n2;
+                }
+                namespaces[namespacesUsed++] = pendingNamespaces[i];
+            }
+
+            for (int c=0; c<open.size(); c++) {
+                sendStartTag(((Capture)open.get(c)).builder, false);
+            }
+
+            long s = (parentStates == 0 ? 0 : getElementStates(parentStates));
+            states[depth] = s & ~finalState;
+
+            if (axes[last] == Axis.ATTRIBUTE && (s & (1L<<last)) != 0) {
+                for (int a=0; a<attributesUsed; a++) {
+                    if (tests[last].matches(Type.ATTRIBUTE, attNameCodes[a] & NamePool.FP_MASK, attTypeCodes[a])) {
+                        Orphan att = new Orphan(config);
+                        att.setNodeKind(Type.ATTRIBUTE);
+                        att.setNameCode(attNameCodes[a]);
+                        att.setTypeAnnotation(attTypeCodes[a]);
+                        att.setStringValue(attValues[a]);
+                        att.setSystemId(getSystemId());
+                        selectNode(att);
+                    }
+                }
+            }
+
+            if ((s & finalState) != 0) {
+                Capture capture = new Capture();
+                capture.builder = new TinyBuilder();
+                capture.builder.setPipelineConfiguration(getPipelineConfiguration());
+                capture.builder.setSystemId(getSystemId());
+                capture.builder.open();
+                sendStartTag(capture.builder, true);
+                capture.depth = depth;
+                capture.selected = true;
+                if (!startTagPredicates[last]) {
+                    capture.predicates = predicates[last];
+                }
+                open.add(capture);
+                queue.add(capture);
+            }
+        }
+
+        /**
+         * Compute the states of the current element from those of its parent
+         * @param parentStates the states of the parent node
+         * @return the states of the element, including the bit representing the final state if
+         * the element is selected by the path
+         * @throws XPathException if evaluating a predicate fails
+         */
+
+        private long getElementStates(long parentStates) throws XPathException {
+            int fingerprint = nameCode & NamePool.FP_MASK;
+            long s = 0;
+            for (int i=0; i<=last; i++) {
+                if ((parentStates & (1L<<i)) != 0) {
+                    byte axis = axes[i];
+                    if (axis == Axis.DESCENDANT || axis == Axis.DESCENDANT_OR_SELF) {
+                        s |= (1L<<i);
+                    }
+                    if ((axis == Axis.CHILD || axis == Axis.DESCENDANT) &&
+                            (s & (1L<<(i+1))) == 0 && matchesElement(i, fingerprint)) {
+                        s |= (1L<<(i+1));
+                    }
+                }
+            }
+            // a descendant-or-self step reached at this element also selects the element itself
+            for (int i=0; i<last; i++) {
+                if ((s & (1L<<i)) != 0 && axes[i] == Axis.DESCENDANT_OR_SELF &&
+                        tests[i].matches(Type.ELEMENT, fingerprint, typeCode)) {
+                    s |= (1L<<(i+1));
+                }
+            }
+            return s;
+        }
+
+        /**
+         * Test whether the current element satisfies the node test and predicates of a step. Predicates
+         * on the last step that depend on the content of the element are not tested here.
+         * @param step the number of the step
+         * @param fingerprint the fingerprint of the element name
+         * @return true if the element satisfies the step
+         * @throws XPathException if evaluating a predicate fails
+         */
+
+        private boolean matchesElement(int step, int fingerprint) throws XPathException {
+            if (!tests[step].matches(Type.ELEMENT, fingerprint, typeCode)) {
+                return false;
+            }
+            if (predicates[step] == null || !startTagPredicates[step]) {
+                return true;
+            }
+            if (startTag == null) {
+                TinyBuilder builder = new TinyBuilder();
+                builder.setPipelineConfiguration(getPipelineConfiguration());
+                builder.setSystemId(getSystemId());
+                builder.open();
+                sendStartTag(builder, true);
+                builder.endElement();
+                builder.close();
+                startTag = builder.getCurrentRoot();
+            }
+            return testPredicates(predicates[step], startTag);
+        }
+
+        /**
+         * Send the start tag of the current element to a receiver
+         * @param out the receiver
+         * @param allNamespaces true if all the in-scope namespaces are to be output (because the element
+         * is the root of a new tree); false if only the namespaces declared on the element are needed
+         * @throws XPathException if the receiver fails
+         */
+
+        private void sendStartTag(Receiver out, boolean allNamespaces) throws XPathException {
+            out.startElement(nameCode, typeCode, locationId, properties);
+            if (allNamespaces) {
+                NamePool pool = config.getNamePool();
+                for (int i=0; i<namespacesUsed; i++) {
+                    int prefix = namespaces[i] >> 16;
+                    boolean overridden = false;
+                    for (int j=i+1; j<namespacesUsed; j++) {
+                        if ((namespaces[j] >> 16) == prefix) {
+                            overridden = true;
+                            break;
+                        }
+                    }
+                    if (!overridden && !(prefix == 0 && pool.getURIFromNamespaceCode(namespaces[i]).length() == 0)) {
+                        out.namespace(namespaces[i], 0);
+                    }
+                }
+            } else {
+                for (int i=0; i<pendingNamespacesUsed; i++) {
+                    out.namespace(pendingNamespaces[i], 0);
+                }
+            }
+            for (int a=0; a<attributesUsed; a++) {
+                out.attribute(attNameCodes[a], attTypeCodes[a], attValues[a], attLocationIds[a], attProperties[a]);
+            }
+            out.startContent();
+        }
+
+        public void endElement() throws XPathException {
+            boolean completed = false;
+            for (int c=open.size()-1; c>=0; c--) {
+                Capture capture = (Capture)open.get(c);
+                capture.builder.endElement();
+                if (capture.depth == depth) {
+                    capture.builder.close();
+                    capture.node = capture.builder.getCurrentRoot();
+                    capture.builder = null;
+                    if (capture.predicates != null) {
+                        capture.selected = testPredicates(capture.predicates, capture.node);
+                    }
+                    open.remove(c);
+                    completed = true;
+                }
+            }
+            namespacesUsed = namespacesStart[depth];
+            depth--;
+            if (completed) {
+                flushQueue();
+            }
+        }
+
+        public void characters(CharSequence chars, int locationId, int properties) throws XPathException {
+            for (int c=0; c<open.size(); c++) {
+                ((Capture)open.get(c)).builder.characters(chars, locationId, properties);
+            }
+            if (isChildSelected() && tests[last].matches(Type.TEXT, -1, StandardNames.XS_UNTYPED_ATOMIC)) {
+                Orphan text = new Orphan(config);
+                text.setNodeKind(Type.TEXT);
+                text.setStringValue(chars.toString());
+                selectNode(text);
+            }
+        }
+
+        public void comment(CharSequence chars, int locationId, int properties) throws XPathException {
+            for (int c=0; c<open.size(); c++) {
+                ((Capture)open.get(c)).builder.comment(chars, locationId, properties);
+            }
+            if (isChildSelected() && tests[last].matches(Type.COMMENT, -1, StandardNames.XS_UNTYPED_ATOMIC)) {
+                Orphan comment = new Orphan(config);
+                comment.setNodeKind(Type.COMMENT);
+                comment.setStringValue(chars.toString());
+                selectNode(comment);
+            }
+        }
+
+        public void processingInstruction(String target, CharSequence data, int locationId, int properties)
+                throws XPathException {
+            for (int c=0; c<open.size(); c++) {
+                ((Capture)open.get(c)).builder.processingInstruction(target, data, locationId, properties);
+            }
+            if (isChildSelected()) {
+                int piNameCode = config.getNamePool().allocate("", "", target);
+                if (tests[last].matches(Type.PROCESSING_INSTRUCTION, piNameCode & NamePool.FP_MASK,
+                        StandardNames.XS_UNTYPED_ATOMIC)) {
+                    Orphan pi = new Orphan(config);
+                    pi.setNodeKind(Type.PROCESSING_INSTRUCTION);
+                    pi.setNameCode(piNameCode);
+                    pi.setStringValue(data.toString());
+                    pi.setSystemId(getSystemId());
+                    selectNode(pi);
+                }
+            }
+        }
+
+        /**
+         * Test whether the children of the current node are reached by the last step of the path (subject
+         * to its node test and predicates)
+         * @return true if the last step uses the child or descendant axis, and the current node has been
+         * reached by the steps that precede it
+         */
+
+        private boolean isChildSelected() {
+            return (states[depth] & (1L<<last)) != 0 && (axes[last] == Axis.CHILD || axes[last] == Axis.DESCENDANT);
+        }
+
+        /**
+         * Deliver a node (other than an element) selected by the last step of the path, if it satisfies
+         * the predicates
+         * @param node the node
+         * @throws XPathException if evaluating a predicate or copying the node fails
+         */
+
+        private void selectNode(Orphan node) throws XPathException {
+            if (predicates[last] != null && !testPredicates(predicates[last], node)) {
+                return;
+            }
+            if (queue.isEmpty()) {
+                copy.copyItem(node, context, copyBaseURI);
+            } else {
+                Capture capture = new Capture();
+                capture.node = node;
+                capture.selected = true;
+                queue.add(capture);
+            }
+        }
+
+        /**
+         * Copy the selected nodes that are complete, stopping at the first one that is still being built
+         * @throws XPathException if copying fails
+         */
+
+        private void flushQueue() throws XPathException {
+            while (!queue.isEmpty()) {
+                Capture head = (Capture)queue.get(0);
+                if (head.builder != null) {
+                    return;
+                }
+                queue.remove(0);
+                if (head.selected) {
+                    copy.copyItem(head.node, context, copyBaseURI);
+                }
+            }
+        }
+
+        /**
+         * Evaluate the predicates of a step
+         * @param preds the predicates
+         * @param node the node to which the predicates are applied
+         * @return true if the node satisfies all the predicates
+         * @throws XPathException if evaluating a predicate fails
+         */
+
+        private boolean testPredicates(Expression[] preds, NodeInfo node) throws XPathException {
+            XPathContext c2 = context.newMinorContext();
+            AxisIterator focus = SingleNodeIterator.makeIterator(node);
+            focus.next();
+            c2.setCurrentIterator(focus);
+            for (int p=0; p<preds.length; p++) {
+                if (!preds[p].effectiveBooleanValue(c2)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
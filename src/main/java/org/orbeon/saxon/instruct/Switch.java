@@ -0,0 +1,277 @@
+package org.orbeon.saxon.instruct;
+
+import org.orbeon.saxon.expr.*;
+import org.orbeon.saxon.om.Item;
+import org.orbeon.saxon.trace.ExpressionPresenter;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.BuiltInAtomicType;
+import org.orbeon.saxon.type.ItemType;
+import org.orbeon.saxon.value.AtomicValue;
+import org.orbeon.saxon.value.BooleanValue;
+import org.orbeon.saxon.value.Cardinality;
+import org.orbeon.saxon.value.Value;
+
+import java.util.HashMap;
+
+/**
+ * A Switch is a Choose instruction (xsl:choose, or a chain of if-then-else in XPath or XQuery) in which
+ * every condition compares the same single-valued expression (the subject) for equality with a string
+ * literal, for example <code>@type = 'A'</code>, <code>@type = 'B'</code>, and so on, optionally followed
+ * by xsl:otherwise. Rather than evaluating the conditions in turn, the subject is evaluated once, and the
+ * branch to be taken is found by a hash lookup on its string value.
+ *
+ * <p>The lookup is only used when it is guaranteed to give the same answer as the conditions themselves:
+ * the comparisons must use the Unicode codepoint collation, and the value of the subject must be a string,
+ * anyURI, or untypedAtomic value (untypedAtomic values being compared as strings in this case). For any
+ * other value of the subject, the conditions are evaluated in turn in the usual way, so that any type
+ * errors are reported exactly as they would be without the optimization.</p>
+ */
+
+public class Switch extends Choose {
+
+    /**
+     * The minimum number of distinct cases for which a Choose is turned into a Switch
+     */
+
+    public static final int MIN_CASES = 3;
+
+    private transient volatile SwitchTable table;
+
+    /**
+     * Construct a Switch
+     * @param conditions the conditions to be tested, in order. These must satisfy the conditions
+     * tested by {@link #isSwitchable}
+     * @param actions the actions to be taken when the corresponding condition is true
+     */
+
+    public Switch(Expression[] conditions, Expression[] actions) {
+        super(conditions, actions);
+    }
+
+    /**
+     * Test whether a Choose expression can be evaluated as a Switch
+     * @param choose the Choose expression
+     * @return true if all the conditions (other than a final condition of true(), representing xsl:otherwise)
+     * compare the same single-valued expression with a string literal, using the codepoint collation, and
+     * if there are at least {@link #MIN_CASES} distinct string literals
+     */
+
+    public static boolean isSwitchable(Choose choose) {
+        SwitchTable t = makeTable(choose.getConditions());
+        return t != null && t.cases.size() >= MIN_CASES;
+    }
+
+    /**
+     * Analyze the conditions of a Choose expression and construct the lookup table
+     * @param conditions the conditions of the Choose expression
+     * @return the lookup table, or null if the conditions are not of the form required
+     */
+
+    private static SwitchTable makeTable(Expression[] conditions) {
+        SwitchTable t = new SwitchTable();
+        for (int i=0; i<conditions.length; i++) {
+            Expression c = conditions[i];
+            if (i == conditions.length - 1 && Literal.isConstantBoolean(c, true)) {
+                t.defaultBranch = i;
+                break;
+            }
+            if (!(c instanceof GeneralComparison || c instanceof SingletonComparison || c instanceof ValueComparison)) {
+                return null;
+            }
+            ComparisonExpression comp = (ComparisonExpression)c;
+            if (comp.getSingletonOperator() != Token.FEQ ||
+                    !Optimizer.isCodepointComparer(comp.getAtomicComparer())) {
+                return null;
+            }
+            if (c instanceof ValueComparison && ((ValueComparison)c).getResultWhenEmpty() == BooleanValue.TRUE) {
+                return null;
+            }
+            Expression[] operands = comp.getOperands();
+            int s;
+            if (isStringLiteral(operands[1])) {
+                s = 0;
+            } else if (isStringLiteral(operands[0])) {
+                s = 1;
+            } else {
+                return null;
+            }
+            if (t.subject == null) {
+                if (Cardinality.allowsMany(operands[s].getCardinality())) {
+                    return null;
+                }
+                t.subject = operands[s];
+                t.location = c;
+            } else if (!t.subject.equals(operands[s])) {
+                return null;
+            }
+            String key = ((AtomicValue)((Literal)operands[1-s]).getValue()).getStringValue();
+            if (!t.cases.containsKey(key)) {
+                t.cases.put(key, new Integer(i));
+            }
+        }
+        return (t.subject == null ? null : t);
+    }
+
+    /**
+     * Test whether an expression is a literal string (or anyURI or untypedAtomic) value
+     * @param exp the expression to be tested
+     * @return true if the expression is a literal whose value is a single string
+     */
+
+    private static boolean isStringLiteral(Expression exp) {
+        if (!(exp instanceof Literal)) {
+            return false;
+        }
+        Value val = ((Literal)exp).getValue();
+        if (!(val instanceof AtomicValue)) {
+            return false;
+        }
+        BuiltInAtomicType type = ((AtomicValue)val).getPrimitiveType();
+        return type.equals(BuiltInAtomicType.STRING) ||
+                type.equals(BuiltInAtomicType.ANY_URI) ||
+                type.equals(BuiltInAtomicType.UNTYPED_ATOMIC);
+    }
+
+    /**
+     * Get the lookup table, building it if necessary. The table is discarded whenever the conditions
+     * may have been rewritten, and is then rebuilt from the new conditions when next needed.
+     * @return the table, or null if the conditions are no longer of the required form (in which case the
+     * conditions are evaluated in turn)
+     */
+
+    private SwitchTable getTable() {
+        SwitchTable t = table;
+        if (t == null) {
+            t = makeTable(getConditions());
+            if (t == null) {
+                t = SwitchTable.NOT_SWITCHABLE;
+            }
+            table = t;
+        }
+        return (t == SwitchTable.NOT_SWITCHABLE ? null : t);
+    }
+
+    public Expression simplify(ExpressionVisitor visitor) throws XPathException {
+        table = null;
+        return super.simplify(visitor);
+    }
+
+    public Expression typeCheck(ExpressionVisitor visitor, ItemType contextItemType) throws XPathException {
+        table = null;
+        return super.typeCheck(visitor, contextItemType);
+    }
+
+    public Expression optimize(ExpressionVisitor visitor, ItemType contextItemType) throws XPathException {
+        table = null;
+        return super.optimize(visitor, contextItemType);
+    }
+
+    protected void promoteInst(PromotionOffer offer) throws XPathException {
+        table = null;
+        super.promoteInst(offer);
+    }
+
+    public boolean replaceSubExpression(Expression original, Expression replacement) {
+        table = null;
+        return super.replaceSubExpression(original, replacement);
+    }
+
+    public Expression copy() {
+        Expression[] conditions = getConditions();
+        Expression[] actions = getActions();
+        Expression[] c2 = new Expression[conditions.length];
+        Expression[] a2 = new Expression[conditions.length];
+        for (int c=0; c<conditions.length; c++) {
+            c2[c] = conditions[c].copy();
+            a2[c] = actions[c].copy();
+        }
+        return new Switch(c2, a2);
+    }
+
+    /**
+     * Determine which branch is to be evaluated, by evaluating the subject expression and looking up
+     * its value in the table of cases
+     * @param context the dynamic context
+     * @return the index of the first condition that is true, or -1 if none of them is true
+     * @throws XPathException if evaluating the subject (or, in the fallback case, a condition) fails
+     */
+
+    protected int selectBranch(XPathContext context) throws XPathException {
+        SwitchTable t = getTable();
+        if (t == null) {
+            return super.selectBranch(context);
+        }
+        Item item;
+        try {
+            item = t.subject.evaluateItem(context);
+        } catch (XPathException e) {
+            e.maybeSetLocation(t.location);
+            throw e;
+        }
+        if (item == null) {
+            return t.defaultBranch;
+        }
+        if (item instanceof AtomicValue) {
+            BuiltInAtomicType type = ((AtomicValue)item).getPrimitiveType();
+            if (type.equals(BuiltInAtomicType.STRING) ||
+                    type.equals(BuiltInAtomicType.UNTYPED_ATOMIC) ||
+                    type.equals(BuiltInAtomicType.ANY_URI)) {
+                Integer branch = (Integer)t.cases.get(item.getStringValue());
+                return (branch == null ? t.defaultBranch : branch.intValue());
+            }
+        }
+        // for any other kind of value, evaluate the conditions in the usual way
+        return super.selectBranch(context);
+    }
+
+    /**
+     * Diagnostic print of expression structure. The abstract expression tree
+     * is written to the supplied output destination.
+     */
+
+    public void explain(ExpressionPresenter out) {
+        Expression[] conditions = getConditions();
+        Expression[] actions = getActions();
+        out.startElement("switch");
+        for (int i=0; i<conditions.length; i++) {
+            out.startSubsidiaryElement("when");
+            conditions[i].explain(out);
+            out.endSubsidiaryElement();
+            out.startSubsidiaryElement("then");
+            actions[i].explain(out);
+            out.endSubsidiaryElement();
+        }
+        out.endElement();
+    }
+
+    /**
+     * The lookup table used to select a branch: a map from the string value of the subject to the
+     * index of the branch to be taken
+     */
+
+    private static final class SwitchTable {
+        static final SwitchTable NOT_SWITCHABLE = new SwitchTable();
+        Expression subject;
+        Expression location;
+        HashMap cases = new HashMap(20);     // String -> Integer
+        int defaultBranch = -1;
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
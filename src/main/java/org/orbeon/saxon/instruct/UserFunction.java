@@ -3,17 +3,17 @@ package org.orbeon.saxon.instruct;
 import org.orbeon.saxon.Controller;
 import org.orbeon.saxon.trace.Location;
 import org.orbeon.saxon.evpull.EventIterator;
+import org.orbeon.saxon.evpull.EventIteratorOverSequence;
 import org.orbeon.saxon.expr.*;
 import org.orbeon.saxon.om.*;
 import org.orbeon.saxon.sort.SortExpression;
 import org.orbeon.saxon.sort.TupleSorter;
 import org.orbeon.saxon.trans.XPathException;
-import org.orbeon.saxon.type.Type;
 import org.orbeon.saxon.type.TypeHierarchy;
+import org.orbeon.saxon.value.Closure;
 import org.orbeon.saxon.value.SequenceType;
 import org.orbeon.saxon.value.Value;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -326,9 +326,10 @@ public class UserFunction extends Procedure {
             throws XPathException {
 
         // If this is a memo function, see if the result is already known
-        Controller controller = context.getController();
+        MemoFunctionCache cache = null;
         if (memoFunction) {
-            ValueRepresentation value = getCachedValue(controller, actualArgs);
+            cache = context.getController().getMemoFunctionCache();
+            ValueRepresentation value = cache.get(this, actualArgs);
             if (value != null) return value;
         }
 
@@ -350,7 +351,10 @@ public class UserFunction extends Procedure {
 
         // If this is a memo function, save the result in the cache
         if (memoFunction) {
-            putCachedValue(controller, actualArgs, result);
+            if (result instanceof Closure) {
+                result = ((Closure)result).reduce();
+            }
+            cache.put(this, actualArgs, result);
         }
 
         return result;
@@ -370,6 +374,11 @@ public class UserFunction extends Procedure {
 
      public void process(ValueRepresentation[] actualArgs, XPathContextMajor context)
              throws XPathException {
+         if (memoFunction) {
+             // evaluate the function (or find the cached result) and write the value to the output
+             Value.asValue(call(actualArgs, context)).process(context);
+             return;
+         }
          context.setStackFrame(getStackFrameMap(), actualArgs);
          getBody().process(context);
      }
@@ -389,6 +398,9 @@ public class UserFunction extends Procedure {
 
      public EventIterator iterateEvents(ValueRepresentation[] actualArgs, XPathContextMajor context)
              throws XPathException {
+         if (memoFunction) {
+             return new EventIteratorOverSequence(Value.getIterator(call(actualArgs, context)));
+         }
          context.setStackFrame(getStackFrameMap(), actualArgs);
          return getBody().iterateEvents(context);
      }
@@ -433,74 +445,6 @@ public class UserFunction extends Procedure {
         }
     }
 
-    /**
-     * For memo functions, get a saved value from the cache.
-     * @param controller the run-time Controller
-     * @param params the supplied parameters for the function call
-     * @return the cached value, or null if no value has been saved for these parameters
-     */
-
-    private ValueRepresentation getCachedValue(Controller controller, ValueRepresentation[] params) throws XPathException {
-        HashMap map = (HashMap) controller.getUserData(this, "memo-function-cache");
-        if (map == null) {
-            return null;
-        }
-        String key = getCombinedKey(params);
-        //System.err.println("Used cached value");
-        return (ValueRepresentation) map.get(key);
-    }
-
-    /**
-     * For memo functions, put the computed value in the cache.
-     * @param controller the run-time Controller
-     * @param params the supplied parameter values
-     * @param value the computed result of the function
-     */
-
-    private void putCachedValue(Controller controller, ValueRepresentation[] params, ValueRepresentation value) throws XPathException {
-        HashMap map = (HashMap) controller.getUserData(this, "memo-function-cache");
-        if (map == null) {
-            map = new HashMap(32);
-            controller.setUserData(this, "memo-function-cache", map);
-        }
-        String key = getCombinedKey(params);
-        map.put(key, value);
-    }
-
-    /**
-     * Get a key value representing the values of all the supplied arguments
-     * @param params the supplied values of the function arguments
-     * @return a key value which can be used to index the cache of remembered function results
-     */
-
-    private static String getCombinedKey(ValueRepresentation[] params) throws XPathException {
-        FastStringBuffer sb = new FastStringBuffer(120);
-
-        for (int i = 0; i < params.length; i++) {
-            ValueRepresentation val = params[i];
-            // TODO: if the argument value is a sequence, use the identity of the sequence, not its content
-            SequenceIterator iter = Value.getIterator(val);
-            while (true) {
-                Item item = iter.next();
-                if (item == null) {
-                    break;
-                }
-                if (item instanceof NodeInfo) {
-                    NodeInfo node = (NodeInfo) item;
-                    node.generateId(sb);
-                } else {
-                    sb.append("" + Type.displayTypeName(item));
-                    sb.append('/');
-                    sb.append(item.getStringValueCS());
-                }
-                sb.append('\u0001');
-            }
-            sb.append('\u0002');
-        }
-        return sb.toString();
-    }
-
-
     /**
      * Get the type of construct. This will either be the fingerprint of a standard XSLT instruction name
      * (values in {@link org.orbeon.saxon.om.StandardNames}: all less than 1024)
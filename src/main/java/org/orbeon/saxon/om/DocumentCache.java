@@ -0,0 +1,383 @@
+package org.orbeon.saxon.om;
+
+import org.orbeon.saxon.tinytree.TinyDocumentImpl;
+import org.orbeon.saxon.trans.XPathException;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cache of parsed source documents, shared by all the transformations and queries run under
+ * a Configuration. Documents loaded using the <code>doc()</code> and <code>document()</code> functions
+ * are placed in the cache, so that a document used by many transformations (for example a lookup table)
+ * is parsed only once.
+ *
+ * <p>The cache is bounded by the estimated memory occupied by the documents it holds: when this
+ * exceeds the maximum size, the least recently used documents are evicted. The size of a TinyTree
+ * document is estimated from the sizes of its arrays. Optionally, documents can be given a time-to-live,
+ * after which they are reloaded, and documents loaded from files can be reloaded when the last-modified
+ * time of the file changes.</p>
+ *
+ * <p>The cache may be used by several threads at once. If several threads request the same document
+ * at the same time, only one of them loads it, and the others wait for the result.</p>
+ *
+ * <p>The cache sits beneath the {@link DocumentPool} of each transformation: once a transformation has
+ * loaded a document, it continues to use that document even if it is evicted from the cache, so the
+ * stability of the doc() and document() functions within a transformation is unaffected. The cache
+ * assumes that a given absolute URI identifies the same document for every transformation that uses it.</p>
+ */
+
+public final class DocumentCache {
+
+    /**
+     * Callback used to load a document that is not present in the cache
+     */
+
+    public interface Loader {
+
+        /**
+         * Load a document
+         * @param uri the absolute URI of the document
+         * @return the document node of the loaded document
+         * @throws XPathException if the document cannot be loaded
+         */
+
+        public DocumentInfo load(String uri) throws XPathException;
+    }
+
+    private long maximumSize;
+    private long timeToLive = 0;
+    private boolean checkModified = false;
+
+    // the entries, in order of last use (guarded by this)
+    private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+    // loads currently in progress, indexed by URI (guarded by this)
+    private HashMap loading = new HashMap(16);
+    private long currentSize = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a document cache
+     * @param maximumSize the maximum estimated size of the documents held in the cache, in bytes
+     */
+
+    public DocumentCache(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Set the maximum estimated size of the documents held in the cache. If the documents currently
+     * held exceed the new size, the least recently used are evicted.
+     * @param maximumSize the maximum size in bytes
+     */
+
+    public synchronized void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+        evict();
+    }
+
+    /**
+     * Get the maximum estimated size of the documents held in the cache
+     * @return the maximum size in bytes
+     */
+
+    public synchronized long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Set the time for which a document remains valid after it has been loaded
+     * @param millis the time-to-live in milliseconds, or zero (the default) if documents remain valid
+     * until they are evicted
+     */
+
+    public synchronized void setTimeToLive(long millis) {
+        timeToLive = millis;
+    }
+
+    /**
+     * Get the time for which a document remains valid after it has been loaded
+     * @return the time-to-live in milliseconds, or zero if documents remain valid until they are evicted
+     */
+
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Say whether documents loaded from files should be reloaded if the file has been modified since
+     * the document was loaded. If set, the last-modified time of the file is checked each time the
+     * document is requested.
+     * @param check true if the last-modified time of files should be checked
+     */
+
+    public synchronized void setCheckModified(boolean check) {
+        checkModified = check;
+    }
+
+    /**
+     * Ask whether documents loaded from files are reloaded if the file has been modified
+     * @return true if the last-modified time of files is checked
+     */
+
+    public synchronized boolean isCheckModified() {
+        return checkModified;
+    }
+
+    /**
+     * Get a document from the cache, loading it if it is not present
+     * @param uri the absolute URI of the document
+     * @param loader the callback used to load the document if it is not present in the cache
+     * @return the document node
+     * @throws XPathException if the document is not present and cannot be loaded
+     */
+
+    public DocumentInfo get(String uri, final Loader loader) throws XPathException {
+        FutureTask task;
+        boolean owner = false;
+        synchronized (this) {
+            Entry entry = (Entry)entries.get(uri);
+            if (entry != null) {
+                if (isCurrent(entry, uri)) {
+                    hits++;
+                    return entry.document;
+                }
+                remove(uri);
+            }
+            task = (FutureTask)loading.get(uri);
+            if (task == null) {
+                final String u = uri;
+                task = new FutureTask(new Callable() {
+                    public Object call() throws Exception {
+                        return loader.load(u);
+                    }
+                });
+                loading.put(uri, task);
+                owner = true;
+                misses++;
+            } else {
+                // another thread is loading the document: wait for it
+                hits++;
+            }
+        }
+        if (owner) {
+            long modified = lastModified(uri);
+            long loaded = System.currentTimeMillis();
+            task.run();
+            synchronized (this) {
+                loading.remove(uri);
+                try {
+                    // the task has completed, so this does not block
+                    add(uri, (DocumentInfo)task.get(), loaded, modified);
+                } catch (Exception err) {
+                    // the failure is reported below
+                }
+            }
+        }
+        try {
+            return (DocumentInfo)task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof XPathException) {
+                throw (XPathException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            } else {
+                throw new XPathException(cause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for document " + uri + " to be loaded");
+        }
+    }
+
+    /**
+     * Remove a document from the cache
+     * @param uri the absolute URI of the document
+     */
+
+    public synchronized void discard(String uri) {
+        remove(uri);
+    }
+
+    /**
+     * Remove all documents from the cache
+     */
+
+    public synchronized void clear() {
+        entries.clear();
+        currentSize = 0;
+    }
+
+    /**
+     * Get the number of documents held in the cache
+     * @return the number of documents
+     */
+
+    public synchronized int getDocumentCount() {
+        return entries.size();
+    }
+
+    /**
+     * Get the estimated size of the documents held in the cache
+     * @return the estimated size in bytes
+     */
+
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    /**
+     * Get the number of requests that were satisfied without loading the document, including requests
+     * that waited for another thread to load it
+     * @return the number of hits
+     */
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of requests that caused a document to be loaded
+     * @return the number of misses
+     */
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the number of documents that have been evicted to keep the cache within its maximum size
+     * @return the number of evictions
+     */
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Determine whether a cached document is still valid
+     * @param entry the cache entry
+     * @param uri the URI of the document
+     * @return false if the document's time-to-live has expired, or its file has been modified
+     */
+
+    private boolean isCurrent(Entry entry, String uri) {
+        if (timeToLive > 0 && System.currentTimeMillis() - entry.loaded > timeToLive) {
+            return false;
+        }
+        return !checkModified || entry.modified == 0 || lastModified(uri) == entry.modified;
+    }
+
+    /**
+     * Get the last-modified time of the file containing a document, if checking is enabled
+     * @param uri the URI of the document
+     * @return the last-modified time of the file, or zero if the URI does not identify a file
+     * or checking is not enabled
+     */
+
+    private long lastModified(String uri) {
+        if (!checkModified || !uri.startsWith("file:")) {
+            return 0;
+        }
+        try {
+            return new File(new URI(uri)).lastModified();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private void add(String uri, DocumentInfo doc, long loaded, long modified) {
+        remove(uri);
+        long size = estimateSize(doc);
+        if (size > maximumSize) {
+            // too large to be cached at all
+            return;
+        }
+        Entry entry = new Entry();
+        entry.document = doc;
+        entry.size = size;
+        entry.loaded = loaded;
+        entry.modified = modified;
+        entries.put(uri, entry);
+        currentSize += size;
+        evict();
+    }
+
+    private void remove(String uri) {
+        Entry entry = (Entry)entries.remove(uri);
+        if (entry != null) {
+            currentSize -= entry.size;
+        }
+    }
+
+    private void evict() {
+        Iterator iter = entries.values().iterator();
+        while (currentSize > maximumSize && iter.hasNext()) {
+            Entry entry = (Entry)iter.next();
+            iter.remove();
+            currentSize -= entry.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Estimate the memory occupied by a document
+     * @param doc the document
+     * @return the estimated size in bytes
+     */
+
+    private static long estimateSize(DocumentInfo doc) {
+        if (doc instanceof TinyDocumentImpl) {
+            return ((TinyDocumentImpl)doc).getTree().getEstimatedSize();
+        }
+        // for other tree models, allow a fixed amount for each node
+        long nodes = 1;
+        AxisIterator iter = doc.iterateAxis(Axis.DESCENDANT);
+        while (iter.next() != null) {
+            nodes++;
+        }
+        return nodes * 100;
+    }
+
+    /**
+     * An entry in the cache
+     */
+
+    private static final class Entry {
+        DocumentInfo document;
+        long size;
+        long loaded;
+        long modified;
+    }
+
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
@@ -4,8 +4,9 @@ import org.orbeon.saxon.trans.XPathException;
 import org.orbeon.saxon.value.Whitespace;
 
 import java.io.Serializable;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * A NamePool holds a collection of expanded names, each containing a namespace URI,
@@ -40,12 +41,15 @@ import java.util.HashMap;
  * mainly to names in the XSLT and XML Schema namespaces: constants representing these names
  * are found in {@link StandardNames}.
  *
- * <p>Operations that update the NamePool, or that have the potential to update it, are
- * synchronized. Read-only operations are done without synchronization. Although technically
- * unsafe, this has not led to any problems in practice. Performance problems due to excessive
- * contention on the NamePool have occasionally been observed: if this happens, the best strategy
- * is to consider splitting the workload to use multiple Configurations each with a separate
- * NamePool.</p>
+ * <p>The NamePool is designed for concurrent use by many threads. Lookups never block. Allocation
+ * of a new name is lock-free: a new NameEntry is appended to the end of its hash chain using a
+ * compare-and-swap on the <code>nextEntry</code> link of the last entry (or on the hash slot itself),
+ * so two threads allocating names that hash to different chains never interfere, and two threads
+ * allocating the same name on the same chain will agree on a single entry. The tables of URIs and
+ * prefixes change rarely; they are published using copy-on-write arrays held in volatile fields,
+ * so that readers see a consistent snapshot without locking, and updates to them are serialized
+ * on the NamePool monitor. In the common case where the URI and prefix of a name have been seen
+ * before, allocating a name therefore acquires no lock at all.</p>
  *
  * <h3>Internal organization of the NamePool</h3>
  *
@@ -148,9 +152,9 @@ public class NamePool implements Serializable {
      */
 
     private static class NameEntry implements Serializable {
-        String localName;
-        short uriCode;
-        NameEntry nextEntry;	// link to next NameEntry with the same hashcode
+        final String localName;
+        final short uriCode;
+        volatile NameEntry nextEntry;	// link to next NameEntry with the same hashcode
 
         public NameEntry(short uriCode, String localName) {
             this.uriCode = uriCode;
@@ -160,13 +164,25 @@ public class NamePool implements Serializable {
 
     }
 
-    NameEntry[] hashslots = new NameEntry[1024];
+    private static final AtomicReferenceFieldUpdater NEXT_ENTRY_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(NameEntry.class, NameEntry.class, "nextEntry");
+
+    // The heads of the hash chains. Entries are only ever appended to a chain, never removed
+    // or reordered, so the depth of an entry in its chain (which forms part of the fingerprint)
+    // is stable once the entry has been published.
+
+    final AtomicReferenceArray hashslots = new AtomicReferenceArray(1024);
 
-    String[] prefixes = new String[100];
-    short prefixesUsed = 0;
-    String[] uris = new String[100];
-    String[][] prefixesForUri = new String[100][0];
-    short urisUsed = 0;
+    // The URI and prefix tables are copy-on-write: a writer (holding the NamePool monitor) creates
+    // the new array if necessary, fills in the new element, and only then publishes the new count.
+    // A reader reads the count first, then the array, and is therefore guaranteed to see every
+    // element below the count.
+
+    volatile String[] prefixes = new String[100];
+    volatile short prefixesUsed = 0;
+    volatile String[] uris = new String[100];
+    volatile String[][] prefixesForUri = new String[100][0];
+    volatile short urisUsed = 0;
 
     // General purpose cache for data held by clients of the namePool
 
@@ -227,7 +243,7 @@ public class NamePool implements Serializable {
     private NameEntry getNameEntry(int nameCode) {
         int hash = nameCode & 0x3ff;
         int depth = (nameCode >> 10) & 0x3ff;
-        NameEntry entry = hashslots[hash];
+        NameEntry entry = (NameEntry)hashslots.get(hash);
 
         for (int i = 1; i < depth; i++) {
             if (entry == null) {
@@ -248,31 +264,66 @@ public class NamePool implements Serializable {
      *         identifies both the prefix and the URI.
      */
 
-    public synchronized int allocateNamespaceCode(String prefix, String uri) {
+    public int allocateNamespaceCode(String prefix, String uri) {
         // System.err.println("allocate nscode for " + prefix + " = " + uri);
 
         int prefixCode = allocateCodeForPrefix(prefix);
-        int uriCode = allocateCodeForURI(uri);
+        short uriCode = allocateCodeForURI(uri);
 
         if (prefixCode != 0) {
             // ensure the prefix is in the list of prefixes used with this URI
-            final String[] prefixes = prefixesForUri[uriCode];
-            if (prefixes.length == 0 ||
-                    (!prefixes[0].equals(prefix) && Arrays.asList(prefixes).indexOf(prefix) < 0)) {
-                if (prefixes.length == MAX_PREFIXES_PER_URI) {
-                    throw new NamePoolLimitException("NamePool limit exceeded: max " +
-                                    MAX_PREFIXES_PER_URI + " prefixes per URI");
-                }
-                String[] p2 = new String[prefixes.length + 1];
-                System.arraycopy(prefixes, 0, p2, 0, prefixes.length);
-                p2[prefixes.length] = prefix;
-                prefixesForUri[uriCode] = p2;
-            }
+            allocatePrefixIndex(uriCode, prefix);
         }
 
         return (prefixCode << 16) + uriCode;
     }
 
+    /**
+     * Get the position of a prefix among the prefixes used with a given URI, adding it to the
+     * list if it is not already present
+     * @param uriCode the code of the namespace URI
+     * @param prefix the prefix, which must not be zero-length
+     * @return the prefix index: that is, one plus the position of the prefix in the list of
+     * prefixes used with this URI
+     */
+
+    private int allocatePrefixIndex(short uriCode, String prefix) {
+        int pos = indexOf(prefixesForUri[uriCode], prefix);
+        if (pos >= 0) {
+            return pos + 1;
+        }
+        synchronized (this) {
+            final String[][] pfu = prefixesForUri;
+            final String[] prefixes = pfu[uriCode];
+            pos = indexOf(prefixes, prefix);
+            if (pos >= 0) {
+                return pos + 1;
+            }
+            if (prefixes.length == MAX_PREFIXES_PER_URI) {
+                throw new NamePoolLimitException("NamePool limit exceeded: max " +
+                                MAX_PREFIXES_PER_URI + " prefixes per URI");
+            }
+            String[] p2 = new String[prefixes.length + 1];
+            System.arraycopy(prefixes, 0, p2, 0, prefixes.length);
+            p2[prefixes.length] = prefix;
+            // publish a new outer array, so that readers of the volatile field see the new row
+            String[][] pfu2 = new String[pfu.length][];
+            System.arraycopy(pfu, 0, pfu2, 0, pfu.length);
+            pfu2[uriCode] = p2;
+            prefixesForUri = pfu2;
+            return prefixes.length + 1;
+        }
+    }
+
+    private static int indexOf(String[] array, String value) {
+        for (int i=0; i<array.length; i++) {
+            if (array[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Get the existing namespace code for a namespace prefix/URI pair.
      * @param prefix the namespace prefix. May be "" for the default namespace
@@ -294,9 +345,7 @@ public class NamePool implements Serializable {
 
         if (prefixCode != 0) {
             // ensure the prefix is in the list of prefixes used with this URI
-            final String[] prefixes = prefixesForUri[uriCode];
-            if (prefixes.length == 0 ||
-                    (!prefixes[0].equals(prefix) && Arrays.asList(prefixes).indexOf(prefix) < 0)) {
+            if (indexOf(prefixesForUri[uriCode], prefix) < 0) {
                 return -1;
             }
         }
@@ -356,28 +405,37 @@ public class NamePool implements Serializable {
      * @return an integer code that uniquely identifies this URI within the namepool.
      */
 
-    public synchronized short allocateCodeForURI(String uri) {
+    public short allocateCodeForURI(String uri) {
         if (uri == null) {
             return NamespaceConstant.NULL_CODE;
         }
-        for (short j = 0; j < urisUsed; j++) {
-            if (uris[j].equals(uri)) {
-                return j;
-            }
+        short code = getCodeForURI(uri);
+        if (code >= 0) {
+            return code;
         }
-        if (urisUsed >= uris.length) {
-            if (urisUsed > 32000) {
-                throw new NamePoolLimitException("Too many namespace URIs");
+        synchronized (this) {
+            final short used = urisUsed;
+            final String[] u0 = uris;
+            for (short j = 0; j < used; j++) {
+                if (u0[j].equals(uri)) {
+                    return j;
+                }
             }
-            String[][] p = new String[urisUsed * 2][0];
-            String[] u = new String[urisUsed * 2];
-            System.arraycopy(prefixesForUri, 0, p, 0, urisUsed);
-            System.arraycopy(uris, 0, u, 0, urisUsed);
-            prefixesForUri = p;
-            uris = u;
+            if (used >= u0.length) {
+                if (used > 32000) {
+                    throw new NamePoolLimitException("Too many namespace URIs");
+                }
+                String[][] p = new String[used * 2][0];
+                String[] u = new String[used * 2];
+                System.arraycopy(prefixesForUri, 0, p, 0, used);
+                System.arraycopy(u0, 0, u, 0, used);
+                prefixesForUri = p;
+                uris = u;
+            }
+            uris[used] = uri;
+            urisUsed = (short)(used + 1);
+            return used;
         }
-        uris[urisUsed] = uri;
-        return urisUsed++;
     }
 
 
@@ -388,8 +446,10 @@ public class NamePool implements Serializable {
      */
 
     public short getCodeForURI(String uri) {
-        for (short j = 0; j < urisUsed; j++) {
-            if (uris[j].equals(uri)) {
+        final short used = urisUsed;
+        final String[] u = uris;
+        for (short j = 0; j < used; j++) {
+            if (u[j].equals(uri)) {
                 return j;
             }
         }
@@ -404,8 +464,6 @@ public class NamePool implements Serializable {
      */
 
     private short allocateCodeForPrefix(String prefix) {
-        // Not synchronized, because it's always called from a synchronized method
-
         // exploit knowledge of the standard prefixes to shorten the search
         short start = 1;
         if (prefix.length() == 0) {
@@ -418,21 +476,35 @@ public class NamePool implements Serializable {
             start = NamespaceConstant.XSI_CODE + 1;
         }
 
-        for (short i=start; i < prefixesUsed; i++) {
-            if (prefixes[i].equals(prefix)) {
+        short used = prefixesUsed;
+        String[] p0 = prefixes;
+        for (short i=start; i < used; i++) {
+            if (p0[i].equals(prefix)) {
                 return i;
             }
         }
-        if (prefixesUsed >= prefixes.length) {
-            if (prefixesUsed > 32000) {
-                throw new NamePoolLimitException("Too many namespace prefixes");
+        synchronized (this) {
+            // re-examine any entries added since the unsynchronized search
+            final short oldUsed = used;
+            used = prefixesUsed;
+            p0 = prefixes;
+            for (short i=oldUsed; i < used; i++) {
+                if (p0[i].equals(prefix)) {
+                    return i;
+                }
             }
-            String[] p = new String[prefixesUsed * 2];
-            System.arraycopy(prefixes, 0, p, 0, prefixesUsed);
-            prefixes = p;
+            if (used >= p0.length) {
+                if (used > 32000) {
+                    throw new NamePoolLimitException("Too many namespace prefixes");
+                }
+                String[] p = new String[used * 2];
+                System.arraycopy(p0, 0, p, 0, used);
+                prefixes = p;
+            }
+            prefixes[used] = prefix;
+            prefixesUsed = (short)(used + 1);
+            return used;
         }
-        prefixes[prefixesUsed] = prefix;
-        return prefixesUsed++;
     }
 
 
@@ -443,8 +515,10 @@ public class NamePool implements Serializable {
      */
 
     public short getCodeForPrefix(String prefix) {
-        for (short i = 0; i < prefixesUsed; i++) {
-            if (prefixes[i].equals(prefix)) {
+        final short used = prefixesUsed;
+        final String[] p = prefixes;
+        for (short i = 0; i < used; i++) {
+            if (p[i].equals(prefix)) {
                 return i;
             }
         }
@@ -466,8 +540,9 @@ public class NamePool implements Serializable {
         if (uriCode == -1) {
             return null;
         }
-        if (prefixesForUri[uriCode].length >= 1) {
-            return prefixesForUri[uriCode][0];
+        final String[] p = prefixesForUri[uriCode];
+        if (p.length >= 1) {
+            return p[0];
         }
         return null;
     }
@@ -496,7 +571,7 @@ public class NamePool implements Serializable {
      *         The Name itself may be retrieved using the getName(int) method
      */
 
-    public synchronized int allocate(String prefix, String uri, String localName) {
+    public int allocate(String prefix, String uri, String localName) {
         if (NamespaceConstant.isReserved(uri) || NamespaceConstant.SAXON.equals(uri)) {
             int fp = StandardNames.getFingerprint(uri, localName);
             if (fp != -1) {
@@ -505,20 +580,7 @@ public class NamePool implements Serializable {
                 if (prefix.length() == 0) {
                     pindex = 0;
                 } else {
-                    final String[] prefixes = prefixesForUri[uriCode];
-                    int prefixPosition = Arrays.asList(prefixes).indexOf(prefix);
-                    if (prefixPosition < 0) {
-                        if (prefixes.length == MAX_PREFIXES_PER_URI) {
-                            throw new NamePoolLimitException("NamePool limit exceeded: max " +
-                                    MAX_PREFIXES_PER_URI + " prefixes per URI");
-                        }
-                        String[] p2 = new String[prefixes.length + 1];
-                        System.arraycopy(prefixes, 0, p2, 0, prefixes.length);
-                        p2[prefixes.length] = prefix;
-                        prefixesForUri[uriCode] = p2;
-                        prefixPosition = prefixes.length;
-                    }
-                    pindex = prefixPosition + 1;
+                    pindex = allocatePrefixIndex(uriCode, prefix);
                 }
                 return (pindex << 20) + fp;
             }
@@ -537,7 +599,7 @@ public class NamePool implements Serializable {
      * @return an integer (the "namecode") identifying the name within the namepool.
      */
 
-    public synchronized int allocate(String prefix, short uriCode, String localName) {
+    public int allocate(String prefix, short uriCode, String localName) {
         // System.err.println("Allocate " + prefix + " : " + uriCode + " : " + localName);
         if (NamespaceConstant.isSpecialURICode(uriCode)) {
             return allocate(prefix, getURIFromURICode(uriCode), localName);
@@ -550,54 +612,45 @@ public class NamePool implements Serializable {
         int hash = (localName.hashCode() & 0x7fffffff) % 1023;
         int depth = 1;
 
-        final String[] prefixes = prefixesForUri[uriCode];
         int prefixIndex;
         if (prefix.length() == 0) {
             prefixIndex = 0;
         } else {
-            int prefixPosition = Arrays.asList(prefixes).indexOf(prefix);
-            if (prefixPosition < 0) {
-                if (prefixes.length == MAX_PREFIXES_PER_URI) {
-                    throw new NamePoolLimitException("NamePool limit exceeded: max " +
-                                    MAX_PREFIXES_PER_URI + " prefixes per URI");
-                }
-                String[] p2 = new String[prefixes.length + 1];
-                System.arraycopy(prefixes, 0, p2, 0, prefixes.length);
-                p2[prefixes.length] = prefix;
-                prefixesForUri[uriCode] = p2;
-                prefixPosition = prefixes.length;
-            }
-            prefixIndex = prefixPosition + 1;
+            prefixIndex = allocatePrefixIndex(uriCode, prefix);
         }
 
-        NameEntry entry;
-
-        if (hashslots[hash] == null) {
-            entry = new NameEntry(uriCode, localName);
-            hashslots[hash] = entry;
-        } else {
-            entry = hashslots[hash];
-            while (true) {
-                boolean sameLocalName = (entry.localName.equals(localName));
-                boolean sameURI = (entry.uriCode == uriCode);
+        // The chain is searched without locking. If the name is not found, a new entry is appended
+        // using compare-and-swap; if another thread appended an entry in the meantime, the search
+        // simply continues from the point of failure, which will find that entry next.
 
-                if (sameLocalName && sameURI) {
-                    // may need to add a new prefix to the entry
+        NameEntry entry = (NameEntry)hashslots.get(hash);
+        if (entry == null) {
+            NameEntry newEntry = new NameEntry(uriCode, localName);
+            if (hashslots.compareAndSet(hash, null, newEntry)) {
+                return ((prefixIndex << 20) + (depth << 10) + hash);
+            }
+            entry = (NameEntry)hashslots.get(hash);
+        }
+        NameEntry newEntry = null;
+        while (true) {
+            if (entry.uriCode == uriCode && entry.localName.equals(localName)) {
+                break;
+            }
+            NameEntry next = entry.nextEntry;
+            depth++;
+            if (depth >= 1024) {
+                throw new NamePoolLimitException("Saxon name pool is full");
+            }
+            if (next == null) {
+                if (newEntry == null) {
+                    newEntry = new NameEntry(uriCode, localName);
+                }
+                if (NEXT_ENTRY_UPDATER.compareAndSet(entry, null, newEntry)) {
                     break;
-                } else {
-                    NameEntry next = entry.nextEntry;
-                    depth++;
-                    if (depth >= 1024) {
-                        throw new NamePoolLimitException("Saxon name pool is full");
-                    }
-                    if (next == null) {
-                        entry.nextEntry = new NameEntry(uriCode, localName);
-                        break;
-                    } else {
-                        entry = next;
-                    }
                 }
+                next = entry.nextEntry;
             }
+            entry = next;
         }
         // System.err.println("name code = " + prefixIndex + "/" + depth + "/" + hash);
         return ((prefixIndex << 20) + (depth << 10) + hash);
@@ -611,7 +664,7 @@ public class NamePool implements Serializable {
      *         identifies both the prefix and the URI.
      */
 
-    public synchronized int allocateNamespaceCode(int namecode) {
+    public int allocateNamespaceCode(int namecode) {
         short uriCode;
         int fp = namecode & FP_MASK;
         if ((fp & USER_DEFINED_MASK) == 0) {
@@ -858,13 +911,7 @@ public class NamePool implements Serializable {
                 // otherwise, look for the name in this namepool
                 }
             }
-            uriCode = -1;
-            for (short j = 0; j < urisUsed; j++) {
-                if (uris[j].equals(uri)) {
-                    uriCode = j;
-                    break;
-                }
-            }
+            uriCode = getCodeForURI(uri);
             if (uriCode == -1) {
                 return -1;
             }
@@ -875,11 +922,11 @@ public class NamePool implements Serializable {
 
         NameEntry entry;
 
-        if (hashslots[hash] == null) {
+        entry = (NameEntry)hashslots.get(hash);
+        if (entry == null) {
             return -1;
         }
 
-        entry = hashslots[hash];
         while (true) {
             if (entry.uriCode == uriCode && entry.localName.equals(localName)) {
                 break;
@@ -1017,7 +1064,7 @@ public class NamePool implements Serializable {
     public synchronized void diagnosticDump() {
         System.err.println("Contents of NamePool " + this);
         for (int i = 0; i < 1024; i++) {
-            NameEntry entry = hashslots[i];
+            NameEntry entry = (NameEntry)hashslots.get(i);
             int depth = 0;
             while (entry != null) {
                 System.err.println("Fingerprint " + depth + '/' + i);
@@ -1051,7 +1098,7 @@ public class NamePool implements Serializable {
         int slots = 0;
         int entries = 0;
         for (int i = 0; i < 1024; i++) {
-            NameEntry entry = hashslots[i];
+            NameEntry entry = (NameEntry)hashslots.get(i);
             if (entry != null) slots++;
             while (entry != null) {
                 entry = entry.nextEntry;
@@ -0,0 +1,86 @@
+package org.orbeon.saxon.pattern;
+
+import org.orbeon.saxon.expr.Expression;
+import org.orbeon.saxon.expr.StaticProperty;
+import org.orbeon.saxon.expr.XPathContext;
+import org.orbeon.saxon.om.AxisIterator;
+import org.orbeon.saxon.om.DocumentInfo;
+import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.om.SingleNodeIterator;
+import org.orbeon.saxon.sort.DocumentOrderIterator;
+import org.orbeon.saxon.sort.LocalOrderComparer;
+import org.orbeon.saxon.trans.XPathException;
+
+import java.io.Serializable;
+
+/**
+ * An ExpressionFinder is a PatternFinder that selects the nodes in a document by evaluating
+ * an expression (typically a path expression such as <code>//item</code>) with the document node
+ * as the context item. It is used for the keys that the optimizer creates internally when it rewrites
+ * a path expression as a call on the key() function.
+ */
+
+public class ExpressionFinder implements PatternFinder, Serializable {
+
+    private Expression select;
+
+    /**
+     * Create an ExpressionFinder
+     * @param select the expression that selects the nodes to be indexed. The expression must depend
+     * on the focus only through the context document, and must not use local variables.
+     */
+
+    public ExpressionFinder(Expression select) {
+        this.select = select;
+    }
+
+    /**
+     * Get the expression used to select nodes
+     * @return the select expression
+     */
+
+    public Expression getSelectExpression() {
+        return select;
+    }
+
+    /**
+     * Select nodes in a document using this PatternFinder.
+     * @param doc the document node at the root of a tree
+     * @param context the dynamic evaluation context
+     * @return an iterator over the selected nodes in the document.
+     */
+
+    public SequenceIterator selectNodes(DocumentInfo doc, XPathContext context) throws XPathException {
+        XPathContext c2 = context.newMinorContext();
+        AxisIterator si = SingleNodeIterator.makeIterator(doc);
+        si.next();
+        c2.setCurrentIterator(si);
+        SequenceIterator iter = select.iterate(c2);
+        if ((select.getSpecialProperties() & StaticProperty.ORDERED_NODESET) == 0) {
+            iter = new DocumentOrderIterator(iter, LocalOrderComparer.getInstance());
+        }
+        return iter;
+    }
+
+    public String toString() {
+        return select.toString();
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
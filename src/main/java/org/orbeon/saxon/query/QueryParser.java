@@ -2155,10 +2155,6 @@ public class QueryParser extends ExpressionParser {
                     }
                     validateType = true;
                 } else if (localName.equals("stream")) {
-                    if (!env.getConfiguration().isSchemaAware(Configuration.XQUERY)) {
-                        grumble("To use saxon:stream, " +
-                                "you need the Saxon-SA processor from http://www.saxonica.com/");
-                    }
                     streaming = true;
                 } else {
                     grumble("Unrecognized Saxon pragma " + qname);
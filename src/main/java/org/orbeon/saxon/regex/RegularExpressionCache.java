@@ -0,0 +1,199 @@
+package org.orbeon.saxon.regex;
+
+import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.trans.XPathException;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A RegularExpressionCache holds compiled regular expressions, so that a regular expression that is
+ * supplied dynamically to functions such as matches(), replace(), and tokenize(), or to xsl:analyze-string,
+ * is translated and compiled only once, rather than on every call. There is one cache per
+ * {@link Configuration}, obtained using {@link Configuration#getRegularExpressionCache()}.
+ *
+ * <p>Compiled regular expressions are immutable, so the cache can safely be shared between threads.
+ * Entries are keyed on the source of the regular expression, the flags, the XML version and the regex
+ * syntax. The cache is bounded: when it is full, some existing entries are discarded to make room.
+ * Regular expressions that fail to compile are not cached, so the error is reported on each call.</p>
+ */
+
+public class RegularExpressionCache {
+
+    /**
+     * The default maximum number of compiled regular expressions held in the cache
+     */
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 500;
+
+    private ConcurrentHashMap map = new ConcurrentHashMap(64);
+    private volatile int maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create an empty cache
+     */
+
+    public RegularExpressionCache() {
+    }
+
+    /**
+     * Get a compiled regular expression, compiling it if it is not already in the cache
+     * @param regex the source text of the regular expression
+     * @param xmlVersion indicates whether \i and \c have their XML 1.0 or XML 1.1 meanings
+     * @param syntax indicates whether XPath, XML Schema, or Java native regular expression syntax is used,
+     * as one of the constants in {@link RegularExpression}
+     * @param flags the flags argument as supplied to functions such as fn:matches(), in string form
+     * @return the compiled regular expression
+     * @throws XPathException if the syntax of the regular expression or flags is incorrect
+     */
+
+    public RegularExpression getRegularExpression(CharSequence regex, int xmlVersion, int syntax, CharSequence flags)
+    throws XPathException {
+        Key key = new Key(regex.toString(), flags.toString(), xmlVersion, syntax);
+        RegularExpression re = (RegularExpression)map.get(key);
+        if (re != null) {
+            hits.incrementAndGet();
+            return re;
+        }
+        misses.incrementAndGet();
+        re = Configuration.getPlatform().compileRegularExpression(regex, xmlVersion, syntax, flags);
+        if (map.size() >= maximumSize) {
+            makeRoom();
+        }
+        map.put(key, re);
+        return re;
+    }
+
+    /**
+     * Discard entries from the cache until it is no more than three-quarters full. There is no attempt
+     * to identify the least recently used entries: the aim is to keep the cost of a cache hit as low
+     * as possible.
+     */
+
+    private void makeRoom() {
+        int target = (maximumSize * 3) / 4;
+        Iterator iter = map.keySet().iterator();
+        while (map.size() > target && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Set the maximum number of compiled regular expressions to be held in the cache
+     * @param size the maximum number of entries. Must be at least 1.
+     */
+
+    public void setMaximumSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Regular expression cache size must be at least 1");
+        }
+        maximumSize = size;
+        if (map.size() > size) {
+            makeRoom();
+        }
+    }
+
+    /**
+     * Get the maximum number of compiled regular expressions held in the cache
+     * @return the maximum number of entries
+     */
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Discard all the entries in the cache. The statistics are not reset.
+     */
+
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * Get the number of compiled regular expressions currently held in the cache
+     * @return the number of entries
+     */
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Get the number of requests for a regular expression that were satisfied from the cache
+     * @return the number of cache hits
+     */
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests for a regular expression that required it to be compiled
+     * @return the number of cache misses
+     */
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String toString() {
+        return "RegularExpressionCache(size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + ')';
+    }
+
+    /**
+     * The key of an entry in the cache
+     */
+
+    private static final class Key {
+
+        private String regex;
+        private String flags;
+        private int xmlVersion;
+        private int syntax;
+        private int hash;
+
+        public Key(String regex, String flags, int xmlVersion, int syntax) {
+            this.regex = regex;
+            this.flags = flags;
+            this.xmlVersion = xmlVersion;
+            this.syntax = syntax;
+            hash = regex.hashCode() ^ (flags.hashCode() << 7) ^ (xmlVersion << 3) ^ syntax;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)other;
+            return hash == k.hash && xmlVersion == k.xmlVersion && syntax == k.syntax &&
+                    regex.equals(k.regex) && flags.equals(k.flags);
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
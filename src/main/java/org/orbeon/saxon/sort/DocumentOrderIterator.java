@@ -2,6 +2,8 @@ package org.orbeon.saxon.sort;
 import org.orbeon.saxon.om.Item;
 import org.orbeon.saxon.om.NodeInfo;
 import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.tinytree.TinyNodeImpl;
+import org.orbeon.saxon.tinytree.TinyTree;
 import org.orbeon.saxon.trans.XPathException;
 import org.orbeon.saxon.value.SequenceExtent;
 
@@ -27,12 +29,41 @@ public final class DocumentOrderIterator implements SequenceIterator, Sortable {
 
         this.comparer = comparer;
 
-        sequence = new SequenceExtent(base);
-        //System.err.println("sort into document order: sequence length = " + sequence.getLength());
-        if (sequence.getLength()>1) {
-            //QuickSort.sort(this, 0, sequence.getLength()-1);
-            GenericSorter.quickSort(0, sequence.getLength(), this);
-            //GenericSorter.mergeSort(0, sequence.getLength(), this);
+        Item[] items = new Item[20];
+        int count = 0;
+        TinyTree tree = null;
+        boolean sameTree = true;
+        while (true) {
+            Item item = base.next();
+            if (item == null) {
+                break;
+            }
+            if (count == items.length) {
+                Item[] i2 = new Item[count * 2];
+                System.arraycopy(items, 0, i2, 0, count);
+                items = i2;
+            }
+            items[count++] = item;
+            if (sameTree) {
+                if (item instanceof TinyNodeImpl && (tree == null || ((TinyNodeImpl)item).getTree() == tree)) {
+                    tree = ((TinyNodeImpl)item).getTree();
+                } else {
+                    sameTree = false;
+                }
+            }
+        }
+        //System.err.println("sort into document order: sequence length = " + count);
+        if (count > 1 && sameTree) {
+            // all the nodes are in the same TinyTree, so they can be sorted by node number
+            count = tree.sortNodes(items, count);
+            sequence = new SequenceExtent(items, 0, count);
+        } else {
+            sequence = new SequenceExtent(items, 0, count);
+            if (count > 1) {
+                //QuickSort.sort(this, 0, sequence.getLength()-1);
+                GenericSorter.quickSort(0, count, this);
+                //GenericSorter.mergeSort(0, sequence.getLength(), this);
+            }
         }
         iterator = sequence.iterate();
     }
@@ -1,17 +1,19 @@
 package org.orbeon.saxon.sort;
 
-import org.orbeon.saxon.expr.Expression;
-import org.orbeon.saxon.expr.LastPositionFinder;
-import org.orbeon.saxon.expr.XPathContext;
+import org.orbeon.saxon.expr.*;
+import org.orbeon.saxon.om.ArrayIterator;
 import org.orbeon.saxon.om.Item;
-import org.orbeon.saxon.om.ListIterator;
 import org.orbeon.saxon.om.LookaheadIterator;
 import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.tinytree.TinyNodeImpl;
+import org.orbeon.saxon.tinytree.TinyTree;
 import org.orbeon.saxon.trace.Location;
 import org.orbeon.saxon.trans.XPathException;
-import org.orbeon.saxon.value.AtomicValue;
+import org.orbeon.saxon.type.Type;
+import org.orbeon.saxon.value.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -34,10 +36,9 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
 
     // The implementation of group-by is not pipelined. All the items in the population
     // are read at the start, their grouping keys are calculated, and the groups are formed
-    // in memory as a hash table indexed by the grouping key. This hash table is then
-    // flattened into three parallel lists: a list of groups (each group being represented
-    // as a list of items in population order), a list of grouping keys, and a list of
-    // the initial items of the groups.
+    // in memory as a hash table indexed by the grouping key. Each group is represented by
+    // its grouping key and an array holding the numbers of its members in population order;
+    // the groups are numbered in order of first appearance.
 
     private SequenceIterator population;
     private Expression keyExpression;
@@ -45,18 +46,34 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
     private XPathContext keyContext;
     private int position = 0;
 
-    // Main data structure holds one entry for each group. The entry is also an ArrayList,
-    // which contains the Items that are members of the group, in population order.
-    // The groups are arranged in order of first appearance within the population.
-    private ArrayList groups = new ArrayList(40);
-
-    // This parallel structure identifies the grouping key for each group. The list
-    // corresponds one-to-one with the list of groups.
-    private ArrayList groupKeys = new ArrayList(40);
-
-    // For convenience (so that we can use a standard ArrayListIterator) we define
-    // another parallel array holding the initial items of each group.
-    private ArrayList initialItems = new ArrayList(40);
+    // The members of the population that belong to at least one group. If these are all nodes
+    // in the same TinyTree (other than attributes and namespaces), only their node numbers are
+    // retained; otherwise the items themselves are retained.
+    private TinyTree tree = null;
+    private int[] nodeNumbers = new int[40];
+    private Item[] items = null;
+    private int members = 0;
+
+    // The groups, in order of first appearance. For each group, there is the grouping key, and
+    // an array holding the numbers of the members of the group, in population order
+    private AtomicValue[] groupKeys = new AtomicValue[40];
+    private int[][] groupMembers = new int[40][];
+    private int[] groupSizes = new int[40];
+    private int groupCount = 0;
+
+    // The hash table used to find the group for a given key. While all the keys are xs:integer
+    // values in the range of an int, or all are strings compared using the codepoint collation,
+    // the keys are indexed directly; otherwise the index uses comparison keys
+    private static final int NO_KEYS = 0;
+    private static final int INT_KEYS = 1;
+    private static final int STRING_KEYS = 2;
+    private static final int GENERAL_KEYS = 3;
+    private int keyKind = NO_KEYS;
+    private IntToIntHashMap intIndex;
+    private HashMap index;
+
+    // The members of the current group, created when first needed
+    private Item[] currentGroup = null;
 
     // A SortComparer is used to do the comparisons
     private AtomicComparer comparer;
@@ -90,47 +107,269 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
      */
 
     private void buildIndexedGroups() throws XPathException {
-        HashMap index = new HashMap(40);
         XPathContext c2 = keyContext.newMinorContext();
         c2.setCurrentIterator(population);
         c2.setOriginatingConstructType(Location.GROUPING_KEY);
+        if (keyContext.getConfiguration().isMultiThreading()) {
+            buildIndexedGroupsInParallel(c2);
+            return;
+        }
         while (true) {
             Item item = population.next();
             if (item==null) {
                 break;
             }
-            SequenceIterator keys = keyExpression.iterate(c2);
-            boolean firstKey = true;
-            while (true) {
-                AtomicValue key = (AtomicValue) keys.next();
-                if (key==null) {
-                    break;
-                }
-                ComparisonKey comparisonKey = comparer.getComparisonKey(key);
-                ArrayList g = (ArrayList) index.get(comparisonKey);
-                if (g == null) {
-                    ArrayList newGroup = new ArrayList(20);
-                    newGroup.add(item);
-                    groups.add(newGroup);
-                    groupKeys.add(key);
-                    initialItems.add(item);
-                    index.put(comparisonKey, newGroup);
-                } else {
-                    if (firstKey) {
-                        g.add(item);
-                    } else {
-                        // if this is not the first key value for this item, we
-                        // check whether the item is already in this group before
-                        // adding it again. If it is in this group, then we know
-                        // it will be at the end.
-                        if (g.get(g.size() - 1) != item) {
-                            g.add(item);
+            addItem(item, keyExpression.iterate(c2));
+        }
+    }
+
+    /**
+     * Build the grouping table, reading all the items of the population before evaluating their
+     * grouping keys, so that the grouping keys can be evaluated in several threads. The groups
+     * are formed in the same way as when the keys are evaluated in a single thread. The keys are
+     * evaluated in a single thread if the key expression is not known to be thread-safe, for example
+     * because it contains an indexed filter expression, which keeps its index in the Controller.
+     * @param c2 the context for evaluating the grouping keys
+     */
+
+    private void buildIndexedGroupsInParallel(XPathContext c2) throws XPathException {
+        Item[] all = new Item[100];
+        int count = 0;
+        boolean threadSafe = true;
+        while (true) {
+            Item item = population.next();
+            if (item == null) {
+                break;
+            }
+            if (count == all.length) {
+                Item[] a2 = new Item[count * 2];
+                System.arraycopy(all, 0, a2, 0, count);
+                all = a2;
+            }
+            threadSafe &= ParallelSorter.isThreadSafe(item);
+            all[count++] = item;
+        }
+        if (threadSafe && ParallelSorter.isWorthwhile(c2, count) &&
+                (keyExpression.getDependencies() &
+                        (StaticProperty.DEPENDS_ON_POSITION | StaticProperty.DEPENDS_ON_LAST)) == 0) {
+            List variables = new ArrayList();
+            if (ParallelSorter.isThreadSafe(keyExpression, variables)) {
+                VariableReference[] refs = new VariableReference[variables.size()];
+                variables.toArray(refs);
+                if (ParallelSorter.prepareForParallelEvaluation(c2, refs)) {
+                    final Value[] keys = new Value[count];
+                    ParallelSorter.evaluate(c2, all, count, new ParallelSorter.ItemEvaluator() {
+                        public void evaluate(int i, XPathContext c) throws XPathException {
+                            keys[i] = Value.asValue(SequenceExtent.makeSequenceExtent(keyExpression.iterate(c)));
                         }
+                    });
+                    for (int i=0; i<count; i++) {
+                        addItem(all[i], keys[i].iterate());
                     }
+                    return;
+                }
+            }
+        }
+        SequenceIterator iter = new ArrayIterator(all, 0, count);
+        c2.setCurrentIterator(iter);
+        for (int i=0; i<count; i++) {
+            iter.next();
+            addItem(all[i], keyExpression.iterate(c2));
+        }
+    }
+
+    /**
+     * Add an item to the groups corresponding to its grouping keys
+     * @param item the item
+     * @param keys iterator over the values of the grouping key for this item
+     */
+
+    private void addItem(Item item, SequenceIterator keys) throws XPathException {
+        int member = -1;
+        while (true) {
+            AtomicValue key = (AtomicValue)keys.next();
+            if (key==null) {
+                break;
+            }
+            if (member < 0) {
+                member = addMember(item);
+            }
+            int g = getGroup(key);
+            int size = groupSizes[g];
+            // if this is not the first key value for this item, the item may already be in this
+            // group, in which case it will be at the end
+            if (size == 0 || groupMembers[g][size - 1] != member) {
+                int[] m = groupMembers[g];
+                if (size == m.length) {
+                    int[] m2 = new int[size * 2];
+                    System.arraycopy(m, 0, m2, 0, size);
+                    groupMembers[g] = m = m2;
+                }
+                m[size] = member;
+                groupSizes[g] = size + 1;
+            }
+        }
+    }
+
+    /**
+     * Retain an item that is a member of at least one group
+     * @param item the item
+     * @return the member number allocated to the item
+     */
+
+    private int addMember(Item item) {
+        if (items == null) {
+            if (item instanceof TinyNodeImpl &&
+                    ((TinyNodeImpl)item).getNodeKind() != Type.ATTRIBUTE &&
+                    ((TinyNodeImpl)item).getNodeKind() != Type.NAMESPACE &&
+                    (tree == null || tree == ((TinyNodeImpl)item).getTree())) {
+                if (members == nodeNumbers.length) {
+                    int[] n2 = new int[members * 2];
+                    System.arraycopy(nodeNumbers, 0, n2, 0, members);
+                    nodeNumbers = n2;
                 }
-                firstKey = false;
+                tree = ((TinyNodeImpl)item).getTree();
+                nodeNumbers[members] = ((TinyNodeImpl)item).getNodeNumber();
+                return members++;
             }
+            // revert to retaining the items themselves
+            items = new Item[nodeNumbers.length];
+            for (int i=0; i<members; i++) {
+                items[i] = tree.getNode(nodeNumbers[i]);
+            }
+            nodeNumbers = null;
+        }
+        if (members == items.length) {
+            Item[] i2 = new Item[members * 2];
+            System.arraycopy(items, 0, i2, 0, members);
+            items = i2;
+        }
+        items[members] = item;
+        return members++;
+    }
+
+    /**
+     * Get a member of the population
+     * @param member the member number
+     * @return the corresponding item
+     */
+
+    private Item getMember(int member) {
+        if (items == null) {
+            return tree.getNode(nodeNumbers[member]);
+        } else {
+            return items[member];
+        }
+    }
+
+    /**
+     * Find the group for a given grouping key, creating a new group if there is none
+     * @param key the grouping key
+     * @return the number of the group
+     */
+
+    private int getGroup(AtomicValue key) throws XPathException {
+        switch (keyKind) {
+            case NO_KEYS:
+                if (isIntKey(key)) {
+                    intIndex = new IntToIntHashMap(100);
+                    intIndex.setDefaultValue(-1);
+                    keyKind = INT_KEYS;
+                } else if (key instanceof StringValue && collator instanceof CodepointCollator) {
+                    index = new HashMap(100);
+                    keyKind = STRING_KEYS;
+                } else {
+                    index = new HashMap(100);
+                    keyKind = GENERAL_KEYS;
+                }
+                return getGroup(key);
+            case INT_KEYS:
+                if (isIntKey(key)) {
+                    int k = (int)((Int64Value)key).longValue();
+                    int g = intIndex.get(k);
+                    if (g < 0) {
+                        g = addGroup(key);
+                        intIndex.put(k, g);
+                    }
+                    return g;
+                }
+                indexComparisonKeys();
+                return getGroup(key);
+            case STRING_KEYS:
+                if (key instanceof StringValue) {
+                    String k = key.getStringValue();
+                    Integer g = (Integer)index.get(k);
+                    if (g == null) {
+                        int n = addGroup(key);
+                        index.put(k, new Integer(n));
+                        return n;
+                    }
+                    return g.intValue();
+                }
+                indexComparisonKeys();
+                return getGroup(key);
+            default:
+                ComparisonKey k = comparer.getComparisonKey(key);
+                Integer g = (Integer)index.get(k);
+                if (g == null) {
+                    int n = addGroup(key);
+                    index.put(k, new Integer(n));
+                    return n;
+                }
+                return g.intValue();
+        }
+    }
+
+    /**
+     * Determine whether a grouping key is an integer that can be indexed directly
+     * @param key the grouping key
+     * @return true if the key is an xs:integer within the range of an int
+     */
+
+    private static boolean isIntKey(AtomicValue key) {
+        if (key instanceof Int64Value) {
+            long v = ((Int64Value)key).longValue();
+            return v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE;
+        }
+        return false;
+    }
+
+    /**
+     * Replace the index of integer or string keys by an index of comparison keys, which
+     * can hold keys of any type
+     */
+
+    private void indexComparisonKeys() throws XPathException {
+        index = new HashMap(groupCount * 2 + 100);
+        for (int g=0; g<groupCount; g++) {
+            index.put(comparer.getComparisonKey(groupKeys[g]), new Integer(g));
+        }
+        intIndex = null;
+        keyKind = GENERAL_KEYS;
+    }
+
+    /**
+     * Create a new group
+     * @param key the grouping key of the group
+     * @return the number of the new group
+     */
+
+    private int addGroup(AtomicValue key) {
+        if (groupCount == groupKeys.length) {
+            int size = groupCount * 2;
+            AtomicValue[] k2 = new AtomicValue[size];
+            System.arraycopy(groupKeys, 0, k2, 0, groupCount);
+            groupKeys = k2;
+            int[][] m2 = new int[size][];
+            System.arraycopy(groupMembers, 0, m2, 0, groupCount);
+            groupMembers = m2;
+            int[] s2 = new int[size];
+            System.arraycopy(groupSizes, 0, s2, 0, groupCount);
+            groupSizes = s2;
         }
+        groupKeys[groupCount] = key;
+        groupMembers[groupCount] = new int[4];
+        return groupCount++;
     }
 
     /**
@@ -139,7 +378,7 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
      */
 
     public AtomicValue getCurrentGroupingKey() {
-        return (AtomicValue)groupKeys.get(position-1);
+        return groupKeys[position-1];
     }
 
     /**
@@ -148,7 +387,7 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
      */
 
     public SequenceIterator iterateCurrentGroup() {
-        return new ListIterator((ArrayList)groups.get(position-1));
+        return new ArrayIterator(getCurrentGroupItems());
     }
 
     /**
@@ -157,15 +396,33 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
      */
 
     public List getCurrentGroup() {
-        return (ArrayList)groups.get(position-1);
+        return Arrays.asList(getCurrentGroupItems());
+    }
+
+    /**
+     * Get the members of the current group
+     * @return an array holding the members of the current group, in population order
+     */
+
+    private Item[] getCurrentGroupItems() {
+        if (currentGroup == null) {
+            int g = position-1;
+            int[] m = groupMembers[g];
+            currentGroup = new Item[groupSizes[g]];
+            for (int i=0; i<currentGroup.length; i++) {
+                currentGroup[i] = getMember(m[i]);
+            }
+        }
+        return currentGroup;
     }
 
     public boolean hasNext() {
-        return position < groups.size();
+        return position < groupCount;
     }
 
     public Item next() throws XPathException {
-        if (position >=0 && position < groups.size()) {
+        currentGroup = null;
+        if (position >=0 && position < groupCount) {
             position++;
             return current();
         } else {
@@ -179,7 +436,7 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
             return null;
         }
         // return the initial item of the current group
-        return (Item)((ArrayList)groups.get(position-1)).get(0);
+        return getMember(groupMembers[position-1][0]);
     }
 
     public int position() {
@@ -214,12 +471,11 @@ public class GroupByIterator implements GroupIterator, LastPositionFinder, Looka
      */
 
     public int getLastPosition() throws XPathException {
-        return groups.size();
+        return groupCount;
     }
 
 }
 
-
 //
 // The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
 // you may not use this file except in compliance with the License. You may obtain a copy of the
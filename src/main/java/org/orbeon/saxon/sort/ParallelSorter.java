@@ -0,0 +1,356 @@
+package org.orbeon.saxon.sort;
+
+import org.orbeon.saxon.expr.*;
+import org.orbeon.saxon.functions.Collection;
+import org.orbeon.saxon.functions.Doc;
+import org.orbeon.saxon.functions.DocAvailable;
+import org.orbeon.saxon.functions.Document;
+import org.orbeon.saxon.functions.Evaluate;
+import org.orbeon.saxon.functions.ExtensionFunctionCall;
+import org.orbeon.saxon.functions.Put;
+import org.orbeon.saxon.functions.Trace;
+import org.orbeon.saxon.functions.UnparsedText;
+import org.orbeon.saxon.om.ArrayIterator;
+import org.orbeon.saxon.om.Item;
+import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.tinytree.TinyNodeImpl;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.value.AtomicValue;
+import org.orbeon.saxon.value.Closure;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class sorts the item numbers of a {@link Sortable} using a stable merge sort. The Sortable is
+ * used only to compare items, never to swap them: the result is an array of item numbers in sorted order,
+ * which the caller uses to rearrange its own data.
+ *
+ * <p>When multithreading is allowed by the Configuration and the number of items is large enough to
+ * make it worthwhile, the two halves of each range are sorted in parallel using the common fork/join
+ * pool. The merge sort is stable, so the result is the same whichever way the sort is done. The
+ * <code>compare()</code> method of the Sortable must be safe to call from several threads at once.</p>
+ *
+ * <p>The class also provides the means to evaluate an expression (such as a sort key or a grouping key)
+ * for each of a set of items using several threads, where the expression is known to be safe for this.</p>
+ */
+
+final class ParallelSorter {
+
+    /**
+     * The smallest number of items for which a parallel sort is used
+     */
+
+    static final int THRESHOLD = 10000;
+
+    private ParallelSorter() {}
+
+    /**
+     * Decide whether a parallel sort (or parallel evaluation of sort or grouping keys) should be used
+     * @param context the dynamic context
+     * @param count the number of items
+     * @return true if multithreading is allowed, there is more than one processor available,
+     * and the number of items exceeds the threshold
+     */
+
+    static boolean isWorthwhile(XPathContext context, int count) {
+        return count >= THRESHOLD &&
+                context.getConfiguration().isMultiThreading() &&
+                ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    /**
+     * Determine whether an expression can be evaluated in several threads at once. Expressions that
+     * keep state in the Controller, such as the index built by an {@link IndexedFilterExpression},
+     * are excluded.
+     * @param exp the expression to be tested
+     * @param variables a list to which any variable references found in the expression are added
+     * @return true if the expression can be evaluated in several threads at once
+     */
+
+    static boolean isThreadSafe(Expression exp, List variables) {
+        if (exp instanceof VariableReference) {
+            variables.add(exp);
+            return true;
+        }
+        if (exp instanceof Assignation || exp instanceof UserFunctionCall ||
+                exp instanceof IndexedFilterExpression ||
+                exp instanceof ExtensionFunctionCall || exp instanceof Evaluate ||
+                exp instanceof Doc || exp instanceof Document || exp instanceof DocAvailable ||
+                exp instanceof Collection || exp instanceof UnparsedText ||
+                exp instanceof Trace || exp instanceof Put) {
+            return false;
+        }
+        String name = exp.getClass().getName();
+        if (!(name.startsWith("org.orbeon.saxon.expr.") ||
+                name.startsWith("org.orbeon.saxon.functions.") ||
+                name.startsWith("org.orbeon.saxon.sort."))) {
+            // instructions, and expressions defined elsewhere, are assumed to be unsafe
+            return false;
+        }
+        for (Iterator children = exp.iterateSubExpressions(); children.hasNext();) {
+            if (!isThreadSafe((Expression)children.next(), variables)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determine whether an item can safely be used as the context item in several threads at once
+     * @param item the item
+     * @return true if the item is an atomic value or a node in a TinyTree, which is the only tree
+     * model known to be safe for navigation by several threads at once
+     */
+
+    static boolean isThreadSafe(Item item) {
+        return item instanceof AtomicValue || item instanceof TinyNodeImpl;
+    }
+
+    /**
+     * Check that the values of the variables referenced in an expression are available, and that nothing
+     * remains to be evaluated lazily, so that the expression can be evaluated in several threads without
+     * changing any shared state
+     * @param context the dynamic context
+     * @param variables the variables referenced in the expression
+     * @return true if the expression can be evaluated in parallel
+     */
+
+    static boolean prepareForParallelEvaluation(XPathContext context, VariableReference[] variables) {
+        try {
+            // the current date and time are established on first use
+            context.getCurrentDateTime();
+            for (int v=0; v<variables.length; v++) {
+                if (variables[v].evaluateVariable(context) instanceof Closure) {
+                    return false;
+                }
+            }
+        } catch (XPathException err) {
+            // leave the error to be reported, if it is relevant, when the expression is evaluated
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Callback used to evaluate an expression for one of a set of items
+     */
+
+    interface ItemEvaluator {
+
+        /**
+         * Evaluate the expression for one item
+         * @param i the number of the item
+         * @param context a dynamic context in which the item is the context item. This context is
+         * used by one thread only.
+         * @throws XPathException if a dynamic error occurs
+         */
+
+        void evaluate(int i, XPathContext context) throws XPathException;
+    }
+
+    /**
+     * Evaluate an expression for each of a set of items, using several threads. If dynamic errors
+     * occur, the error reported is the one for the first item in sequence.
+     * @param context the dynamic context
+     * @param items the items
+     * @param count the number of items
+     * @param evaluator the callback to evaluate the expression for each item
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    static void evaluate(XPathContext context, Item[] items, int count, ItemEvaluator evaluator)
+            throws XPathException {
+        int grain = Math.max(1000, count / (ForkJoinPool.getCommonPoolParallelism() * 4));
+        EvaluationTask task = new EvaluationTask(context, items, 0, count, grain, evaluator);
+        ForkJoinPool.commonPool().invoke(task);
+        if (task.error != null) {
+            throw task.error;
+        }
+    }
+
+    /**
+     * Sort the items
+     * @param data the items to be sorted
+     * @param count the number of items
+     * @param parallel true if the sort is to be done using several threads
+     * @return an array holding the numbers of the items in sorted order. Items that compare equal
+     * remain in their original order.
+     */
+
+    static int[] sort(Sortable data, int count, boolean parallel) {
+        int[] order = new int[count];
+        for (int i=0; i<count; i++) {
+            order[i] = i;
+        }
+        if (count > 1) {
+            int[] work = new int[count];
+            System.arraycopy(order, 0, work, 0, count);
+            if (parallel) {
+                int grain = Math.max(THRESHOLD / 4, count / (ForkJoinPool.getCommonPoolParallelism() * 4));
+                ForkJoinPool.commonPool().invoke(new SortTask(data, work, order, 0, count, grain));
+            } else {
+                mergeSort(data, work, order, 0, count);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Sort a range of an array of item numbers, using an auxiliary array that initially holds the
+     * same data
+     * @param data the items being sorted
+     * @param src the auxiliary array
+     * @param dest the array to be sorted
+     * @param low the start of the range
+     * @param high the end of the range (exclusive)
+     */
+
+    private static void mergeSort(Sortable data, int[] src, int[] dest, int low, int high) {
+        int length = high - low;
+        if (length < 7) {
+            // insertion sort for small ranges
+            for (int i=low+1; i<high; i++) {
+                for (int j=i; j>low && data.compare(dest[j-1], dest[j]) > 0; j--) {
+                    int t = dest[j];
+                    dest[j] = dest[j-1];
+                    dest[j-1] = t;
+                }
+            }
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        mergeSort(data, dest, src, low, mid);
+        mergeSort(data, dest, src, mid, high);
+        merge(data, src, dest, low, mid, high);
+    }
+
+    /**
+     * Merge two adjacent sorted ranges of one array into the same range of another array
+     * @param data the items being sorted
+     * @param src the array holding the two sorted ranges
+     * @param dest the array to receive the merged range
+     * @param low the start of the first range
+     * @param mid the end of the first range, which is the start of the second
+     * @param high the end of the second range (exclusive)
+     */
+
+    private static void merge(Sortable data, int[] src, int[] dest, int low, int mid, int high) {
+        if (data.compare(src[mid-1], src[mid]) <= 0) {
+            // the two halves are already in order
+            System.arraycopy(src, low, dest, low, high - low);
+            return;
+        }
+        for (int i=low, p=low, q=mid; i<high; i++) {
+            if (q >= high || (p < mid && data.compare(src[p], src[q]) <= 0)) {
+                dest[i] = src[p++];
+            } else {
+                dest[i] = src[q++];
+            }
+        }
+    }
+
+    /**
+     * A task that sorts a range of the array, sorting its two halves in parallel if it is
+     * larger than the grain size
+     */
+
+    private static final class SortTask extends RecursiveAction {
+
+        private Sortable data;
+        private int[] src;
+        private int[] dest;
+        private int low;
+        private int high;
+        private int grain;
+
+        public SortTask(Sortable data, int[] src, int[] dest, int low, int high, int grain) {
+            this.data = data;
+            this.src = src;
+            this.dest = dest;
+            this.low = low;
+            this.high = high;
+            this.grain = grain;
+        }
+
+        protected void compute() {
+            if (high - low <= grain) {
+                mergeSort(data, src, dest, low, high);
+            } else {
+                int mid = (low + high) >>> 1;
+                invokeAll(new SortTask(data, dest, src, low, mid, grain),
+                        new SortTask(data, dest, src, mid, high, grain));
+                merge(data, src, dest, low, mid, high);
+            }
+        }
+    }
+
+    /**
+     * A task that evaluates an expression for a range of the items, dividing the range between
+     * several threads if it is larger than the grain size. Each thread uses its own context, whose
+     * current iterator is positioned on the items in its part of the range.
+     */
+
+    private static final class EvaluationTask extends RecursiveAction {
+
+        private XPathContext context;
+        private Item[] items;
+        private int low;
+        private int high;
+        private int grain;
+        private ItemEvaluator evaluator;
+        private XPathException error;
+
+        public EvaluationTask(XPathContext context, Item[] items, int low, int high, int grain,
+                              ItemEvaluator evaluator) {
+            this.context = context;
+            this.items = items;
+            this.low = low;
+            this.high = high;
+            this.grain = grain;
+            this.evaluator = evaluator;
+        }
+
+        protected void compute() {
+            if (high - low <= grain) {
+                XPathContext c = context.newMinorContext();
+                SequenceIterator iter = new ArrayIterator(items, low, high);
+                c.setCurrentIterator(iter);
+                try {
+                    for (int i=low; i<high; i++) {
+                        iter.next();
+                        evaluator.evaluate(i, c);
+                    }
+                } catch (XPathException err) {
+                    error = err;
+                }
+            } else {
+                int mid = (low + high) >>> 1;
+                EvaluationTask first = new EvaluationTask(context, items, low, mid, grain, evaluator);
+                EvaluationTask second = new EvaluationTask(context, items, mid, high, grain, evaluator);
+                invokeAll(first, second);
+                error = (first.error != null ? first.error : second.error);
+            }
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
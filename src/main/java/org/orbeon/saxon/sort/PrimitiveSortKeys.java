@@ -0,0 +1,379 @@
+package org.orbeon.saxon.sort;
+
+import org.orbeon.saxon.expr.XPathContext;
+import org.orbeon.saxon.trans.NoDynamicContextException;
+import org.orbeon.saxon.value.*;
+
+import java.math.BigDecimal;
+
+/**
+ * This class holds the values of a single sort key for the items being sorted by a {@link SortedIterator},
+ * in the common cases where the values can be represented by Java primitives: numbers compared as doubles,
+ * xs:integer values that fit in a long, xs:dateTime values, and strings compared using the Unicode
+ * codepoint collation. Each value is held as a long (or a String) together with a byte giving its rank
+ * relative to empty and NaN values, and the items are sorted by sorting an array of item numbers using a
+ * stable merge sort (see {@link ParallelSorter}). Sorting in this way allocates no objects for each item, and avoids the calls on an
+ * {@link AtomicComparer} for each comparison.
+ *
+ * <p>If a sort key value is found that cannot be represented in this way, the caller reverts to the general
+ * sorting mechanism, using {@link #getKey} to recover values equivalent to the sort key values that have
+ * been added so far.</p>
+ */
+
+final class PrimitiveSortKeys implements Sortable {
+
+    // The kinds of value that can be held
+    private static final int NUMBER = 0;        // any value, converted to a double (data-type="number")
+    private static final int DOUBLE = 1;        // xs:double or xs:float
+    private static final int INTEGER = 2;       // xs:integer values within the range of a long
+    private static final int DATE_TIME = 3;     // xs:dateTime, held in microseconds
+    private static final int STRING = 4;        // xs:string (or any value, for data-type="text")
+
+    private int kind;
+    private boolean text;
+    private boolean emptyGreatest;
+    private boolean descending;
+    private XPathContext context;
+
+    private byte[] ranks;
+    private byte valueRank;         // the rank of the values that are compared by value, rather than
+                                    // being empty or NaN
+    private long[] values;
+    private String[] strings;
+
+    private PrimitiveSortKeys(int kind, XPathContext context) {
+        this.kind = kind;
+        this.context = context;
+    }
+
+    /**
+     * Decide whether sort key values compared using a given AtomicComparer can be handled by this class
+     * @param comparer the comparer for the (only) sort key
+     * @param context the dynamic context
+     * @param size the expected number of items
+     * @return a PrimitiveSortKeys object to hold the sort key values, or null if the comparer is not one
+     * that this class can handle
+     */
+
+    static PrimitiveSortKeys make(AtomicComparer comparer, XPathContext context, int size) {
+        boolean descending = false;
+        boolean emptyGreatest = false;
+        boolean text = false;
+        if (comparer instanceof DescendingComparer) {
+            descending = true;
+            comparer = ((DescendingComparer)comparer).getBaseComparer();
+        }
+        if (comparer instanceof EmptyGreatestComparer) {
+            emptyGreatest = true;
+            comparer = ((EmptyGreatestComparer)comparer).getBaseComparer();
+        }
+        if (comparer instanceof TextComparer) {
+            text = true;
+            comparer = ((TextComparer)comparer).getBaseComparer();
+        }
+        int kind;
+        if (comparer instanceof NumericComparer) {
+            kind = NUMBER;
+        } else if (comparer instanceof DoubleSortComparer) {
+            kind = DOUBLE;
+        } else if (comparer instanceof DecimalSortComparer) {
+            kind = INTEGER;
+        } else if (comparer instanceof CalendarValueComparer) {
+            kind = DATE_TIME;
+        } else if (comparer instanceof CodepointCollatingComparer) {
+            kind = STRING;
+        } else {
+            return null;
+        }
+        if (text && kind != STRING) {
+            return null;
+        }
+        PrimitiveSortKeys keys = new PrimitiveSortKeys(kind, context);
+        keys.descending = descending;
+        keys.emptyGreatest = emptyGreatest;
+        keys.text = text;
+        keys.valueRank = (byte)(kind == DOUBLE && !emptyGreatest ? 2 : 1);
+        keys.ranks = new byte[size];
+        if (kind == STRING) {
+            keys.strings = new String[size];
+        } else {
+            keys.values = new long[size];
+        }
+        return keys;
+    }
+
+    /**
+     * Add the sort key value for an item
+     * @param n the number of the item, which must be one more than the number of the previous item
+     * @param key the sort key value, or null if the sort key is empty
+     * @return true if the value was added; false if it cannot be represented, in which case the caller
+     * must revert to the general sorting mechanism
+     */
+
+    boolean add(int n, AtomicValue key) {
+        if (n == ranks.length) {
+            int size = n * 2 + 1;
+            byte[] r2 = new byte[size];
+            System.arraycopy(ranks, 0, r2, 0, n);
+            ranks = r2;
+            if (strings != null) {
+                String[] s2 = new String[size];
+                System.arraycopy(strings, 0, s2, 0, n);
+                strings = s2;
+            } else {
+                long[] v2 = new long[size];
+                System.arraycopy(values, 0, v2, 0, n);
+                values = v2;
+            }
+        }
+        // The rank distinguishes empty and NaN values from the others, which are compared by value.
+        // Empty values and NaN are less than other values, or (for "empty greatest") greater than them
+        final byte empty = (emptyGreatest ? (byte)3 : (byte)0);
+        final byte nan = (emptyGreatest ? (byte)2 : (byte)1);
+        switch (kind) {
+            case NUMBER: {
+                // empty and NaN are equal, and less than all other values
+                double d;
+                if (key instanceof NumericValue) {
+                    d = ((NumericValue)key).getDoubleValue();
+                } else if (key == null) {
+                    d = Double.NaN;
+                } else {
+                    try {
+                        d = Value.stringToNumber(key.getStringValueCS());
+                    } catch (NumberFormatException err) {
+                        d = Double.NaN;
+                    }
+                }
+                if (Double.isNaN(d)) {
+                    ranks[n] = 0;
+                } else {
+                    ranks[n] = 1;
+                    values[n] = sortableDouble(d);
+                }
+                return true;
+            }
+            case DOUBLE:
+                if (key == null) {
+                    ranks[n] = empty;
+                } else if (key instanceof DoubleValue || key instanceof FloatValue) {
+                    double d = ((NumericValue)key).getDoubleValue();
+                    if (Double.isNaN(d)) {
+                        ranks[n] = nan;
+                    } else {
+                        ranks[n] = valueRank;
+                        values[n] = sortableDouble(d);
+                    }
+                } else {
+                    return false;
+                }
+                return true;
+            case INTEGER:
+                if (key == null) {
+                    ranks[n] = empty;
+                } else if (key instanceof Int64Value) {
+                    ranks[n] = 1;
+                    values[n] = ((Int64Value)key).longValue();
+                } else {
+                    return false;
+                }
+                return true;
+            case DATE_TIME:
+                if (key == null) {
+                    ranks[n] = empty;
+                } else if (key instanceof DateTimeValue) {
+                    DateTimeValue dt = (DateTimeValue)key;
+                    int year = dt.getYear();
+                    if (year < 1 || year > 100000) {
+                        return false;
+                    }
+                    int tz;
+                    if (dt.hasTimezone()) {
+                        tz = dt.getTimezoneInMinutes();
+                    } else {
+                        try {
+                            tz = context.getImplicitTimezone();
+                        } catch (NoDynamicContextException err) {
+                            return false;
+                        }
+                    }
+                    long seconds = DateValue.getJulianDayNumber(year, dt.getMonth(), dt.getDay()) * (24L*60L*60L) +
+                            (dt.getHour() * 60L + dt.getMinute() - tz) * 60L + dt.getSecond();
+                    ranks[n] = 1;
+                    values[n] = seconds * 1000000L + dt.getMicrosecond();
+                } else {
+                    return false;
+                }
+                return true;
+            case STRING:
+                if (text) {
+                    ranks[n] = 1;
+                    strings[n] = (key == null ? "" : key.getStringValue());
+                } else if (key == null) {
+                    ranks[n] = empty;
+                } else if (key instanceof StringValue) {
+                    ranks[n] = 1;
+                    strings[n] = key.getStringValue();
+                } else {
+                    return false;
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get a sort key value equivalent to one that was added. The value compares with other values
+     * in the same way as the value originally supplied.
+     * @param n the number of the item
+     * @return the sort key value
+     */
+
+    AtomicValue getKey(int n) {
+        int rank = ranks[n];
+        if (kind == NUMBER) {
+            return (rank == 0 ? DoubleValue.NaN : new DoubleValue(unsortableDouble(values[n])));
+        }
+        if (rank == (emptyGreatest ? 3 : 0)) {
+            return null;
+        }
+        switch (kind) {
+            case DOUBLE:
+                return (rank == (emptyGreatest ? 2 : 1) ? DoubleValue.NaN : new DoubleValue(unsortableDouble(values[n])));
+            case INTEGER:
+                return Int64Value.makeIntegerValue(values[n]);
+            case DATE_TIME:
+                long micros = values[n];
+                BigDecimal instant = BigDecimal.valueOf(micros / 1000000L);
+                if (micros % 1000000L != 0) {
+                    instant = instant.add(BigDecimal.valueOf(micros % 1000000L, 6));
+                }
+                return DateTimeValue.fromJulianInstant(instant);
+            default:
+                return new StringValue(strings[n]);
+        }
+    }
+
+    /**
+     * Sort the items
+     * @param count the number of items
+     * @param parallel true if the sort is to be done using several threads
+     * @return an array holding the numbers of the items in sorted order. Items whose sort key values
+     * are equal remain in their original order.
+     */
+
+    int[] sort(int count, boolean parallel) {
+        return ParallelSorter.sort(this, count, parallel);
+    }
+
+    /**
+     * Compare the sort key values of two items
+     * @param a the number of the first item
+     * @param b the number of the second item
+     * @return a negative value, zero, or a positive value, according as the first item sorts before,
+     * equally with, or after the second
+     */
+
+    public int compare(int a, int b) {
+        int c = ranks[a] - ranks[b];
+        if (c == 0 && ranks[a] == valueRank) {
+            // empty and NaN values have no value to compare
+            if (strings != null) {
+                c = compareCodepoints(strings[a], strings[b]);
+            } else {
+                long x = values[a];
+                long y = values[b];
+                c = (x < y ? -1 : (x == y ? 0 : +1));
+            }
+        }
+        return (descending ? -c : c);
+    }
+
+    /**
+     * Swap the sort key values of two items
+     * @param a the number of the first item
+     * @param b the number of the second item
+     */
+
+    public void swap(int a, int b) {
+        byte r = ranks[a];
+        ranks[a] = ranks[b];
+        ranks[b] = r;
+        if (strings != null) {
+            String s = strings[a];
+            strings[a] = strings[b];
+            strings[b] = s;
+        } else {
+            long v = values[a];
+            values[a] = values[b];
+            values[b] = v;
+        }
+    }
+
+    /**
+     * Compare two strings by Unicode codepoint. This differs from String.compareTo() only where the
+     * first difference involves a surrogate character.
+     * @param s1 the first string
+     * @param s2 the second string
+     * @return a negative value, zero, or a positive value, according as the first string sorts before,
+     * equally with, or after the second
+     */
+
+    private static int compareCodepoints(String s1, String s2) {
+        int len = Math.min(s1.length(), s2.length());
+        for (int i=0; i<len; i++) {
+            char c1 = s1.charAt(i);
+            char c2 = s2.charAt(i);
+            if (c1 != c2) {
+                if (c1 >= 0xd800 && c2 >= 0xd800) {
+                    // surrogates (which represent codepoints above 0xffff) must sort after 0xe000-0xffff
+                    c1 += (c1 >= 0xe000 ? -0x800 : 0x2000);
+                    c2 += (c2 >= 0xe000 ? -0x800 : 0x2000);
+                }
+                return c1 - c2;
+            }
+        }
+        return s1.length() - s2.length();
+    }
+
+    /**
+     * Convert a double to a long whose signed ordering is the same as the numeric ordering of the doubles.
+     * The double must not be NaN; positive and negative zero are treated as equal.
+     * @param d the double
+     * @return the corresponding long
+     */
+
+    private static long sortableDouble(double d) {
+        long bits = Double.doubleToLongBits(d == 0.0 ? 0.0 : d);
+        return bits ^ ((bits >> 63) & 0x7fffffffffffffffL);
+    }
+
+    /**
+     * Reverse the conversion performed by {@link #sortableDouble}
+     * @param key the long value
+     * @return the original double
+     */
+
+    private static double unsortableDouble(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & 0x7fffffffffffffffL));
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
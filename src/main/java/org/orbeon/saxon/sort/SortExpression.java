@@ -27,6 +27,10 @@ public class SortExpression extends Expression
     private transient AtomicComparer[] comparators = null;
         // created early if all comparators can be created statically
         // transient because Java RuleBasedCollator is not serializable
+    private transient VariableReference[] parallelKeyVariables = null;
+    private transient boolean parallelKeysChecked = false;
+        // the variable references in the sort keys, if the sort keys can be evaluated in several threads;
+        // determined when first needed
 
     /**
      * Create a sort expression
@@ -455,6 +459,35 @@ public class SortExpression extends Expression
         return sortKeyDefinitions[n].getSortKey().evaluateItem(c);
     }
 
+    /**
+     * Determine whether the sort keys can safely be evaluated for different items in several threads at
+     * once. This is the case if they do not depend on the position of the item, and contain only
+     * expressions that neither bind local variables, nor call user-defined or extension functions, nor
+     * load documents, nor produce output as a side-effect.
+     * @return the variable references contained in the sort keys (the values of these variables must be
+     * fully evaluated before the sort keys are evaluated in parallel), or null if the sort keys must be
+     * evaluated in a single thread
+     */
+
+    VariableReference[] getParallelKeyVariables() {
+        if (!parallelKeysChecked) {
+            List variables = new ArrayList();
+            boolean safe = true;
+            for (int s = 0; s < sortKeyDefinitions.length && safe; s++) {
+                Expression key = sortKeyDefinitions[s].getSortKey();
+                safe = (key.getDependencies() &
+                        (StaticProperty.DEPENDS_ON_POSITION | StaticProperty.DEPENDS_ON_LAST)) == 0 &&
+                        ParallelSorter.isThreadSafe(key, variables);
+            }
+            if (safe) {
+                parallelKeyVariables = new VariableReference[variables.size()];
+                variables.toArray(parallelKeyVariables);
+            }
+            parallelKeysChecked = true;
+        }
+        return parallelKeyVariables;
+    }
+
     /**
      * Diagnostic print of expression structure. The abstract expression tree
      * is written to the supplied output destination.
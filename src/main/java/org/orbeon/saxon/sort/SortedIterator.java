@@ -2,7 +2,9 @@ package org.orbeon.saxon.sort;
 import org.orbeon.saxon.Configuration;
 import org.orbeon.saxon.expr.ErrorIterator;
 import org.orbeon.saxon.expr.LastPositionFinder;
+import org.orbeon.saxon.expr.VariableReference;
 import org.orbeon.saxon.expr.XPathContext;
+import org.orbeon.saxon.om.ArrayIterator;
 import org.orbeon.saxon.om.Item;
 import org.orbeon.saxon.om.LookaheadIterator;
 import org.orbeon.saxon.om.SequenceIterator;
@@ -207,15 +209,74 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
             allocated = 100;
         }
 
-        nodeKeys = new Object[allocated * recordSize];
         count = 0;
 
+        // If multithreading is allowed, and the sort keys can safely be evaluated in several threads,
+        // the items are read first so that their sort keys can be evaluated in parallel
+
+        if (sortKeyEvaluator instanceof SortExpression && context.getConfiguration().isMultiThreading()) {
+            VariableReference[] variables = ((SortExpression)sortKeyEvaluator).getParallelKeyVariables();
+            if (variables != null) {
+                buildArrayInParallel(variables, allocated);
+                return;
+            }
+        }
+
+        Item pendingItem = null;
+        Item pendingKey = null;
+
+        // With a single sort key whose values can be held as primitives, the items are read into
+        // an array and sorted immediately, without building records
+
+        if (comparators.length == 1) {
+            PrimitiveSortKeys keys = PrimitiveSortKeys.make(comparators[0], context, allocated);
+            if (keys != null) {
+                Item[] items = new Item[allocated];
+                while (true) {
+                    Item item = base.next();
+                    if (item == null) {
+                        setSortedItems(items, keys.sort(count, ParallelSorter.isWorthwhile(context, count)));
+                        return;
+                    }
+                    if (count == items.length) {
+                        Item[] i2 = new Item[count * 2 + 1];
+                        System.arraycopy(items, 0, i2, 0, count);
+                        items = i2;
+                    }
+                    Item key = sortKeyEvaluator.evaluateSortKey(0, context);
+                    if (!keys.add(count, (AtomicValue)key)) {
+                        // this sort key value can't be held as a primitive; revert to the general
+                        // mechanism for all the items
+                        allocated = Math.max(allocated, count + 1);
+                        nodeKeys = new Object[allocated * recordSize];
+                        for (int i=0; i<count; i++) {
+                            int k = i*recordSize;
+                            nodeKeys[k] = items[i];
+                            nodeKeys[k+1] = keys.getKey(i);
+                            nodeKeys[k+2] = new Integer(i);
+                        }
+                        pendingItem = item;
+                        pendingKey = key;
+                        break;
+                    }
+                    items[count++] = item;
+                }
+            }
+        }
+
+        if (nodeKeys == null) {
+            nodeKeys = new Object[allocated * recordSize];
+        }
+
         // initialise the array with data
 
         while (true) {
-            Item item = base.next();
+            Item item = pendingItem;
             if (item == null) {
-                break;
+                item = base.next();
+                if (item == null) {
+                    break;
+                }
             }
             if (count==allocated) {
                 allocated *= 2;
@@ -228,8 +289,14 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
             // TODO: delay evaluating the sort keys until we know they are needed. Often the 2nd and subsequent
             // sort key values will never be used. The only problem is with sort keys that depend on position().
             for (int n=0; n<comparators.length; n++) {
-                nodeKeys[k+n+1] = sortKeyEvaluator.evaluateSortKey(n, context);
+                if (pendingItem != null) {
+                    // the item, and its only sort key, are left over from the attempt to use primitive keys
+                    nodeKeys[k+n+1] = pendingKey;
+                } else {
+                    nodeKeys[k+n+1] = sortKeyEvaluator.evaluateSortKey(n, context);
+                }
             }
+            pendingItem = null;
             // make the sort stable by adding the record number
             nodeKeys[k+comparators.length+1] = new Integer(count);
             count++;
@@ -244,15 +311,116 @@ public class SortedIterator implements SequenceIterator, LastPositionFinder, Loo
         }
     }
 
+    /**
+     * Create the array holding the items to be sorted and the values of their sort keys, reading all the
+     * items before evaluating their sort keys, so that the sort keys can be evaluated in several threads
+     * @param variables the variables referenced in the sort keys
+     * @param allocated the initial size of the array used to hold the items
+     * @throws XPathException if a dynamic error occurs
+     */
+
+    private void buildArrayInParallel(VariableReference[] variables, int allocated) throws XPathException {
+        Item[] items = new Item[allocated];
+        boolean threadSafe = true;
+        while (true) {
+            Item item = base.next();
+            if (item == null) {
+                break;
+            }
+            if (count == items.length) {
+                Item[] i2 = new Item[count * 2 + 1];
+                System.arraycopy(items, 0, i2, 0, count);
+                items = i2;
+            }
+            // only the TinyTree is known to be safe for navigation by several threads at once
+            threadSafe &= ParallelSorter.isThreadSafe(item);
+            items[count++] = item;
+        }
+        if (count == 0) {
+            nodeKeys = new Object[0];
+            return;
+        }
+
+        nodeKeys = new Object[count * recordSize];
+        for (int i=0; i<count; i++) {
+            int k = i*recordSize;
+            nodeKeys[k] = items[i];
+            // make the sort stable by adding the record number
+            nodeKeys[k+comparators.length+1] = new Integer(i);
+        }
+
+        if (threadSafe && ParallelSorter.isWorthwhile(context, count) &&
+                ParallelSorter.prepareForParallelEvaluation(context, variables)) {
+            final Object[] keys = nodeKeys;
+            ParallelSorter.evaluate(context, items, count, new ParallelSorter.ItemEvaluator() {
+                public void evaluate(int i, XPathContext c) throws XPathException {
+                    int k = i*recordSize;
+                    for (int n=0; n<comparators.length; n++) {
+                        keys[k+n+1] = sortKeyEvaluator.evaluateSortKey(n, c);
+                    }
+                }
+            });
+        } else {
+            SequenceIterator iter = new ArrayIterator(items, 0, count);
+            context.setCurrentIterator(iter);
+            for (int i=0; i<count; i++) {
+                iter.next();
+                int k = i*recordSize;
+                for (int n=0; n<comparators.length; n++) {
+                    nodeKeys[k+n+1] = sortKeyEvaluator.evaluateSortKey(n, context);
+                }
+            }
+        }
+
+        if (comparators.length == 1) {
+            PrimitiveSortKeys keys = PrimitiveSortKeys.make(comparators[0], context, count);
+            if (keys != null) {
+                for (int i=0; i<count; i++) {
+                    if (!keys.add(i, (AtomicValue)nodeKeys[i*recordSize+1])) {
+                        return;
+                    }
+                }
+                setSortedItems(items, keys.sort(count, ParallelSorter.isWorthwhile(context, count)));
+            }
+        }
+    }
+
+    /**
+     * Replace the records with the items alone, in sorted order
+     * @param items the items, in their original order
+     * @param order the numbers of the items in sorted order
+     */
+
+    private void setSortedItems(Item[] items, int[] order) {
+        nodeKeys = new Object[count];
+        for (int i=0; i<count; i++) {
+            nodeKeys[i] = items[order[i]];
+        }
+        // each "record" now holds only the item, and the records are in sorted order
+        recordSize = 1;
+    }
+
     private void doSort() throws XPathException {
         buildArray();
-        if (count<2) return;
+        if (count<2 || recordSize == 1) {
+            // nothing to sort, or the items were sorted while building the array
+            return;
+        }
 
         // sort the array
 
         //QuickSort.sort(this, 0, count-1);
         try {
-            GenericSorter.quickSort(0, count, this);
+            if (ParallelSorter.isWorthwhile(context, count)) {
+                int[] order = ParallelSorter.sort(this, count, true);
+                Object[] nk2 = new Object[count * recordSize];
+                for (int i=0; i<count; i++) {
+                    System.arraycopy(nodeKeys, order[i]*recordSize, nk2, i*recordSize, recordSize);
+                }
+                nodeKeys = nk2;
+            } else {
+                GenericSorter.quickSort(0, count, this);
+            }
         } catch (ClassCastException e) {
             //e.printStackTrace();
             XPathException err = new XPathException("Non-comparable types found while sorting: " + e.getMessage());
@@ -0,0 +1,496 @@
+package org.orbeon.saxon.style;
+
+import org.orbeon.saxon.AugmentedSource;
+import org.orbeon.saxon.event.LocationProvider;
+import org.orbeon.saxon.event.PipelineConfiguration;
+import org.orbeon.saxon.event.ProxyReceiver;
+import org.orbeon.saxon.event.Receiver;
+import org.orbeon.saxon.om.NamePool;
+import org.orbeon.saxon.trans.XPathException;
+import org.xml.sax.InputSource;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed stylesheet modules, shared by all the stylesheets compiled under a Configuration.
+ * When a stylesheet module is loaded (as the principal module, or by xsl:include or xsl:import), the
+ * events that reach the tree builder, after XML parsing, stripping of comments and whitespace, and
+ * filtering of use-when attributes, are recorded in the cache. When the same module is loaded again,
+ * the recorded events are replayed to build the new tree, so that a library module imported by many
+ * stylesheets is parsed only once. Each stylesheet still gets its own tree, since the tree is modified
+ * as the stylesheet is compiled.
+ *
+ * <p>Only modules read from files, identified by an absolute file URI, are cached; a module is reloaded
+ * if the last-modified time of the file has changed since it was recorded. Modules supplied as streams, or
+ * with additional filters (for example a fragment identifier), are always parsed. The cache assumes that
+ * the result of evaluating use-when attributes in a module does not vary between compilations.</p>
+ *
+ * <p>The recorded events hold name codes and namespace codes allocated in the NamePool that was in use
+ * when the module was recorded. A module is therefore not replayed to a tree builder that uses a different
+ * NamePool, as happens after {@link org.orbeon.saxon.Configuration#setNamePool} has been called: it is
+ * parsed again, and the new recording replaces the old one.</p>
+ *
+ * <p>The cache holds a fixed maximum number of modules, discarding the least recently used. It may be used
+ * by several threads at once.</p>
+ */
+
+public final class StylesheetModuleCache {
+
+    private int maximumEntries;
+    // the recorded modules, in order of last use (guarded by this)
+    private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a cache of stylesheet modules
+     * @param maximumEntries the maximum number of modules held in the cache
+     */
+
+    public StylesheetModuleCache(int maximumEntries) {
+        this.maximumEntries = maximumEntries;
+    }
+
+    /**
+     * Get the maximum number of modules held in the cache
+     * @return the maximum number of modules
+     */
+
+    public synchronized int getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    /**
+     * Get the number of modules held in the cache
+     * @return the number of modules
+     */
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all modules from the cache
+     */
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get the number of module loads that were satisfied from the cache
+     * @return the number of hits
+     */
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of module loads for cacheable modules that required the module to be parsed
+     * @return the number of misses
+     */
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the key under which a stylesheet module is held in the cache
+     * @param source the Source of the stylesheet module
+     * @return the absolute URI of the module, or null if the module cannot be cached: for example because
+     * it is supplied as a stream, or is not a file
+     */
+
+    public static String getCacheKey(Source source) {
+        String systemId = source.getSystemId();
+        if (systemId == null || !systemId.startsWith("file:")) {
+            return null;
+        }
+        if (source instanceof StreamSource) {
+            StreamSource ss = (StreamSource)source;
+            if (ss.getInputStream() != null || ss.getReader() != null) {
+                return null;
+            }
+        } else if (source instanceof SAXSource) {
+            InputSource is = ((SAXSource)source).getInputSource();
+            if (is == null || is.getByteStream() != null || is.getCharacterStream() != null ||
+                    ((SAXSource)source).getXMLReader() != null) {
+                return null;
+            }
+        } else if (!(source instanceof AugmentedSource)) {
+            return null;
+        }
+        if (source instanceof AugmentedSource) {
+            AugmentedSource as = (AugmentedSource)source;
+            if ((as.getFilters() != null && !as.getFilters().isEmpty()) || as.getXMLReader() != null) {
+                return null;
+            }
+            return getCacheKey(as.getContainedSource());
+        }
+        return systemId;
+    }
+
+    /**
+     * Build the tree for a stylesheet module from the cache, if it is present
+     * @param key the key of the module, as returned by {@link #getCacheKey}
+     * @param out the tree builder
+     * @return true if the module was present in the cache, and has been sent to the tree builder;
+     * false if it is not present, has been modified since it was recorded, or was recorded using a
+     * different NamePool from the one used by the tree builder
+     * @throws XPathException if tree construction fails
+     */
+
+    public boolean replay(String key, Receiver out) throws XPathException {
+        Module module;
+        synchronized (this) {
+            module = (Module)entries.get(key);
+            if (module != null && (module.modified != lastModified(key) ||
+                    module.pool != out.getPipelineConfiguration().getConfiguration().getNamePool())) {
+                entries.remove(key);
+                module = null;
+            }
+            if (module == null) {
+                misses++;
+                return false;
+            }
+            hits++;
+        }
+        module.replay(out);
+        return true;
+    }
+
+    /**
+     * Make a Receiver that records the events for a stylesheet module as they are passed to the tree builder
+     * @param key the key of the module, as returned by {@link #getCacheKey}
+     * @param pool the NamePool used by the tree builder, in which the recorded name codes are allocated
+     * @return a Recorder. Once the module has been successfully built, the Recorder should be passed to
+     * {@link #add}
+     */
+
+    public Recorder makeRecorder(String key, NamePool pool) {
+        Recorder recorder = new Recorder();
+        recorder.module = new Module(key, lastModified(key), pool);
+        return recorder;
+    }
+
+    /**
+     * Add a recorded module to the cache
+     * @param recorder the Recorder that recorded the events for the module
+     */
+
+    public synchronized void add(Recorder recorder) {
+        Module module = recorder.module;
+        module.trim();
+        entries.put(module.key, module);
+        Iterator iter = entries.values().iterator();
+        while (entries.size() > maximumEntries && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    private static long lastModified(String uri) {
+        try {
+            return new File(new URI(uri)).lastModified();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A filter that records the events passing through it, as well as passing them on
+     */
+
+    public static final class Recorder extends ProxyReceiver {
+
+        private Module module;
+
+        public void open() throws XPathException {
+            module.add(Module.OPEN, 0, 0, null, -1, 0);
+            super.open();
+        }
+
+        public void startDocument(int properties) throws XPathException {
+            module.add(Module.START_DOCUMENT, 0, 0, null, -1, properties);
+            super.startDocument(properties);
+        }
+
+        public void endDocument() throws XPathException {
+            module.add(Module.END_DOCUMENT, 0, 0, null, -1, 0);
+            super.endDocument();
+        }
+
+        public void startElement(int nameCode, int typeCode, int locationId, int properties) throws XPathException {
+            module.add(Module.START_ELEMENT, nameCode, typeCode, null, location(locationId), properties);
+            super.startElement(nameCode, typeCode, locationId, properties);
+        }
+
+        public void namespace(int namespaceCode, int properties) throws XPathException {
+            module.add(Module.NAMESPACE, namespaceCode, 0, null, -1, properties);
+            super.namespace(namespaceCode, properties);
+        }
+
+        public void attribute(int nameCode, int typeCode, CharSequence value, int locationId, int properties)
+                throws XPathException {
+            module.add(Module.ATTRIBUTE, nameCode, typeCode, value.toString(), location(locationId), properties);
+            super.attribute(nameCode, typeCode, value, locationId, properties);
+        }
+
+        public void startContent() throws XPathException {
+            module.add(Module.START_CONTENT, 0, 0, null, -1, 0);
+            super.startContent();
+        }
+
+        public void endElement() throws XPathException {
+            module.add(Module.END_ELEMENT, 0, 0, null, -1, 0);
+            super.endElement();
+        }
+
+        public void characters(CharSequence chars, int locationId, int properties) throws XPathException {
+            module.add(Module.CHARACTERS, 0, 0, chars.toString(), location(locationId), properties);
+            super.characters(chars, locationId, properties);
+        }
+
+        public void processingInstruction(String target, CharSequence data, int locationId, int properties)
+                throws XPathException {
+            module.add(Module.PROCESSING_INSTRUCTION, 0, 0, target + ' ' + data, location(locationId), properties);
+            super.processingInstruction(target, data, locationId, properties);
+        }
+
+        public void comment(CharSequence chars, int locationId, int properties) throws XPathException {
+            module.add(Module.COMMENT, 0, 0, chars.toString(), location(locationId), properties);
+            super.comment(chars, locationId, properties);
+        }
+
+        public void close() throws XPathException {
+            module.add(Module.CLOSE, 0, 0, null, -1, 0);
+            super.close();
+        }
+
+        /**
+         * Record the location of the current event, as reported by the parser
+         * @param locationId the location identifier supplied with the event
+         * @return the number of the recorded location
+         */
+
+        private int location(int locationId) {
+            LocationProvider provider = getPipelineConfiguration().getLocationProvider();
+            if (provider == null) {
+                return -1;
+            }
+            return module.addLocation(provider.getSystemId(locationId),
+                    provider.getLineNumber(locationId), provider.getColumnNumber(locationId));
+        }
+    }
+
+    /**
+     * The recorded events for one stylesheet module. The module acts as the LocationProvider for the
+     * events when they are replayed: the location identifier of each event is the number of its
+     * recorded location.
+     */
+
+    private static final class Module implements LocationProvider {
+
+        static final int OPEN = 0;
+        static final int START_DOCUMENT = 1;
+        static final int END_DOCUMENT = 2;
+        static final int START_ELEMENT = 3;
+        static final int NAMESPACE = 4;
+        static final int ATTRIBUTE = 5;
+        static final int START_CONTENT = 6;
+        static final int END_ELEMENT = 7;
+        static final int CHARACTERS = 8;
+        static final int PROCESSING_INSTRUCTION = 9;
+        static final int COMMENT = 10;
+        static final int CLOSE = 11;
+
+        String key;
+        long modified;
+        NamePool pool;
+
+        private int count = 0;
+        private byte[] kinds = new byte[256];
+        private int[] codes = new int[256];
+        private int[] types = new int[256];
+        private int[] locations = new int[256];
+        private int[] properties = new int[256];
+        private String[] values = new String[256];
+
+        private int locationCount = 0;
+        private String[] systemIds = new String[64];
+        private int[] lineNumbers = new int[64];
+        private int[] columnNumbers = new int[64];
+
+        public Module(String key, long modified, NamePool pool) {
+            this.key = key;
+            this.modified = modified;
+            this.pool = pool;
+        }
+
+        void add(int kind, int code, int type, String value, int location, int props) {
+            if (count == kinds.length) {
+                grow(count * 2);
+            }
+            kinds[count] = (byte)kind;
+            codes[count] = code;
+            types[count] = type;
+            values[count] = value;
+            locations[count] = location;
+            properties[count] = props;
+            count++;
+        }
+
+        int addLocation(String systemId, int lineNumber, int columnNumber) {
+            int last = locationCount - 1;
+            if (last >= 0 && lineNumbers[last] == lineNumber && columnNumbers[last] == columnNumber &&
+                    (systemIds[last] == null ? systemId == null : systemIds[last].equals(systemId))) {
+                return last;
+            }
+            if (locationCount == systemIds.length) {
+                String[] s2 = new String[locationCount * 2];
+                System.arraycopy(systemIds, 0, s2, 0, locationCount);
+                systemIds = s2;
+                int[] l2 = new int[locationCount * 2];
+                System.arraycopy(lineNumbers, 0, l2, 0, locationCount);
+                lineNumbers = l2;
+                int[] c2 = new int[locationCount * 2];
+                System.arraycopy(columnNumbers, 0, c2, 0, locationCount);
+                columnNumbers = c2;
+            }
+            // share the string when it is the same as the previous one
+            systemIds[locationCount] = (last >= 0 && systemId != null && systemId.equals(systemIds[last]) ?
+                    systemIds[last] : systemId);
+            lineNumbers[locationCount] = lineNumber;
+            columnNumbers[locationCount] = columnNumber;
+            return locationCount++;
+        }
+
+        private void grow(int size) {
+            byte[] k2 = new byte[size];
+            System.arraycopy(kinds, 0, k2, 0, count);
+            kinds = k2;
+            int[] c2 = new int[size];
+            System.arraycopy(codes, 0, c2, 0, count);
+            codes = c2;
+            int[] t2 = new int[size];
+            System.arraycopy(types, 0, t2, 0, count);
+            types = t2;
+            int[] l2 = new int[size];
+            System.arraycopy(locations, 0, l2, 0, count);
+            locations = l2;
+            int[] p2 = new int[size];
+            System.arraycopy(properties, 0, p2, 0, count);
+            properties = p2;
+            String[] v2 = new String[size];
+            System.arraycopy(values, 0, v2, 0, count);
+            values = v2;
+        }
+
+        /**
+         * Release unused space in the arrays, once recording is complete
+         */
+
+        void trim() {
+            if (count < kinds.length) {
+                grow(count);
+            }
+        }
+
+        /**
+         * Send the recorded events to a Receiver
+         * @param out the Receiver
+         * @throws XPathException if the Receiver fails
+         */
+
+        void replay(Receiver out) throws XPathException {
+            PipelineConfiguration pipe = out.getPipelineConfiguration();
+            LocationProvider savedProvider = pipe.getLocationProvider();
+            pipe.setLocationProvider(this);
+            try {
+                for (int i=0; i<count; i++) {
+                    switch (kinds[i]) {
+                        case OPEN:
+                            out.open();
+                            break;
+                        case START_DOCUMENT:
+                            out.startDocument(properties[i]);
+                            break;
+                        case END_DOCUMENT:
+                            out.endDocument();
+                            break;
+                        case START_ELEMENT:
+                            out.startElement(codes[i], types[i], locations[i], properties[i]);
+                            break;
+                        case NAMESPACE:
+                            out.namespace(codes[i], properties[i]);
+                            break;
+                        case ATTRIBUTE:
+                            out.attribute(codes[i], types[i], values[i], locations[i], properties[i]);
+                            break;
+                        case START_CONTENT:
+                            out.startContent();
+                            break;
+                        case END_ELEMENT:
+                            out.endElement();
+                            break;
+                        case CHARACTERS:
+                            out.characters(values[i], locations[i], properties[i]);
+                            break;
+                        case PROCESSING_INSTRUCTION: {
+                            String pi = values[i];
+                            int sp = pi.indexOf(' ');
+                            out.processingInstruction(pi.substring(0, sp), pi.substring(sp+1), locations[i], properties[i]);
+                            break;
+                        }
+                        case COMMENT:
+                            out.comment(values[i], locations[i], properties[i]);
+                            break;
+                        case CLOSE:
+                            out.close();
+                            break;
+                    }
+                }
+            } finally {
+                pipe.setLocationProvider(savedProvider);
+            }
+        }
+
+        public String getSystemId(long locationId) {
+            return (locationId < 0 || locationId >= locationCount ? null : systemIds[(int)locationId]);
+        }
+
+        public int getLineNumber(long locationId) {
+            return (locationId < 0 || locationId >= locationCount ? -1 : lineNumbers[(int)locationId]);
+        }
+
+        public int getColumnNumber(long locationId) {
+            return (locationId < 0 || locationId >= locationCount ? -1 : columnNumbers[(int)locationId]);
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
@@ -17,7 +17,10 @@ import org.orbeon.saxon.type.SchemaException;
 import org.orbeon.saxon.type.Type;
 import org.orbeon.saxon.value.Whitespace;
 
+import javax.xml.transform.TransformerException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * An xsl:stylesheet or xsl:transform element in the stylesheet. <br>
@@ -1081,14 +1084,18 @@ public class XSLStylesheet extends StyleElement {
 
             // Call compile method for each top-level object in the stylesheet
 
-            for (int i = 0; i < topLevel.size(); i++) {
-                NodeInfo node = (NodeInfo) topLevel.get(i);
-                if (node instanceof StyleElement) {
-                    StyleElement snode = (StyleElement) node;
-                    //int module = putModuleNumber(snode.getSystemId());
-                    Expression inst = snode.compile(exec);
-                    if (inst != null) {
-                        inst.setLocationId(allocateLocationId(getSystemId(), snode.getLineNumber()));
+            if (getConfiguration().isMultiThreading() && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                compileTopLevelInParallel();
+            } else {
+                for (int i = 0; i < topLevel.size(); i++) {
+                    NodeInfo node = (NodeInfo) topLevel.get(i);
+                    if (node instanceof StyleElement) {
+                        StyleElement snode = (StyleElement) node;
+                        //int module = putModuleNumber(snode.getSystemId());
+                        Expression inst = snode.compile(exec);
+                        if (inst != null) {
+                            inst.setLocationId(allocateLocationId(getSystemId(), snode.getLineNumber()));
+                        }
                     }
                 }
             }
@@ -1204,6 +1211,142 @@ public class XSLStylesheet extends StyleElement {
 
     }
 
+    /**
+     * Compile the top-level declarations of the stylesheet using several threads. The declarations other
+     * than templates are compiled first, one at a time in document order: compiling a function or global
+     * variable binds the references to it, which may be anywhere in the stylesheet. The bodies of the
+     * templates are then compiled in parallel, and finally each template is completed, which includes
+     * the extraction of global variables, and registered with the rule manager in document order. The
+     * optimizer may add keys to the key manager while the template bodies are being compiled: see
+     * {@link XSLTemplate#compileBody}. Errors and warnings are held back while this is done, and are then
+     * reported in the order of the declarations in which they occurred, so that the outcome is the same
+     * from one run to the next.
+     * @throws XPathException if compilation fails, in which case the errors that have been found in
+     * preceding declarations will already have been reported
+     */
+
+    private void compileTopLevelInParallel() throws XPathException {
+        final int n = topLevel.size();
+        final PreparedStylesheet pss = getPreparedStylesheet();
+        final List[] reports = new List[n];
+        final Exception[] failures = new Exception[n];
+
+        // ensure the optimizer exists before the threads that use it are started
+        getConfiguration().getOptimizer();
+
+        List templates = new ArrayList(n);
+        for (int i = 0; i < n; i++) {
+            NodeInfo node = (NodeInfo) topLevel.get(i);
+            if (node instanceof XSLTemplate) {
+                templates.add(new Integer(i));
+                reports[i] = new ArrayList(4);
+            } else if (node instanceof StyleElement) {
+                StyleElement snode = (StyleElement) node;
+                reports[i] = new ArrayList(4);
+                List previous = pss.deferReports(reports[i]);
+                try {
+                    Expression inst = snode.compile(exec);
+                    if (inst != null) {
+                        inst.setLocationId(allocateLocationId(getSystemId(), snode.getLineNumber()));
+                    }
+                } catch (XPathException err) {
+                    failures[i] = err;
+                } catch (RuntimeException err) {
+                    failures[i] = err;
+                } finally {
+                    pss.deferReports(previous);
+                }
+                if (failures[i] != null) {
+                    // the declarations that follow would not have been compiled
+                    break;
+                }
+            }
+        }
+
+        if (!templates.isEmpty()) {
+            int[] positions = new int[templates.size()];
+            for (int t = 0; t < positions.length; t++) {
+                positions[t] = ((Integer)templates.get(t)).intValue();
+            }
+            ForkJoinPool.commonPool().invoke(
+                    new TemplateCompilationTask(positions, 0, positions.length, reports, failures));
+        }
+
+        for (int i = 0; i < n; i++) {
+            Object node = topLevel.get(i);
+            if (reports[i] == null) {
+                continue;
+            }
+            if (node instanceof XSLTemplate && failures[i] == null) {
+                List previous = pss.deferReports(reports[i]);
+                try {
+                    ((XSLTemplate)node).completeCompilation();
+                } catch (XPathException err) {
+                    failures[i] = err;
+                } catch (RuntimeException err) {
+                    failures[i] = err;
+                } finally {
+                    pss.deferReports(previous);
+                }
+            }
+            try {
+                pss.reportDeferredErrors(reports[i]);
+            } catch (TransformerException err) {
+                throw XPathException.makeXPathException(err);
+            }
+            if (failures[i] instanceof XPathException) {
+                throw (XPathException)failures[i];
+            } else if (failures[i] != null) {
+                throw (RuntimeException)failures[i];
+            }
+        }
+    }
+
+    /**
+     * A task that compiles the bodies of a range of templates, dividing the range between two
+     * threads if it contains more than one template. The errors and warnings for each template are
+     * held back in the list for its position among the top-level declarations.
+     */
+
+    private class TemplateCompilationTask extends RecursiveAction {
+
+        private int[] positions;
+        private int low;
+        private int high;
+        private List[] reports;
+        private Exception[] failures;
+
+        public TemplateCompilationTask(int[] positions, int low, int high,
+                                       List[] reports, Exception[] failures) {
+            this.positions = positions;
+            this.low = low;
+            this.high = high;
+            this.reports = reports;
+            this.failures = failures;
+        }
+
+        protected void compute() {
+            if (high - low == 1) {
+                int i = positions[low];
+                PreparedStylesheet pss = getPreparedStylesheet();
+                List previous = pss.deferReports(reports[i]);
+                try {
+                    ((XSLTemplate)topLevel.get(i)).compileBody(exec);
+                } catch (XPathException err) {
+                    failures[i] = err;
+                } catch (RuntimeException err) {
+                    failures[i] = err;
+                } finally {
+                    pss.deferReports(previous);
+                }
+            } else {
+                int mid = (low + high) >>> 1;
+                invokeAll(new TemplateCompilationTask(positions, low, mid, reports, failures),
+                        new TemplateCompilationTask(positions, mid, high, reports, failures));
+            }
+        }
+    }
+
     /**
      * Dummy compile() method to satisfy the interface
      */
@@ -1219,7 +1362,7 @@ public class XSLStylesheet extends StyleElement {
      * @return an integer that uniquely identifies this parameter name within the stylesheet
      */
 
-    public int allocateUniqueParameterNumber(StructuredQName qName) {
+    public synchronized int allocateUniqueParameterNumber(StructuredQName qName) {
         if (localParameterNumbers == null) {
             localParameterNumbers = new HashMap(50);
         }
@@ -285,6 +285,24 @@ public final class XSLTemplate extends StyleElement implements StylesheetProcedu
     */
 
     public Expression compile(Executable exec) throws XPathException {
+        compileBody(exec);
+        completeCompilation();
+        return null;
+    }
+
+    /**
+     * Compile, type-check and optimize the body of the template. The bodies of several templates may be
+     * compiled at once in different threads. The state shared with other declarations that this touches
+     * is the location map, the numbering of local parameters, the deferred error reports, and the key
+     * manager, to which the optimizer adds a key when it rewrites a filter expression as a call on key().
+     * Each of these is updated by one synchronized method, which for the key manager both chooses the
+     * key's name and registers it. Changes that would write into the executable's global variables are
+     * left to {@link #completeCompilation}, which must follow this call and runs in one thread.
+     * @param exec the Executable
+     * @throws XPathException if a static error is found
+     */
+
+    protected void compileBody(Executable exec) throws XPathException {
 
         Expression block = compileSequenceConstructor(exec, iterateAxis(Axis.CHILD), true);
         if (block == null) {
@@ -350,6 +368,18 @@ public final class XSLTemplate extends StyleElement implements StylesheetProcedu
         } catch (XPathException e) {
             compileError(e);
         }
+    }
+
+    /**
+     * Complete the compilation of the template, after its body has been compiled: extract global
+     * variables from the body, allocate slots for local variables, and register the template with
+     * the rule manager. This must be done for one template at a time, in document order.
+     * @throws XPathException if a static error is found
+     */
+
+    protected void completeCompilation() throws XPathException {
+        Expression exp = compiledTemplate.getBody();
+        ExpressionVisitor visitor = makeExpressionVisitor();
 
         // Try to extract new global variables from the body of the function
 //        ExpressionPresenter presenter = ExpressionPresenter.make(getConfiguration());
@@ -384,8 +414,6 @@ public final class XSLTemplate extends StyleElement implements StylesheetProcedu
                     getLineNumber() + " in " + getSystemId() + ':');
             exp.explain(System.err);
         }
-
-        return null;
     }
 
 
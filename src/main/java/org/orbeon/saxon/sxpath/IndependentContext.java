@@ -196,6 +196,16 @@ public class IndependentContext extends AbstractStaticContext
         return var;
     }
 
+    /**
+     * Get an iterator over all the variables that have been declared, either explicitly by an
+     * application call on declareVariable(), or implicitly
+     * @return an iterator over the declared variables; the items are instances of {@link XPathVariable}
+     */
+
+    public Iterator iterateExternalVariables() {
+        return variables.values().iterator();
+    }
+
     /**
      * Get the slot number allocated to a particular variable
      * @param qname the name of the variable
@@ -164,6 +164,21 @@ public class XPathEvaluator {
     */
 
     public XPathExpression createExpression(String expression) throws XPathException {
+        XPathExpressionCache cache = getConfiguration().getXPathExpressionCache();
+        if (cache != null) {
+            return cache.get(expression, false, this);
+        }
+        return compileExpression(expression);
+    }
+
+    /**
+     * Compile an XPath expression, without using the cache of compiled expressions
+     * @param expression The XPath expression to be compiled, supplied as a string.
+     * @return an XPathExpression object representing the prepared expression
+     * @throws XPathException if the expression contains static errors
+     */
+
+    XPathExpression compileExpression(String expression) throws XPathException {
         Expression exp = ExpressionTool.make(expression, staticContext, 0, -1, 1, false);
         exp.setContainer(staticContext);
         ExpressionVisitor visitor = ExpressionVisitor.make(staticContext);
@@ -190,6 +205,21 @@ public class XPathEvaluator {
      */
 
     public XPathExpression createPattern(String pattern) throws XPathException {
+        XPathExpressionCache cache = getConfiguration().getXPathExpressionCache();
+        if (cache != null) {
+            return cache.get(pattern, true, this);
+        }
+        return compilePattern(pattern);
+    }
+
+    /**
+     * Compile an XSLT pattern, without using the cache of compiled expressions
+     * @param pattern the XSLT pattern to be compiled, supplied as a string
+     * @return an XPathExpression object representing the pattern, wrapped as an expression
+     * @throws XPathException if the pattern contains static errors
+     */
+
+    XPathExpression compilePattern(String pattern) throws XPathException {
         Pattern pat = Pattern.make(pattern, staticContext, staticContext.getExecutable());
         ExpressionVisitor visitor = ExpressionVisitor.make(staticContext);
         pat.analyze(visitor, Type.NODE_TYPE);
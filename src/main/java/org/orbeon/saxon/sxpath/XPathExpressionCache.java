@@ -0,0 +1,321 @@
+package org.orbeon.saxon.sxpath;
+
+import org.orbeon.saxon.functions.ConstructorFunctionLibrary;
+import org.orbeon.saxon.functions.FunctionLibrary;
+import org.orbeon.saxon.functions.FunctionLibraryList;
+import org.orbeon.saxon.instruct.Executable;
+import org.orbeon.saxon.om.FastStringBuffer;
+import org.orbeon.saxon.om.NamespaceResolver;
+import org.orbeon.saxon.trans.XPathException;
+
+import java.util.*;
+
+/**
+ * A cache of compiled XPath expressions, shared by all the {@link XPathEvaluator} objects (and therefore all
+ * the s9api {@link org.orbeon.saxon.s9api.XPathCompiler} objects) that use a given Configuration. When
+ * an expression is compiled, the cache is searched for an expression with the same text that was compiled in
+ * an equivalent static context, and if one is found, it is returned instead of compiling the expression again.
+ *
+ * <p>Two static contexts are equivalent if they have the same base URI, default element and function namespaces,
+ * default collation, backwards compatibility mode, in-scope namespaces, imported schema namespaces, and declared
+ * variables (with the same names, required types, and slot numbers), and if they use the same function
+ * libraries. Only static contexts that are instances of {@link IndependentContext} can be compared in this way,
+ * and contexts in which collations have been declared are excluded; expressions compiled in other contexts are
+ * not cached.</p>
+ *
+ * <p>The cache holds a fixed maximum number of expressions, discarding the least recently used when it is full.
+ * It may be used by several threads at once. Compiled expressions are immutable and can safely be evaluated in
+ * several threads at once, each with its own dynamic context.</p>
+ */
+
+public final class XPathExpressionCache {
+
+    private int maximumEntries;
+    // the compiled expressions, in order of last use (guarded by this)
+    private LinkedHashMap entries = new LinkedHashMap(64, 0.75f, true);
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a cache of compiled XPath expressions
+     * @param maximumEntries the maximum number of expressions held in the cache
+     */
+
+    public XPathExpressionCache(int maximumEntries) {
+        this.maximumEntries = maximumEntries;
+    }
+
+    /**
+     * Set the maximum number of expressions held in the cache. If the cache currently holds more
+     * than this number, the least recently used are discarded.
+     * @param maximumEntries the maximum number of expressions
+     */
+
+    public synchronized void setMaximumEntries(int maximumEntries) {
+        this.maximumEntries = maximumEntries;
+        evict();
+    }
+
+    /**
+     * Get the maximum number of expressions held in the cache
+     * @return the maximum number of expressions
+     */
+
+    public synchronized int getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    /**
+     * Get the number of expressions held in the cache
+     * @return the number of expressions
+     */
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all expressions from the cache
+     */
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get the number of requests that were satisfied from the cache
+     * @return the number of hits
+     */
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of requests that caused an expression to be compiled, including requests
+     * for expressions whose static context cannot be cached
+     * @return the number of misses
+     */
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the number of expressions that have been discarded to keep the cache within its maximum size
+     * @return the number of evictions
+     */
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Get a compiled expression or pattern from the cache, compiling it if it is not present
+     * @param text the text of the expression or pattern
+     * @param isPattern true if the text is an XSLT pattern, false if it is an XPath expression
+     * @param evaluator the XPathEvaluator, which supplies the static context and is used to compile
+     * the expression if it is not present in the cache
+     * @return the compiled expression
+     * @throws XPathException if the expression is not present in the cache and contains static errors
+     */
+
+    XPathExpression get(String text, boolean isPattern, XPathEvaluator evaluator) throws XPathException {
+        Key key = makeKey(text, isPattern, evaluator.getStaticContext());
+        if (key != null) {
+            synchronized (this) {
+                XPathExpression exp = (XPathExpression)entries.get(key);
+                if (exp != null) {
+                    hits++;
+                    return exp;
+                }
+            }
+        }
+        synchronized (this) {
+            misses++;
+        }
+        XPathExpression exp = (isPattern ? evaluator.compilePattern(text) : evaluator.compileExpression(text));
+        if (key != null) {
+            synchronized (this) {
+                // if another thread has compiled the same expression meanwhile, either result will do
+                entries.put(key, exp);
+                evict();
+            }
+        }
+        return exp;
+    }
+
+    private void evict() {
+        Iterator iter = entries.values().iterator();
+        while (entries.size() > maximumEntries && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Make the key under which a compiled expression is held in the cache
+     * @param text the text of the expression
+     * @param isPattern true if the text is a pattern
+     * @param staticContext the static context
+     * @return the key, or null if the static context is not one that can be compared with others
+     */
+
+    private static Key makeKey(String text, boolean isPattern, XPathStaticContext staticContext) {
+        if (!(staticContext instanceof IndependentContext)) {
+            return null;
+        }
+        IndependentContext env = (IndependentContext)staticContext;
+        Executable exec = env.getExecutable();
+        if (exec.getCollationTable().hasNamedCollations()) {
+            return null;
+        }
+        FastStringBuffer sb = new FastStringBuffer(256);
+        List libraries = new ArrayList(4);
+        sb.append(isPattern ? 'P' : 'E');
+        sb.append(env.isInBackwardsCompatibleMode() ? '1' : '0');
+        append(sb, env.getBaseURI());
+        append(sb, env.getDefaultElementNamespace());
+        append(sb, env.getDefaultFunctionNamespace());
+        append(sb, env.getDefaultCollationName());
+
+        try {
+            NamespaceResolver resolver = env.getNamespaceResolver();
+            List prefixes = new ArrayList(16);
+            for (Iterator iter = resolver.iteratePrefixes(); iter.hasNext();) {
+                prefixes.add(iter.next());
+            }
+            Collections.sort(prefixes);
+            sb.append('N');
+            for (int i=0; i<prefixes.size(); i++) {
+                String prefix = (String)prefixes.get(i);
+                append(sb, prefix);
+                append(sb, resolver.getURIForPrefix(prefix, false));
+            }
+        } catch (RuntimeException err) {
+            // an external namespace resolver that cannot list its prefixes
+            return null;
+        }
+
+        List schemas = new ArrayList(env.getImportedSchemaNamespaces());
+        Collections.sort(schemas);
+        sb.append('S');
+        for (int i=0; i<schemas.size(); i++) {
+            append(sb, (String)schemas.get(i));
+        }
+
+        List variables = new ArrayList(8);
+        for (Iterator iter = env.iterateExternalVariables(); iter.hasNext();) {
+            variables.add(iter.next());
+        }
+        XPathVariable[] va = new XPathVariable[variables.size()];
+        for (int i=0; i<va.length; i++) {
+            XPathVariable var = (XPathVariable)variables.get(i);
+            va[var.getLocalSlotNumber()] = var;
+        }
+        sb.append('V');
+        for (int i=0; i<va.length; i++) {
+            append(sb, va[i].getVariableQName().getClarkName());
+            append(sb, va[i].getRequiredType().toString());
+        }
+
+        sb.append('F');
+        addFunctionLibrary(exec.getFunctionLibrary(), sb, libraries);
+
+        return new Key(text, sb.toString(), libraries.toArray());
+    }
+
+    /**
+     * Add a description of a function library to the key. Function libraries whose behaviour depends only on
+     * the Configuration are described by their class; others are identified by the library object itself.
+     * @param lib the function library
+     * @param sb the buffer holding the description of the static context
+     * @param libraries list of the function library objects that form part of the key
+     */
+
+    private static void addFunctionLibrary(FunctionLibrary lib, FastStringBuffer sb, List libraries) {
+        if (lib instanceof FunctionLibraryList) {
+            sb.append('[');
+            List list = ((FunctionLibraryList)lib).getLibraryList();
+            for (int i=0; i<list.size(); i++) {
+                addFunctionLibrary((FunctionLibrary)list.get(i), sb, libraries);
+            }
+            sb.append(']');
+        } else if (lib instanceof ConstructorFunctionLibrary) {
+            sb.append('C');
+        } else {
+            sb.append('L');
+            libraries.add(lib);
+        }
+    }
+
+    private static void append(FastStringBuffer sb, String s) {
+        // the separator is a character that cannot appear in XML names or URIs
+        sb.append('\u0000');
+        if (s != null) {
+            sb.append(s);
+        }
+    }
+
+    /**
+     * The key of an entry in the cache: the text of the expression, a description of the static
+     * context, and the function libraries it uses, which are compared by identity
+     */
+
+    private static final class Key {
+
+        private String text;
+        private String context;
+        private Object[] libraries;
+        private int hashCode;
+
+        public Key(String text, String context, Object[] libraries) {
+            this.text = text;
+            this.context = context;
+            this.libraries = libraries;
+            hashCode = text.hashCode() * 31 + context.hashCode();
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)obj;
+            if (hashCode != k.hashCode || !text.equals(k.text) || !context.equals(k.context) ||
+                    libraries.length != k.libraries.length) {
+                return false;
+            }
+            for (int i=0; i<libraries.length; i++) {
+                if (libraries[i] != k.libraries[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
@@ -0,0 +1,189 @@
+package org.orbeon.saxon.tinytree;
+
+import org.orbeon.saxon.expr.LastPositionFinder;
+import org.orbeon.saxon.om.*;
+import org.orbeon.saxon.sort.IntHashMap;
+import org.orbeon.saxon.type.Type;
+
+import java.util.Arrays;
+
+/**
+ * An index of the element nodes in a TinyTree by name. For each element name (fingerprint) the index
+ * holds the node numbers of the elements having that name, in ascending order, which is also document
+ * order. Because the descendants of a node occupy a contiguous range of node numbers, the elements with
+ * a given name on the descendant axis of any node can be found by a binary search of the list, and the
+ * node objects are created only as the nodes are retrieved.
+ *
+ * <p>The index holds one int for each element node in the tree, so its size is bounded by the size of
+ * the tree itself. The index covers the nodes that were present in the tree when it was last used;
+ * if nodes have since been added to the tree (which happens when several temporary trees share the
+ * same TinyTree), the new nodes are added to the index when it is next used.</p>
+ *
+ * <p>The index may be used by several threads at once: all access to the lists is synchronized, and
+ * the part of a list that has been handed out to an iterator is never modified.</p>
+ */
+
+final class ElementNameIndex {
+
+    private TinyTree tree;
+    private IntHashMap lists = new IntHashMap(50);     // fingerprint -> NodeNumberList
+    private int indexedNodes = 0;                       // the number of nodes already examined
+
+    /**
+     * Create an index for the elements of a TinyTree. The index is populated when first used.
+     * @param tree the TinyTree to be indexed
+     */
+
+    ElementNameIndex(TinyTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Get an iterator over the elements with a given name whose node numbers lie within a given range
+     * @param fingerprint the fingerprint of the required element name
+     * @param start the node number of the first node in the range
+     * @param end the node number of the first node after the range
+     * @return an iterator over the elements with the given name in the range, in document order
+     */
+
+    AxisIterator iterateElements(int fingerprint, int start, int end) {
+        int[] numbers;
+        int from;
+        int to;
+        synchronized (this) {
+            if (indexedNodes < tree.numberOfNodes) {
+                addNodes();
+            }
+            NodeNumberList list = (NodeNumberList)lists.get(fingerprint);
+            if (list == null) {
+                return EmptyIterator.getInstance();
+            }
+            numbers = list.numbers;
+            from = Arrays.binarySearch(numbers, 0, list.size, start);
+            if (from < 0) {
+                from = -from - 1;
+            }
+            to = Arrays.binarySearch(numbers, from, list.size, end);
+            if (to < 0) {
+                to = -to - 1;
+            }
+        }
+        if (from == to) {
+            return EmptyIterator.getInstance();
+        }
+        return new ElementEnumeration(tree, numbers, from, to);
+    }
+
+    /**
+     * Add to the index any nodes that have been added to the tree since the index was last used
+     */
+
+    private void addNodes() {
+        byte[] nodeKind = tree.nodeKind;
+        int[] nameCode = tree.nameCode;
+        int n = tree.numberOfNodes;
+        NodeNumberList list = null;
+        int listFingerprint = -1;
+        for (int i=indexedNodes; i<n; i++) {
+            if (nodeKind[i] == Type.ELEMENT) {
+                int fp = nameCode[i] & NamePool.FP_MASK;
+                if (fp != listFingerprint) {
+                    list = (NodeNumberList)lists.get(fp);
+                    if (list == null) {
+                        list = new NodeNumberList();
+                        lists.put(fp, list);
+                    }
+                    listFingerprint = fp;
+                }
+                list.add(i);
+            }
+        }
+        indexedNodes = n;
+    }
+
+    /**
+     * A list of node numbers, in ascending order
+     */
+
+    private static final class NodeNumberList {
+        int[] numbers = new int[8];
+        int size = 0;
+
+        void add(int nr) {
+            if (size == numbers.length) {
+                // the old array may still be in use by an iterator, so it is copied rather than extended
+                int[] n2 = new int[size * 2];
+                System.arraycopy(numbers, 0, n2, 0, size);
+                numbers = n2;
+            }
+            numbers[size++] = nr;
+        }
+    }
+
+    /**
+     * An iterator over a range of the node numbers held in the index
+     */
+
+    private static final class ElementEnumeration extends AxisIteratorImpl
+            implements LastPositionFinder, LookaheadIterator {
+
+        private TinyTree tree;
+        private int[] numbers;
+        private int from;
+        private int to;
+        private int index;
+
+        public ElementEnumeration(TinyTree tree, int[] numbers, int from, int to) {
+            this.tree = tree;
+            this.numbers = numbers;
+            this.from = from;
+            this.to = to;
+            index = from;
+        }
+
+        public boolean hasNext() {
+            return index < to;
+        }
+
+        public Item next() {
+            if (index < to) {
+                current = tree.getNode(numbers[index++]);
+                position++;
+            } else {
+                current = null;
+                position = -1;
+            }
+            return current;
+        }
+
+        public int getLastPosition() {
+            return to - from;
+        }
+
+        public SequenceIterator getAnother() {
+            return new ElementEnumeration(tree, numbers, from, to);
+        }
+
+        public int getProperties() {
+            return LAST_POSITION_FINDER | LOOKAHEAD;
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
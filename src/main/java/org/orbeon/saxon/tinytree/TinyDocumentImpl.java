@@ -1,6 +1,5 @@
 package org.orbeon.saxon.tinytree;
 import org.orbeon.saxon.Configuration;
-import org.orbeon.saxon.sort.IntHashMap;
 import org.orbeon.saxon.event.Receiver;
 import org.orbeon.saxon.om.*;
 import org.orbeon.saxon.trans.XPathException;
@@ -18,7 +17,6 @@ public final class TinyDocumentImpl extends TinyParentNodeImpl
     implements DocumentInfo {
 
     private HashMap idTable = null;
-    private IntHashMap elementList = null;
     private HashMap entityTable = null;
     private String baseURI = null;
 
@@ -147,56 +145,6 @@ public final class TinyDocumentImpl extends TinyParentNodeImpl
         buffer.append(Integer.toString(getDocumentNumber()));
     }
 
-    /**
-    * Get a list of all elements with a given name. This is implemented
-    * as a memo function: the first time it is called for a particular
-    * element type, it remembers the result for next time.
-    */
-
-    AxisIterator getAllElements(int fingerprint) {
-    	if (elementList==null) {
-    	    elementList = new IntHashMap(20);
-    	}
-        List list = (List)elementList.get(fingerprint);
-        if (list==null) {
-            list = getElementList(fingerprint);
-            elementList.put(fingerprint, list);
-        }
-        return new NodeListIterator(list);
-    }
-
-    /**
-     * Get a list containing all the elements with a given element name
-     * @param fingerprint the fingerprint of the element name
-     * @return list a List containing the TinyElementImpl objects
-     */
-
-    List getElementList(int fingerprint) {
-        int size = tree.getNumberOfNodes()/20;
-        if (size > 100) {
-            size = 100;
-        }
-        if (size < 20) {
-            size = 20;
-        }
-        List list = new ArrayList(size);
-        int i = nodeNr+1;
-        try {
-            while (tree.depth[i] != 0) {
-                if (tree.nodeKind[i]==Type.ELEMENT &&
-                        (tree.nameCode[i] & 0xfffff) == fingerprint) {
-                    list.add(tree.getNode(i));
-                }
-                i++;
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            // this shouldn't happen. If it does happen, it means the tree wasn't properly closed
-            // during construction (there is no stopper node at the end). In this case, we'll recover
-            return list;
-        }
-        return list;
-    }
-
     /**
     * Register a unique element ID. Fails if there is already an element with that ID.
     * @param e The NodeInfo (always an element) having a particular unique ID value
@@ -229,6 +177,15 @@ public final class TinyDocumentImpl extends TinyParentNodeImpl
         return (NodeInfo)idTable.get(id);
     }
 
+    /**
+     * Get the table of unique element IDs
+     * @return a map from ID values to elements, or null if no IDs have been registered
+     */
+
+    HashMap getIdTable() {
+        return idTable;
+    }
+
     /**
     * Set an unparsed entity URI associated with this document. For system use only, while
     * building the document.
@@ -408,11 +408,13 @@ public abstract class TinyNodeImpl implements NodeInfo, FingerprintedNode, Sourc
                 }
 
             case Axis.DESCENDANT:
-                if (type == Type.DOCUMENT &&
-                        nodeTest instanceof NameTest &&
-                        nodeTest.getPrimitiveType() == Type.ELEMENT) {
-                    return ((TinyDocumentImpl)this).getAllElements(nodeTest.getFingerprint());
-                } else if (hasChildNodes()) {
+                if (hasChildNodes()) {
+                    if (nodeTest instanceof NameTest && nodeTest.getPrimitiveType() == Type.ELEMENT) {
+                        AxisIterator iter = tree.iterateNamedDescendants(nodeNr, nodeTest.getFingerprint());
+                        if (iter != null) {
+                            return iter;
+                        }
+                    }
                     return new DescendantEnumeration(tree, this, nodeTest, false);
                 } else {
                     return EmptyIterator.getInstance();
@@ -746,6 +748,15 @@ public abstract class TinyNodeImpl implements NodeInfo, FingerprintedNode, Sourc
         return nodeNr;
     }
 
+    /**
+     * Get the TinyTree containing this node. This method is intended for internal use.
+     * @return the TinyTree
+     */
+
+    public TinyTree getTree() {
+        return tree;
+    }
+
 
 }
 
@@ -27,10 +27,10 @@ public final class TinyTree {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private Configuration config;
+    protected Configuration config;
 
     // List of top-level document nodes.
-    private ArrayList documentList = new ArrayList(5);
+    protected ArrayList documentList = new ArrayList(5);
 
     // The document number (really a tree number: it can identify a non-document root node
     protected int documentNumber;
@@ -71,7 +71,7 @@ public final class TinyTree {
     protected int[] nameCode;
 
     // the prior array indexes preceding-siblings; it is constructed only when required
-    protected int[] prior = null;
+    protected volatile int[] prior = null;
 
     // the typeCode array holds type codes for element nodes; it is constructed only
     // if at least one element has a type other than untyped, or has an IDREF property.
@@ -113,16 +113,21 @@ public final class TinyTree {
 
     // an array holding the offsets of all the level-0 (root) nodes, so that the root of a given
     // node can be found efficiently
-    private int[] rootIndex = new int[5];
+    protected int[] rootIndex = new int[5];
     protected int rootIndexUsed = 0;
 
-    private int[] lineNumbers = null;
-    private int[] columnNumbers = null;
+    protected int[] lineNumbers = null;
+    protected int[] columnNumbers = null;
     private SystemIdMap systemIdMap = null;
 
     // a boolean that is set to true if the document declares a namespace other than the XML namespace
     protected boolean usesNamespaces = false;
 
+    // an index of the element nodes by name, created when the descendant axis has been searched often enough
+    // to justify it; and the number of nodes examined by searches of the descendant axis before that happens
+    private volatile ElementNameIndex elementNameIndex = null;
+    private int descendantsScanned = 0;
+
     // We maintain statistics in static data, recording how large the trees created under this Java VM
     // turned out to be. These figures are then used when allocating space for new trees, on the assumption
     // that there is likely to be some uniformity. The statistics are initialized to an arbitrary value
@@ -529,14 +534,19 @@ public final class TinyTree {
     }
 
     private synchronized void makePriorIndex() {
-        prior = new int[numberOfNodes];
-        Arrays.fill(prior, 0, numberOfNodes, -1);
+        if (prior != null && prior.length >= numberOfNodes) {
+            return;
+        }
+        // the index is built before it is made visible, because other threads may be reading the tree
+        int[] p = new int[numberOfNodes];
+        Arrays.fill(p, 0, numberOfNodes, -1);
         for (int i=0; i<numberOfNodes; i++) {
             int nextNode = next[i];
             if (nextNode > i) {
-                prior[nextNode] = i;
+                p[nextNode] = i;
             }
         }
+        prior = p;
     }
 
     /**
@@ -762,12 +772,13 @@ public final class TinyTree {
     }
 
     /**
-     * Make a (transient) attribute node from the array of attributes
+     * Make a (transient) attribute node from the array of attributes. This method is
+     * intended for internal use.
      * @param nr the node number of the attribute
      * @return an attribute node
     */
 
-    TinyAttributeImpl getAttributeNode(int nr) {
+    public TinyNodeImpl getAttributeNode(int nr) {
         return new TinyAttributeImpl(this, nr);
     }
 
@@ -910,6 +921,136 @@ public final class TinyTree {
         return systemIdMap.getSystemId(seq);
     }
 
+    /**
+     * Get the elements with a given name on the descendant axis of a node, using the index of
+     * element names. The index is created the first time it is needed, unless the cost of searching
+     * the subtrees directly (so far) is still small compared with the cost of building it.
+     * @param nodeNr the node number of the node whose descendants are required
+     * @param fingerprint the fingerprint of the required element name
+     * @return an iterator over the descendant elements with the given name, or null if the caller
+     * should search the subtree instead
+     */
+
+    AxisIterator iterateNamedDescendants(int nodeNr, int fingerprint) {
+        int end = getSubtreeEnd(nodeNr);
+        if (end - nodeNr < 32) {
+            return null;
+        }
+        ElementNameIndex index = elementNameIndex;
+        if (index == null) {
+            descendantsScanned += end - nodeNr;
+            if (descendantsScanned < numberOfNodes / 2) {
+                return null;
+            }
+            synchronized (this) {
+                if (elementNameIndex == null) {
+                    elementNameIndex = new ElementNameIndex(this);
+                }
+                index = elementNameIndex;
+            }
+        }
+        return index.iterateElements(fingerprint, nodeNr + 1, end);
+    }
+
+    /**
+     * Get the number of the first node following the subtree rooted at a given node
+     * @param nodeNr the node number of the root of the subtree
+     * @return the node number of the first node that is not the given node or one of its descendants
+     */
+
+    int getSubtreeEnd(int nodeNr) {
+        int k = nodeNr;
+        while (true) {
+            int n = next[k];
+            if (n > k) {
+                // following sibling (or a parent pointer, which occupies the position of one)
+                return n;
+            } else if (n >= 0 && depth[k] > 0) {
+                // the node is the last child, and the pointer is to its parent
+                k = n;
+            } else {
+                // the node is a root node: its subtree ends where the next tree in the forest starts
+                for (int i=0; i<rootIndexUsed; i++) {
+                    if (rootIndex[i] > k) {
+                        return rootIndex[i];
+                    }
+                }
+                return numberOfNodes;
+            }
+        }
+    }
+
+    /**
+     * Sort a set of nodes in this tree into document order, eliminating duplicates. Within a single
+     * TinyTree the document order of nodes other than attributes is the order of their node numbers, so
+     * the nodes can be sorted as primitive values rather than by calling compareOrder() on pairs of nodes.
+     * If the set is dense relative to the size of the tree, it is sorted by marking the node numbers in
+     * a bit set, and reading them back in order.
+     * @param nodes an array holding the nodes to be sorted, all of which must be nodes in this tree.
+     * On return, the distinct nodes are held in document order at the start of the array.
+     * @param count the number of nodes in the array
+     * @return the number of distinct nodes
+     */
+
+    public int sortNodes(Item[] nodes, int count) {
+        boolean attributes = false;
+        for (int i=0; i<count; i++) {
+            if (nodes[i] instanceof TinyAttributeImpl) {
+                attributes = true;
+                break;
+            }
+        }
+        int n = 0;
+        if (attributes) {
+            // sort on the sequence numbers, which order attributes after their parent and before its children
+            long[] keys = new long[count];
+            for (int i=0; i<count; i++) {
+                keys[i] = ((TinyNodeImpl)nodes[i]).getSequenceNumber();
+            }
+            Arrays.sort(keys);
+            for (int i=0; i<count; i++) {
+                long key = keys[i];
+                if (n == 0 || key != keys[i-1]) {
+                    int nr = (int)(key >>> 32);
+                    int offset = (int)(key & 0xffffffffL);
+                    nodes[n++] = (offset == 0 ? getNode(nr) : getAttributeNode(alpha[nr] + offset - 0x8000));
+                }
+            }
+        } else if (count >= numberOfNodes / 64) {
+            long[] bits = new long[(numberOfNodes + 63) >> 6];
+            for (int i=0; i<count; i++) {
+                int nr = ((TinyNodeImpl)nodes[i]).nodeNr;
+                bits[nr >> 6] |= (1L << (nr & 63));
+            }
+            for (int w=0; w<bits.length; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    nodes[n++] = getNode((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        } else {
+            // sort on the node number, with the position in the array in the low-order bits, so that
+            // the original node objects can be retained
+            long[] keys = new long[count];
+            for (int i=0; i<count; i++) {
+                keys[i] = ((long)((TinyNodeImpl)nodes[i]).nodeNr << 32) | i;
+            }
+            Arrays.sort(keys);
+            Item[] original = new Item[count];
+            System.arraycopy(nodes, 0, original, 0, count);
+            int last = -1;
+            for (int i=0; i<count; i++) {
+                int nr = (int)(keys[i] >>> 32);
+                if (nr != last) {
+                    nodes[n++] = original[(int)keys[i]];
+                    last = nr;
+                }
+            }
+        }
+        return n;
+    }
+
     /**
      * Get the root node for a given node
      * @param nodeNr the node number of the given node
@@ -1056,6 +1197,45 @@ public final class TinyTree {
         return s.substring(s.length()-8);
     }
 
+    /**
+     * Get an estimate of the memory occupied by this tree, for use when deciding how many trees
+     * to hold in a cache. The estimate is based on the sizes of the arrays holding the tree.
+     * @return the estimated size of the tree in bytes
+     */
+
+    public long getEstimatedSize() {
+        long size = 0;
+        size += arraySize(nodeKind == null ? 0 : nodeKind.length, 1);
+        size += arraySize(depth == null ? 0 : depth.length, 2);
+        size += intArraySize(next) + intArraySize(alpha) + intArraySize(beta) + intArraySize(nameCode);
+        size += intArraySize(prior) + intArraySize(typeCodeArray);
+        size += intArraySize(lineNumbers) + intArraySize(columnNumbers);
+        size += intArraySize(attParent) + intArraySize(attCode) + intArraySize(attTypeCode);
+        if (attValue != null) {
+            size += arraySize(attValue.length, 8);
+            for (int i=0; i<numberOfAttributes; i++) {
+                if (attValue[i] != null) {
+                    // allow for the object header and fields of a String as well as its characters
+                    size += 40 + attValue[i].length() * 2L;
+                }
+            }
+        }
+        size += intArraySize(namespaceParent) + intArraySize(namespaceCode);
+        size += charBuffer.length() * 2L;
+        if (commentBuffer != null) {
+            size += commentBuffer.length() * 2L;
+        }
+        return size;
+    }
+
+    private static long intArraySize(int[] array) {
+        return (array == null ? 0 : arraySize(array.length, 4));
+    }
+
+    private static long arraySize(int length, int width) {
+        return 16 + (long)length * width;
+    }
+
     /**
      * Output a statistical summary to System.err
      */
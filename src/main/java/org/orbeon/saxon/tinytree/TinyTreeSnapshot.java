@@ -0,0 +1,536 @@
+package org.orbeon.saxon.tinytree;
+
+import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.om.FastStringBuffer;
+import org.orbeon.saxon.om.NamePool;
+import org.orbeon.saxon.sort.IntToIntHashMap;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.Type;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class saves a document held as a TinyTree to a file in a binary snapshot format, and loads it
+ * again. The snapshot holds the arrays that make up the TinyTree, so loading a document from a snapshot
+ * involves no parsing: the file is mapped into memory and the arrays are copied from the mapped buffer
+ * in bulk. This is useful for large reference documents (code lists, catalogs, and so on) that would
+ * otherwise be parsed afresh by every process that uses them.
+ *
+ * <p>Names and namespaces are held in the snapshot as tables of strings, and are allocated in the
+ * NamePool of the loading Configuration, so a snapshot can be loaded into any Configuration. A snapshot
+ * cannot be taken of a document containing nodes annotated with user-defined schema types, since the
+ * loading Configuration might not have the schema.</p>
+ *
+ * <p>A document loaded from a snapshot is a normal TinyDocumentImpl, which is never modified.</p>
+ */
+
+public final class TinyTreeSnapshot {
+
+    private static final int MAGIC = 0x53585431;    // "SXT1"
+    private static final int VERSION = 1;
+
+    private static final int USES_NAMESPACES = 1;
+    private static final int TYPE_CODES = 2;
+    private static final int ATTRIBUTE_TYPE_CODES = 4;
+    private static final int LINE_NUMBERS = 8;
+    private static final int COMMENTS = 16;
+
+    private ByteBuffer buffer;
+    private FileChannel channel;
+
+    private TinyTreeSnapshot(ByteBuffer buffer, FileChannel channel) {
+        this.buffer = buffer;
+        this.channel = channel;
+    }
+
+    /**
+     * Save a document as a snapshot file
+     * @param doc the document to be saved. This must be the only document in its TinyTree.
+     * @param file the file to which the snapshot is written
+     * @throws XPathException if the document cannot be saved, or if an I/O error occurs
+     */
+
+    public static void write(TinyDocumentImpl doc, File file) throws XPathException {
+        TinyTree tree = doc.getTree();
+        if (doc.nodeNr != 0 || tree.rootIndexUsed != 1) {
+            throw new XPathException("Cannot save a snapshot of a document that shares its TinyTree with other nodes");
+        }
+        checkTypeCodes(tree.typeCodeArray, tree.numberOfNodes);
+        checkTypeCodes(tree.attTypeCode, tree.numberOfAttributes);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1<<16).order(ByteOrder.nativeOrder());
+            TinyTreeSnapshot w = new TinyTreeSnapshot(buffer, out.getChannel());
+            w.writeTree(doc, tree);
+            w.flush();
+        } catch (IOException err) {
+            throw new XPathException("Failed to write snapshot file " + file, err);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException err) {
+                    // ignore the failure
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a document from a snapshot file
+     * @param file the snapshot file, as written by {@link #write}
+     * @param config the Configuration. Names in the document are allocated in its NamePool.
+     * @return the document node of the loaded document
+     * @throws XPathException if the file is not a valid snapshot, or if an I/O error occurs
+     */
+
+    public static TinyDocumentImpl read(File file, Configuration config) throws XPathException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new XPathException("Snapshot file " + file + " is too large");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            int magic = buffer.getInt();
+            if (magic != MAGIC) {
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.position(0);
+                magic = buffer.getInt();
+                if (magic != MAGIC) {
+                    throw new XPathException("File " + file + " is not a document snapshot");
+                }
+            }
+            if (buffer.getInt() != VERSION) {
+                throw new XPathException("Snapshot file " + file + " was written by an incompatible version");
+            }
+            return new TinyTreeSnapshot(buffer, null).readTree(config);
+        } catch (IOException err) {
+            throw new XPathException("Failed to read snapshot file " + file, err);
+        } catch (RuntimeException err) {
+            // a BufferUnderflowException or similar means the file is truncated or corrupt
+            throw new XPathException("Snapshot file " + file + " is corrupt", err);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException err) {
+                    // ignore the failure
+                }
+            }
+        }
+    }
+
+    private static void checkTypeCodes(int[] typeCodes, int n) throws XPathException {
+        if (typeCodes != null) {
+            for (int i=0; i<n; i++) {
+                if ((typeCodes[i] & NamePool.FP_MASK) >= 1024) {
+                    throw new XPathException(
+                            "Cannot save a snapshot of a document containing nodes with user-defined types");
+                }
+            }
+        }
+    }
+
+    private void writeTree(TinyDocumentImpl doc, TinyTree tree) throws IOException {
+        NamePool pool = tree.getNamePool();
+        int nodes = tree.numberOfNodes;
+        int attributes = tree.numberOfAttributes;
+        int namespaces = tree.numberOfNamespaces;
+
+        writeInt(MAGIC);
+        writeInt(VERSION);
+        int flags = 0;
+        if (tree.usesNamespaces) {
+            flags |= USES_NAMESPACES;
+        }
+        if (tree.typeCodeArray != null) {
+            flags |= TYPE_CODES;
+        }
+        if (tree.attTypeCode != null) {
+            flags |= ATTRIBUTE_TYPE_CODES;
+        }
+        if (tree.lineNumbers != null) {
+            flags |= LINE_NUMBERS;
+        }
+        if (tree.commentBuffer != null) {
+            flags |= COMMENTS;
+        }
+        writeInt(flags);
+        writeInt(nodes);
+        writeInt(attributes);
+        writeInt(namespaces);
+        writeString(doc.getBaseURI());
+
+        // replace the name codes by their positions in a table of names
+
+        IntToIntHashMap nameIndex = new IntToIntHashMap(100);
+        List names = new ArrayList(100);
+        int[] nameCodes = new int[nodes];
+        for (int i=0; i<nodes; i++) {
+            int kind = tree.nodeKind[i];
+            nameCodes[i] = (kind == Type.ELEMENT || kind == Type.PROCESSING_INSTRUCTION ?
+                    getIndex(tree.nameCode[i], nameIndex, names) : tree.nameCode[i]);
+        }
+        int[] attCodes = new int[attributes];
+        for (int i=0; i<attributes; i++) {
+            attCodes[i] = getIndex(tree.attCode[i], nameIndex, names);
+        }
+        writeInt(names.size());
+        for (int i=0; i<names.size(); i++) {
+            int nc = ((Integer)names.get(i)).intValue();
+            writeString(pool.getPrefix(nc));
+            writeString(pool.getURI(nc));
+            writeString(pool.getLocalName(nc));
+        }
+
+        IntToIntHashMap namespaceIndex = new IntToIntHashMap(20);
+        List namespaceList = new ArrayList(20);
+        int[] namespaceCodes = new int[namespaces];
+        for (int i=0; i<namespaces; i++) {
+            namespaceCodes[i] = getIndex(tree.namespaceCode[i], namespaceIndex, namespaceList);
+        }
+        writeInt(namespaceList.size());
+        for (int i=0; i<namespaceList.size(); i++) {
+            int nsc = ((Integer)namespaceList.get(i)).intValue();
+            writeString(pool.getPrefixFromNamespaceCode(nsc));
+            writeString(pool.getURIFromNamespaceCode(nsc));
+        }
+
+        // the node arrays
+
+        for (int i=0; i<nodes; i++) {
+            ensure(1);
+            buffer.put(tree.nodeKind[i]);
+        }
+        for (int i=0; i<nodes; i++) {
+            ensure(2);
+            buffer.putShort(tree.depth[i]);
+        }
+        writeInts(tree.next, nodes);
+        writeInts(tree.alpha, nodes);
+        writeInts(tree.beta, nodes);
+        writeInts(nameCodes, nodes);
+        if (tree.typeCodeArray != null) {
+            writeInts(tree.typeCodeArray, nodes);
+        }
+        if (tree.lineNumbers != null) {
+            writeInts(tree.lineNumbers, nodes);
+            writeInts(tree.columnNumbers, nodes);
+        }
+
+        // the attribute and namespace arrays
+
+        writeInts(tree.attParent, attributes);
+        writeInts(attCodes, attributes);
+        if (tree.attTypeCode != null) {
+            writeInts(tree.attTypeCode, attributes);
+        }
+        int[] lengths = new int[attributes];
+        for (int i=0; i<attributes; i++) {
+            lengths[i] = tree.attValue[i].length();
+        }
+        writeInts(lengths, attributes);
+        for (int i=0; i<attributes; i++) {
+            writeChars(tree.attValue[i]);
+        }
+        writeInts(tree.namespaceParent, namespaces);
+        writeInts(namespaceCodes, namespaces);
+
+        // the text of text nodes, comments, and processing instructions
+
+        LargeStringBuffer chars = tree.charBuffer;
+        int length = chars.length();
+        writeInt(length);
+        for (int start=0; start<length; start+=65536) {
+            writeChars(chars.subSequence(start, Math.min(start+65536, length)));
+        }
+        if (tree.commentBuffer != null) {
+            writeInt(tree.commentBuffer.length());
+            writeChars(tree.commentBuffer);
+        }
+
+        // system IDs of elements, where they differ from that of the preceding element
+
+        List systemIds = new ArrayList();
+        String previous = null;
+        for (int i=0; i<nodes; i++) {
+            int kind = tree.nodeKind[i];
+            if (kind == Type.DOCUMENT || kind == Type.ELEMENT || kind == Type.PROCESSING_INSTRUCTION) {
+                String systemId = tree.getSystemId(i);
+                if (systemId != null && !systemId.equals(previous)) {
+                    systemIds.add(new Integer(i));
+                    systemIds.add(systemId);
+                    previous = systemId;
+                }
+            }
+        }
+        writeInt(systemIds.size() / 2);
+        for (int i=0; i<systemIds.size(); i+=2) {
+            writeInt(((Integer)systemIds.get(i)).intValue());
+            writeString((String)systemIds.get(i+1));
+        }
+
+        // the ID table and unparsed entities
+
+        HashMap ids = doc.getIdTable();
+        if (ids == null) {
+            writeInt(0);
+        } else {
+            writeInt(ids.size());
+            for (Iterator iter = ids.keySet().iterator(); iter.hasNext();) {
+                String id = (String)iter.next();
+                writeString(id);
+                writeInt(((TinyNodeImpl)ids.get(id)).nodeNr);
+            }
+        }
+        List entities = new ArrayList();
+        for (Iterator iter = doc.getUnparsedEntityNames(); iter.hasNext();) {
+            entities.add(iter.next());
+        }
+        writeInt(entities.size());
+        for (int i=0; i<entities.size(); i++) {
+            String name = (String)entities.get(i);
+            String[] entity = doc.getUnparsedEntity(name);
+            writeString(name);
+            writeString(entity[0]);
+            writeString(entity[1]);
+        }
+    }
+
+    private static int getIndex(int code, IntToIntHashMap index, List codes) {
+        if (index.find(code)) {
+            return index.get(code);
+        }
+        int i = codes.size();
+        codes.add(new Integer(code));
+        index.put(code, i);
+        return i;
+    }
+
+    private TinyDocumentImpl readTree(Configuration config) throws XPathException {
+        NamePool pool = config.getNamePool();
+        int flags = buffer.getInt();
+        int nodes = buffer.getInt();
+        int attributes = buffer.getInt();
+        int namespaces = buffer.getInt();
+
+        TinyTree tree = new TinyTree(nodes + 1, attributes, namespaces, 1);
+        tree.config = config;
+        TinyDocumentImpl doc = new TinyDocumentImpl(tree);
+        tree.documentList.add(doc);
+        tree.rootIndex[0] = 0;
+        tree.rootIndexUsed = 1;
+        tree.documentNumber = config.getDocumentNumberAllocator().allocateDocumentNumber();
+        tree.usesNamespaces = (flags & USES_NAMESPACES) != 0;
+        doc.setBaseURI(readString());
+
+        int[] names = new int[buffer.getInt()];
+        for (int i=0; i<names.length; i++) {
+            String prefix = readString();
+            String uri = readString();
+            names[i] = pool.allocate(prefix, uri, readString());
+        }
+        int[] namespaceCodes = new int[buffer.getInt()];
+        for (int i=0; i<namespaceCodes.length; i++) {
+            String prefix = readString();
+            namespaceCodes[i] = pool.allocateNamespaceCode(prefix, readString());
+        }
+
+        buffer.get(tree.nodeKind, 0, nodes);
+        buffer.asShortBuffer().get(tree.depth, 0, nodes);
+        skip(nodes * 2);
+        readInts(tree.next, nodes);
+        readInts(tree.alpha, nodes);
+        readInts(tree.beta, nodes);
+        readInts(tree.nameCode, nodes);
+        for (int i=0; i<nodes; i++) {
+            int kind = tree.nodeKind[i];
+            if (kind == Type.ELEMENT || kind == Type.PROCESSING_INSTRUCTION) {
+                tree.nameCode[i] = names[tree.nameCode[i]];
+            }
+        }
+        if ((flags & TYPE_CODES) != 0) {
+            tree.typeCodeArray = new int[nodes + 1];
+            readInts(tree.typeCodeArray, nodes);
+        }
+        if ((flags & LINE_NUMBERS) != 0) {
+            tree.lineNumbers = new int[nodes + 1];
+            tree.columnNumbers = new int[nodes + 1];
+            readInts(tree.lineNumbers, nodes);
+            readInts(tree.columnNumbers, nodes);
+        }
+        tree.numberOfNodes = nodes;
+
+        readInts(tree.attParent, attributes);
+        readInts(tree.attCode, attributes);
+        for (int i=0; i<attributes; i++) {
+            tree.attCode[i] = names[tree.attCode[i]];
+        }
+        if ((flags & ATTRIBUTE_TYPE_CODES) != 0) {
+            tree.attTypeCode = new int[attributes];
+            readInts(tree.attTypeCode, attributes);
+        }
+        int[] lengths = new int[attributes];
+        readInts(lengths, attributes);
+        int total = 0;
+        for (int i=0; i<attributes; i++) {
+            total += lengths[i];
+        }
+        char[] values = new char[total];
+        readChars(values, total);
+        for (int i=0, start=0; i<attributes; start+=lengths[i++]) {
+            tree.attValue[i] = new String(values, start, lengths[i]);
+        }
+        tree.numberOfAttributes = attributes;
+        readInts(tree.namespaceParent, namespaces);
+        readInts(tree.namespaceCode, namespaces);
+        for (int i=0; i<namespaces; i++) {
+            tree.namespaceCode[i] = namespaceCodes[tree.namespaceCode[i]];
+        }
+        tree.numberOfNamespaces = namespaces;
+
+        int length = buffer.getInt();
+        if (length > 0) {
+            char[] chars = new char[65536];
+            LargeStringBuffer text = new LargeStringBuffer(65536, 65536);
+            for (int start=0; start<length; start+=65536) {
+                int len = Math.min(65536, length - start);
+                readChars(chars, len);
+                text.append(new CharSlice(chars, 0, len));
+            }
+            tree.charBuffer = text;
+        }
+        if ((flags & COMMENTS) != 0) {
+            int len = buffer.getInt();
+            char[] comments = new char[len];
+            readChars(comments, len);
+            tree.commentBuffer = new FastStringBuffer(len);
+            tree.commentBuffer.append(comments);
+        }
+
+        int systemIds = buffer.getInt();
+        for (int i=0; i<systemIds; i++) {
+            int nodeNr = buffer.getInt();
+            tree.setSystemId(nodeNr, readString());
+        }
+        int ids = buffer.getInt();
+        for (int i=0; i<ids; i++) {
+            String id = readString();
+            doc.registerID(tree.getNode(buffer.getInt()), id);
+        }
+        int entities = buffer.getInt();
+        for (int i=0; i<entities; i++) {
+            String name = readString();
+            String uri = readString();
+            doc.setUnparsedEntity(name, uri, readString());
+        }
+        return doc;
+    }
+
+    // Methods for writing to the output channel through the buffer
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    private void writeInts(int[] values, int n) throws IOException {
+        int start = 0;
+        while (start < n) {
+            ensure(4);
+            int len = Math.min(n - start, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(values, start, len);
+            buffer.position(buffer.position() + len * 4);
+            start += len;
+        }
+    }
+
+    private void writeChars(CharSequence chars) throws IOException {
+        int len = chars.length();
+        for (int i=0; i<len; i++) {
+            ensure(2);
+            buffer.putChar(chars.charAt(i));
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            writeInt(-1);
+        } else {
+            writeInt(s.length());
+            writeChars(s);
+        }
+    }
+
+    // Methods for reading from the mapped buffer
+
+    private void skip(int bytes) {
+        buffer.position(buffer.position() + bytes);
+    }
+
+    private void readInts(int[] values, int n) {
+        buffer.asIntBuffer().get(values, 0, n);
+        skip(n * 4);
+    }
+
+    private void readChars(char[] chars, int n) {
+        buffer.asCharBuffer().get(chars, 0, n);
+        skip(n * 2);
+    }
+
+    private String readString() {
+        int len = buffer.getInt();
+        if (len < 0) {
+            return null;
+        }
+        char[] chars = new char[len];
+        readChars(chars, len);
+        return new String(chars);
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
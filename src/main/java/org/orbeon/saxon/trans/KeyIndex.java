@@ -0,0 +1,439 @@
+package org.orbeon.saxon.trans;
+
+import org.orbeon.saxon.expr.LastPositionFinder;
+import org.orbeon.saxon.expr.XPathContext;
+import org.orbeon.saxon.om.*;
+import org.orbeon.saxon.sort.LocalOrderComparer;
+import org.orbeon.saxon.tinytree.TinyDocumentImpl;
+import org.orbeon.saxon.tinytree.TinyNodeImpl;
+import org.orbeon.saxon.tinytree.TinyTree;
+import org.orbeon.saxon.type.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A KeyIndex is the index built for one key definition set, one document, and one primitive type of
+ * key value. It maps each key value (or collation key) to the list of nodes having that value, in
+ * document order with no duplicates.
+ *
+ * <p>For a document held as a TinyTree, the list of nodes for each key value is held as an array of
+ * node numbers, which is much more compact than a list of node objects; the node objects are created
+ * only when the nodes are retrieved. For other kinds of document, the nodes are held in an ArrayList.</p>
+ *
+ * <p>A KeyIndex is created by the thread that builds it, and is made visible to other threads (through
+ * the {@link KeyManager}) while it is still under construction. Another thread that needs the same
+ * index waits until the build is complete, rather than building it a second time; if the thread that
+ * is building the index needs the same index again (because the key definition is circular), an error
+ * is reported.</p>
+ */
+
+public final class KeyIndex {
+
+    // for each thread that is waiting for an index to be built, the index it is waiting for
+    private static ConcurrentHashMap waitingThreads = new ConcurrentHashMap();
+
+    private HashMap index = new HashMap(100);   // key value -> NodeNumberList or ArrayList of NodeInfo
+    private TinyTree tree;                      // the TinyTree holding the document, if there is one
+    private int documentNumber;
+    private int entries = 0;
+    private long buildTime = -1;
+    private volatile Thread builder;
+
+    /**
+     * Create an empty index for a document. The index is marked as being under construction by the
+     * current thread.
+     * @param doc the document to be indexed
+     */
+
+    public KeyIndex(DocumentInfo doc) {
+        if (doc instanceof TinyDocumentImpl) {
+            tree = ((TinyDocumentImpl)doc).getTree();
+            documentNumber = doc.getDocumentNumber();
+        }
+        builder = Thread.currentThread();
+    }
+
+    /**
+     * Add a node to the list of nodes having a given key value
+     * @param val the key value (or collation key)
+     * @param node the node to be added
+     * @param isFirst true if this is the first key definition to be processed, in which case the
+     * node is known to follow, or to be the same as, the last node already present in the list
+     */
+
+    public void add(Object val, NodeInfo node, boolean isFirst) {
+        Object nodes = index.get(val);
+        if (nodes == null) {
+            // this is the first node with this key value
+            int nr = getNodeNumber(node);
+            if (nr == Integer.MIN_VALUE) {
+                ArrayList list = new ArrayList(4);
+                list.add(node);
+                nodes = list;
+            } else {
+                NodeNumberList list = new NodeNumberList();
+                list.add(nr);
+                nodes = list;
+            }
+            index.put(val, nodes);
+            entries++;
+            return;
+        }
+        if (nodes instanceof NodeNumberList) {
+            NodeNumberList list = (NodeNumberList)nodes;
+            int nr = getNodeNumber(node);
+            if (nr != Integer.MIN_VALUE) {
+                if (isFirst) {
+                    // if this is the first index definition that we're processing,
+                    // then this node must be after all existing nodes in document
+                    // order, or the same node as the last existing node
+                    if (list.numbers[list.size-1] != nr) {
+                        list.add(nr);
+                        entries++;
+                    }
+                } else if (nr >= 0 && !list.hasAttributes) {
+                    // node numbers in a TinyTree are allocated in document order, so we can find
+                    // the position at which to insert the node by a binary search
+                    int i = Arrays.binarySearch(list.numbers, 0, list.size, nr);
+                    if (i < 0) {
+                        list.insert(-i - 1, nr);
+                        entries++;
+                    }
+                } else {
+                    LocalOrderComparer comparer = LocalOrderComparer.getInstance();
+                    for (int i=0; i<list.size; i++) {
+                        int d = comparer.compare(node, getNode(list.numbers[i]));
+                        if (d<=0) {
+                            if (d<0) {
+                                list.insert(i, nr);
+                                entries++;
+                            }
+                            return;
+                        }
+                    }
+                    list.add(nr);
+                    entries++;
+                }
+                return;
+            }
+            // the node isn't in the TinyTree: revert to a list of node objects
+            ArrayList nodeList = new ArrayList(list.size + 4);
+            for (int i=0; i<list.size; i++) {
+                nodeList.add(getNode(list.numbers[i]));
+            }
+            index.put(val, nodeList);
+            nodes = nodeList;
+        }
+        ArrayList list = (ArrayList)nodes;
+        if (isFirst) {
+            if (list.get(list.size()-1) != node) {
+                list.add(node);
+                entries++;
+            }
+        } else {
+            // otherwise, we need to insert the node at the correct
+            // position in document order. This code does an insertion sort:
+            // not ideal for performance, but it's very unusual to have more than
+            // one key definition for a key.
+            LocalOrderComparer comparer = LocalOrderComparer.getInstance();
+            for (int i=0; i<list.size(); i++) {
+                int d = comparer.compare(node, (NodeInfo)list.get(i));
+                if (d<=0) {
+                    if (d<0) {
+                        list.add(i, node);
+                        entries++;
+                    }
+                    return;
+                }
+            }
+            list.add(node);
+            entries++;
+        }
+    }
+
+    /**
+     * Get the number used to represent a node in a list of node numbers. Attribute nodes are represented
+     * by negative numbers.
+     * @param node the node
+     * @return the number representing the node, or Integer.MIN_VALUE if the node is not in the TinyTree
+     * for this document
+     */
+
+    private int getNodeNumber(NodeInfo node) {
+        if (tree != null && node instanceof TinyNodeImpl && node.getDocumentNumber() == documentNumber) {
+            int nr = ((TinyNodeImpl)node).getNodeNumber();
+            return (node.getNodeKind() == Type.ATTRIBUTE ? -nr - 1 : nr);
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Get the node represented by a number in a list of node numbers
+     * @param nr the number representing the node
+     * @return the node
+     */
+
+    private NodeInfo getNode(int nr) {
+        return (nr < 0 ? tree.getAttributeNode(-nr - 1) : tree.getNode(nr));
+    }
+
+    /**
+     * Get the nodes having a given key value
+     * @param val the key value (or collation key)
+     * @return an iterator over the nodes having this key value, in document order
+     */
+
+    public SequenceIterator get(Object val) {
+        Object nodes = index.get(val);
+        if (nodes == null) {
+            return EmptyIterator.getInstance();
+        } else if (nodes instanceof NodeNumberList) {
+            return new NodeNumberIterator(this, (NodeNumberList)nodes);
+        } else {
+            return new ListIterator((ArrayList)nodes);
+        }
+    }
+
+    /**
+     * Ask whether the index is empty
+     * @return true if no nodes have been indexed
+     */
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * Get the number of distinct key values in the index
+     * @return the number of key values
+     */
+
+    public int getNumberOfKeyValues() {
+        return index.size();
+    }
+
+    /**
+     * Get the number of entries in the index, that is, the number of (key value, node) pairs
+     * @return the number of entries
+     */
+
+    public int getNumberOfEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the time taken to build the index
+     * @return the time taken in nanoseconds, or -1 if the index has not yet been built
+     */
+
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+    /**
+     * Get a rough estimate of the amount of memory used by the index, not counting the key values
+     * themselves or (for documents other than a TinyTree) the nodes
+     * @return the estimated size in bytes
+     */
+
+    public long getEstimatedSize() {
+        long size = 64 + index.size() * 48L;
+        for (Iterator iter = index.values().iterator(); iter.hasNext();) {
+            Object nodes = iter.next();
+            if (nodes instanceof NodeNumberList) {
+                size += 32 + ((NodeNumberList)nodes).numbers.length * 4L;
+            } else {
+                size += 40 + ((ArrayList)nodes).size() * 4L;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Mark the index as fully built, releasing any threads that are waiting for it
+     * @param nanos the time taken to build the index, in nanoseconds
+     */
+
+    synchronized void setBuilt(long nanos) {
+        for (Iterator iter = index.values().iterator(); iter.hasNext();) {
+            Object nodes = iter.next();
+            if (nodes instanceof NodeNumberList) {
+                ((NodeNumberList)nodes).trim();
+            }
+        }
+        buildTime = nanos;
+        builder = null;
+        notifyAll();
+    }
+
+    /**
+     * Mark the index as abandoned (because building it failed), releasing any threads that are waiting for it
+     */
+
+    synchronized void setFailed() {
+        index = null;
+        builder = null;
+        notifyAll();
+    }
+
+    /**
+     * Wait until the index has been built, if it is being built by another thread
+     * @param context the dynamic context, used for error reporting
+     * @return true if the index has been built, false if building the index failed (in which case the
+     * caller should build it afresh)
+     * @throws XPathException if the index is being built by this thread (which means that the key
+     * definition is circular), or by another thread that is itself waiting for an index being built by
+     * this thread, or if the thread is interrupted while waiting
+     */
+
+    boolean waitUntilBuilt(XPathContext context) throws XPathException {
+        Thread current = Thread.currentThread();
+        synchronized (this) {
+            if (builder == null) {
+                return index != null;
+            }
+        }
+        waitingThreads.put(current, this);
+        try {
+            synchronized (this) {
+                while (builder != null) {
+                    // check whether the thread that is building this index is (directly or indirectly)
+                    // waiting for an index that this thread is building
+                    KeyIndex awaited = this;
+                    for (int depth = 0; awaited != null && depth < 100; depth++) {
+                        Thread t = awaited.builder;
+                        if (t == current) {
+                            XPathException de = new XPathException("Key definition is circular");
+                            de.setXPathContext(context);
+                            de.setErrorCode("XTDE0640");
+                            throw de;
+                        }
+                        awaited = (t == null ? null : (KeyIndex)waitingThreads.get(t));
+                    }
+                    try {
+                        wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new XPathException("Interrupted while waiting for a key index to be built");
+                    }
+                }
+                return index != null;
+            }
+        } finally {
+            waitingThreads.remove(current);
+        }
+    }
+
+    /**
+     * A list of node numbers
+     */
+
+    private static final class NodeNumberList {
+        int[] numbers = new int[4];
+        int size = 0;
+        boolean hasAttributes = false;
+
+        void add(int nr) {
+            if (nr < 0) {
+                hasAttributes = true;
+            }
+            if (size == numbers.length) {
+                int[] n2 = new int[size * 2];
+                System.arraycopy(numbers, 0, n2, 0, size);
+                numbers = n2;
+            }
+            numbers[size++] = nr;
+        }
+
+        void insert(int position, int nr) {
+            add(nr);
+            System.arraycopy(numbers, position, numbers, position + 1, size - position - 1);
+            numbers[position] = nr;
+        }
+
+        void trim() {
+            if (numbers.length > size) {
+                int[] n2 = new int[size];
+                System.arraycopy(numbers, 0, n2, 0, size);
+                numbers = n2;
+            }
+        }
+    }
+
+    /**
+     * An iterator over the nodes in a list of node numbers
+     */
+
+    private static final class NodeNumberIterator
+            implements UnfailingIterator, LastPositionFinder, LookaheadIterator {
+
+        private KeyIndex keyIndex;
+        private NodeNumberList list;
+        private int index = 0;
+        private NodeInfo current = null;
+
+        public NodeNumberIterator(KeyIndex keyIndex, NodeNumberList list) {
+            this.keyIndex = keyIndex;
+            this.list = list;
+        }
+
+        public boolean hasNext() {
+            return index >= 0 && index < list.size;
+        }
+
+        public Item next() {
+            if (index < 0 || index >= list.size) {
+                current = null;
+                index = -1;
+                return null;
+            }
+            current = keyIndex.getNode(list.numbers[index++]);
+            return current;
+        }
+
+        public Item current() {
+            return current;
+        }
+
+        public int position() {
+            return index;
+        }
+
+        public void close() {
+        }
+
+        public int getLastPosition() {
+            return list.size;
+        }
+
+        public SequenceIterator getAnother() {
+            return new NodeNumberIterator(keyIndex, list);
+        }
+
+        public int getProperties() {
+            return LAST_POSITION_FINDER | LOOKAHEAD;
+        }
+    }
+}
+
+//
+// The contents of this file are subject to the Mozilla Public License Version 1.0 (the "License");
+// you may not use this file except in compliance with the License. You may obtain a copy of the
+// License at http://www.mozilla.org/MPL/
+//
+// Software distributed under the License is distributed on an "AS IS" basis,
+// WITHOUT WARRANTY OF ANY KIND, either express or implied.
+// See the License for the specific language governing rights and limitations under the License.
+//
+// The Original Code is: all this file.
+//
+// The Initial Developer of the Original Code is Michael H. Kay.
+//
+// Portions created by (your name) are Copyright (C) (your legal entity). All Rights Reserved.
+//
+// Contributor(s): none.
+//
@@ -1,12 +1,12 @@
 package org.orbeon.saxon.trans;
 import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.Controller;
 import org.orbeon.saxon.expr.*;
 import org.orbeon.saxon.functions.SystemFunction;
 import org.orbeon.saxon.functions.Tokenize;
 import org.orbeon.saxon.functions.StringFn;
 import org.orbeon.saxon.instruct.SlotManager;
 import org.orbeon.saxon.om.*;
-import org.orbeon.saxon.om.ListIterator;
 import org.orbeon.saxon.pattern.IdrefTest;
 import org.orbeon.saxon.pattern.PatternFinder;
 import org.orbeon.saxon.sort.LocalOrderComparer;
@@ -22,8 +22,12 @@ import org.orbeon.saxon.value.NumericValue;
 import org.orbeon.saxon.value.UntypedAtomicValue;
 
 import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
   * KeyManager manages the set of key definitions in a stylesheet, and the indexes
@@ -74,14 +78,21 @@ import java.util.*;
 
 public class KeyManager implements Serializable {
 
-    private HashMap keyMap;          // one entry for each named key; the entry contains
-                                     // a KeyDefinitionSet holding the key definitions with that name
-    private transient WeakHashMap docIndexes;
-                                     // one entry for each document that is in memory;
-                                     // the entry contains a HashMap mapping the fingerprint of
-                                     // the key name plus the primitive item type
-                                     // to the HashMap that is the actual index
+    private ConcurrentHashMap keyMap;
+                                     // one entry for each named key; the entry contains
+                                     // a KeyDefinitionSet holding the key definitions with that name.
+                                     // Lookups need no lock; additions are made under the monitor of
+                                     // this KeyManager, as templates may be compiled in parallel
+    private transient volatile ConcurrentHashMap docIndexes;
+                                     // one entry for each document that is in memory, keyed by a
+                                     // weak reference to the document; the entry contains a weak
+                                     // reference to a ConcurrentHashMap mapping the number of
+                                     // the key definition set plus the primitive item type
+                                     // to the KeyIndex that is the actual index
                                      // of key/value pairs.
+    private transient ReferenceQueue discardedDocuments;
+    private AtomicLong indexesBuilt = new AtomicLong();
+    private AtomicLong indexBuildTime = new AtomicLong();
 
     /**
      * Create a KeyManager and initialise variables
@@ -89,8 +100,7 @@ public class KeyManager implements Serializable {
      */
 
     public KeyManager(Configuration config) {
-        keyMap = new HashMap(10);
-        docIndexes = new WeakHashMap(10);
+        keyMap = new ConcurrentHashMap(10);
         // Create a key definition for the idref() function
         registerIdrefKey(config);
     }
@@ -127,7 +137,7 @@ public class KeyManager implements Serializable {
      * @param keyName the name of the key to be pre-registered
      */
 
-    public void preRegisterKeyDefinition(StructuredQName keyName) {
+    public synchronized void preRegisterKeyDefinition(StructuredQName keyName) {
         KeyDefinitionSet keySet = (KeyDefinitionSet)keyMap.get(keyName);
         if (keySet==null) {
             keySet = new KeyDefinitionSet(keyName, keyMap.size());
@@ -144,7 +154,8 @@ public class KeyManager implements Serializable {
      * @throws XPathException if this key definition is inconsistent with existing key definitions having the same name
      */
 
-    public void addKeyDefinition(StructuredQName keyName, KeyDefinition keydef, Configuration config) throws XPathException {
+    public synchronized void addKeyDefinition(StructuredQName keyName, KeyDefinition keydef, Configuration config)
+            throws XPathException {
         KeyDefinitionSet keySet = (KeyDefinitionSet)keyMap.get(keyName);
         if (keySet==null) {
             keySet = new KeyDefinitionSet(keyName, keyMap.size());
@@ -169,6 +180,27 @@ public class KeyManager implements Serializable {
 
     }
 
+    /**
+     * Register an internally-generated key definition under a new name, of the form saxon:kkN,
+     * that is not used by any other key. Choosing the name and registering the definition happen
+     * as one operation, so that two expressions optimized concurrently never share a key.
+     * @param keydef The details of the key's definition
+     * @param config The configuration
+     * @return the new key definition set, containing only this key definition
+     * @throws XPathException if the key definition cannot be registered
+     */
+
+    public synchronized KeyDefinitionSet addSyntheticKey(KeyDefinition keydef, Configuration config)
+            throws XPathException {
+        StructuredQName keyName;
+        int n = keyMap.size();
+        do {
+            keyName = new StructuredQName("saxon", NamespaceConstant.SAXON, "kk" + (n++));
+        } while (keyMap.containsKey(keyName));
+        addKeyDefinition(keyName, keydef, config);
+        return (KeyDefinitionSet)keyMap.get(keyName);
+    }
+
     /**
     * Get all the key definitions that match a particular name
     * @param qName The name of the required key
@@ -186,28 +218,32 @@ public class KeyManager implements Serializable {
      * @param foundItemTypes Optional (may be null). If supplied, a set that is to be populated with
      * the set of primitive types actually found among the "use" values.
      * @param doc The source document in question
+     * @param index The index to be populated
      * @param context The dynamic context
-     * @return the index in question, as a HashMap mapping a key value onto a ArrayList of nodes
+     * @return the time taken to build the index, in nanoseconds
     */
 
-    private synchronized HashMap buildIndex(KeyDefinitionSet keySet,
-                                            BuiltInAtomicType itemType,
-                                            Set foundItemTypes,
-                                            DocumentInfo doc,
-                                            XPathContext context) throws XPathException {
+    private long buildIndex(KeyDefinitionSet keySet,
+                            BuiltInAtomicType itemType,
+                            Set foundItemTypes,
+                            DocumentInfo doc,
+                            KeyIndex index,
+                            XPathContext context) throws XPathException {
 
         //explainKeys(context.getConfiguration(), System.out);
 
+        long start = System.nanoTime();
         List definitions = keySet.getKeyDefinitions();
-        HashMap index = new HashMap(100);
 
         // There may be multiple xsl:key definitions with the same name. Index them all.
         for (int k=0; k<definitions.size(); k++) {
             constructIndex( doc, index, (KeyDefinition) definitions.get(k), itemType, foundItemTypes, context, k == 0);
         }
 
-        return index;
-
+        long time = System.nanoTime() - start;
+        indexesBuilt.incrementAndGet();
+        indexBuildTime.addAndGet(time);
+        return time;
     }
 
     /**
@@ -224,7 +260,7 @@ public class KeyManager implements Serializable {
      */
 
     private void constructIndex(    DocumentInfo doc,
-                                    HashMap index,
+                                    KeyIndex index,
                                     KeyDefinition keydef,
                                     BuiltInAtomicType soughtItemType,
                                     Set foundItemTypes,
@@ -271,7 +307,7 @@ public class KeyManager implements Serializable {
                                     BuiltInAtomicType soughtItemType,
                                     Set foundItemTypes,
                                     KeyDefinition keydef,
-                                    HashMap index,
+                                    KeyIndex index,
                                     XPathContext xc,
                                     boolean isFirst) throws XPathException {
 
@@ -345,50 +381,7 @@ public class KeyManager implements Serializable {
                 }
             }
 
-            ArrayList nodes = (ArrayList)index.get(val);
-            if (nodes==null) {
-                // this is the first node with this key value
-                nodes = new ArrayList(4);
-                index.put(val, nodes);
-                nodes.add(curr);
-            } else {
-                // this is not the first node with this key value.
-                // add the node to the list of nodes for this key,
-                // unless it's already there
-                if (isFirst) {
-                    // if this is the first index definition that we're processing,
-                    // then this node must be after all existing nodes in document
-                    // order, or the same node as the last existing node
-                    if (nodes.get(nodes.size()-1)!=curr) {
-                        nodes.add(curr);
-                    }
-                } else {
-                    // otherwise, we need to insert the node at the correct
-                    // position in document order. This code does an insertion sort:
-                    // not ideal for performance, but it's very unusual to have more than
-                    // one key definition for a key.
-                    LocalOrderComparer comparer = LocalOrderComparer.getInstance();
-                    boolean found = false;
-                    for (int i=0; i<nodes.size(); i++) {
-                        int d = comparer.compare(curr, (NodeInfo)nodes.get(i));
-                        if (d<=0) {
-                            if (d==0) {
-                                // node already in list; do nothing
-                            } else {
-                                // add the node at this position
-                                nodes.add(i, curr);
-                            }
-                            found = true;
-                            break;
-                        }
-                        // else continue round the loop
-                    }
-                    // if we're still here, add the new node at the end
-                    if (!found) {
-                        nodes.add(curr);
-                    }
-                }
-            }
+            index.add(val, curr, isFirst);
         }
 
     }
@@ -486,79 +479,33 @@ public class KeyManager implements Serializable {
 
         int keySetNumber = keySet.getKeySetNumber();
         BuiltInAtomicType itemType = value.getPrimitiveType();
-        HashMap index;
-        synchronized(doc) {
-            Object indexObject = getIndex(doc, keySetNumber, itemType);
-            if (indexObject instanceof String) {
-                // index is under construction
-                XPathException de = new XPathException("Key definition is circular");
-                de.setXPathContext(context);
-                de.setErrorCode("XTDE0640");
-                throw de;
-            }
-            index = (HashMap)indexObject;
-
-            // If the index does not yet exist, then create it.
-            if (index==null) {
-                // Mark the index as being under construction, in case the definition is circular
-                putIndex(doc, keySetNumber, itemType, "Under Construction", context);
-                index = buildIndex(keySet, itemType, foundItemTypes, doc, context);
-                putIndex(doc, keySetNumber, itemType, index, context);
-                if (foundItemTypes != null) {
-                    // build indexes for each item type actually found
-                    for (Iterator f = foundItemTypes.iterator(); f.hasNext();) {
-                        BuiltInAtomicType t = (BuiltInAtomicType)f.next();
-                        if (!t.equals(BuiltInAtomicType.STRING)) {
-                            putIndex(doc, keySetNumber, t, "Under Construction", context);
-                            index = buildIndex(keySet, t, null, doc, context);
-                            putIndex(doc, keySetNumber, t, index, context);
-                        }
-                    }
-                }
-            }
-        }
+        Map indexList = getIndexList(doc, context);
+        KeyIndex index = getIndex(keySet, itemType, foundItemTypes, doc, indexList, context);
 
         if (foundItemTypes == null) {
-            ArrayList nodes = (ArrayList)index.get(getCollationKey(value, itemType, collation, context));
-            if (nodes==null) {
-                return EmptyIterator.getInstance();
-            } else {
-                return new ListIterator(nodes);
-            }
+            return index.get(getCollationKey(value, itemType, collation, context));
         } else {
             // we need to search the indexes for all possible types, and combine the results.
             SequenceIterator result = null;
-            WeakReference ref = (WeakReference)docIndexes.get(doc);
-            if (ref != null) {
-                HashMap indexList = (HashMap)ref.get();
-                if (indexList != null) {
-                    for (Iterator i=indexList.keySet().iterator(); i.hasNext();) {
-                        long key = ((Long)i.next()).longValue();
-                        if (((key >> 32)) == keySetNumber) {
-                            int typefp = (int)key;
-
-                            BuiltInAtomicType type = (BuiltInAtomicType)BuiltInType.getSchemaType(typefp);
-
-                            Object indexObject2 = getIndex(doc, keySetNumber, type);
-                            if (indexObject2 instanceof String) {
-                                // index is under construction
-                                XPathException de = new XPathException("Key definition is circular");
-                                de.setXPathContext(context);
-                                de.setErrorCode("XTDE0640");
-                                throw de;
-                            }
-                            HashMap index2 = (HashMap)indexObject2;
-                            // NOTE: we've been known to encounter a null index2 here, but it doesn't seem possible
-                            if (!index2.isEmpty()) {
-                                value = soughtValue.convert(type, true, context).asAtomic();
-                                ArrayList nodes = (ArrayList)index2.get(getCollationKey(value, type, collation, context));
-                                if (nodes != null) {
-                                    if (result == null) {
-                                        result = new ListIterator(nodes);
-                                    } else {
-                                        result = new UnionEnumeration(result, new ListIterator(nodes), LocalOrderComparer.getInstance());
-                                    }
-                                }
+            for (Iterator i=indexList.keySet().iterator(); i.hasNext();) {
+                long key = ((Long)i.next()).longValue();
+                if (((key >> 32)) == keySetNumber) {
+                    int typefp = (int)key;
+
+                    BuiltInAtomicType type = (BuiltInAtomicType)BuiltInType.getSchemaType(typefp);
+
+                    KeyIndex index2 = (KeyIndex)indexList.get(new Long(key));
+                    if (index2 == null || !index2.waitUntilBuilt(context)) {
+                        continue;
+                    }
+                    if (!index2.isEmpty()) {
+                        value = soughtValue.convert(type, true, context).asAtomic();
+                        SequenceIterator nodes = index2.get(getCollationKey(value, type, collation, context));
+                        if (!(nodes instanceof EmptyIterator)) {
+                            if (result == null) {
+                                result = nodes;
+                            } else {
+                                result = new UnionEnumeration(result, nodes, LocalOrderComparer.getInstance());
                             }
                         }
                     }
@@ -590,60 +537,168 @@ public class KeyManager implements Serializable {
     }
 
     /**
-    * Save the index associated with a particular key, a particular item type,
-    * and a particular document. This
-    * needs to be done in such a way that the index is discarded by the garbage collector
-    * if the document is discarded. We therefore use a WeakHashMap indexed on the DocumentInfo,
-    * which returns HashMap giving the index for each key fingerprint. This index is itself another
-    * HashMap.
-    * The methods need to be synchronized because several concurrent transformations (which share
-    * the same KeyManager) may be creating indexes for the same or different documents at the same
-    * time.
-     * @param doc the document being indexed
-     * @param keyFingerprint represents the name of the key definition
-     * @param itemType the primitive type of the values being indexed
-     * @param index the index being saved
+     * Get the map holding the indexes for a particular document, creating it if necessary. This
+     * needs to be done in such a way that the indexes are discarded by the garbage collector
+     * if the document is discarded. We therefore use a map keyed on a weak reference to the DocumentInfo,
+     * which returns a weak reference to a map giving the index for each key definition set and item type.
+     * The maps are concurrent because several concurrent transformations (which share
+     * the same KeyManager) may be creating and using indexes for the same or different documents at the
+     * same time; there is no global lock.
+     * @param doc the document whose indexes are required
      * @param context the dynamic evaluation context
+     * @return a map from the index key (see {@link #makeIndexKey}) to the {@link KeyIndex}
     */
 
-    private synchronized void putIndex(DocumentInfo doc, int keyFingerprint,
-                                       AtomicType itemType, Object index, XPathContext context) {
-        if (docIndexes==null) {
+    private Map getIndexList(DocumentInfo doc, XPathContext context) {
+        ConcurrentHashMap indexes = getDocumentIndexes();
+        DocumentKey docKey = new DocumentKey(doc, null);
+        WeakReference ref = (WeakReference)indexes.get(docKey);
+        Map indexList = (ref == null ? null : (Map)ref.get());
+        if (indexList == null) {
+            expungeDiscardedDocuments(indexes);
+            ConcurrentHashMap newList = new ConcurrentHashMap(10);
+            WeakReference newRef = new WeakReference(newList);
+            docKey = new DocumentKey(doc, discardedDocuments);
+            while (true) {
+                ref = (WeakReference)indexes.putIfAbsent(docKey, newRef);
+                if (ref == null) {
+                    indexList = newList;
+                    break;
+                }
+                indexList = (Map)ref.get();
+                if (indexList != null) {
+                    break;
+                }
+                if (indexes.replace(docKey, ref, newRef)) {
+                    indexList = newList;
+                    break;
+                }
+            }
+        }
+        // ensure there is a firm reference to the indexList for the duration of a transformation. The
+        // Controller's user data table is concurrent, since key() may be called from several threads
+        // evaluating sort or grouping keys; every thread finds the same indexList, so it does not
+        // matter which of them stores it
+        Controller controller = context.getController();
+        if (controller.getUserData(doc, "key-index-list") != indexList) {
+            controller.setUserData(doc, "key-index-list", indexList);
+        }
+        return indexList;
+    }
+
+    /**
+     * Get the map holding the indexes for each document, creating it if necessary
+     * @return the map from documents to their indexes
+     */
+
+    private ConcurrentHashMap getDocumentIndexes() {
+        ConcurrentHashMap indexes = docIndexes;
+        if (indexes == null) {
             // it's transient, so it will be null when reloading a compiled stylesheet
-            docIndexes = new WeakHashMap(10);
+            synchronized (this) {
+                if (docIndexes == null) {
+                    discardedDocuments = new ReferenceQueue();
+                    docIndexes = new ConcurrentHashMap(10);
+                }
+                indexes = docIndexes;
+            }
         }
-        WeakReference indexRef = (WeakReference)docIndexes.get(doc);
-        HashMap indexList;
-        if (indexRef==null || indexRef.get()==null) {
-            indexList = new HashMap(10);
-            // ensure there is a firm reference to the indexList for the duration of a transformation
-            context.getController().setUserData(doc, "key-index-list", indexList);
-            docIndexes.put(doc, new WeakReference(indexList));
-        } else {
-            indexList = (HashMap)indexRef.get();
+        return indexes;
+    }
+
+    /**
+     * Remove the entries for documents that have been garbage collected
+     * @param indexes the map from documents to their indexes
+     */
+
+    private void expungeDiscardedDocuments(ConcurrentHashMap indexes) {
+        while (true) {
+            Reference ref = discardedDocuments.poll();
+            if (ref == null) {
+                return;
+            }
+            indexes.remove(ref);
         }
-        indexList.put(new Long(((long)keyFingerprint)<<32 | itemType.getFingerprint()), index);
     }
 
     /**
      * Get the index associated with a particular key, a particular source document,
-     * and a particular primitive item type
+     * and a particular primitive item type, building it if necessary. If another thread is
+     * already building the same index, this thread waits for it to finish.
+     * @param keySet The set of key definitions with this name
+     * @param itemType the type of the values to be indexed.
+     * @param foundItemTypes Optional (may be null). If supplied, a set that is to be populated with
+     * the set of primitive types actually found among the "use" values, in which case indexes are
+     * also built for each of these types.
      * @param doc the document whose index is required
-     * @param keyFingerprint the name of the key definition
-     * @param itemType the primitive item type of the values being indexed
-     * @return either an index (as a HashMap), or the String "under construction", or null
+     * @param indexList the map holding the indexes for this document
+     * @param context the dynamic evaluation context
+     * @return the index, fully built
+     * @throws XPathException if building the index fails, or if the key definition is circular
     */
 
-    private synchronized Object getIndex(DocumentInfo doc, int keyFingerprint, AtomicType itemType) {
-        if (docIndexes==null) {
-            // it's transient, so it will be null when reloading a compiled stylesheet
-            docIndexes = new WeakHashMap(10);
+    private KeyIndex getIndex(KeyDefinitionSet keySet, BuiltInAtomicType itemType, Set foundItemTypes,
+                              DocumentInfo doc, Map indexList, XPathContext context) throws XPathException {
+        Long key = makeIndexKey(keySet.getKeySetNumber(), itemType);
+        ConcurrentHashMap map = (ConcurrentHashMap)indexList;
+        while (true) {
+            KeyIndex index = (KeyIndex)map.get(key);
+            if (index == null) {
+                // Create the index, marked as being under construction, in case the definition is circular
+                // or another thread needs it
+                KeyIndex newIndex = new KeyIndex(doc);
+                index = (KeyIndex)map.putIfAbsent(key, newIndex);
+                if (index == null) {
+                    try {
+                        long time = buildIndex(keySet, itemType, foundItemTypes, doc, newIndex, context);
+                        if (foundItemTypes != null) {
+                            // build indexes for each item type actually found, before releasing the
+                            // first index, so that other threads see all of them
+                            for (Iterator f = foundItemTypes.iterator(); f.hasNext();) {
+                                BuiltInAtomicType t = (BuiltInAtomicType)f.next();
+                                if (!t.equals(itemType)) {
+                                    KeyIndex typedIndex = new KeyIndex(doc);
+                                    if (map.putIfAbsent(makeIndexKey(keySet.getKeySetNumber(), t), typedIndex) == null) {
+                                        try {
+                                            typedIndex.setBuilt(buildIndex(keySet, t, null, doc, typedIndex, context));
+                                        } catch (XPathException err) {
+                                            map.remove(makeIndexKey(keySet.getKeySetNumber(), t), typedIndex);
+                                            typedIndex.setFailed();
+                                            throw err;
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                        newIndex.setBuilt(time);
+                    } catch (XPathException err) {
+                        map.remove(key, newIndex);
+                        newIndex.setFailed();
+                        throw err;
+                    } catch (RuntimeException err) {
+                        map.remove(key, newIndex);
+                        newIndex.setFailed();
+                        throw err;
+                    }
+                    return newIndex;
+                }
+            }
+            if (index.waitUntilBuilt(context)) {
+                return index;
+            }
+            // building the index failed in another thread: try again in this thread
         }
-        WeakReference ref = (WeakReference)docIndexes.get(doc);
-        if (ref==null) return null;
-        HashMap indexList = (HashMap)ref.get();
-        if (indexList==null) return null;
-        return indexList.get(new Long(((long)keyFingerprint)<<32 | itemType.getFingerprint()));
+    }
+
+    /**
+     * Make the key used to identify an index for a given key definition set and item type
+     * @param keySetNumber the number identifying the key definition set
+     * @param itemType the primitive item type of the values being indexed
+     * @return the key used in the map holding the indexes for a document
+     */
+
+    private static Long makeIndexKey(int keySetNumber, AtomicType itemType) {
+        return new Long(((long)keySetNumber)<<32 | itemType.getFingerprint());
     }
 
     /**
@@ -653,7 +708,47 @@ public class KeyManager implements Serializable {
      */
 
     public void clearDocumentIndexes(DocumentInfo doc) {
-        docIndexes.remove(doc);
+        getDocumentIndexes().remove(new DocumentKey(doc, null));
+    }
+
+    /**
+     * Get the number of indexes that have been built since this KeyManager was created
+     * @return the number of indexes built
+     */
+
+    public long getNumberOfIndexesBuilt() {
+        return indexesBuilt.get();
+    }
+
+    /**
+     * Get the total time spent building indexes since this KeyManager was created
+     * @return the total time in nanoseconds
+     */
+
+    public long getTotalIndexBuildTime() {
+        return indexBuildTime.get();
+    }
+
+    /**
+     * Get a rough estimate of the memory used by the indexes currently held for all documents
+     * @return the estimated size of the indexes, in bytes. The estimate does not include the memory
+     * used by the key values themselves.
+     */
+
+    public long getEstimatedIndexSize() {
+        long size = 0;
+        for (Iterator d = getDocumentIndexes().values().iterator(); d.hasNext();) {
+            Map indexList = (Map)((WeakReference)d.next()).get();
+            if (indexList != null) {
+                for (Iterator i = indexList.values().iterator(); i.hasNext();) {
+                    KeyIndex index = (KeyIndex)i.next();
+                    if (index.getBuildTime() >= 0) {
+                        size += index.getEstimatedSize();
+                    }
+                }
+            }
+        }
+        return size;
     }
 
     /**
@@ -693,6 +788,37 @@ public class KeyManager implements Serializable {
         }
         out.endElement();
     }
+
+    /**
+     * A weak reference to a document, used as the key of the map holding the indexes for each document.
+     * Two keys are equal if they refer to the same document.
+     */
+
+    private static final class DocumentKey extends WeakReference {
+
+        private int hash;
+
+        public DocumentKey(DocumentInfo doc, ReferenceQueue queue) {
+            super(doc, queue);
+            hash = doc.hashCode();
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            if (!(other instanceof DocumentKey) || ((DocumentKey)other).hash != hash) {
+                return false;
+            }
+            Object doc = get();
+            Object otherDoc = ((DocumentKey)other).get();
+            return doc != null && otherDoc != null && doc.equals(otherDoc);
+        }
+    }
 }
 
 //
@@ -11,11 +11,16 @@ import org.orbeon.saxon.om.NodeInfo;
 import org.orbeon.saxon.om.StructuredQName;
 import org.orbeon.saxon.om.NamespaceConstant;
 import org.orbeon.saxon.pattern.EmptySequenceTest;
+import org.orbeon.saxon.pattern.LocationPathPattern;
+import org.orbeon.saxon.pattern.NodeTest;
 import org.orbeon.saxon.pattern.Pattern;
+import org.orbeon.saxon.sort.IntHashMap;
+import org.orbeon.saxon.sort.IntIterator;
 import org.orbeon.saxon.type.Type;
 import org.orbeon.saxon.value.Whitespace;
 
 import java.io.Serializable;
+import java.util.Iterator;
 
 /**
  * A Mode is a collection of rules; the selection of a rule to apply to a given element
@@ -38,8 +43,20 @@ public class Mode implements Serializable {
     public static final StructuredQName DEFAULT_MODE_NAME =
             new StructuredQName("saxon", NamespaceConstant.SAXON, "_defaultMode");
 
-
-    private Rule[] ruleDict = new Rule[101 + Type.MAX_NODE_TYPE];
+    // For fast lookup, the rules are held in a number of chains, each sorted in precedence/priority order
+    // so that we find the highest-priority rule first. To find the rule for a node, we need to search
+    // at most four chains: the chain for element rules whose parent is constrained to have a particular
+    // name, the chain for the node's kind and name, the chain for the node's kind (any name), and
+    // the generic chain, restricted to those rules that can match the node's kind.
+
+    private Rule genericRuleChain;                                  // rules that can match more than one kind of node
+    private Rule[] kindRuleChains = new Rule[Type.MAX_NODE_TYPE + 1]; // rules that match one kind of node, any name
+    private IntHashMap[] namedRuleChains = new IntHashMap[Type.MAX_NODE_TYPE + 1];
+                                                                    // for each node kind, fingerprint -> Rule chain
+    private IntHashMap parentedRuleChains;                          // element fingerprint ->
+                                                                    // (parent fingerprint -> Rule chain)
+    private transient volatile Rule[] genericRulesByKind;           // copies of the generic rules that can
+                                                                    // match each kind of node, built when needed
     private Rule mostRecentRule;
     private boolean isDefault;
     private boolean isStripper;
@@ -72,15 +89,45 @@ public class Mode implements Serializable {
         isStripper = false;
         this.modeName = modeName;
         if (omniMode != null) {
-            for (int i = 0; i < ruleDict.length; i++) {
-                if (omniMode.ruleDict[i] != null) {
-                    ruleDict[i] = new Rule(omniMode.ruleDict[i]);
+            if (omniMode.genericRuleChain != null) {
+                genericRuleChain = new Rule(omniMode.genericRuleChain);
+            }
+            for (int i = 0; i < kindRuleChains.length; i++) {
+                if (omniMode.kindRuleChains[i] != null) {
+                    kindRuleChains[i] = new Rule(omniMode.kindRuleChains[i]);
+                }
+                if (omniMode.namedRuleChains[i] != null) {
+                    namedRuleChains[i] = copyRuleChains(omniMode.namedRuleChains[i]);
+                }
+            }
+            if (omniMode.parentedRuleChains != null) {
+                parentedRuleChains = new IntHashMap();
+                IntIterator keys = omniMode.parentedRuleChains.keyIterator();
+                while (keys.hasNext()) {
+                    int fp = keys.next();
+                    parentedRuleChains.put(fp, copyRuleChains((IntHashMap)omniMode.parentedRuleChains.get(fp)));
                 }
             }
             mostRecentRule = omniMode.mostRecentRule;
         }
     }
 
+    /**
+     * Copy a map whose values are chains of rules, copying the chains as well as the map
+     * @param map the map to be copied
+     * @return the copy
+     */
+
+    private static IntHashMap copyRuleChains(IntHashMap map) {
+        IntHashMap copy = new IntHashMap(map.size());
+        IntIterator keys = map.keyIterator();
+        while (keys.hasNext()) {
+            int fp = keys.next();
+            copy.put(fp, new Rule((Rule)map.get(fp)));
+        }
+        return copy;
+    }
+
     /**
      * Determine if this is the default mode
      * @return true if this is the default (unnamed) mode
@@ -132,17 +179,6 @@ public class Mode implements Serializable {
             return;
         }
 
-        // for fast lookup, we maintain one list for each element name for patterns that can only
-        // match elements of a given name, one list for each node type for patterns that can only
-        // match one kind of non-element node, and one generic list.
-        // Each list is sorted in precedence/priority order so we find the highest-priority rule first
-
-        int fingerprint = p.getFingerprint();
-        int type = p.getNodeKind();
-
-        int key = getList(fingerprint, type);
-        // System.err.println("Fingerprint " + fingerprint + " key " + key + " type " + type);
-
         // This logic is designed to ensure that when a UnionPattern contains multiple branches
         // with the same priority, next-match doesn't select the same template twice (override20_047)
         int sequence;
@@ -154,74 +190,250 @@ public class Mode implements Serializable {
             sequence = mostRecentRule.getSequence() + 1;
         }
         Rule newRule = new Rule(p, action, precedence, priority, sequence);
-        mostRecentRule = newRule; 
+        mostRecentRule = newRule;
+        genericRulesByKind = null;
 
-        Rule rule = ruleDict[key];
-        if (rule == null) {
-            ruleDict[key] = newRule;
-            return;
+        int fingerprint = p.getFingerprint();
+        int kind = p.getNodeKind();
+
+        if (kind == Type.NODE || kind > Type.MAX_NODE_TYPE) {
+            genericRuleChain = addToChain(genericRuleChain, newRule);
+        } else if (fingerprint == -1) {
+            kindRuleChains[kind] = addToChain(kindRuleChains[kind], newRule);
+        } else {
+            IntHashMap chains;
+            int parentFingerprint = getParentFingerprint(p);
+            if (parentFingerprint != -1) {
+                if (parentedRuleChains == null) {
+                    parentedRuleChains = new IntHashMap();
+                }
+                chains = (IntHashMap)parentedRuleChains.get(fingerprint);
+                if (chains == null) {
+                    chains = new IntHashMap();
+                    parentedRuleChains.put(fingerprint, chains);
+                }
+                fingerprint = parentFingerprint;
+            } else {
+                chains = namedRuleChains[kind];
+                if (chains == null) {
+                    chains = new IntHashMap();
+                    namedRuleChains[kind] = chains;
+                }
+            }
+            chains.put(fingerprint, addToChain((Rule)chains.get(fingerprint), newRule));
         }
+    }
+
+    /**
+     * Determine whether a pattern for named elements can only match an element whose parent is an
+     * element with a particular name, as with the pattern <code>a/b</code>
+     * @param p the pattern
+     * @return the fingerprint of the name that the parent element must have, or -1 if the pattern
+     * does not constrain the parent to be an element with a known name
+     */
+
+    private static int getParentFingerprint(Pattern p) {
+        if (p instanceof LocationPathPattern && p.getNodeKind() == Type.ELEMENT) {
+            Pattern parent = ((LocationPathPattern)p).getParentPattern();
+            if (parent != null && parent.getNodeKind() == Type.ELEMENT) {
+                return parent.getFingerprint();
+            }
+        }
+        return -1;
+    }
 
-        // insert the new rule into this list before others of the same precedence/priority
+    /**
+     * Insert a rule into a chain of rules, before others of the same precedence/priority
+     * @param chain the first rule in the chain, or null if the chain is empty
+     * @param newRule the rule to be added
+     * @return the first rule in the new chain
+     */
 
+    private static Rule addToChain(Rule chain, Rule newRule) {
+        int precedence = newRule.getPrecedence();
+        double priority = newRule.getPriority();
+        Rule rule = chain;
         Rule prev = null;
         while (rule != null) {
             if ((rule.getPrecedence() < precedence) ||
                     (rule.getPrecedence() == precedence && rule.getPriority() <= priority)) {
                 newRule.setNext(rule);
                 if (prev == null) {
-                    ruleDict[key] = newRule;
+                    return newRule;
                 } else {
                     prev.setNext(newRule);
+                    return chain;
                 }
-                break;
             } else {
                 prev = rule;
                 rule = rule.getNext();
             }
         }
-        if (rule == null) {
-            prev.setNext(newRule);
-            newRule.setNext(null);
+        newRule.setNext(null);
+        if (prev == null) {
+            return newRule;
         }
+        prev.setNext(newRule);
+        return chain;
     }
 
     /**
-     * Determine which list to use for a given pattern (we must also search the generic list)
-     * @param fingerprint the name of the node being matched
-     * @param kind the node kind of the node being matched
-     * @return an index in the hash array for this node name and kind
+     * Get, for each kind of node, the chain of generic rules that might match a node of that kind.
+     * The chains contain copies of the rules in the generic chain, in the same order, excluding those
+     * whose patterns can never match a node of the relevant kind. The chains are built the first
+     * time they are needed, and rebuilt if rules are subsequently added.
+     * @return an array indexed by node kind, containing the first rule in each chain
      */
 
-    public int getList(int fingerprint, int kind) {
+    private Rule[] getGenericRulesByKind() {
+        Rule[] chains = genericRulesByKind;
+        if (chains == null) {
+            chains = new Rule[Type.MAX_NODE_TYPE + 1];
+            Rule[] last = new Rule[Type.MAX_NODE_TYPE + 1];
+            for (Rule r = genericRuleChain; r != null; r = r.getNext()) {
+                NodeTest test = r.getPattern().getNodeTest();
+                int mask = (test == null ? -1 : test.getNodeKindMask());
+                for (int kind = 0; kind <= Type.MAX_NODE_TYPE; kind++) {
+                    if ((mask & (1<<kind)) != 0) {
+                        Rule copy = new Rule(r.getPattern(), r.getAction(),
+                                r.getPrecedence(), r.getPriority(), r.getSequence());
+                        if (last[kind] == null) {
+                            chains[kind] = copy;
+                        } else {
+                            last[kind].setNext(copy);
+                        }
+                        last[kind] = copy;
+                    }
+                }
+            }
+            genericRulesByKind = chains;
+        }
+        return chains;
+    }
 
+    /**
+     * Get the chains of rules that need to be searched to find the rules that might match a given node.
+     * The chains are in two groups, which correspond to the two lists searched by earlier releases: the
+     * "specific" rules, which can only match elements with a given name or nodes of a given non-element
+     * kind, and the "general" rules, which can match elements of any name or nodes of several kinds. Keeping
+     * the two groups apart means that ambiguities are found and reported in the same way as before.
+     * @param node the node to be matched
+     * @return an array of four chains (any of which may be null), which between them contain all the rules
+     * that might match the node: the first two hold the specific rules, the last two the general rules
+     */
+
+    private Rule[] getCandidateChains(NodeInfo node) {
+        int kind = node.getNodeKind();
+        Rule[] chains = new Rule[4];
+        if (namedRuleChains[kind] != null || (kind == Type.ELEMENT && parentedRuleChains != null)) {
+            int fingerprint = node.getFingerprint();
+                    // This is inefficient with wrapped object models (DOM, XOM, JDOM),
+                    // but there's not much we can do about it
+            if (kind == Type.ELEMENT && parentedRuleChains != null) {
+                IntHashMap byParent = (IntHashMap)parentedRuleChains.get(fingerprint);
+                if (byParent != null) {
+                    NodeInfo parent = node.getParent();
+                    if (parent != null && parent.getNodeKind() == Type.ELEMENT) {
+                        chains[0] = (Rule)byParent.get(parent.getFingerprint());
+                    }
+                }
+            }
+            if (namedRuleChains[kind] != null) {
+                chains[1] = (Rule)namedRuleChains[kind].get(fingerprint);
+            }
+        }
         if (kind == Type.ELEMENT) {
-            if (fingerprint == -1) {
-                return Type.NODE;   // the generic list
+            // rules for elements of any name are general rules
+            chains[2] = kindRuleChains[kind];
+        } else {
+            chains[0] = kindRuleChains[kind];
+        }
+        chains[3] = getGenericRulesByKind()[kind];
+        return chains;
+    }
+
+    /**
+     * Test whether one rule is ranked below another, that is, whether it has lower import precedence,
+     * or the same import precedence and lower priority
+     * @param r1 the first rule
+     * @param r2 the second rule
+     * @return true if r1 is ranked below r2
+     */
+
+    private static boolean isRankedBelow(Rule r1, Rule r2) {
+        return r1.getPrecedence() < r2.getPrecedence() ||
+                (r1.getPrecedence() == r2.getPrecedence() && r1.getPriority() < r2.getPriority());
+    }
+
+    /**
+     * Search two chains of rules, in the order of a single chain holding all their rules (the order in which
+     * {@link #addToChain} would have placed them), for the first rule that matches a node, and for a second
+     * matching rule of the same precedence and priority
+     * @param a the first chain
+     * @param b the second chain
+     * @param bound if non-null, the search stops at rules ranked below this rule
+     * @param currentRule if non-null, only rules that come after this rule in search order are considered
+     * (this supports xsl:next-match)
+     * @param min the minimum import precedence of the rules to be considered
+     * @param max the maximum import precedence of the rules to be considered
+     * @param findSecond true if a second matching rule of the same rank is to be looked for
+     * @param node the node to be matched
+     * @param context the XPath dynamic evaluation context
+     * @return an array holding the first matching rule and the second matching rule, either or both of
+     * which may be null
+     * @throws XPathException if evaluating a pattern fails
+     */
+
+    private static Rule[] searchChains(Rule a, Rule b, Rule bound, Rule currentRule, int min, int max,
+                                       boolean findSecond, NodeInfo node, XPathContext context)
+            throws XPathException {
+        Rule first = null;
+        while (a != null || b != null) {
+            Rule r;
+            if (b == null || (a != null && (isRankedBelow(b, a) ||
+                    (!isRankedBelow(a, b) && a.getSequence() >= b.getSequence())))) {
+                r = a;
+                a = a.getNext();
             } else {
-                return Type.MAX_NODE_TYPE +
-                        (fingerprint % 101);
+                r = b;
+                b = b.getNext();
+            }
+            // quit the search once the rules are ranked below the one we've got
+            if (first != null ? isRankedBelow(r, first) : (bound != null && isRankedBelow(r, bound))) {
+                break;
+            }
+            // skip this rule unless it's "below" the current rule in search order
+            if (currentRule != null && (r == currentRule || !(isRankedBelow(r, currentRule) ||
+                    (r.getPrecedence() == currentRule.getPrecedence() &&
+                    r.getPriority() == currentRule.getPriority() && r.getSequence() < currentRule.getSequence())))) {
+                continue;
+            }
+            if (r.getPrecedence() >= min && r.getPrecedence() <= max && r.getPattern().matches(node, context)) {
+                if (first != null) {
+                    return new Rule[]{first, r};
+                }
+                first = r;
+                if (!findSecond) {
+                    break;                      // find the first; they are in priority order
+                }
             }
-        } else {
-            return kind;
         }
+        return new Rule[]{first, null};
     }
 
     /**
-     * Get the rule corresponding to a given Node, by finding the best Pattern match.
-     *
-     * @param node the NodeInfo referring to the node to be matched
+     * Find the best rule for a node, reporting any ambiguity
+     * @param node the node to be matched
+     * @param currentRule if non-null, only rules that come after this rule in search order are considered
      * @param context the XPath dynamic evaluation context
-     * @return the best matching rule, if any (otherwise null).
+     * @return the best matching rule, if any (otherwise null)
+     * @throws XPathException if evaluating a pattern fails, or if an ambiguous match is treated as an error
      */
 
-    public Rule getRule(NodeInfo node, XPathContext context) throws XPathException {
-        int fingerprint = node.getFingerprint();
-                    // This is inefficient with wrapped object models (DOM, XOM, JDOM),
-                    // but there's not much we can do about it
-        int type = node.getNodeKind();
-        int key = getList(fingerprint, type);
+    private Rule findRule(NodeInfo node, Rule currentRule, XPathContext context) throws XPathException {
+        Rule[] chains = getCandidateChains(node);
         int policy = context.getController().getRecoveryPolicy();
+        boolean findSecond = (policy != Configuration.RECOVER_SILENTLY);
 
         // If there are match patterns in the stylesheet that use local variables, we need to allocate
         // a new stack frame for evaluating the match patterns. We base this on the match pattern with
@@ -231,100 +443,76 @@ public class Mode implements Serializable {
 
         context = perhapsMakeNewContext(context);
 
-        Rule specificRule = null;
-        Rule generalRule = null;
-        int specificPrecedence = -1;
-        double specificPriority = Double.NEGATIVE_INFINITY;
-
-        // search the specific list for this node type / node name
-
-        if (key != Type.NODE) {
-            Rule r = ruleDict[key];
-            while (r != null) {
-                // if we already have a match, and the precedence or priority of this
-                // rule is lower, quit the search for a second match
-                if (specificRule != null) {
-                    if (r.getPrecedence() < specificPrecedence ||
-                            (r.getPrecedence() == specificPrecedence && r.getPriority() < specificPriority)) {
-                        break;
-                    }
-                }
-                if (r.getPattern().matches(node, context)) {
-
-                    // is this a second match?
-                    if (specificRule != null) {
-                        if (r.getPrecedence() == specificPrecedence && r.getPriority() == specificPriority) {
-                            reportAmbiguity(node, specificRule, r, context);
-                        }
-                        break;
-                    }
-                    specificRule = r;
-                    specificPrecedence = r.getPrecedence();
-                    specificPriority = r.getPriority();
-                    if (policy == Configuration.RECOVER_SILENTLY) {
-                        break;                      // find the first; they are in priority order
-                    }
-                }
-                r = r.getNext();
-            }
+        Rule[] specific = searchChains(chains[0], chains[1], null, currentRule,
+                Integer.MIN_VALUE, Integer.MAX_VALUE, findSecond, node, context);
+        Rule specificRule = specific[0];
+        if (specific[1] != null) {
+            reportAmbiguity(node, specificRule, specific[1], context);
         }
-
-        // search the general list
-
-        Rule r2 = ruleDict[Type.NODE];
-        while (r2 != null) {
-            if (r2.getPrecedence() < specificPrecedence ||
-                    (r2.getPrecedence() == specificPrecedence && r2.getPriority() < specificPriority)) {
-                break;      // no point in looking at a lower priority rule than the one we've got
-            }
-            if (r2.getPattern().matches(node, context)) {
-                // is it a second match?
-                if (generalRule != null) {
-                    if (r2.getPrecedence() == generalRule.getPrecedence() && r2.getPriority() == generalRule.getPriority()) {
-                        reportAmbiguity(node, r2, generalRule, context);
-                    }
-                    break;
-                } else {
-                    generalRule = r2;
-                    if (policy == Configuration.RECOVER_SILENTLY) {
-                        break;                      // find only the first; they are in priority order
-                    }
-                }
-            }
-            r2 = r2.getNext();
+        Rule[] general = searchChains(chains[2], chains[3], specificRule, currentRule,
+                Integer.MIN_VALUE, Integer.MAX_VALUE, findSecond, node, context);
+        Rule generalRule = general[0];
+        if (general[1] != null) {
+            reportAmbiguity(node, general[1], generalRule, context);
         }
 
-        if (specificRule != null && generalRule == null) {
+        if (generalRule == null) {
             return specificRule;
         }
-        if (specificRule == null && generalRule != null) {
+        if (specificRule == null) {
             return generalRule;
         }
-        if (specificRule != null) {
-            if (specificRule.getPrecedence() == generalRule.getPrecedence() &&
-                    specificRule.getPriority() == generalRule.getPriority()) {
-                // This situation is exceptional: we have a "specific" pattern and
-                // a "general" pattern with the same priority. We have to select
-                // the one that was added last
-                // (Bug reported by Norman Walsh Jan 2002)
-                Rule result = (specificRule.getSequence() > generalRule.getSequence() ?
-                        specificRule :
-                        generalRule);
-
-                if (policy != Configuration.RECOVER_SILENTLY) {
-                    reportAmbiguity(node, specificRule, generalRule, context);
-                }
-                return result;
+        if (specificRule.getPrecedence() == generalRule.getPrecedence() &&
+                specificRule.getPriority() == generalRule.getPriority()) {
+            // This situation is exceptional: we have a "specific" pattern and
+            // a "general" pattern with the same priority. We have to select
+            // the one that was added last
+            // (Bug reported by Norman Walsh Jan 2002)
+            Rule result = (specificRule.getSequence() > generalRule.getSequence() ?
+                    specificRule :
+                    generalRule);
+
+            if (policy != Configuration.RECOVER_SILENTLY) {
+                reportAmbiguity(node, specificRule, generalRule, context);
             }
-            if (specificRule.getPrecedence() > generalRule.getPrecedence() ||
-                    (specificRule.getPrecedence() == generalRule.getPrecedence() &&
-                    specificRule.getPriority() >= generalRule.getPriority())) {
-                return specificRule;
+            return result;
+        }
+        return (isRankedBelow(specificRule, generalRule) ? generalRule : specificRule);
+    }
+
+    /**
+     * Determine which list to use for a given pattern (we must also search the generic list)
+     * @param fingerprint the name of the node being matched
+     * @param kind the node kind of the node being matched
+     * @return an index in the hash array for this node name and kind
+     * @deprecated since 9.1. The rules are no longer held in a hash array indexed in this way, so the value
+     * returned by this method is not used by the Mode.
+     */
+
+    public int getList(int fingerprint, int kind) {
+
+        if (kind == Type.ELEMENT) {
+            if (fingerprint == -1) {
+                return Type.NODE;   // the generic list
             } else {
-                return generalRule;
+                return Type.MAX_NODE_TYPE +
+                        (fingerprint % 101);
             }
+        } else {
+            return kind;
         }
-        return null;
+    }
+
+    /**
+     * Get the rule corresponding to a given Node, by finding the best Pattern match.
+     *
+     * @param node the NodeInfo referring to the node to be matched
+     * @param context the XPath dynamic evaluation context
+     * @return the best matching rule, if any (otherwise null).
+     */
+
+    public Rule getRule(NodeInfo node, XPathContext context) throws XPathException {
+        return findRule(node, null, context);
     }
 
     /**
@@ -357,55 +545,19 @@ public class Mode implements Serializable {
      */
 
     public Rule getRule(NodeInfo node, int min, int max, XPathContext context) throws XPathException {
-        int fp = node.getFingerprint();
-        int type = node.getNodeKind();
-        int key = getList(fp, type);
-
-        Rule specificRule = null;
-        Rule generalRule = null;
+        Rule[] chains = getCandidateChains(node);
 
         context = perhapsMakeNewContext(context);
 
-        // search the the specific list for this node type / name
-
-        if (key != Type.NODE) {
-            Rule r = ruleDict[key];
-            while (r != null) {
-                if (r.getPrecedence() >= min && r.getPrecedence() <= max &&
-                        r.getPattern().matches(node, context)) {
-                    specificRule = r;
-                    break;                      // find the first; they are in priority order
-                }
-                r = r.getNext();
-            }
-        }
-
-        // search the generic list
-
-        Rule r2 = ruleDict[Type.NODE];
-        while (r2 != null) {
-            if (r2.getPrecedence() >= min && r2.getPrecedence() <= max && r2.getPattern().matches(node, context)) {
-                generalRule = r2;
-                break;                      // find only the first; they are in priority order
-            }
-            r2 = r2.getNext();
-        }
-        if (specificRule != null && generalRule == null) {
+        Rule specificRule = searchChains(chains[0], chains[1], null, null, min, max, false, node, context)[0];
+        Rule generalRule = searchChains(chains[2], chains[3], null, null, min, max, false, node, context)[0];
+        if (generalRule == null) {
             return specificRule;
         }
-        if (specificRule == null && generalRule != null) {
+        if (specificRule == null) {
             return generalRule;
         }
-        if (specificRule != null) {
-            if (specificRule.getPrecedence() > generalRule.getPrecedence() ||
-                    (specificRule.getPrecedence() == generalRule.getPrecedence() &&
-                    specificRule.getPriority() >= generalRule.getPriority())) {
-                return specificRule;
-            } else {
-                return generalRule;
-            }
-        }
-        return null;
+        return (isRankedBelow(specificRule, generalRule) ? generalRule : specificRule);
     }
 
     /**
@@ -419,136 +571,7 @@ public class Mode implements Serializable {
      */
 
     public Rule getNextMatchRule(NodeInfo node, Rule currentRule, XPathContext context) throws XPathException {
-        int fingerprint = node.getFingerprint();
-        int type = node.getNodeKind();
-        int key = getList(fingerprint, type);
-        int policy = context.getController().getRecoveryPolicy();
-
-        context = perhapsMakeNewContext(context);
-
-        // First find the Rule object corresponding to the current handler
-
-        Rule specificRule = null;
-        Rule generalRule = null;
-        int specificPrecedence = -1;
-        double specificPriority = Double.NEGATIVE_INFINITY;
-
-        // search the specific list for this node type / node name
-
-        Rule r;
-        if (key != Type.NODE) {
-            r = ruleDict[key];
-            while (r != null) {
-                // skip this rule if it is the current rule.
-                if (r == currentRule) {
-                    // skip this rule
-                } else
-                // skip this rule unless it's "below" the current rule in search order
-                    if ((r.getPrecedence() > currentRule.getPrecedence()) ||
-                            (r.getPrecedence() == currentRule.getPrecedence() &&
-                            (r.getPriority() > currentRule.getPriority() ||
-                            (r.getPriority() == currentRule.getPriority() && r.getSequence() >= currentRule.getSequence())))) {
-                        // skip this rule
-                    } else {
-                        // quit the search on finding the second (recoverable error) match
-                        if (specificRule != null) {
-                            if (r.getPrecedence() < specificPrecedence ||
-                                    (r.getPrecedence() == specificPrecedence && r.getPriority() < specificPriority)) {
-                                break;
-                            }
-                        }
-                        //System.err.println("Testing " + Navigator.getPath(node) + " against " + r.pattern);
-                        if (r.getPattern().matches(node, context)) {
-                            //System.err.println("Matches");
-
-                            // is this a second match?
-                            if (specificRule != null) {
-                                if (r.getPrecedence() == specificPrecedence && r.getPriority() == specificPriority) {
-                                    reportAmbiguity(node, specificRule, r, context);
-                                }
-                                break;
-                            }
-                            specificRule = r;
-                            specificPrecedence = r.getPrecedence();
-                            specificPriority = r.getPriority();
-                            if (policy == Configuration.RECOVER_SILENTLY) {
-                                break;                      // find the first; they are in priority order
-                            }
-                        }
-                    }
-                r = r.getNext();
-            }
-        }
-
-        // search the general list
-
-        Rule r2 = ruleDict[Type.NODE];
-        while (r2 != null) {
-            // skip this rule if the rule is the current template rule
-            if (r2 == currentRule) {
-                // skip this rule
-            } else
-            // skip this rule unless it's "after" the current rule in search order
-                if ((r2.getPrecedence() > currentRule.getPrecedence()) ||
-                        (r2.getPrecedence() == currentRule.getPrecedence() &&
-                        (r2.getPriority() > currentRule.getPriority() ||
-                        (r2.getPriority() == currentRule.getPriority() && r2.getSequence() >= currentRule.getSequence())))) {
-                    // skip this rule
-                } else {
-                    if (r2.getPrecedence() < specificPrecedence ||
-                            (r2.getPrecedence() == specificPrecedence && r2.getPriority() < specificPriority)) {
-                        break;      // no point in looking at a lower priority rule than the one we've got
-                    }
-                    if (r2.getPattern().matches(node, context)) {
-                        // is it a second match?
-                        if (generalRule != null) {
-                            if (r2.getPrecedence() == generalRule.getPrecedence() &&
-                                    r2.getPriority() == generalRule.getPriority()) {
-                                reportAmbiguity(node, r2, generalRule, context);
-                            }
-                            break;
-                        } else {
-                            generalRule = r2;
-                            if (policy == Configuration.RECOVER_SILENTLY) {
-                                break;                      // find only the first; they are in priority order
-                            }
-                        }
-                    }
-                }
-            r2 = r2.getNext();
-        }
-
-        if (specificRule != null && generalRule == null) {
-            return specificRule;
-        }
-        if (specificRule == null && generalRule != null) {
-            return generalRule;
-        }
-        if (specificRule != null && generalRule != null) {
-            if (specificRule.getPrecedence() == generalRule.getPrecedence() &&
-                    specificRule.getPriority() == generalRule.getPriority()) {
-                // This situation is exceptional: we have a "specific" pattern and
-                // a "general" pattern with the same priority. We have to select
-                // the one that was added last
-                // (Bug reported by Norman Walsh Jan 2002)
-                Rule result = (specificRule.getSequence() > generalRule.getSequence() ?
-                        specificRule :
-                        generalRule);
-
-                if (policy != Configuration.RECOVER_SILENTLY) {
-                    reportAmbiguity(node, specificRule, generalRule, context);
-                }
-                return result;
-            }
-            if (specificRule.getPrecedence() > generalRule.getPrecedence() ||
-                    (specificRule.getPrecedence() == generalRule.getPrecedence() &&
-                    specificRule.getPriority() >= generalRule.getPriority())) {
-                return specificRule;
-            } else {
-                return generalRule;
-            }
-        }
-        return null;
+        return findRule(node, currentRule, context);
     }
 
     /**
@@ -605,26 +628,46 @@ public class Mode implements Serializable {
      */
 
     public void explainTemplateRules(ExpressionPresenter presenter) {
-        for (int i=0; i<ruleDict.length; i++) {
-            Rule r = ruleDict[i];
-            while (r != null) {
-                Template t = (Template)r.getAction();
-                int s = presenter.startElement("templateRule");
-                presenter.emitAttribute("match", r.getPattern().toString());
-                presenter.emitAttribute("precedence", r.getPrecedence()+"");
-                presenter.emitAttribute("priority", r.getPriority()+"");
-                presenter.emitAttribute("line", t.getLineNumber()+"");
-                presenter.emitAttribute("module", t.getSystemId());
-                if (t.getBody() != null) {
-                    t.getBody().explain(presenter);
-                }
-                int e = presenter.endElement();
-                if (s != e) {
-                    throw new IllegalStateException(
-                            "tree unbalanced in template at line " + t.getLineNumber() + " of " + t.getSystemId());
-                }
-                r = r.getNext();
+        explainRuleChain(genericRuleChain, presenter);
+        for (int i=0; i<kindRuleChains.length; i++) {
+            explainRuleChain(kindRuleChains[i], presenter);
+            if (namedRuleChains[i] != null) {
+                explainRuleChains(namedRuleChains[i], presenter);
+            }
+        }
+        if (parentedRuleChains != null) {
+            Iterator iter = parentedRuleChains.valueIterator();
+            while (iter.hasNext()) {
+                explainRuleChains((IntHashMap)iter.next(), presenter);
+            }
+        }
+    }
+
+    private void explainRuleChains(IntHashMap chains, ExpressionPresenter presenter) {
+        Iterator iter = chains.valueIterator();
+        while (iter.hasNext()) {
+            explainRuleChain((Rule)iter.next(), presenter);
+        }
+    }
+
+    private void explainRuleChain(Rule r, ExpressionPresenter presenter) {
+        while (r != null) {
+            Template t = (Template)r.getAction();
+            int s = presenter.startElement("templateRule");
+            presenter.emitAttribute("match", r.getPattern().toString());
+            presenter.emitAttribute("precedence", r.getPrecedence()+"");
+            presenter.emitAttribute("priority", r.getPriority()+"");
+            presenter.emitAttribute("line", t.getLineNumber()+"");
+            presenter.emitAttribute("module", t.getSystemId());
+            if (t.getBody() != null) {
+                t.getBody().explain(presenter);
+            }
+            int e = presenter.endElement();
+            if (s != e) {
+                throw new IllegalStateException(
+                        "tree unbalanced in template at line " + t.getLineNumber() + " of " + t.getSystemId());
             }
+            r = r.getNext();
         }
     }
 
@@ -0,0 +1,73 @@
+package org.orbeon.saxon.event;
+
+import org.orbeon.saxon.AugmentedSource;
+import org.orbeon.saxon.Configuration;
+import org.orbeon.saxon.expr.PathMap;
+import org.orbeon.saxon.om.Item;
+import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.query.DynamicQueryContext;
+import org.orbeon.saxon.query.StaticQueryContext;
+import org.orbeon.saxon.query.XQueryExpression;
+import org.orbeon.saxon.trans.XPathException;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that queries give the same results on a projected document as on the whole document
+ */
+
+public class DocumentProjectorTest {
+
+    private static final String MIXED =
+            "<r><a>x<b/>z</a><a>p<!--c-->q</a><a>m<?pi?>n</a><a>s<n:q xmlns:n='urn:n'>t</n:q>u</a></r>";
+
+    @Test
+    public void textNodesSeparatedByDiscardedNodesStayApart() throws XPathException {
+        assertSameResult("string-join(/r/a/text(), '|')", MIXED);
+        assertSameResult("count(/r/a[1]/text())", MIXED);
+        assertSameResult("string(/r/a[1]/text()[2])", MIXED);
+        assertEquals("x|z|p|q|m|n|s|u", evaluate("string-join(/r/a/text(), '|')", MIXED, true));
+    }
+
+    @Test
+    public void boundaryNodesAreNotVisible() throws XPathException {
+        assertSameResult("count(/r/a/comment()), count(/r/a/text())", MIXED);
+        assertSameResult("count(/r/a/processing-instruction()), count(/r/a/text())", MIXED);
+        assertSameResult("count(/r/a/*:q), string-join(/r/a/text(), '|')", MIXED);
+        assertSameResult("string-join(for $a in /r/a return string($a), '|'), count(/r/a/text())", MIXED);
+    }
+
+    private static void assertSameResult(String query, String source) throws XPathException {
+        assertEquals(query, evaluate(query, source, false), evaluate(query, source, true));
+    }
+
+    private static String evaluate(String query, String source, boolean projection) throws XPathException {
+        Configuration config = new Configuration();
+        XQueryExpression exp = new StaticQueryContext(config).compileQuery(query);
+        AugmentedSource input = AugmentedSource.makeAugmentedSource(new StreamSource(new StringReader(source)));
+        if (projection) {
+            PathMap.PathMapRoot contextRoot = exp.getPathMap().getContextRoot();
+            assertEquals(false, contextRoot.hasUnknownDependencies());
+            input.addFilter(config.makeDocumentProjector(contextRoot));
+        }
+        DynamicQueryContext env = new DynamicQueryContext(config);
+        env.setContextItem(config.buildDocument(input));
+        StringBuffer result = new StringBuffer();
+        SequenceIterator iter = exp.iterator(env);
+        while (true) {
+            Item item = iter.next();
+            if (item == null) {
+                break;
+            }
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(item.getStringValue());
+        }
+        return result.toString();
+    }
+}